@@ -15,6 +15,7 @@ import com.cardinalblue.android.R;
 import com.cardinalblue.android.piccollage.operation.DivideOperation;
 import com.cardinalblue.android.piccollage.operation.MinusOperation;
 import com.cardinalblue.android.piccollage.operation.MultiplyOperation;
+import com.cardinalblue.android.piccollage.operation.OperationCodecTable;
 import com.cardinalblue.android.piccollage.operation.PlusOperation;
 import com.squareup.otto.Subscribe;
 
@@ -49,7 +50,9 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         findViewById(R.id.btn_plus).setOnClickListener(this);
         mEditText = (EditText) findViewById(R.id.edit_field);
         mResultText = (TextView) findViewById(R.id.text_result);
+        UndoLabel.setFormatter(new ResourceLabelFormatter(getApplicationContext().getResources()));
         mUndoMgr = new UndoManager();
+        OperationCodecTable.registerAll(mUndoMgr.getOperationCodecs());
     }
 
     @Override
@@ -112,7 +115,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                     return;
                 }
                 nextNum /= num;
-                mUndoMgr.beginUpdate("/" + num);
+                mUndoMgr.beginUpdate(UndoLabel.of(R.string.undo_divide, num));
                 mUndoMgr.addOperation(new DivideOperation(nextNum, num));
                 mUndoMgr.endUpdate();
                 break;
@@ -122,7 +125,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                 }
 
                 nextNum -= num;
-                mUndoMgr.beginUpdate("-" + num);
+                mUndoMgr.beginUpdate(UndoLabel.of(R.string.undo_minus, num));
                 mUndoMgr.addOperation(new MinusOperation(nextNum, num));
                 mUndoMgr.endUpdate();
                 break;
@@ -131,7 +134,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                     return;
                 }
                 nextNum *= num;
-                mUndoMgr.beginUpdate("*" + num);
+                mUndoMgr.beginUpdate(UndoLabel.of(R.string.undo_multiply, num));
                 mUndoMgr.addOperation(new MultiplyOperation(nextNum, num));
                 mUndoMgr.endUpdate();
                 break;
@@ -140,7 +143,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                     return;
                 }
                 nextNum += num;
-                mUndoMgr.beginUpdate("+" + num);
+                mUndoMgr.beginUpdate(UndoLabel.of(R.string.undo_plus, num));
                 mUndoMgr.addOperation(new PlusOperation(nextNum, num));
                 mUndoMgr.endUpdate();
                 break;
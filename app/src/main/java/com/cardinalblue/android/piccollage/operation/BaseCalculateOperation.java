@@ -1,17 +1,18 @@
 package com.cardinalblue.android.piccollage.operation;
 
-import android.os.Parcel;
-
 import com.cardinalblue.android.piccollage.BusProvider;
 import com.cardinalblue.android.piccollage.NumberUpdateEvent;
-import com.cardinalblue.android.piccollage.UndoManager;
+import com.cardinalblue.android.piccollage.SavedField;
+import com.cardinalblue.android.piccollage.UndoHistory;
 
 /**
  * Created by prada on 9/21/15.
  */
-public abstract class BaseCalculateOperation extends UndoManager.UndoOperation {
+public abstract class BaseCalculateOperation extends UndoHistory.UndoOperation<Void> {
 
+    @SavedField
     protected final int number;
+    @SavedField
     protected final int value;
 
     @Override
@@ -24,24 +25,8 @@ public abstract class BaseCalculateOperation extends UndoManager.UndoOperation {
         BusProvider.getInstance().post(new NumberUpdateEvent(number));
     }
 
-    public BaseCalculateOperation(int num, int val) {
-        this.number = num;
-        this.value = val;
-    }
-
-    @Override
-    public int describeContents() {
-        return 0;
-    }
-
-    @Override
-    public void writeToParcel(Parcel dest, int flags) {
-        dest.writeInt(this.number);
-        dest.writeInt(this.value);
-    }
-
-    protected BaseCalculateOperation(Parcel in) {
-        this.number = in.readInt();
-        this.value = in.readInt();
+    public BaseCalculateOperation(int number, int value) {
+        this.number = number;
+        this.value = value;
     }
 }
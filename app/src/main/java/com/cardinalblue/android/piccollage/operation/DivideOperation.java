@@ -1,32 +1,20 @@
 package com.cardinalblue.android.piccollage.operation;
 
-import android.os.Parcel;
-
 import com.cardinalblue.android.piccollage.BusProvider;
 import com.cardinalblue.android.piccollage.NumberUpdateEvent;
+import com.cardinalblue.android.piccollage.SavedOperation;
 
 /**
  * Created by prada on 9/21/15.
  */
+@SavedOperation
 public class DivideOperation extends BaseCalculateOperation {
-    public DivideOperation(Parcel source) {
-        super(source);
-    }
-    public DivideOperation(int num, int val) {
-        super(num, val);
+    public DivideOperation(int number, int value) {
+        super(number, value);
     }
 
     @Override
     public void undo() {
         BusProvider.getInstance().post(new NumberUpdateEvent(number * value));
     }
-    public static final Creator<DivideOperation> CREATOR = new Creator<DivideOperation>() {
-        public DivideOperation createFromParcel(Parcel source) {
-            return new DivideOperation(source);
-        }
-
-        public DivideOperation[] newArray(int size) {
-            return new DivideOperation[size];
-        }
-    };
 }
@@ -1,33 +1,30 @@
 package com.cardinalblue.android.piccollage.operation;
 
-import android.os.Parcel;
-
 import com.cardinalblue.android.piccollage.BusProvider;
 import com.cardinalblue.android.piccollage.NumberUpdateEvent;
+import com.cardinalblue.android.piccollage.SavedOperation;
+import com.cardinalblue.android.piccollage.UndoHistory;
 
 /**
  * Created by prada on 9/21/15.
  */
+@SavedOperation
 public class MinusOperation extends BaseCalculateOperation {
 
-    public MinusOperation(Parcel source) {
-        super(source);
-    }
-    public MinusOperation(int num, int val) {
-        super(num, val);
+    public MinusOperation(int number, int value) {
+        super(number, value);
     }
 
     @Override
     public void undo() {
         BusProvider.getInstance().post(new NumberUpdateEvent(number + value));
     }
-    public static final Creator<MinusOperation> CREATOR = new Creator<MinusOperation>() {
-        public MinusOperation createFromParcel(Parcel source) {
-            return new MinusOperation(source);
-        }
-
-        public MinusOperation[] newArray(int size) {
-            return new MinusOperation[size];
+    @Override
+    public boolean cancels(UndoHistory.UndoOperation<?> previous) {
+        if (!(previous instanceof PlusOperation)) {
+            return false;
         }
-    };
+        PlusOperation that = (PlusOperation) previous;
+        return value == that.value && number == that.number - value;
+    }
 }
@@ -1,33 +1,20 @@
 package com.cardinalblue.android.piccollage.operation;
 
-
-import android.os.Parcel;
-
 import com.cardinalblue.android.piccollage.BusProvider;
 import com.cardinalblue.android.piccollage.NumberUpdateEvent;
+import com.cardinalblue.android.piccollage.SavedOperation;
 
 /**
  * Created by prada on 9/21/15.
  */
+@SavedOperation
 public class MultiplyOperation extends BaseCalculateOperation {
-    public MultiplyOperation(Parcel source) {
-        super(source);
-    }
-    public MultiplyOperation(int num, int val) {
-        super(num, val);
+    public MultiplyOperation(int number, int value) {
+        super(number, value);
     }
 
     @Override
     public void undo() {
         BusProvider.getInstance().post(new NumberUpdateEvent(number / value));
     }
-    public static final Creator<MultiplyOperation> CREATOR = new Creator<MultiplyOperation>() {
-        public MultiplyOperation createFromParcel(Parcel source) {
-            return new MultiplyOperation(source);
-        }
-
-        public MultiplyOperation[] newArray(int size) {
-            return new MultiplyOperation[size];
-        }
-    };
 }
@@ -1,20 +1,17 @@
 package com.cardinalblue.android.piccollage.operation;
 
-import android.os.Parcel;
-
 import com.cardinalblue.android.piccollage.BusProvider;
 import com.cardinalblue.android.piccollage.NumberUpdateEvent;
+import com.cardinalblue.android.piccollage.SavedOperation;
+import com.cardinalblue.android.piccollage.UndoHistory;
 
 /**
  * Created by prada on 9/21/15.
  */
+@SavedOperation
 public class PlusOperation extends BaseCalculateOperation {
-    public PlusOperation(int num, int val) {
-        super(num, val);
-    }
-
-    public PlusOperation(Parcel source) {
-        super(source);
+    public PlusOperation(int number, int value) {
+        super(number, value);
     }
 
     @Override
@@ -22,13 +19,12 @@ public class PlusOperation extends BaseCalculateOperation {
         BusProvider.getInstance().post(new NumberUpdateEvent(number - value));
     }
 
-    public static final Creator<PlusOperation> CREATOR = new Creator<PlusOperation>() {
-        public PlusOperation createFromParcel(Parcel source) {
-            return new PlusOperation(source);
-        }
-
-        public PlusOperation[] newArray(int size) {
-            return new PlusOperation[size];
+    @Override
+    public boolean cancels(UndoHistory.UndoOperation<?> previous) {
+        if (!(previous instanceof MinusOperation)) {
+            return false;
         }
-    };
+        MinusOperation that = (MinusOperation) previous;
+        return value == that.value && number == that.number + value;
+    }
 }
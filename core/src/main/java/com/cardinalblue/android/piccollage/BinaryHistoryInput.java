@@ -0,0 +1,96 @@
+package com.cardinalblue.android.piccollage;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link HistoryInput} that reads data written by a {@link BinaryHistoryOutput}.
+ * Reading past the end of the data throws
+ * {@link java.nio.BufferUnderflowException}.
+ */
+public final class BinaryHistoryInput implements HistoryInput {
+    private final ByteBuffer mBuffer;
+    private final boolean mLenient;
+
+    public BinaryHistoryInput(byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Read from the remaining bytes of <var>buffer</var>, which must be big-endian.
+     * The buffer's position advances as values are read.
+     */
+    public BinaryHistoryInput(ByteBuffer buffer) {
+        this(buffer, false);
+    }
+
+    /**
+     * Read an operation payload.  If <var>lenient</var> is true, values read once
+     * the payload is used up come back as 0 or null instead of throwing, so a
+     * codec that appended fields can still read payloads saved before it did.
+     */
+    BinaryHistoryInput(ByteBuffer buffer, boolean lenient) {
+        mBuffer = buffer;
+        mLenient = lenient;
+    }
+
+    @Override
+    public int readInt() {
+        return atEnd() ? 0 : mBuffer.getInt();
+    }
+
+    @Override
+    public long readLong() {
+        return atEnd() ? 0 : mBuffer.getLong();
+    }
+
+    @Override
+    public double readDouble() {
+        return atEnd() ? 0 : mBuffer.getDouble();
+    }
+
+    @Override
+    public String readString() {
+        byte[] bytes = readByteArray();
+        return bytes != null ? new String(bytes, BinaryHistoryOutput.UTF_8) : null;
+    }
+
+    @Override
+    public byte[] readByteArray() {
+        if (atEnd()) {
+            return null;
+        }
+        int length = mBuffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > mBuffer.remaining()) {
+            // Fail before allocating when a corrupt length points past the end.
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        mBuffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Read all bytes that are left, without a length prefix.
+     */
+    byte[] readRemaining() {
+        byte[] bytes = new byte[mBuffer.remaining()];
+        mBuffer.get(bytes);
+        return bytes;
+    }
+
+    private boolean atEnd() {
+        // A value cut off half way is still an error.
+        return mLenient && !mBuffer.hasRemaining();
+    }
+
+    /**
+     * Return true if there are bytes left to read.
+     */
+    public boolean hasRemaining() {
+        return mBuffer.hasRemaining();
+    }
+}
@@ -0,0 +1,121 @@
+package com.cardinalblue.android.piccollage;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * {@link HistoryOutput} that encodes into a growable, big-endian byte array.
+ * This is the format used by {@link UndoHistory#saveState()}.
+ */
+public final class BinaryHistoryOutput implements HistoryOutput {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] mData;
+    private int mSize;
+
+    public BinaryHistoryOutput() {
+        this(256);
+    }
+
+    public BinaryHistoryOutput(int initialCapacity) {
+        mData = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    @Override
+    public void writeInt(int value) {
+        ensureCapacity(4);
+        mData[mSize++] = (byte) (value >>> 24);
+        mData[mSize++] = (byte) (value >>> 16);
+        mData[mSize++] = (byte) (value >>> 8);
+        mData[mSize++] = (byte) value;
+    }
+
+    @Override
+    public void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    @Override
+    public void writeDouble(double value) {
+        writeLong(Double.doubleToLongBits(value));
+    }
+
+    @Override
+    public void writeString(String value) {
+        writeByteArray(value != null ? value.getBytes(UTF_8) : null);
+    }
+
+    @Override
+    public void writeByteArray(byte[] value) {
+        if (value == null) {
+            writeInt(-1);
+            return;
+        }
+        writeBytes(value, 0, value.length);
+    }
+
+    /**
+     * Write a length-prefixed range of a byte array.
+     */
+    public void writeBytes(byte[] value, int offset, int length) {
+        writeInt(length);
+        ensureCapacity(length);
+        System.arraycopy(value, offset, mData, mSize, length);
+        mSize += length;
+    }
+
+    /**
+     * Append bytes without a length prefix.
+     */
+    void writeRaw(byte[] value) {
+        ensureCapacity(value.length);
+        System.arraycopy(value, 0, mData, mSize, value.length);
+        mSize += value.length;
+    }
+
+    /**
+     * Overwrite the int at <var>position</var>, which must already have been
+     * written, for example to fill in an offset once it is known.
+     */
+    void setInt(int position, int value) {
+        if (position < 0 || position + 4 > mSize) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + mSize);
+        }
+        mData[position] = (byte) (value >>> 24);
+        mData[position + 1] = (byte) (value >>> 16);
+        mData[position + 2] = (byte) (value >>> 8);
+        mData[position + 3] = (byte) value;
+    }
+
+    /**
+     * Return the number of bytes written so far.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Forget everything written so far, keeping the allocated buffer.
+     */
+    public void reset() {
+        mSize = 0;
+    }
+
+    /**
+     * Return a copy of the bytes written so far.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mData, mSize);
+    }
+
+    byte[] buffer() {
+        return mData;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mSize + extra > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mSize + extra));
+        }
+    }
+}
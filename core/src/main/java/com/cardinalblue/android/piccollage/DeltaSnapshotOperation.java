@@ -0,0 +1,237 @@
+package com.cardinalblue.android.piccollage;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * An {@link UndoHistory.UndoOperation} for objects whose state is captured as a
+ * byte-array snapshot.  Instead of retaining full before/after copies of the
+ * snapshot, the operation only keeps the XOR of the two, run-length encoded, so
+ * a small edit to a large object costs a few bytes of history.
+ *
+ * <p>Snapshots are fed through a {@link Chain}, which remembers the latest
+ * snapshot of one object so that each new operation can be encoded against its
+ * neighboring state.  On {@link #undo}/{@link #redo} the needed version is
+ * reconstructed by applying the delta to the object's live snapshot, as
+ * returned by {@link #readSnapshot}.  Every {@link Chain#getRebaseInterval()}
+ * operations the chain re-bases: that operation also keeps its full "after"
+ * snapshot, so reconstruction restarts from exact data there instead of
+ * depending on a long run of earlier undos/redos.</p>
+ *
+ * <p>Subclasses are saved through an {@link OperationCodec} that calls
+ * {@link #writeDelta} and the {@link #DeltaSnapshotOperation(HistoryInput)}
+ * constructor.</p>
+ *
+ * @hide
+ */
+public abstract class DeltaSnapshotOperation extends UndoHistory.UndoOperation<Object> {
+    private final int mBeforeLength;
+    private final int mAfterLength;
+    private final byte[] mDelta;
+    private final byte[] mBase;
+    private Chain mChain;
+
+    /**
+     * Record the transition of the chain's object to <var>after</var>.
+     */
+    protected DeltaSnapshotOperation(Chain chain, byte[] after) {
+        byte[] before = chain.mLast;
+        mBeforeLength = before.length;
+        mAfterLength = after.length;
+        mDelta = encodeDelta(before, after);
+        if (++chain.mSinceBase >= chain.mRebaseInterval) {
+            chain.mSinceBase = 0;
+            mBase = after.clone();
+        } else {
+            mBase = null;
+        }
+        chain.mLast = after.clone();
+        mChain = chain;
+    }
+
+    /**
+     * Restore an operation saved with {@link #writeDelta}.
+     */
+    protected DeltaSnapshotOperation(HistoryInput in) {
+        mBeforeLength = in.readInt();
+        mAfterLength = in.readInt();
+        mDelta = in.readByteArray();
+        mBase = in.readByteArray();
+    }
+
+    /**
+     * Return the current snapshot of the target object.
+     */
+    protected abstract byte[] readSnapshot();
+
+    /**
+     * Replace the state of the target object with the given snapshot.
+     */
+    protected abstract void applySnapshot(byte[] snapshot);
+
+    @Override
+    public boolean hasData() {
+        return mDelta.length != 0 || mBeforeLength != mAfterLength;
+    }
+
+    @Override
+    public void commit() {
+    }
+
+    @Override
+    public void undo() {
+        byte[] after = mBase != null ? mBase : readSnapshot();
+        byte[] before = applyDelta(after, mDelta, mBeforeLength);
+        applySnapshot(before);
+        if (mChain != null) {
+            mChain.mLast = before.clone();
+        }
+    }
+
+    @Override
+    public void redo() {
+        byte[] after = mBase != null ? mBase.clone()
+                : applyDelta(readSnapshot(), mDelta, mAfterLength);
+        applySnapshot(after);
+        if (mChain != null) {
+            mChain.mLast = after.clone();
+        }
+    }
+
+    /**
+     * Return true if this operation holds a full snapshot that reconstruction
+     * is re-based on.
+     */
+    public boolean isBase() {
+        return mBase != null;
+    }
+
+    /**
+     * Save the delta, for subclass codecs.
+     */
+    protected void writeDelta(HistoryOutput out) {
+        out.writeInt(mBeforeLength);
+        out.writeInt(mAfterLength);
+        out.writeByteArray(mDelta);
+        out.writeByteArray(mBase);
+    }
+
+    /**
+     * XOR <var>a</var> and <var>b</var> (the shorter one zero-padded) and encode the
+     * result as a sequence of (zero run, literal length, literal bytes) records.
+     * Trailing zeros are not encoded, so identical inputs produce an empty delta.
+     */
+    static byte[] encodeDelta(byte[] a, byte[] b) {
+        final int N = Math.max(a.length, b.length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < N) {
+            int zeroStart = i;
+            while (i < N && xorAt(a, b, i) == 0) {
+                i++;
+            }
+            if (i == N) {
+                break;
+            }
+            int literalStart = i;
+            // A literal run ends at the first pair of zero bytes; a lone zero is
+            // cheaper to carry inside the literal than to start a new record.
+            while (i < N && (xorAt(a, b, i) != 0
+                    || (i + 1 < N && xorAt(a, b, i + 1) != 0))) {
+                i++;
+            }
+            writeVarInt(out, literalStart - zeroStart);
+            writeVarInt(out, i - literalStart);
+            for (int j = literalStart; j < i; j++) {
+                out.write(xorAt(a, b, j));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Apply a delta produced by {@link #encodeDelta} to <var>src</var>, producing a
+     * new array of <var>length</var> bytes.
+     */
+    static byte[] applyDelta(byte[] src, byte[] delta, int length) {
+        byte[] dst = new byte[length];
+        System.arraycopy(src, 0, dst, 0, Math.min(src.length, length));
+        int pos = 0;
+        int[] cursor = new int[1];
+        while (cursor[0] < delta.length) {
+            pos += readVarInt(delta, cursor);
+            int count = readVarInt(delta, cursor);
+            for (int j = 0; j < count; j++, pos++) {
+                if (pos < length) {
+                    dst[pos] ^= delta[cursor[0]];
+                }
+                cursor[0]++;
+            }
+        }
+        return dst;
+    }
+
+    private static int xorAt(byte[] a, byte[] b, int i) {
+        int x = i < a.length ? a[i] : 0;
+        int y = i < b.length ? b[i] : 0;
+        return (x ^ y) & 0xff;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(byte[] in, int[] cursor) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in[cursor[0]++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Tracks the latest snapshot of a single object, so that consecutive
+     * {@link DeltaSnapshotOperation}s for it are each encoded against their
+     * neighboring state.
+     */
+    public static final class Chain {
+        private final int mRebaseInterval;
+        private byte[] mLast;
+        private int mSinceBase;
+
+        /**
+         * @param initial The snapshot of the object before the first recorded edit.
+         * @param rebaseInterval Number of operations after which one operation keeps
+         * a full snapshot to re-base reconstruction on.
+         */
+        public Chain(byte[] initial, int rebaseInterval) {
+            if (rebaseInterval <= 0) {
+                throw new IllegalArgumentException("rebaseInterval must be positive");
+            }
+            mLast = initial.clone();
+            mRebaseInterval = rebaseInterval;
+        }
+
+        public int getRebaseInterval() {
+            return mRebaseInterval;
+        }
+
+        /**
+         * Reset the chain to the given snapshot, for example after the object was
+         * replaced outside of the undo history or the history was restored from a
+         * saved state.  Undo and redo of operations recorded through this chain keep
+         * it up to date on their own.
+         */
+        public void reset(byte[] snapshot) {
+            mLast = snapshot.clone();
+            mSinceBase = 0;
+        }
+    }
+}
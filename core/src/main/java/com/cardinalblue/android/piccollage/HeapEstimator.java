@@ -0,0 +1,242 @@
+package com.cardinalblue.android.piccollage;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates the heap held by undo states and their operations by walking their
+ * fields reflectively.  The sizes assume a 64-bit VM with compressed references
+ * (12 byte object headers, 4 byte references, 8 byte alignment), which is close
+ * to both ART and HotSpot; they are estimates, not measurements.
+ *
+ * <p>Every object is only counted the first time it is reached, so data shared
+ * between operations, such as interned operations, is attributed to the first
+ * state that refers to it.  Fields of platform classes ({@code java.*},
+ * {@code android.*}) cannot always be read, so such objects are counted at their
+ * shallow size, except for strings, arrays, and collections and maps, whose
+ * backing storage is estimated from their size and whose elements are
+ * followed.</p>
+ */
+final class HeapEstimator {
+    static final int HEADER = 12;
+    static final int ARRAY_HEADER = 16;
+    static final int REFERENCE = 4;
+    static final int ALIGNMENT = 8;
+
+    private static final ConcurrentHashMap<Class<?>, Layout> sLayouts = new ConcurrentHashMap<>();
+
+    private final IdentityHashMap<Object, Boolean> mSeen = new IdentityHashMap<>();
+
+    /**
+     * Return the estimated size of <var>op</var> and everything it refers to
+     * that has not been counted yet.
+     */
+    long measure(UndoHistory.UndoOperation<?> op) {
+        if (mSeen.put(op, Boolean.TRUE) != null) {
+            return 0;
+        }
+        long size = op.estimateRetainedSize();
+        return size >= 0 ? size : walk(op);
+    }
+
+    /**
+     * Return the estimated size of the bookkeeping a state needs around its
+     * operations: the state itself, its operation list and its stack node.
+     */
+    long measureState(UndoHistory.UndoState state) {
+        long size = align(HEADER + 2 * 8 + 4 * REFERENCE + 4 + 2)
+                + align(HEADER + 4 + 4 + REFERENCE)
+                + align(HEADER + 2 * REFERENCE + 4);
+        WarmTier.Frozen frozen = state.getFrozen();
+        if (frozen != null) {
+            // The compressed operations instead of the operation list.
+            size += align(HEADER + 2 * REFERENCE + 2 * 4)
+                    + align(ARRAY_HEADER + frozen.mData.length);
+        } else {
+            size += align(ARRAY_HEADER + (long) state.countOperations() * REFERENCE);
+        }
+        CharSequence label = state.getLabel();
+        if (label != null && mSeen.put(label, Boolean.TRUE) == null) {
+            size += label instanceof String ? stringSize((String) label) : shallowSize(label);
+        }
+        return size;
+    }
+
+    private long walk(Object root) {
+        long size = 0;
+        ArrayList<Object> pending = new ArrayList<>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            Object obj = pending.remove(pending.size() - 1);
+            Class<?> clazz = obj.getClass();
+            if (clazz.isArray()) {
+                final int length = Array.getLength(obj);
+                Class<?> component = clazz.getComponentType();
+                if (component.isPrimitive()) {
+                    size += align(ARRAY_HEADER + (long) length * primitiveSize(component));
+                } else {
+                    size += align(ARRAY_HEADER + (long) length * REFERENCE);
+                    Object[] elements = (Object[]) obj;
+                    for (int i = 0; i < length; i++) {
+                        enqueue(elements[i], pending);
+                    }
+                }
+            } else if (obj instanceof String) {
+                size += stringSize((String) obj);
+            } else {
+                Layout layout = layoutOf(clazz);
+                size += layout.mShallowSize;
+                for (Field field : layout.mReferences) {
+                    try {
+                        enqueue(field.get(obj), pending);
+                    } catch (IllegalAccessException e) {
+                        // Counted at its shallow size only.
+                    }
+                }
+                if (obj instanceof Collection) {
+                    size += walkCollection((Collection<?>) obj, isPlatformClass(clazz), pending);
+                } else if (obj instanceof Map) {
+                    size += walkMap((Map<?, ?>) obj, isPlatformClass(clazz), pending);
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Follow the elements of <var>collection</var>, and return the estimated
+     * size of its backing array if it is a platform class, whose fields are not
+     * walked.
+     */
+    private long walkCollection(Collection<?> collection, boolean platform,
+            ArrayList<Object> pending) {
+        int count = 0;
+        try {
+            for (Object element : collection) {
+                enqueue(element, pending);
+                count++;
+            }
+        } catch (RuntimeException e) {
+            // Changed or not iterable right now; count what was seen.
+        }
+        return platform ? align(ARRAY_HEADER + (long) count * REFERENCE) : 0;
+    }
+
+    /**
+     * Follow the keys and values of <var>map</var>, and return the estimated
+     * size of its table and entries if it is a platform class.
+     */
+    private long walkMap(Map<?, ?> map, boolean platform, ArrayList<Object> pending) {
+        int count = 0;
+        try {
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                enqueue(entry.getKey(), pending);
+                enqueue(entry.getValue(), pending);
+                count++;
+            }
+        } catch (RuntimeException e) {
+            // Changed or not iterable right now; count what was seen.
+        }
+        // A hash table at its default load factor, and one node per entry
+        // holding the hash, key, value and next references.
+        return platform ? align(ARRAY_HEADER + (long) count * 4 / 3 * REFERENCE)
+                + count * align(HEADER + 4 + 3 * REFERENCE) : 0;
+    }
+
+    private void enqueue(Object obj, ArrayList<Object> pending) {
+        if (obj == null || obj instanceof Class || obj instanceof ClassLoader
+                || obj instanceof Thread) {
+            return;
+        }
+        if (obj instanceof UndoHistory.UndoOperation) {
+            // Other operations are accounted for by their own state.
+            return;
+        }
+        if (mSeen.put(obj, Boolean.TRUE) == null) {
+            pending.add(obj);
+        }
+    }
+
+    private long shallowSize(Object obj) {
+        return layoutOf(obj.getClass()).mShallowSize;
+    }
+
+    private static long stringSize(String s) {
+        // The String object plus its character array, assuming UTF-16 storage.
+        return align(HEADER + REFERENCE + 4 + 4) + align(ARRAY_HEADER + 2L * s.length());
+    }
+
+    private static Layout layoutOf(Class<?> clazz) {
+        Layout layout = sLayouts.get(clazz);
+        if (layout == null) {
+            layout = new Layout(clazz);
+            sLayouts.put(clazz, layout);
+        }
+        return layout;
+    }
+
+    static long align(long size) {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static boolean isPlatformClass(Class<?> clazz) {
+        String name = clazz.getName();
+        return name.startsWith("java.") || name.startsWith("javax.")
+                || name.startsWith("android.") || name.startsWith("dalvik.");
+    }
+
+    /**
+     * Shallow size and followable reference fields of a class.
+     */
+    private static final class Layout {
+        final long mShallowSize;
+        final Field[] mReferences;
+
+        Layout(Class<?> clazz) {
+            long size = HEADER;
+            ArrayList<Field> references = new ArrayList<>();
+            for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    Class<?> type = field.getType();
+                    if (type.isPrimitive()) {
+                        size += primitiveSize(type);
+                        continue;
+                    }
+                    size += REFERENCE;
+                    if (!isPlatformClass(c)) {
+                        try {
+                            field.setAccessible(true);
+                            references.add(field);
+                        } catch (RuntimeException e) {
+                            // Not accessible on this VM; the referent is not counted.
+                        }
+                    }
+                }
+            }
+            mShallowSize = align(size);
+            mReferences = references.toArray(new Field[references.size()]);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.cardinalblue.android.piccollage;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically saves the history of an {@link UndoHistory} without blocking the
+ * thread that owns it.
+ *
+ * <p>Every change to the history only records the new {@link HistorySnapshot}
+ * and (re)schedules a save; the snapshot is flattened and handed to the
+ * {@link Sink} on the background executor.  Rapid edits are debounced: a save
+ * happens once the history has been quiet for the debounce delay, or at the
+ * latest after the maximum delay.  A scheduled save is rescheduled by every newer
+ * change, and a snapshot that a newer one superseded while it was being encoded
+ * is not written, since the newer change has a save of its own scheduled.  Only
+ * once changes have waited for the maximum delay is a superseded snapshot
+ * written anyway, so continuous edits can't keep the history from ever being
+ * saved.</p>
+ *
+ * <p>The saved bytes are in the format of {@link UndoHistory#saveState()} and can
+ * be restored with {@link UndoHistory#restoreState(byte[])}.</p>
+ *
+ * @hide
+ */
+public class HistoryAutosaver implements UndoHistory.OnHistoryChangedListener {
+    /**
+     * Destination of the saved history, for example a file.
+     */
+    public interface Sink {
+        /**
+         * Called on the background executor with the flattened history.
+         */
+        void write(byte[] data) throws IOException;
+    }
+
+    private final UndoHistory mHistory;
+    private final ScheduledExecutorService mExecutor;
+    private final long mDebounceMillis;
+    private final long mMaxDelayMillis;
+    private final Sink mSink;
+    private final Object mLock = new Object();
+    private volatile HistorySnapshot mLatest;
+    private ScheduledFuture<?> mScheduled;
+    private long mFirstChangeMillis = -1;
+    // When the oldest change that has not been written yet was made.
+    private long mUnsavedSinceMillis = -1;
+    private long mSavedVersion;
+
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mScheduled = null;
+                mFirstChangeMillis = -1;
+            }
+            save(mLatest);
+        }
+    };
+
+    /**
+     * Start autosaving <var>history</var>.  Must be called on the thread that owns
+     * the history.
+     * @param executor Background executor on which the history is flattened and written.
+     * @param debounceMillis How long the history has to stay unchanged before it is saved.
+     * @param maxDelayMillis Longest time a change may wait for a save while edits keep coming.
+     * @param sink Where the flattened history is written.
+     */
+    public HistoryAutosaver(UndoHistory history, ScheduledExecutorService executor,
+            long debounceMillis, long maxDelayMillis, Sink sink) {
+        mHistory = history;
+        mExecutor = executor;
+        mDebounceMillis = debounceMillis;
+        mMaxDelayMillis = Math.max(maxDelayMillis, debounceMillis);
+        mSink = sink;
+        mHistory.addOnHistoryChangedListener(this);
+    }
+
+    @Override
+    public void onHistoryChanged(UndoHistory history, HistorySnapshot snapshot) {
+        mLatest = snapshot;
+        long now = mHistory.getClock().uptimeMillis();
+        synchronized (mLock) {
+            if (mFirstChangeMillis < 0) {
+                mFirstChangeMillis = now;
+            }
+            if (mUnsavedSinceMillis < 0) {
+                mUnsavedSinceMillis = now;
+            }
+            long delay = Math.min(mDebounceMillis, mFirstChangeMillis + mMaxDelayMillis - now);
+            if (mScheduled != null) {
+                mScheduled.cancel(false);
+            }
+            mScheduled = mExecutor.schedule(mSaveRunnable, Math.max(delay, 0),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Save the latest history as soon as possible instead of waiting for the
+     * debounce delay, for example when the app is being backgrounded.
+     */
+    public void flush() {
+        synchronized (mLock) {
+            if (mScheduled != null) {
+                mScheduled.cancel(false);
+            }
+            mFirstChangeMillis = -1;
+            mScheduled = mExecutor.schedule(mSaveRunnable, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop autosaving.  A save that is already being written is allowed to finish.
+     */
+    public void stop() {
+        mHistory.removeOnHistoryChangedListener(this);
+        synchronized (mLock) {
+            if (mScheduled != null) {
+                mScheduled.cancel(false);
+                mScheduled = null;
+            }
+        }
+    }
+
+    private synchronized void save(HistorySnapshot snapshot) {
+        if (snapshot == null || snapshot.getVersion() <= mSavedVersion) {
+            return;
+        }
+        byte[] data = snapshot.toByteArray();
+        HistorySnapshot latest = mLatest;
+        if (latest.getVersion() > snapshot.getVersion()) {
+            // A newer change arrived while encoding and scheduled its own save.
+            long now = mHistory.getClock().uptimeMillis();
+            synchronized (mLock) {
+                if (now - mUnsavedSinceMillis < mMaxDelayMillis) {
+                    return;
+                }
+            }
+        }
+        try {
+            mSink.write(data);
+            mSavedVersion = snapshot.getVersion();
+            synchronized (mLock) {
+                // Changes after the written snapshot are still unsaved.
+                mUnsavedSinceMillis = mLatest != snapshot
+                        ? mHistory.getClock().uptimeMillis() : -1;
+            }
+        } catch (IOException e) {
+            // Keep the previous save; the next change will try again.
+        }
+    }
+}
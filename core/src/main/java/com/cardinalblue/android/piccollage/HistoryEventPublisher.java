@@ -0,0 +1,609 @@
+package com.cardinalblue.android.piccollage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes the changes made to an {@link UndoHistory} as a stream of
+ * {@link Event events}, for consumers such as a sync service or an audit log
+ * that want every commit, undo, redo and eviction rather than the latest
+ * history.  The interfaces follow {@code java.util.concurrent.Flow}: each
+ * {@link Subscriber} pulls {@link Batch batches} through its
+ * {@link Subscription}, and nothing is delivered beyond what it requested.
+ *
+ * <p>The owning thread only records which states changed; events are queued
+ * per subscriber and delivered on the executor, where the operations of a state
+ * are also serialized, and only when a subscriber asks an event for them.
+ * Events that become available while a subscriber is busy are coalesced into
+ * one batch.</p>
+ *
+ * <p>A subscriber that falls more than the buffer size behind does not hold the
+ * owning thread up or make it keep events around: its queue is dropped, and its
+ * next batch is a {@link Batch#isResync() resync} that carries a
+ * {@link HistorySnapshot} of the whole history instead, after which events
+ * resume from there.  Each subscriber also starts with such a batch, and one is
+ * sent to every subscriber when the history is restored.</p>
+ *
+ * @hide
+ */
+public class HistoryEventPublisher implements UndoHistory.OnHistoryChangedListener {
+    private static final int MAX_BATCH = 256;
+
+    private final UndoHistory mHistory;
+    private final Executor mExecutor;
+    private final int mMaxBufferedEvents;
+    private final CopyOnWriteArrayList<SubscriptionImpl> mSubscriptions
+            = new CopyOnWriteArrayList<>();
+    // Only used on the owning thread.
+    private final ArrayList<Event> mPending = new ArrayList<>();
+    private long mSequence;
+    private boolean mResyncPending;
+    private volatile Checkpoint mCheckpoint;
+    private volatile boolean mStopped;
+
+    /**
+     * Receiver of the events of a {@link HistoryEventPublisher}.  Its methods are
+     * called one at a time on the publisher's executor, never concurrently.
+     */
+    public interface Subscriber {
+        /**
+         * Called first, before anything else.  Nothing is delivered until
+         * {@link Subscription#request} is called.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Called with the next batch, once for each batch requested.
+         */
+        void onNext(Batch batch);
+
+        /**
+         * Called when the subscription failed; nothing is delivered after this.
+         */
+        void onError(Throwable error);
+
+        /**
+         * Called once everything queued before the publisher was
+         * {@link HistoryEventPublisher#stop() stopped} has been delivered.
+         */
+        void onComplete();
+    }
+
+    /**
+     * Link between a publisher and one of its subscribers.  May be used from any
+     * thread.
+     */
+    public interface Subscription {
+        /**
+         * Allow <var>n</var> more batches to be delivered.  A value of 0 or less
+         * is an error, reported to {@link Subscriber#onError}.
+         */
+        void request(long n);
+
+        /**
+         * Stop delivering to the subscriber and drop what is queued for it.
+         */
+        void cancel();
+    }
+
+    /**
+     * One change to the history.
+     */
+    public static final class Event {
+        /** A new state was pushed on the undo stack. */
+        public static final int TYPE_COMMIT = 1;
+        /** The state on top of the undo stack was merged into and replaced. */
+        public static final int TYPE_AMEND = 2;
+        /** A state was undone and moved to the redo stack. */
+        public static final int TYPE_UNDO = 3;
+        /** A state was redone and moved to the undo stack. */
+        public static final int TYPE_REDO = 4;
+        /** States were discarded from the bottom of the undo or redo stack. */
+        public static final int TYPE_EVICT = 5;
+
+        private final int mType;
+        private final UndoHistory.UndoState mState;
+        private final HistoryStack<UndoHistory.UndoState> mEvicted;
+        private final int mEvictedDepth;
+        private final int mEvictedCount;
+        private final boolean mRedoStack;
+        private final OperationCodecs mCodecs;
+        private long mSequence;
+        private volatile byte[] mPayload;
+        private volatile int[] mEvictedIds;
+
+        Event(int type, UndoHistory.UndoState state, OperationCodecs codecs) {
+            mType = type;
+            mState = state;
+            mEvicted = null;
+            mEvictedDepth = 0;
+            mEvictedCount = 0;
+            mRedoStack = type == TYPE_UNDO;
+            mCodecs = codecs;
+        }
+
+        /**
+         * An eviction of <var>count</var> states starting <var>depth</var>
+         * positions below the top of <var>stack</var>, which is not copied; the
+         * ids are only looked up if they are asked for.
+         */
+        Event(HistoryStack<UndoHistory.UndoState> stack, int depth, int count,
+                boolean redoStack, OperationCodecs codecs) {
+            mType = TYPE_EVICT;
+            mState = null;
+            mEvicted = stack;
+            mEvictedDepth = depth;
+            mEvictedCount = count;
+            mRedoStack = redoStack;
+            mCodecs = codecs;
+        }
+
+        /**
+         * Return one of {@link #TYPE_COMMIT}, {@link #TYPE_AMEND},
+         * {@link #TYPE_UNDO}, {@link #TYPE_REDO} or {@link #TYPE_EVICT}.
+         */
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * Return the position of this event in the stream.  Sequences grow by one
+         * with every event and are never reused by a publisher.
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * Return true if the state is now on the redo stack, or for an eviction,
+         * if the states were discarded from the redo stack.
+         */
+        public boolean isRedoStack() {
+            return mRedoStack;
+        }
+
+        /**
+         * Return the commit id of the state, or -1 for an eviction.
+         */
+        public int getCommitId() {
+            return mState != null ? mState.getCommitId() : -1;
+        }
+
+        /**
+         * Return the label of the state, or null for an eviction.
+         */
+        public CharSequence getLabel() {
+            return mState != null ? mState.getLabel() : null;
+        }
+
+        /**
+         * Return the operations of the state, serialized with the history's
+         * {@link OperationCodecs} as {@link #readOperations} reads them, or null
+         * for an eviction or if one of the operations has no codec.  They are
+         * serialized on the first call, on the caller's thread; the history
+         * never changes a published state, so they are the operations the state
+         * held when the event happened.
+         */
+        public byte[] getPayload() {
+            if (mState == null) {
+                return null;
+            }
+            byte[] payload = mPayload;
+            if (payload == null) {
+                // Racing callers serialize the same operations twice, which is
+                // harmless.
+                payload = writeOperations(mState.getOperations(), mCodecs);
+                mPayload = payload;
+            }
+            return payload;
+        }
+
+        /**
+         * Return the number of states discarded by an eviction, or 0.
+         */
+        public int getEvictedCount() {
+            return mEvictedCount;
+        }
+
+        /**
+         * Return the commit ids of the states discarded by an eviction, newest
+         * first, or an empty array for other events.
+         */
+        public int[] getEvictedCommitIds() {
+            int[] ids = mEvictedIds;
+            if (ids == null) {
+                ids = new int[mEvictedCount];
+                if (mEvicted != null) {
+                    Iterator<UndoHistory.UndoState> it = mEvicted.iterator(mEvictedDepth);
+                    for (int i=0; i<ids.length && it.hasNext(); i++) {
+                        ids[i] = it.next().getCommitId();
+                    }
+                }
+                mEvictedIds = ids;
+            }
+            return ids.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "Event{seq=" + mSequence + ", type=" + mType
+                    + (mState != null ? ", commitId=" + getCommitId()
+                            : ", evicted=" + mEvictedCount)
+                    + (mRedoStack ? ", redo" : "") + "}";
+        }
+    }
+
+    /**
+     * What a subscriber receives in one {@link Subscriber#onNext} call: either
+     * consecutive events, or a resync with the whole history.
+     */
+    public static final class Batch {
+        private final List<Event> mEvents;
+        private final HistorySnapshot mSnapshot;
+        private final long mSequence;
+
+        Batch(List<Event> events) {
+            mEvents = Collections.unmodifiableList(events);
+            mSnapshot = null;
+            mSequence = events.get(events.size() - 1).mSequence;
+        }
+
+        Batch(HistorySnapshot snapshot, long sequence) {
+            mEvents = Collections.emptyList();
+            mSnapshot = snapshot;
+            mSequence = sequence;
+        }
+
+        /**
+         * Return true if this batch replaces everything delivered before it
+         * with {@link #getSnapshot()}.  Events delivered afterwards follow on
+         * from that snapshot.
+         */
+        public boolean isResync() {
+            return mSnapshot != null;
+        }
+
+        /**
+         * Return the whole history for a resync, or null.
+         */
+        public HistorySnapshot getSnapshot() {
+            return mSnapshot;
+        }
+
+        /**
+         * Return the events in order, or an empty list for a resync.
+         */
+        public List<Event> getEvents() {
+            return mEvents;
+        }
+
+        /**
+         * Return the sequence of the last event this batch brings the
+         * subscriber up to.
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+    }
+
+    /**
+     * Start publishing the changes of <var>history</var>.  Must be called on the
+     * thread that owns the history, which may only have one publisher at a time.
+     * @param executor Background executor on which subscribers are called.
+     * Calls to one subscriber never run concurrently, so any executor will do.
+     * @param maxBufferedEvents Number of undelivered events a subscriber may
+     * fall behind before it is resynced with a snapshot instead.
+     */
+    public HistoryEventPublisher(UndoHistory history, Executor executor, int maxBufferedEvents) {
+        if (maxBufferedEvents < 1) {
+            throw new IllegalArgumentException("maxBufferedEvents must be positive");
+        }
+        mHistory = history;
+        mExecutor = executor;
+        mMaxBufferedEvents = maxBufferedEvents;
+        mCheckpoint = new Checkpoint(history.getHistorySnapshot(), 0);
+        history.setEventPublisher(this);
+        history.addOnHistoryChangedListener(this);
+    }
+
+    /**
+     * Add a subscriber.  May be called from any thread.  Its first batch is a
+     * resync with the history as it is then.
+     */
+    public void subscribe(Subscriber subscriber) {
+        SubscriptionImpl subscription = new SubscriptionImpl(subscriber);
+        if (!mStopped) {
+            mSubscriptions.add(subscription);
+        }
+        subscription.schedule();
+    }
+
+    /**
+     * Stop publishing.  Must be called on the owning thread.  Subscribers get
+     * what was queued for them and then {@link Subscriber#onComplete}.
+     */
+    public void stop() {
+        mHistory.removeOnHistoryChangedListener(this);
+        mHistory.setEventPublisher(null);
+        mPending.clear();
+        mStopped = true;
+        for (SubscriptionImpl subscription : mSubscriptions) {
+            subscription.schedule();
+        }
+    }
+
+    void stateCommitted(UndoHistory.UndoState state, boolean amend) {
+        mPending.add(new Event(amend ? Event.TYPE_AMEND : Event.TYPE_COMMIT, state,
+                mHistory.getOperationCodecs()));
+    }
+
+    void stateMoved(UndoHistory.UndoState state, boolean redo) {
+        mPending.add(new Event(redo ? Event.TYPE_REDO : Event.TYPE_UNDO, state,
+                mHistory.getOperationCodecs()));
+    }
+
+    void statesEvicted(HistoryStack<UndoHistory.UndoState> stack, int depth, int count,
+            boolean redoStack) {
+        if (count > 0) {
+            mPending.add(new Event(stack, depth, count, redoStack,
+                    mHistory.getOperationCodecs()));
+        }
+    }
+
+    /**
+     * The stacks were replaced as a whole; subscribers have to start over from
+     * the next snapshot.
+     */
+    void historyReset() {
+        mPending.clear();
+        mResyncPending = true;
+    }
+
+    @Override
+    public void onHistoryChanged(UndoHistory history, HistorySnapshot snapshot) {
+        List<Event> events = null;
+        if (!mPending.isEmpty()) {
+            events = new ArrayList<>(mPending);
+            mPending.clear();
+            for (int i=0; i<events.size(); i++) {
+                events.get(i).mSequence = ++mSequence;
+            }
+        }
+        // The checkpoint goes first, so a subscriber that resyncs from here on
+        // finds every event it drops already in the snapshot.
+        mCheckpoint = new Checkpoint(snapshot, mSequence);
+        final boolean resync = mResyncPending;
+        mResyncPending = false;
+        if (events == null && !resync) {
+            return;
+        }
+        for (SubscriptionImpl subscription : mSubscriptions) {
+            subscription.enqueue(events, resync);
+        }
+    }
+
+    /**
+     * The latest snapshot and the sequence of the last event it includes.
+     */
+    private static final class Checkpoint {
+        final HistorySnapshot mSnapshot;
+        final long mSequence;
+
+        Checkpoint(HistorySnapshot snapshot, long sequence) {
+            mSnapshot = snapshot;
+            mSequence = sequence;
+        }
+    }
+
+    private final class SubscriptionImpl implements Subscription, Runnable {
+        private final Subscriber mSubscriber;
+        private final AtomicInteger mWip = new AtomicInteger();
+        // Guarded by this.
+        private final ArrayDeque<Event> mQueue = new ArrayDeque<>();
+        private long mDemand;
+        private long mDelivered = -1;
+        private boolean mResync = true;
+        private Throwable mError;
+        private boolean mDone;
+        // Only used on the executor.
+        private boolean mStarted;
+
+        SubscriptionImpl(Subscriber subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        synchronized void enqueue(List<Event> events, boolean resync) {
+            if (mDone) {
+                return;
+            }
+            if (resync || (events != null
+                    && mQueue.size() + events.size() > mMaxBufferedEvents)) {
+                // Everything queued is in the checkpoint already.
+                mQueue.clear();
+                mResync = true;
+            } else if (events != null) {
+                // A resync may already have covered these, if it read the
+                // checkpoint that was set just before they were queued.
+                for (int i=0; i<events.size(); i++) {
+                    if (events.get(i).mSequence > mDelivered) {
+                        mQueue.add(events.get(i));
+                    }
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (mDone) {
+                    return;
+                }
+                if (n <= 0) {
+                    mError = new IllegalArgumentException("Requested " + n + " batches");
+                } else {
+                    mDemand += n;
+                    if (mDemand < 0) {
+                        mDemand = Long.MAX_VALUE;
+                    }
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                mDone = true;
+                mQueue.clear();
+            }
+            mSubscriptions.remove(this);
+        }
+
+        void schedule() {
+            if (mWip.getAndIncrement() == 0) {
+                mExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = mWip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (!mStarted) {
+                mStarted = true;
+                if (!deliver(null, false)) {
+                    return;
+                }
+            }
+            while (true) {
+                Batch batch = null;
+                Throwable error = null;
+                boolean complete = false;
+                synchronized (this) {
+                    if (mDone) {
+                        return;
+                    }
+                    if (mError != null) {
+                        error = mError;
+                        mDone = true;
+                    } else if (mResync) {
+                        if (mDemand == 0) {
+                            return;
+                        }
+                        final Checkpoint checkpoint = mCheckpoint;
+                        while (!mQueue.isEmpty()
+                                && mQueue.peekFirst().mSequence <= checkpoint.mSequence) {
+                            mQueue.pollFirst();
+                        }
+                        mResync = false;
+                        mDemand--;
+                        mDelivered = checkpoint.mSequence;
+                        batch = new Batch(checkpoint.mSnapshot, checkpoint.mSequence);
+                    } else if (!mQueue.isEmpty()) {
+                        if (mDemand == 0) {
+                            return;
+                        }
+                        final int N = Math.min(mQueue.size(), MAX_BATCH);
+                        ArrayList<Event> events = new ArrayList<>(N);
+                        for (int i=0; i<N; i++) {
+                            events.add(mQueue.pollFirst());
+                        }
+                        mDemand--;
+                        batch = new Batch(events);
+                        mDelivered = batch.getSequence();
+                    } else if (mStopped) {
+                        complete = true;
+                        mDone = true;
+                    } else {
+                        return;
+                    }
+                }
+                if (error != null) {
+                    mSubscriptions.remove(this);
+                    deliverError(error);
+                    return;
+                }
+                if (!deliver(batch, complete) || complete) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Call the subscriber, cancelling the subscription if it throws.
+         */
+        private boolean deliver(Batch batch, boolean complete) {
+            try {
+                if (complete) {
+                    mSubscriptions.remove(this);
+                    mSubscriber.onComplete();
+                } else if (batch != null) {
+                    mSubscriber.onNext(batch);
+                } else {
+                    mSubscriber.onSubscribe(this);
+                }
+                return true;
+            } catch (RuntimeException e) {
+                // A subscriber that throws is broken; stop talking to it.
+                cancel();
+                return false;
+            }
+        }
+
+        private void deliverError(Throwable error) {
+            try {
+                mSubscriber.onError(error);
+            } catch (RuntimeException e) {
+                // Nothing more will be delivered either way.
+            }
+        }
+    }
+
+    static byte[] writeOperations(List<UndoHistory.UndoOperation<?>> ops,
+            OperationCodecs codecs) {
+        final int N = ops.size();
+        for (int i=0; i<N; i++) {
+            if (!codecs.canWrite(ops.get(i).getClass())) {
+                return null;
+            }
+        }
+        BinaryHistoryOutput out = new BinaryHistoryOutput(64 * (N + 1));
+        out.writeInt(N);
+        for (int i=0; i<N; i++) {
+            codecs.write(ops.get(i), out);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode the operations in the {@link Event#getPayload() payload} of an
+     * event with <var>codecs</var>, which must know the same types as the
+     * history's.
+     */
+    public static List<UndoHistory.UndoOperation<?>> readOperations(byte[] payload,
+            OperationCodecs codecs) {
+        BinaryHistoryInput in = new BinaryHistoryInput(payload);
+        final int N = in.readInt();
+        if (N < 0) {
+            throw new IllegalArgumentException("Bad operation count " + N);
+        }
+        ArrayList<UndoHistory.UndoOperation<?>> ops = new ArrayList<>(N);
+        for (int i=0; i<N; i++) {
+            ops.add(codecs.read(in));
+        }
+        return ops;
+    }
+}
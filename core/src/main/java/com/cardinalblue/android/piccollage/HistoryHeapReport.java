@@ -0,0 +1,335 @@
+package com.cardinalblue.android.piccollage;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Estimate of the heap held by the undo and redo stacks of a history, broken
+ * down by state and by operation class.  Build one with {@link #measure} from a
+ * {@link HistorySnapshot}, on the thread that owns the history: the snapshot's
+ * states don't change, but measuring reads the fields of their operations,
+ * which undo and redo may be changing.  The finished report is immutable and
+ * may be written out on any thread, for example when a support build dumps
+ * diagnostics to a file.
+ *
+ * <p>Sizes are estimates computed from the fields of the operations; an
+ * operation class can report its own size through
+ * {@link UndoHistory.UndoOperation#estimateRetainedSize()}.  Objects shared by
+ * several operations are only counted once, for the newest state that refers to
+ * them.  Objects of platform classes ({@code java.*}, {@code android.*}) are
+ * counted at their shallow size, since their fields are not walked; strings,
+ * arrays, and the elements of collections and maps are the exceptions.  States
+ * compressed in the warm tier are counted at their compressed size and left
+ * out of the breakdown by class.</p>
+ *
+ * @hide
+ */
+public final class HistoryHeapReport {
+    /**
+     * Estimate for a single undo or redo state.
+     */
+    public static final class StateInfo {
+        private final boolean mRedo;
+        private final int mDepth;
+        private final int mCommitId;
+        private final CharSequence mLabel;
+        private final int mOperationCount;
+        private final long mBytes;
+
+        StateInfo(boolean redo, int depth, int commitId, CharSequence label, int operationCount,
+                long bytes) {
+            mRedo = redo;
+            mDepth = depth;
+            mCommitId = commitId;
+            mLabel = label;
+            mOperationCount = operationCount;
+            mBytes = bytes;
+        }
+
+        /**
+         * Return true if the state is on the redo stack rather than the undo stack.
+         */
+        public boolean isRedo() {
+            return mRedo;
+        }
+
+        /**
+         * Return the position of the state below the top of its stack.
+         */
+        public int getDepth() {
+            return mDepth;
+        }
+
+        public int getCommitId() {
+            return mCommitId;
+        }
+
+        public CharSequence getLabel() {
+            return mLabel;
+        }
+
+        public int getOperationCount() {
+            return mOperationCount;
+        }
+
+        /**
+         * Return the estimated bytes held by the state and its operations.
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+    }
+
+    /**
+     * Estimate for all operations of one class.
+     */
+    public static final class ClassInfo {
+        private final String mClassName;
+        private int mCount;
+        private long mBytes;
+
+        ClassInfo(String className) {
+            mClassName = className;
+        }
+
+        public String getClassName() {
+            return mClassName;
+        }
+
+        /**
+         * Return the number of times operations of the class appear in the history.
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Return the estimated bytes held by operations of the class.
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+    }
+
+    private static final Comparator<StateInfo> BY_STATE_BYTES = new Comparator<StateInfo>() {
+        @Override
+        public int compare(StateInfo a, StateInfo b) {
+            return a.mBytes < b.mBytes ? 1 : a.mBytes > b.mBytes ? -1 : 0;
+        }
+    };
+
+    private static final Comparator<ClassInfo> BY_CLASS_BYTES = new Comparator<ClassInfo>() {
+        @Override
+        public int compare(ClassInfo a, ClassInfo b) {
+            return a.mBytes < b.mBytes ? 1 : a.mBytes > b.mBytes ? -1 : 0;
+        }
+    };
+
+    private final long mVersion;
+    private final List<StateInfo> mStates;
+    private final List<ClassInfo> mClasses;
+    private final long mUndoBytes;
+    private final long mRedoBytes;
+    private final int mOperationCount;
+
+    private HistoryHeapReport(long version, List<StateInfo> states, List<ClassInfo> classes,
+            long undoBytes, long redoBytes, int operationCount) {
+        mVersion = version;
+        mStates = states;
+        mClasses = classes;
+        mUndoBytes = undoBytes;
+        mRedoBytes = redoBytes;
+        mOperationCount = operationCount;
+    }
+
+    /**
+     * Walk the states of <var>snapshot</var>, newest undo state first, then the
+     * redo states, and estimate what they hold.  Must be called on the thread
+     * that owns the history.
+     */
+    public static HistoryHeapReport measure(HistorySnapshot snapshot) {
+        HeapEstimator estimator = new HeapEstimator();
+        HashMap<Class<?>, ClassInfo> byClass = new HashMap<>();
+        ArrayList<StateInfo> states = new ArrayList<>();
+        long undoBytes = measureStates(snapshot.undoEntries(), false, estimator, byClass, states);
+        long redoBytes = measureStates(snapshot.redoEntries(), true, estimator, byClass, states);
+        int operations = 0;
+        for (StateInfo state : states) {
+            operations += state.mOperationCount;
+        }
+        ArrayList<ClassInfo> classes = new ArrayList<>(byClass.values());
+        Collections.sort(classes, BY_CLASS_BYTES);
+        return new HistoryHeapReport(snapshot.getVersion(), Collections.unmodifiableList(states),
+                Collections.unmodifiableList(classes), undoBytes, redoBytes, operations);
+    }
+
+    private static long measureStates(Iterable<HistorySnapshot.Entry> entries, boolean redo,
+            HeapEstimator estimator, HashMap<Class<?>, ClassInfo> byClass,
+            List<StateInfo> states) {
+        long total = 0;
+        int depth = 0;
+        for (HistorySnapshot.Entry entry : entries) {
+            long bytes = estimator.measureState(entry.mState);
+            if (entry.mState.isFrozen()) {
+                // Compressed in the warm tier; measureState counted the bytes.
+                states.add(new StateInfo(redo, depth++, entry.getCommitId(), entry.getLabel(),
+                        entry.countOperations(), bytes));
+                total += bytes;
+                continue;
+            }
+            List<UndoHistory.UndoOperation<?>> ops = entry.getOperations();
+            for (int i=0; i<ops.size(); i++) {
+                UndoHistory.UndoOperation<?> op = ops.get(i);
+                long opBytes = estimator.measure(op);
+                ClassInfo info = byClass.get(op.getClass());
+                if (info == null) {
+                    info = new ClassInfo(op.getClass().getName());
+                    byClass.put(op.getClass(), info);
+                }
+                info.mCount++;
+                info.mBytes += opBytes;
+                bytes += opBytes;
+            }
+            states.add(new StateInfo(redo, depth++, entry.getCommitId(), entry.getLabel(),
+                    ops.size(), bytes));
+            total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * Return the version of the snapshot that was measured.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Return the estimated bytes held by the whole history.
+     */
+    public long getTotalBytes() {
+        return mUndoBytes + mRedoBytes;
+    }
+
+    public long getUndoBytes() {
+        return mUndoBytes;
+    }
+
+    public long getRedoBytes() {
+        return mRedoBytes;
+    }
+
+    public int getStateCount() {
+        return mStates.size();
+    }
+
+    public int getOperationCount() {
+        return mOperationCount;
+    }
+
+    /**
+     * Return every state, undo states first, each stack from the top down.
+     */
+    public List<StateInfo> getStates() {
+        return mStates;
+    }
+
+    /**
+     * Return the operation classes in the history, heaviest first.
+     */
+    public List<ClassInfo> getClasses() {
+        return mClasses;
+    }
+
+    /**
+     * Return the <var>count</var> heaviest states, heaviest first.
+     */
+    public List<StateInfo> getHeaviestStates(int count) {
+        ArrayList<StateInfo> states = new ArrayList<>(mStates);
+        Collections.sort(states, BY_STATE_BYTES);
+        return states.subList(0, Math.min(count, states.size()));
+    }
+
+    /**
+     * Write a compact, human readable summary with the totals, every operation
+     * class and the <var>topStates</var> heaviest states.
+     */
+    public void writeText(Writer out, int topStates) throws IOException {
+        out.write("history v" + mVersion + ": " + getTotalBytes() + " bytes in "
+                + mStates.size() + " states, " + mOperationCount + " operations (undo "
+                + mUndoBytes + ", redo " + mRedoBytes + ")\n");
+        out.write("classes:\n");
+        for (ClassInfo info : mClasses) {
+            out.write("  " + info.mBytes + "\t" + info.mCount + "\t" + info.mClassName + "\n");
+        }
+        out.write("heaviest states:\n");
+        for (StateInfo state : getHeaviestStates(topStates)) {
+            out.write("  " + state.mBytes + "\t" + (state.mRedo ? "redo " : "undo ")
+                    + state.mDepth + "\t#" + state.mCommitId + "\t" + state.mOperationCount
+                    + " ops\t" + oneLine(state.mLabel) + "\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * Write the report as a single JSON object with the totals, every operation
+     * class and the <var>topStates</var> heaviest states.
+     */
+    public void writeJson(Writer out, int topStates) throws IOException {
+        out.write("{\"version\":" + mVersion
+                + ",\"totalBytes\":" + getTotalBytes()
+                + ",\"undoBytes\":" + mUndoBytes
+                + ",\"redoBytes\":" + mRedoBytes
+                + ",\"states\":" + mStates.size()
+                + ",\"operations\":" + mOperationCount
+                + ",\"classes\":[");
+        for (int i=0; i<mClasses.size(); i++) {
+            ClassInfo info = mClasses.get(i);
+            out.write((i > 0 ? ",{" : "{") + "\"name\":");
+            writeJsonString(out, info.mClassName);
+            out.write(",\"count\":" + info.mCount + ",\"bytes\":" + info.mBytes + "}");
+        }
+        out.write("],\"heaviestStates\":[");
+        List<StateInfo> heaviest = getHeaviestStates(topStates);
+        for (int i=0; i<heaviest.size(); i++) {
+            StateInfo state = heaviest.get(i);
+            out.write((i > 0 ? ",{" : "{") + "\"stack\":\"" + (state.mRedo ? "redo" : "undo")
+                    + "\",\"depth\":" + state.mDepth + ",\"commitId\":" + state.mCommitId
+                    + ",\"label\":");
+            writeJsonString(out, state.mLabel != null ? state.mLabel.toString() : null);
+            out.write(",\"operations\":" + state.mOperationCount
+                    + ",\"bytes\":" + state.mBytes + "}");
+        }
+        out.write("]}");
+        out.flush();
+    }
+
+    private static String oneLine(CharSequence label) {
+        return label != null ? label.toString().replaceAll("\\s", " ") : null;
+    }
+
+    private static void writeJsonString(Writer out, String s) throws IOException {
+        if (s == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
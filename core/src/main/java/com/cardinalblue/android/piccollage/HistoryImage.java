@@ -0,0 +1,398 @@
+package com.cardinalblue.android.piccollage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saved history in an offset-indexed format that is read in place, for example
+ * from a memory-mapped file, instead of being parsed up front.  Opening an image
+ * only checks its header; the counts, labels and operation types of any state
+ * can then be read without decoding the other states, and operations are only
+ * decoded when asked for.  Write one with {@link HistorySnapshot#toImage()} and
+ * restore it with {@link UndoHistory#restoreState(HistoryImage)}.
+ *
+ * <p>All values are big-endian ints and all offsets are from the start of the
+ * image:</p>
+ * <pre>
+ * header     magic, version, header size, history size, undo count, redo count,
+ *            state table offset, state record size, shared operation count
+ * state table  one offset per state: undo states from the top, then redo states
+ * state      commit id, flags, label offset (-1 for none), operation count,
+ *            operation table offset
+ * operation  flags, type name offset, payload size, payload
+ * string     byte length, UTF-8 bytes
+ * </pre>
+ *
+ * <p>Shared operations are stored once and referred to from every state that
+ * holds them; type names and labels are pooled the same way.  Later versions
+ * may only append fields to the header and to state records, whose sizes are
+ * recorded in the header so readers skip what they don't know.  Operation
+ * payloads evolve as described in {@link OperationCodecs}.</p>
+ *
+ * <p>An image never changes once written, so it may be read from any thread.
+ * A corrupt image throws {@link IllegalArgumentException} when the damaged part
+ * is read.</p>
+ *
+ * @hide
+ */
+public final class HistoryImage {
+    static final int MAGIC = 0x554e4458; // "UNDX"
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 36;
+    static final int STATE_SIZE = 20;
+
+    static final int STATE_CAN_MERGE = 1;
+    static final int STATE_EXECUTED = 2;
+    static final int OPERATION_SHARED = 1;
+
+    private final ByteBuffer mBuffer;
+    private final int mVersion;
+    private final int mHistorySize;
+    private final int mUndoCount;
+    private final int mRedoCount;
+    private final int mStateTable;
+    private final int mStateSize;
+    private final int mSharedCount;
+
+    private HistoryImage(ByteBuffer buffer) {
+        mBuffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || intAt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a history image");
+        }
+        mVersion = intAt(4);
+        final int headerSize = intAt(8);
+        mHistorySize = intAt(12);
+        mUndoCount = intAt(16);
+        mRedoCount = intAt(20);
+        mStateTable = intAt(24);
+        mStateSize = intAt(28);
+        mSharedCount = intAt(32);
+        if (mVersion < 1 || headerSize < HEADER_SIZE || mStateSize < STATE_SIZE
+                || mUndoCount < 0 || mRedoCount < 0 || mStateTable < headerSize
+                || (long) mStateTable + 4L * ((long) mUndoCount + mRedoCount) > buffer.limit()) {
+            throw new IllegalArgumentException("Corrupt history image");
+        }
+    }
+
+    /**
+     * Open the image in the remaining bytes of <var>buffer</var>.  The buffer
+     * is not copied, so its contents must not change while the image is used;
+     * its position and limit are left alone.
+     */
+    public static HistoryImage open(ByteBuffer buffer) {
+        return new HistoryImage(buffer.slice());
+    }
+
+    public static HistoryImage open(byte[] data) {
+        return new HistoryImage(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Return true if the remaining bytes of <var>buffer</var> start like a
+     * history image.
+     */
+    public static boolean isImage(ByteBuffer buffer) {
+        return buffer.remaining() >= HEADER_SIZE
+                && buffer.slice().getInt(0) == MAGIC;
+    }
+
+    /**
+     * Flatten the given stacks; see {@link HistorySnapshot#toImage()}.
+     */
+    static byte[] write(HistoryStack<UndoHistory.UndoState> undos,
+            HistoryStack<UndoHistory.UndoState> redos, int historySize,
+            OperationCodecs codecs) {
+        BinaryHistoryOutput out = new BinaryHistoryOutput(1024);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(HEADER_SIZE);
+        out.writeInt(historySize);
+        out.writeInt(undos.size());
+        out.writeInt(redos.size());
+        out.writeInt(HEADER_SIZE);
+        out.writeInt(STATE_SIZE);
+        out.writeInt(0);
+        // Reserve the state table; it is filled in as states are written.
+        final int N = undos.size() + redos.size();
+        for (int i=0; i<N; i++) {
+            out.writeInt(0);
+        }
+        Writer writer = new Writer(out, codecs);
+        int slot = HEADER_SIZE;
+        for (UndoHistory.UndoState state : undos) {
+            out.setInt(slot, writer.writeState(state));
+            slot += 4;
+        }
+        for (UndoHistory.UndoState state : redos) {
+            out.setInt(slot, writer.writeState(state));
+            slot += 4;
+        }
+        out.setInt(32, writer.mShared.size());
+        return out.toByteArray();
+    }
+
+    /**
+     * Return the version of the format the image was written in.
+     */
+    public int getFormatVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Return the size of the image in bytes.
+     */
+    public int size() {
+        return mBuffer.limit();
+    }
+
+    public int getHistorySize() {
+        return mHistorySize;
+    }
+
+    public int countUndos() {
+        return mUndoCount;
+    }
+
+    public int countRedos() {
+        return mRedoCount;
+    }
+
+    /**
+     * Return the number of distinct shared operations in the image.
+     */
+    public int countSharedOperations() {
+        return mSharedCount;
+    }
+
+    /**
+     * Return the undo state <var>depth</var> states below the top of the stack.
+     */
+    public State getUndoState(int depth) {
+        if (depth < 0 || depth >= mUndoCount) {
+            throw new IndexOutOfBoundsException("depth " + depth + ", undos " + mUndoCount);
+        }
+        return new State(intAt(mStateTable + 4 * depth));
+    }
+
+    /**
+     * Return the redo state <var>depth</var> states below the top of the stack.
+     */
+    public State getRedoState(int depth) {
+        if (depth < 0 || depth >= mRedoCount) {
+            throw new IndexOutOfBoundsException("depth " + depth + ", redos " + mRedoCount);
+        }
+        return new State(intAt(mStateTable + 4 * (mUndoCount + depth)));
+    }
+
+    private int intAt(int offset) {
+        if (offset < 0 || offset > mBuffer.limit() - 4) {
+            throw new IllegalArgumentException("Corrupt history image: offset " + offset);
+        }
+        return mBuffer.getInt(offset);
+    }
+
+    private ByteBuffer bytesAt(int offset, int length) {
+        if (length < 0 || offset < 0 || offset > mBuffer.limit() - length) {
+            throw new IllegalArgumentException("Corrupt history image: offset " + offset);
+        }
+        ByteBuffer bytes = mBuffer.duplicate();
+        bytes.limit(offset + length);
+        bytes.position(offset);
+        return bytes.slice();
+    }
+
+    private String stringAt(int offset) {
+        if (offset < 0) {
+            return null;
+        }
+        ByteBuffer bytes = bytesAt(offset + 4, intAt(offset));
+        byte[] data = new byte[bytes.remaining()];
+        bytes.get(data);
+        return new String(data, BinaryHistoryOutput.UTF_8);
+    }
+
+    /**
+     * Read-only view of a single state in an image.  Nothing is decoded until
+     * it is asked for.
+     */
+    public final class State {
+        private final int mOffset;
+
+        State(int offset) {
+            mOffset = offset;
+            if (offset < 0 || offset > mBuffer.limit() - mStateSize) {
+                throw new IllegalArgumentException("Corrupt history image: state " + offset);
+            }
+        }
+
+        public int getCommitId() {
+            return intAt(mOffset);
+        }
+
+        public boolean canMerge() {
+            return (intAt(mOffset + 4) & STATE_CAN_MERGE) != 0;
+        }
+
+        public boolean isExecuted() {
+            return (intAt(mOffset + 4) & STATE_EXECUTED) != 0;
+        }
+
+        public String getLabel() {
+            return stringAt(intAt(mOffset + 8));
+        }
+
+        public int countOperations() {
+            return intAt(mOffset + 12);
+        }
+
+        /**
+         * Return the type name operation <var>index</var> was saved under.
+         */
+        public String getOperationType(int index) {
+            return stringAt(intAt(operationAt(index) + 4));
+        }
+
+        /**
+         * Return the size of the saved payload of operation <var>index</var>.
+         */
+        public int getPayloadSize(int index) {
+            return intAt(operationAt(index) + 8);
+        }
+
+        /**
+         * Decode operation <var>index</var> with <var>codecs</var>.  Every call
+         * returns a new instance, even for shared operations.
+         */
+        public UndoHistory.UndoOperation<?> readOperation(int index, OperationCodecs codecs) {
+            return read(operationAt(index), codecs);
+        }
+
+        /**
+         * Decode all operations of the state, in the order they were performed.
+         */
+        public List<UndoHistory.UndoOperation<?>> readOperations(OperationCodecs codecs) {
+            return readOperations(codecs, null);
+        }
+
+        /**
+         * Decode all operations; shared operations found in <var>shared</var>,
+         * which is keyed by their offset, are reused and new ones are added.
+         */
+        List<UndoHistory.UndoOperation<?>> readOperations(OperationCodecs codecs,
+                Map<Integer, UndoHistory.UndoOperation<?>> shared) {
+            final int N = countOperations();
+            if (N < 0 || 4L * N > mBuffer.limit()) {
+                // Don't let a corrupt count allocate a huge list.
+                throw new IllegalArgumentException("Corrupt history image: state " + mOffset);
+            }
+            ArrayList<UndoHistory.UndoOperation<?>> ops = new ArrayList<>(N);
+            for (int i=0; i<N; i++) {
+                final int offset = operationAt(i);
+                UndoHistory.UndoOperation<?> op = shared != null ? shared.get(offset) : null;
+                if (op == null) {
+                    op = read(offset, codecs);
+                    if (shared != null && (intAt(offset) & OPERATION_SHARED) != 0) {
+                        shared.put(offset, op);
+                    }
+                }
+                ops.add(op);
+            }
+            return ops;
+        }
+
+        private int operationAt(int index) {
+            final int N = countOperations();
+            if (index < 0 || index >= N) {
+                throw new IndexOutOfBoundsException("index " + index + ", operations " + N);
+            }
+            return intAt(intAt(mOffset + 16) + 4 * index);
+        }
+
+        private UndoHistory.UndoOperation<?> read(int offset, OperationCodecs codecs) {
+            UndoHistory.UndoOperation<?> op = codecs.read(stringAt(intAt(offset + 4)),
+                    bytesAt(offset + 12, intAt(offset + 8)));
+            if ((intAt(offset) & OPERATION_SHARED) != 0 && op instanceof OpaqueOperation) {
+                // Keep unknown operations shared when they are saved again.
+                ((OpaqueOperation) op).markShared();
+            }
+            return op;
+        }
+    }
+
+    /**
+     * Appends states to an image, pooling strings and shared operations.
+     */
+    private static final class Writer {
+        final BinaryHistoryOutput mOut;
+        final OperationCodecs mCodecs;
+        final HashMap<String, Integer> mStrings = new HashMap<>();
+        final HashMap<UndoHistory.UndoOperation<?>, Integer> mShared = new HashMap<>();
+        final BinaryHistoryOutput mPayload = new BinaryHistoryOutput(64);
+
+        Writer(BinaryHistoryOutput out, OperationCodecs codecs) {
+            mOut = out;
+            mCodecs = codecs;
+        }
+
+        /**
+         * Write <var>state</var> and return its offset.
+         */
+        int writeState(UndoHistory.UndoState state) {
+            if (!state.isCommitted()) {
+                throw new IllegalStateException("Can't save state before committing");
+            }
+            // Labels are saved as plain text; spans are not preserved.
+            CharSequence label = state.getLabel();
+            final int labelOffset = label != null ? writeString(label.toString()) : -1;
+            List<UndoHistory.UndoOperation<?>> ops = state.getOperations();
+            final int N = ops.size();
+            final int offset = mOut.size();
+            mOut.writeInt(state.getCommitId());
+            mOut.writeInt(state.getImageFlags());
+            mOut.writeInt(labelOffset);
+            mOut.writeInt(N);
+            mOut.writeInt(offset + STATE_SIZE);
+            for (int i=0; i<N; i++) {
+                mOut.writeInt(0);
+            }
+            for (int i=0; i<N; i++) {
+                mOut.setInt(offset + STATE_SIZE + 4 * i, writeOperation(ops.get(i)));
+            }
+            return offset;
+        }
+
+        private int writeOperation(UndoHistory.UndoOperation<?> op) {
+            final boolean shared = op.isInternable();
+            if (shared) {
+                Integer offset = mShared.get(op);
+                if (offset != null) {
+                    return offset;
+                }
+            }
+            mPayload.reset();
+            final int typeOffset = writeString(mCodecs.writePayload(op, mPayload));
+            final int offset = mOut.size();
+            mOut.writeInt(shared ? OPERATION_SHARED : 0);
+            mOut.writeInt(typeOffset);
+            mOut.writeBytes(mPayload.buffer(), 0, mPayload.size());
+            if (shared) {
+                mShared.put(op, offset);
+            }
+            return offset;
+        }
+
+        private int writeString(String value) {
+            Integer offset = mStrings.get(value);
+            if (offset == null) {
+                offset = mOut.size();
+                mOut.writeString(value);
+                mStrings.put(value, offset);
+            }
+            return offset;
+        }
+    }
+}
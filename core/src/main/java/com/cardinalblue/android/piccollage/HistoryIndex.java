@@ -0,0 +1,171 @@
+package com.cardinalblue.android.piccollage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Index over one stack of a {@link HistorySnapshot}, for history panels that need
+ * to filter large histories by label prefix or by operation class.  Obtained
+ * from {@link HistorySnapshot#getUndoIndex()} or {@link HistorySnapshot#getRedoIndex()};
+ * it is built on first use, on the calling thread, and is immutable afterwards.
+ *
+ * <p>All results are ordered newest first, like the stack itself.</p>
+ *
+ * @hide
+ */
+public final class HistoryIndex {
+    private static final int[] EMPTY = new int[0];
+
+    private final UndoHistory.UndoState[] mStates;
+    /** Depths of the states, ordered by label. */
+    private final int[] mByLabel;
+    private final String[] mSortedLabels;
+    private final HashMap<Class<?>, int[]> mByClass = new HashMap<>();
+
+    HistoryIndex(HistoryStack<UndoHistory.UndoState> stack) {
+        final int N = stack.size();
+        mStates = new UndoHistory.UndoState[N];
+        final String[] labels = new String[N];
+        Integer[] order = new Integer[N];
+        HashMap<Class<?>, ArrayList<Integer>> byClass = new HashMap<>();
+        int depth = 0;
+        for (UndoHistory.UndoState state : stack) {
+            mStates[depth] = state;
+            CharSequence label = state.getLabel();
+            labels[depth] = label != null ? label.toString() : "";
+            order[depth] = depth;
+            Class<?> last = null;
+            for (UndoHistory.UndoOperation<?> op : state.getOperations()) {
+                Class<?> clazz = op.getClass();
+                if (clazz == last) {
+                    continue;
+                }
+                last = clazz;
+                ArrayList<Integer> depths = byClass.get(clazz);
+                if (depths == null) {
+                    depths = new ArrayList<>();
+                    byClass.put(clazz, depths);
+                }
+                if (depths.isEmpty() || depths.get(depths.size() - 1) != depth) {
+                    depths.add(depth);
+                }
+            }
+            depth++;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = labels[a].compareTo(labels[b]);
+                return c != 0 ? c : a - b;
+            }
+        });
+        mByLabel = new int[N];
+        mSortedLabels = new String[N];
+        for (int i = 0; i < N; i++) {
+            mByLabel[i] = order[i];
+            mSortedLabels[i] = labels[order[i]];
+        }
+        for (HashMap.Entry<Class<?>, ArrayList<Integer>> e : byClass.entrySet()) {
+            ArrayList<Integer> list = e.getValue();
+            int[] depths = new int[list.size()];
+            for (int i = 0; i < depths.length; i++) {
+                depths[i] = list.get(i);
+            }
+            mByClass.put(e.getKey(), depths);
+        }
+    }
+
+    /**
+     * Return the number of states in the indexed stack.
+     */
+    public int size() {
+        return mStates.length;
+    }
+
+    /**
+     * Return the state <var>depth</var> positions below the top of the stack, in O(1).
+     */
+    public HistorySnapshot.Entry get(int depth) {
+        return new HistorySnapshot.Entry(mStates[depth]);
+    }
+
+    public int countWithLabelPrefix(String prefix) {
+        return labelRangeEnd(prefix) - labelRangeStart(prefix);
+    }
+
+    /**
+     * Return a page of the states whose label starts with <var>prefix</var>.
+     */
+    public List<HistorySnapshot.Entry> findByLabelPrefix(String prefix, int offset, int limit) {
+        int start = labelRangeStart(prefix);
+        int end = labelRangeEnd(prefix);
+        int[] depths = Arrays.copyOfRange(mByLabel, start, end);
+        Arrays.sort(depths);
+        return page(depths, offset, limit);
+    }
+
+    public int countWithOperation(Class<? extends UndoHistory.UndoOperation<?>> clazz) {
+        return depthsOf(clazz).length;
+    }
+
+    /**
+     * Return a page of the states that contain at least one operation of exactly the
+     * given class.
+     */
+    public List<HistorySnapshot.Entry> findByOperationClass(
+            Class<? extends UndoHistory.UndoOperation<?>> clazz, int offset, int limit) {
+        return page(depthsOf(clazz), offset, limit);
+    }
+
+    private int[] depthsOf(Class<?> clazz) {
+        int[] depths = mByClass.get(clazz);
+        return depths != null ? depths : EMPTY;
+    }
+
+    private int labelRangeStart(String prefix) {
+        int lo = 0;
+        int hi = mSortedLabels.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mSortedLabels[mid].compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int labelRangeEnd(String prefix) {
+        int lo = labelRangeStart(prefix);
+        int hi = mSortedLabels.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mSortedLabels[mid].startsWith(prefix)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private List<HistorySnapshot.Entry> page(int[] depths, int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("offset and limit must not be negative");
+        }
+        int end = (int) Math.min((long) offset + limit, depths.length);
+        if (offset >= end) {
+            return Collections.emptyList();
+        }
+        ArrayList<HistorySnapshot.Entry> entries = new ArrayList<>(end - offset);
+        for (int i = offset; i < end; i++) {
+            entries.add(new HistorySnapshot.Entry(mStates[depths[i]]));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,18 @@
+package com.cardinalblue.android.piccollage;
+
+/**
+ * Source that a flattened {@link UndoHistory} and its operations are read back
+ * from.  Values must be read in the order they were written to the matching
+ * {@link HistoryOutput}.
+ */
+public interface HistoryInput {
+    int readInt();
+
+    long readLong();
+
+    double readDouble();
+
+    String readString();
+
+    byte[] readByteArray();
+}
@@ -0,0 +1,28 @@
+package com.cardinalblue.android.piccollage;
+
+/**
+ * Destination that an {@link UndoHistory} and its operations are flattened into.
+ * Implementations decide the actual encoding, so the same operation codecs can
+ * write to an in-memory byte array on a server or be wrapped in a platform
+ * container on a device.
+ *
+ * @see HistoryInput
+ * @see OperationCodec
+ */
+public interface HistoryOutput {
+    void writeInt(int value);
+
+    void writeLong(long value);
+
+    void writeDouble(double value);
+
+    /**
+     * Write a string, which may be null.
+     */
+    void writeString(String value);
+
+    /**
+     * Write a byte array, which may be null.
+     */
+    void writeByteArray(byte[] value);
+}
@@ -0,0 +1,255 @@
+package com.cardinalblue.android.piccollage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Immutable, consistent view of an {@link UndoHistory}'s undo and redo stacks at
+ * one point in time, as returned by {@link UndoHistory#getHistorySnapshot()}.
+ *
+ * <p>A snapshot shares its structure with the live history, so taking one is
+ * O(1).  It may be iterated and serialized from any thread; changes made by the
+ * owner of the history afterwards are never visible through it.  The
+ * {@link UndoHistory.UndoOperation} objects themselves are shared, not copied;
+ * the history replaces them with copies rather than hand them out to be changed
+ * once they are committed.</p>
+ *
+ * @hide
+ */
+public final class HistorySnapshot {
+    static final int MAGIC = 0x554e444f; // "UNDO"
+    static final int VERSION = 1;
+
+    private final HistoryStack<UndoHistory.UndoState> mUndos;
+    private final HistoryStack<UndoHistory.UndoState> mRedos;
+    private final int mHistorySize;
+    private final long mVersion;
+    private final OperationCodecs mCodecs;
+    private volatile HistoryIndex mUndoIndex;
+    private volatile HistoryIndex mRedoIndex;
+
+    HistorySnapshot(HistoryStack<UndoHistory.UndoState> undos,
+            HistoryStack<UndoHistory.UndoState> redos, int historySize, long version,
+            OperationCodecs codecs) {
+        mUndos = undos;
+        mRedos = redos;
+        mHistorySize = historySize;
+        mVersion = version;
+        mCodecs = codecs;
+    }
+
+    /**
+     * Return a number that increases every time the history
+     * changes, so two snapshots can be ordered.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public int getHistorySize() {
+        return mHistorySize;
+    }
+
+    public int countUndos() {
+        return mUndos.size();
+    }
+
+    public int countRedos() {
+        return mRedos.size();
+    }
+
+    /**
+     * Iterate over the undo states, starting with the one that would be undone next.
+     */
+    public Iterable<Entry> undoEntries() {
+        return new Entries(mUndos);
+    }
+
+    /**
+     * Iterate over the redo states, starting with the one that would be redone next.
+     */
+    public Iterable<Entry> redoEntries() {
+        return new Entries(mRedos);
+    }
+
+    /**
+     * Return up to <var>limit</var> undo states, skipping the <var>offset</var> newest
+     * ones.  Only the returned entries are allocated; operations are not copied.
+     */
+    public List<Entry> getUndoEntries(int offset, int limit) {
+        return page(mUndos, mUndoIndex, offset, limit);
+    }
+
+    /**
+     * Return up to <var>limit</var> redo states, skipping the <var>offset</var> ones
+     * that would be redone first.
+     */
+    public List<Entry> getRedoEntries(int offset, int limit) {
+        return page(mRedos, mRedoIndex, offset, limit);
+    }
+
+    /**
+     * Return the index over the undo states, building it on the calling thread
+     * the first time it is requested for this snapshot.
+     */
+    public HistoryIndex getUndoIndex() {
+        HistoryIndex index = mUndoIndex;
+        if (index == null) {
+            index = new HistoryIndex(mUndos);
+            mUndoIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Return the index over the redo states, building it on the calling thread
+     * the first time it is requested for this snapshot.
+     */
+    public HistoryIndex getRedoIndex() {
+        HistoryIndex index = mRedoIndex;
+        if (index == null) {
+            index = new HistoryIndex(mRedos);
+            mRedoIndex = index;
+        }
+        return index;
+    }
+
+    private static List<Entry> page(HistoryStack<UndoHistory.UndoState> states,
+            HistoryIndex index, int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("offset and limit must not be negative");
+        }
+        int count = Math.min(limit, states.size() - offset);
+        if (count <= 0) {
+            return Collections.emptyList();
+        }
+        ArrayList<Entry> entries = new ArrayList<>(count);
+        if (index != null) {
+            // Once built, the index gives O(1) access to deep pages.
+            for (int i = 0; i < count; i++) {
+                entries.add(index.get(offset + i));
+            }
+        } else {
+            Iterator<UndoHistory.UndoState> it = states.iterator(offset);
+            while (count-- > 0) {
+                entries.add(new Entry(it.next()));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Flatten the snapshot in the format read by
+     * {@link UndoHistory#restoreState(HistoryInput)}, using the operation codecs of
+     * the history it was taken from.
+     */
+    public void writeTo(HistoryOutput out) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(mHistorySize);
+        // XXX eventually we need to be smart here about limiting the
+        // number of undo states we write to not exceed X bytes.
+        HashMap<UndoHistory.UndoOperation<?>, Integer> shared = new HashMap<>();
+        HashMap<UndoLabel, Integer> labels = new HashMap<>();
+        for (UndoHistory.UndoState state : mUndos) {
+            out.writeInt(1);
+            state.writeTo(out, mCodecs, shared, labels);
+        }
+        for (UndoHistory.UndoState state : mRedos) {
+            out.writeInt(2);
+            state.writeTo(out, mCodecs, shared, labels);
+        }
+        out.writeInt(0);
+    }
+
+    /**
+     * Flatten the snapshot into the byte array format read by
+     * {@link UndoHistory#restoreState(byte[])}.
+     */
+    public byte[] toByteArray() {
+        BinaryHistoryOutput out = new BinaryHistoryOutput();
+        writeTo(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Flatten the snapshot into a {@link HistoryImage}, which can be read in
+     * place and restored with {@link UndoHistory#restoreState(HistoryImage)}.
+     */
+    public byte[] toImage() {
+        return HistoryImage.write(mUndos, mRedos, mHistorySize, mCodecs);
+    }
+
+    /**
+     * Read-only view of a single undo state in a snapshot.
+     */
+    public static final class Entry {
+        final UndoHistory.UndoState mState;
+
+        Entry(UndoHistory.UndoState state) {
+            mState = state;
+        }
+
+        public int getCommitId() {
+            return mState.getCommitId();
+        }
+
+        public CharSequence getLabel() {
+            return mState.getLabel();
+        }
+
+        public int countOperations() {
+            return mState.countOperations();
+        }
+
+        /**
+         * Return the time, according to the history's {@link UndoHistory.Clock}, of the
+         * last update that went into the state.  States restored from saved data
+         * report -1.
+         */
+        public long getUpdateTime() {
+            return mState.getUpdateTime();
+        }
+
+        /**
+         * Return the operations of the state, in the order they were performed.
+         * For a state compressed in the warm tier these are copies decoded on
+         * every call; see {@link UndoHistory#setWarmTierDepth}.
+         */
+        public List<UndoHistory.UndoOperation<?>> getOperations() {
+            return mState.getOperations();
+        }
+    }
+
+    private static final class Entries implements Iterable<Entry> {
+        private final HistoryStack<UndoHistory.UndoState> mStates;
+
+        Entries(HistoryStack<UndoHistory.UndoState> states) {
+            mStates = states;
+        }
+
+        @Override
+        public Iterator<Entry> iterator() {
+            final Iterator<UndoHistory.UndoState> it = mStates.iterator();
+            return new Iterator<Entry>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Entry next() {
+                    return new Entry(it.next());
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
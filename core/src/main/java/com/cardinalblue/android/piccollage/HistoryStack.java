@@ -0,0 +1,196 @@
+package com.cardinalblue.android.piccollage;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable, structurally shared stack used for the undo and redo histories.
+ * Every modification returns a new stack that shares all untouched nodes with
+ * the old one, so holding on to an old stack is an O(1) consistent snapshot
+ * that can safely be read from any thread.
+ *
+ * <p>Nodes only point towards older entries.  Dropping the oldest entries just
+ * lowers the visible size; the hidden tail is cut off by copying the visible
+ * nodes once it grows larger than them, which keeps trimming amortized O(1).</p>
+ */
+final class HistoryStack<T> implements Iterable<T> {
+    private static final HistoryStack<Object> EMPTY = new HistoryStack<>(null, 0);
+
+    private final Node<T> mTop;
+    private final int mSize;
+
+    private HistoryStack(Node<T> top, int size) {
+        mTop = top;
+        mSize = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> HistoryStack<T> empty() {
+        return (HistoryStack<T>) EMPTY;
+    }
+
+    /**
+     * Build a stack holding <var>values</var>, which are given newest first.
+     */
+    static <T> HistoryStack<T> fromNewestFirst(List<T> values) {
+        HistoryStack<T> stack = empty();
+        for (int i = values.size() - 1; i >= 0; i--) {
+            stack = stack.push(values.get(i));
+        }
+        return stack;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Return the newest entry, or null if the stack is empty.
+     */
+    T peek() {
+        return mSize > 0 ? mTop.mValue : null;
+    }
+
+    /**
+     * Return the entry <var>depth</var> positions below the top.
+     */
+    T get(int depth) {
+        if (depth < 0 || depth >= mSize) {
+            throw new IndexOutOfBoundsException("depth " + depth + ", size " + mSize);
+        }
+        Node<T> node = mTop;
+        for (int i = 0; i < depth; i++) {
+            node = node.mNext;
+        }
+        return node.mValue;
+    }
+
+    HistoryStack<T> push(T value) {
+        Node<T> top = mSize > 0 ? mTop : null;
+        return new HistoryStack<>(new Node<>(value, top), mSize + 1);
+    }
+
+    /**
+     * Return the stack without its newest entry.
+     */
+    HistoryStack<T> pop() {
+        if (mSize == 0) {
+            throw new NoSuchElementException();
+        }
+        return mSize == 1 ? HistoryStack.<T>empty() : new HistoryStack<>(mTop.mNext, mSize - 1);
+    }
+
+    /**
+     * Return the stack without its <var>count</var> oldest entries.
+     */
+    HistoryStack<T> dropOldest(int count) {
+        if (count <= 0) {
+            return this;
+        }
+        final int size = mSize - count;
+        if (size <= 0) {
+            return empty();
+        }
+        if (mTop.mLength - size <= size) {
+            return new HistoryStack<>(mTop, size);
+        }
+        return new HistoryStack<>(copy(mTop, size), size);
+    }
+
+    /**
+     * Like {@link #dropOldest}, but always copies the remaining entries, so the
+     * dropped ones are no longer reachable through the new stack.  For freeing
+     * memory, where the hidden tail must not be kept.
+     */
+    HistoryStack<T> releaseOldest(int count) {
+        if (count <= 0) {
+            return this;
+        }
+        final int size = mSize - count;
+        if (size <= 0) {
+            return empty();
+        }
+        if (mTop.mLength == size) {
+            return new HistoryStack<>(mTop, size);
+        }
+        return new HistoryStack<>(copy(mTop, size), size);
+    }
+
+    /**
+     * Iterate over the entries, newest first.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return iterator(0);
+    }
+
+    /**
+     * Iterate over the entries starting <var>depth</var> positions below the top,
+     * newest first.
+     */
+    Iterator<T> iterator(int depth) {
+        Node<T> node = mTop;
+        for (int i = 0; i < depth && i < mSize; i++) {
+            node = node.mNext;
+        }
+        final Node<T> start = node;
+        final int remaining = Math.max(mSize - depth, 0);
+        return new Iterator<T>() {
+            private Node<T> mNode = start;
+            private int mRemaining = remaining;
+
+            @Override
+            public boolean hasNext() {
+                return mRemaining > 0;
+            }
+
+            @Override
+            public T next() {
+                if (mRemaining <= 0) {
+                    throw new NoSuchElementException();
+                }
+                T value = mNode.mValue;
+                mNode = mNode.mNext;
+                mRemaining--;
+                return value;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static <T> Node<T> copy(Node<T> node, int count) {
+        @SuppressWarnings("unchecked")
+        T[] values = (T[]) new Object[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = node.mValue;
+            node = node.mNext;
+        }
+        Node<T> top = null;
+        for (int i = count - 1; i >= 0; i--) {
+            top = new Node<>(values[i], top);
+        }
+        return top;
+    }
+
+    private static final class Node<T> {
+        final T mValue;
+        final Node<T> mNext;
+        /** Number of nodes in the chain starting at this one, hidden ones included. */
+        final int mLength;
+
+        Node(T value, Node<T> next) {
+            mValue = value;
+            mNext = next;
+            mLength = next != null ? next.mLength + 1 : 1;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.cardinalblue.android.piccollage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Reads a trace written by a {@link HistoryTraceRecorder}, one event at a time.
+ * Call {@link #next()} to move to the next event and the getters to look at
+ * it; which getters apply depends on the {@link #getType() type}.
+ *
+ * <p>A trace that was cut short, for example because the process died before
+ * the recorder was flushed, simply ends at the last complete event.</p>
+ *
+ * @hide
+ */
+public final class HistoryTraceReader {
+    /** {@link UndoHistory#beginUpdate}; {@link #getLabel()} is its label. */
+    public static final int EVENT_BEGIN_UPDATE = 1;
+    /**
+     * {@link UndoHistory#addOperation}; {@link #getOperationType()},
+     * {@link #getMergeMode()} and {@link #getOperationSize()} describe it.
+     */
+    public static final int EVENT_ADD_OPERATION = 2;
+    /** {@link UndoHistory#endUpdate}. */
+    public static final int EVENT_END_UPDATE = 3;
+    /**
+     * {@link UndoHistory#undo}; {@link #getCount()} states were asked for and
+     * {@link #getResult()} were undone.
+     */
+    public static final int EVENT_UNDO = 4;
+    /** {@link UndoHistory#redo}, like {@link #EVENT_UNDO}. */
+    public static final int EVENT_REDO = 5;
+    /** {@link UndoHistory#commitState}. */
+    public static final int EVENT_COMMIT_STATE = 6;
+    /** {@link UndoHistory#saveState}; {@link #getResult()} is the saved size. */
+    public static final int EVENT_SAVE_STATE = 7;
+    /** {@link UndoHistory#abortUpdate}. */
+    public static final int EVENT_ABORT_UPDATE = 8;
+    /** {@link UndoHistory#createSavepoint}; {@link #getResult()} is the savepoint. */
+    public static final int EVENT_CREATE_SAVEPOINT = 9;
+    /** {@link UndoHistory#rollbackToSavepoint}; {@link #getCount()} is the savepoint. */
+    public static final int EVENT_ROLLBACK_TO_SAVEPOINT = 10;
+    /** {@link UndoHistory#releaseSavepoint}; {@link #getCount()} is the savepoint. */
+    public static final int EVENT_RELEASE_SAVEPOINT = 11;
+
+    private final InputStream mIn;
+    private final ArrayList<String> mStrings = new ArrayList<>();
+    private final long mStartTime;
+    private final int mHistorySize;
+    private final int mInitialUndos;
+    private final int mInitialRedos;
+
+    private int mType;
+    private long mTimeNanos;
+    private long mDurationNanos;
+    private String mLabel;
+    private String mOperationType;
+    private int mMergeMode;
+    private int mOperationSize;
+    private int mCount;
+    private int mResult;
+
+    /**
+     * Read the header of the trace in <var>in</var>, which should be buffered.
+     */
+    public HistoryTraceReader(InputStream in) throws IOException {
+        mIn = in;
+        int magic = 0;
+        int version = 0;
+        for (int i = 0; i < 4; i++) {
+            magic = (magic << 8) | readByte();
+        }
+        for (int i = 0; i < 4; i++) {
+            version = (version << 8) | readByte();
+        }
+        if (magic != HistoryTraceRecorder.MAGIC) {
+            throw new IOException("Not a history trace");
+        }
+        if (version != HistoryTraceRecorder.VERSION) {
+            throw new IOException("Unsupported history trace version " + version);
+        }
+        mStartTime = readVarLong();
+        mHistorySize = (int) readVarLong() - 1;
+        mInitialUndos = (int) readVarLong();
+        mInitialRedos = (int) readVarLong();
+    }
+
+    /**
+     * Return the wall clock time, in milliseconds, at which recording started.
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * Return the {@link UndoHistory#getHistorySize() size limit} of the
+     * recorded history.
+     */
+    public int getHistorySize() {
+        return mHistorySize;
+    }
+
+    /**
+     * Return the number of undo states the history had when recording started.
+     */
+    public int getInitialUndos() {
+        return mInitialUndos;
+    }
+
+    /**
+     * Return the number of redo states the history had when recording started.
+     */
+    public int getInitialRedos() {
+        return mInitialRedos;
+    }
+
+    /**
+     * Move to the next event.  Returns false at the end of the trace.
+     */
+    public boolean next() throws IOException {
+        final int type = mIn.read();
+        if (type < 0) {
+            return false;
+        }
+        try {
+            mTimeNanos += readVarLong();
+            mDurationNanos = readVarLong();
+            switch (type) {
+                case EVENT_BEGIN_UPDATE:
+                    mLabel = readString();
+                    break;
+                case EVENT_ADD_OPERATION:
+                    mOperationType = readString();
+                    mMergeMode = (int) readVarLong();
+                    mOperationSize = (int) readVarLong() - 1;
+                    break;
+                case EVENT_UNDO:
+                case EVENT_REDO:
+                    mCount = (int) readVarLong();
+                    mResult = (int) readVarLong();
+                    break;
+                case EVENT_SAVE_STATE:
+                case EVENT_CREATE_SAVEPOINT:
+                    mResult = (int) readVarLong();
+                    break;
+                case EVENT_ROLLBACK_TO_SAVEPOINT:
+                case EVENT_RELEASE_SAVEPOINT:
+                    mCount = (int) readVarLong();
+                    break;
+                case EVENT_END_UPDATE:
+                case EVENT_COMMIT_STATE:
+                case EVENT_ABORT_UPDATE:
+                    break;
+                default:
+                    throw new IOException("Unknown history trace event " + type);
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+        mType = type;
+        return true;
+    }
+
+    /**
+     * Return the type of the current event, one of the {@code EVENT_} constants.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * Return the time at which the current call started, in nanoseconds since
+     * recording started.
+     */
+    public long getTimeNanos() {
+        return mTimeNanos;
+    }
+
+    /**
+     * Return how long the current call took, in nanoseconds.
+     */
+    public long getDurationNanos() {
+        return mDurationNanos;
+    }
+
+    public String getLabel() {
+        return mLabel;
+    }
+
+    /**
+     * Return the name the added operation is saved under.
+     */
+    public String getOperationType() {
+        return mOperationType;
+    }
+
+    public int getMergeMode() {
+        return mMergeMode;
+    }
+
+    /**
+     * Return the saved size of the added operation in bytes, or -1 if it has
+     * no codec.
+     */
+    public int getOperationSize() {
+        return mOperationSize;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getResult() {
+        return mResult;
+    }
+
+    private String readString() throws IOException {
+        final int ref = (int) readVarLong();
+        if (ref == 0) {
+            return null;
+        }
+        if (ref <= mStrings.size()) {
+            return mStrings.get(ref - 1);
+        }
+        if (ref != mStrings.size() + 1) {
+            throw new IOException("Corrupt history trace: string " + ref);
+        }
+        byte[] bytes = new byte[(int) readVarLong()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) readByte();
+        }
+        String value = new String(bytes, BinaryHistoryOutput.UTF_8);
+        mStrings.add(value);
+        return value;
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt history trace: varint too long");
+    }
+
+    private int readByte() throws IOException {
+        final int b = mIn.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+}
@@ -0,0 +1,265 @@
+package com.cardinalblue.android.piccollage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Records the calls made on an {@link UndoHistory}, with their timings, into a
+ * compact trace that {@link HistoryTraceReader} reads back.  Attach it with
+ * {@link UndoHistory#setTraceRecorder}.  A trace keeps the sequence of updates,
+ * undos, redos, commits, saves, aborts and savepoints, the labels of updates
+ * and the type and saved size of every operation added, but none of the
+ * operations' data, so it can be replayed without the app to turn a field
+ * session into a repeatable benchmark.
+ *
+ * <p>Events are encoded on the owning thread into a buffer that is written to
+ * the stream whenever it fills up and on {@link #flush()}.  Timings are taken
+ * before any recording work, so recording does not show up in them.  If the
+ * stream fails, recording stops and the error is kept for
+ * {@link #getError()}; the history itself is never affected.</p>
+ *
+ * @hide
+ */
+public final class HistoryTraceRecorder {
+    static final int MAGIC = 0x554e4454; // "UNDT"
+    static final int VERSION = 1;
+
+    private static final int FLUSH_SIZE = 8 * 1024;
+
+    private final OutputStream mOut;
+    private final HashMap<String, Integer> mStrings = new HashMap<>();
+    private final BinaryHistoryOutput mScratch = new BinaryHistoryOutput(256);
+    private byte[] mBuffer = new byte[FLUSH_SIZE + 256];
+    private int mSize;
+    private long mStartNanos = -1;
+    private long mLastNanos;
+    private int mEvents;
+    private IOException mError;
+
+    /**
+     * Record into <var>out</var>, which is closed by {@link #close()}.
+     */
+    public HistoryTraceRecorder(OutputStream out) {
+        mOut = out;
+    }
+
+    /**
+     * Return the number of events recorded so far.
+     */
+    public int getEventCount() {
+        return mEvents;
+    }
+
+    /**
+     * Return the error that stopped recording, or null if it is still going.
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Write out the events recorded so far.
+     */
+    public void flush() {
+        if (mError == null) {
+            drain();
+            if (mError == null) {
+                try {
+                    mOut.flush();
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write out the events recorded so far and close the stream.  Detach the
+     * recorder from its history first.
+     */
+    public void close() throws IOException {
+        flush();
+        mOut.close();
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /**
+     * Called when the recorder is attached to <var>history</var>.  The trace
+     * starts with the history's size limit and the depth of its stacks, so a
+     * replay can start from a history of the same shape.
+     */
+    void start(UndoHistory history) {
+        if (mStartNanos >= 0) {
+            throw new IllegalStateException("Recorder already started");
+        }
+        mStartNanos = System.nanoTime();
+        mLastNanos = mStartNanos;
+        writeInt(MAGIC);
+        writeInt(VERSION);
+        writeVarLong(System.currentTimeMillis());
+        writeVarLong(history.getHistorySize() + 1);
+        writeVarLong(history.countUndos());
+        writeVarLong(history.countRedos());
+    }
+
+    void recordBeginUpdate(long startNanos, CharSequence label) {
+        final long end = System.nanoTime();
+        if (begin(HistoryTraceReader.EVENT_BEGIN_UPDATE, startNanos, end)) {
+            writeString(label != null ? label.toString() : null);
+        }
+    }
+
+    void recordAddOperation(long startNanos, UndoHistory.UndoOperation<?> op, int mergeMode,
+            OperationCodecs codecs) {
+        final long end = System.nanoTime();
+        if (begin(HistoryTraceReader.EVENT_ADD_OPERATION, startNanos, end)) {
+            String typeName = op.getClass().getName();
+            int size = -1;
+            if (codecs.canWrite(op.getClass())) {
+                // The saved size is what a replay needs to reproduce the cost
+                // of saving; it is only measured while recording.
+                mScratch.reset();
+                try {
+                    typeName = codecs.writePayload(op, mScratch);
+                    size = mScratch.size();
+                } catch (RuntimeException e) {
+                    // Left unknown; saving will report the problem.
+                }
+            }
+            writeString(typeName);
+            writeVarLong(mergeMode);
+            writeVarLong(size + 1);
+        }
+    }
+
+    void recordEndUpdate(long startNanos) {
+        final long end = System.nanoTime();
+        begin(HistoryTraceReader.EVENT_END_UPDATE, startNanos, end);
+    }
+
+    void recordUndo(long startNanos, int count, int moved) {
+        final long end = System.nanoTime();
+        if (begin(HistoryTraceReader.EVENT_UNDO, startNanos, end)) {
+            writeVarLong(count);
+            writeVarLong(moved);
+        }
+    }
+
+    void recordRedo(long startNanos, int count, int moved) {
+        final long end = System.nanoTime();
+        if (begin(HistoryTraceReader.EVENT_REDO, startNanos, end)) {
+            writeVarLong(count);
+            writeVarLong(moved);
+        }
+    }
+
+    void recordCommitState(long startNanos) {
+        final long end = System.nanoTime();
+        begin(HistoryTraceReader.EVENT_COMMIT_STATE, startNanos, end);
+    }
+
+    void recordAbortUpdate(long startNanos) {
+        final long end = System.nanoTime();
+        begin(HistoryTraceReader.EVENT_ABORT_UPDATE, startNanos, end);
+    }
+
+    void recordSavepoint(long startNanos, int type, int savepoint) {
+        final long end = System.nanoTime();
+        if (begin(type, startNanos, end)) {
+            writeVarLong(savepoint);
+        }
+    }
+
+    void recordSaveState(long startNanos, int size) {
+        final long end = System.nanoTime();
+        if (begin(HistoryTraceReader.EVENT_SAVE_STATE, startNanos, end)) {
+            writeVarLong(size);
+        }
+    }
+
+    /**
+     * Write the common part of an event: its type, the time since the previous
+     * event started and its duration.  Returns false if recording stopped.
+     */
+    private boolean begin(int type, long startNanos, long endNanos) {
+        if (mError != null) {
+            return false;
+        }
+        if (mSize >= FLUSH_SIZE) {
+            drain();
+            if (mError != null) {
+                return false;
+            }
+        }
+        ensureCapacity(1);
+        mBuffer[mSize++] = (byte) type;
+        writeVarLong(Math.max(0, startNanos - mLastNanos));
+        writeVarLong(Math.max(0, endNanos - startNanos));
+        mLastNanos = Math.max(mLastNanos, startNanos);
+        mEvents++;
+        return true;
+    }
+
+    /**
+     * Strings are written in full the first time and as their index after
+     * that; labels and type names repeat all the time.
+     */
+    private void writeString(String value) {
+        if (value == null) {
+            writeVarLong(0);
+            return;
+        }
+        Integer index = mStrings.get(value);
+        if (index != null) {
+            writeVarLong(index + 1);
+            return;
+        }
+        index = mStrings.size();
+        mStrings.put(value, index);
+        writeVarLong(index + 1);
+        byte[] bytes = value.getBytes(BinaryHistoryOutput.UTF_8);
+        writeVarLong(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mBuffer, mSize, bytes.length);
+        mSize += bytes.length;
+    }
+
+    private void writeInt(int value) {
+        ensureCapacity(4);
+        mBuffer[mSize++] = (byte) (value >>> 24);
+        mBuffer[mSize++] = (byte) (value >>> 16);
+        mBuffer[mSize++] = (byte) (value >>> 8);
+        mBuffer[mSize++] = (byte) value;
+    }
+
+    /**
+     * Write a non-negative value in 7-bit groups, low group first.
+     */
+    private void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            mBuffer[mSize++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mBuffer[mSize++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mSize + extra > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mSize + extra));
+        }
+    }
+
+    private void drain() {
+        try {
+            mOut.write(mBuffer, 0, mSize);
+        } catch (IOException e) {
+            mError = e;
+        }
+        mSize = 0;
+    }
+}
@@ -0,0 +1,48 @@
+package com.cardinalblue.android.piccollage;
+
+/**
+ * Receives named trace sections around the hot paths of an {@link UndoHistory}:
+ * undo, redo, committing an update, and saving and restoring the history.
+ * While a section is open, each operation that is committed, undone or redone
+ * gets a nested section named after its class.
+ *
+ * <p>Sections are begun and ended on the same thread and are strictly nested on
+ * that thread; operations that are undone in parallel report their sections on
+ * the threads they run on.  The history asks {@link #isEnabled()}
+ * once per call and skips all other tracing work when it returns false, so a
+ * disabled tracer costs a single check.</p>
+ */
+public interface HistoryTracer {
+    /**
+     * Tracer that never records anything.  This is the default.
+     */
+    HistoryTracer NONE = new HistoryTracer() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void beginSection(String name) {
+        }
+
+        @Override
+        public void endSection() {
+        }
+    };
+
+    /**
+     * Return true if sections are currently being recorded.
+     */
+    boolean isEnabled();
+
+    /**
+     * Open a section with the given name on the calling thread.
+     */
+    void beginSection(String name);
+
+    /**
+     * Close the most recently opened section on the calling thread.
+     */
+    void endSection();
+}
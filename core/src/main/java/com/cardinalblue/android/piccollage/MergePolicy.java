@@ -0,0 +1,17 @@
+package com.cardinalblue.android.piccollage;
+
+/**
+ * Decides whether a finished update is automatically folded into the undo state
+ * on top of the stack, as set with {@link UndoHistory#setMergePolicy}.  The
+ * policy is only consulted when merging is possible at all: the top state can
+ * still be merged and its last operation allows merging.
+ */
+public interface MergePolicy {
+    /**
+     * @param top The undo state on top of the stack.
+     * @param update The update that has just been finished.
+     * @return Returns true to append the update's operations to <var>top</var>
+     * instead of pushing it as a new undo state.
+     */
+    boolean shouldMerge(HistorySnapshot.Entry top, HistorySnapshot.Entry update);
+}
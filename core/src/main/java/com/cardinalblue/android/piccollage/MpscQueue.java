@@ -0,0 +1,54 @@
+package com.cardinalblue.android.piccollage;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free multi-producer, single-consumer queue.  Producers only
+ * contend on a single atomic swap of the tail; the consumer walks the list
+ * without any atomic operation.
+ *
+ * <p>{@link #offer} may be called from any thread.  {@link #poll} must only be
+ * called from one thread at a time.  A producer that is in the middle of
+ * {@link #offer} may not be visible to {@link #poll} yet; callers that need to
+ * observe it must arrange to poll again once that producer returns.</p>
+ */
+final class MpscQueue<T> {
+    private final AtomicReference<Node<T>> mTail;
+    private Node<T> mHead;
+
+    MpscQueue() {
+        Node<T> stub = new Node<>(null);
+        mHead = stub;
+        mTail = new AtomicReference<>(stub);
+    }
+
+    void offer(T value) {
+        Node<T> node = new Node<>(value);
+        Node<T> prev = mTail.getAndSet(node);
+        prev.mNext = node;
+    }
+
+    T poll() {
+        Node<T> next = mHead.mNext;
+        if (next == null) {
+            return null;
+        }
+        T value = next.mValue;
+        next.mValue = null;
+        mHead = next;
+        return value;
+    }
+
+    boolean isEmpty() {
+        return mHead.mNext == null && mHead == mTail.get();
+    }
+
+    private static final class Node<T> {
+        T mValue;
+        volatile Node<T> mNext;
+
+        Node(T value) {
+            mValue = value;
+        }
+    }
+}
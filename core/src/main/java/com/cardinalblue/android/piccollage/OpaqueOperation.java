@@ -0,0 +1,122 @@
+package com.cardinalblue.android.piccollage;
+
+import java.util.Arrays;
+
+/**
+ * Stand-in for a saved operation whose class has no codec in the reading
+ * process, for example a device-specific operation read by a server tool.  It
+ * keeps the type name and raw payload so the history can be inspected and saved
+ * again unchanged; undo and redo do nothing.
+ *
+ * <p>Install {@link #PROVIDER} with {@link OperationCodecs#setFallback} to read
+ * histories that contain unknown operations.</p>
+ */
+public final class OpaqueOperation extends UndoHistory.UndoOperation<Object> {
+    /**
+     * Provider that reads every unknown operation as an OpaqueOperation.
+     */
+    public static final OperationCodecs.Provider PROVIDER = new OperationCodecs.Provider() {
+        @Override
+        public OperationCodec<?> forClass(Class<?> clazz) {
+            return clazz == OpaqueOperation.class ? new Codec(null) : null;
+        }
+
+        @Override
+        public OperationCodec<?> forName(String typeName) {
+            return new Codec(typeName);
+        }
+    };
+
+    private final String mTypeName;
+    private final byte[] mPayload;
+    private boolean mShared;
+
+    OpaqueOperation(String typeName, byte[] payload) {
+        mTypeName = typeName;
+        mPayload = payload;
+    }
+
+    /**
+     * Return the type name the operation was saved under.
+     */
+    public String getTypeName() {
+        return mTypeName;
+    }
+
+    /**
+     * Return the size of the saved payload in bytes.
+     */
+    public int getPayloadSize() {
+        return mPayload.length;
+    }
+
+    /**
+     * Remember that the operation was saved as a shared operation, so it is
+     * interned and saved once again when the history is written back.
+     */
+    void markShared() {
+        mShared = true;
+    }
+
+    @Override
+    public boolean isInternable() {
+        return mShared;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof OpaqueOperation)) {
+            return false;
+        }
+        OpaqueOperation that = (OpaqueOperation) o;
+        return mShared == that.mShared && mTypeName.equals(that.mTypeName)
+                && Arrays.equals(mPayload, that.mPayload);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mTypeName.hashCode() + Arrays.hashCode(mPayload);
+    }
+
+    @Override
+    public void commit() {
+    }
+
+    @Override
+    public void undo() {
+    }
+
+    @Override
+    public void redo() {
+    }
+
+    @Override
+    public String toString() {
+        return "OpaqueOperation{" + mTypeName + ", " + mPayload.length + " bytes}";
+    }
+
+    /**
+     * Copies the payload verbatim; {@link OperationCodecs} always hands codecs a
+     * binary payload of their own.
+     */
+    private static final class Codec implements OperationCodec<OpaqueOperation> {
+        private final String mTypeName;
+
+        Codec(String typeName) {
+            mTypeName = typeName;
+        }
+
+        @Override
+        public void write(OpaqueOperation op, HistoryOutput out) {
+            ((BinaryHistoryOutput) out).writeRaw(op.mPayload);
+        }
+
+        @Override
+        public OpaqueOperation read(HistoryInput in) {
+            return new OpaqueOperation(mTypeName, ((BinaryHistoryInput) in).readRemaining());
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.cardinalblue.android.piccollage;
+
+/**
+ * Saves and restores the state of one class of {@link UndoHistory.UndoOperation}.
+ * Codecs are registered with {@link OperationCodecs#register}.
+ */
+public interface OperationCodec<T extends UndoHistory.UndoOperation<?>> {
+    /**
+     * Write the state of <var>op</var> so that {@link #read} can recreate it.
+     */
+    void write(T op, HistoryOutput out);
+
+    /**
+     * Create a new operation from data written by {@link #write}.
+     */
+    T read(HistoryInput in);
+}
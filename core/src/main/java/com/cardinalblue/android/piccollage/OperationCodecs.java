@@ -0,0 +1,127 @@
+package com.cardinalblue.android.piccollage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the {@link OperationCodec}s used to save and restore the operations
+ * of an {@link UndoHistory}.  Each operation is written as its type name followed
+ * by the codec's output as a length-prefixed payload, so readers can tell which
+ * codec to use and a payload never bleeds into the next operation.
+ *
+ * <p>A codec may append new values to what it writes.  When it reads a payload
+ * saved before it did, the values past the end of the payload read as 0 or
+ * null; values must never be removed or reordered.</p>
+ *
+ * <p>Codecs may be registered at any time; lookups are safe from any thread, so
+ * snapshots can be saved in the background.</p>
+ */
+public final class OperationCodecs {
+    /**
+     * Source of codecs for operation classes that have not been registered, for
+     * example a platform-specific codec that works for a whole family of classes.
+     */
+    public interface Provider {
+        /**
+         * Return a codec for operations of the given class, or null if unsupported.
+         */
+        OperationCodec<?> forClass(Class<?> clazz);
+
+        /**
+         * Return a codec for operations saved under the given type name, or null if
+         * unsupported.
+         */
+        OperationCodec<?> forName(String typeName);
+    }
+
+    private final ConcurrentHashMap<Class<?>, OperationCodec<?>> mByClass
+            = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, OperationCodec<?>> mByName
+            = new ConcurrentHashMap<>();
+    private volatile Provider mFallback;
+
+    /**
+     * Use <var>codec</var> for operations of exactly the class <var>clazz</var>.
+     * They are saved under the class's name.
+     */
+    public <T extends UndoHistory.UndoOperation<?>> void register(Class<T> clazz,
+            OperationCodec<T> codec) {
+        mByClass.put(clazz, codec);
+        mByName.put(clazz.getName(), codec);
+    }
+
+    /**
+     * Set the provider consulted for operation classes without a registered codec.
+     */
+    public void setFallback(Provider provider) {
+        mFallback = provider;
+    }
+
+    /**
+     * Return true if operations of the given class can be saved.
+     */
+    public boolean canWrite(Class<?> clazz) {
+        return findForClass(clazz) != null;
+    }
+
+    void write(UndoHistory.UndoOperation<?> op, HistoryOutput out) {
+        BinaryHistoryOutput payload = new BinaryHistoryOutput(64);
+        out.writeString(writePayload(op, payload));
+        out.writeByteArray(payload.toByteArray());
+    }
+
+    UndoHistory.UndoOperation<?> read(HistoryInput in) {
+        String typeName = in.readString();
+        byte[] payload = in.readByteArray();
+        return read(typeName, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Read an operation from a payload that was written by {@link #write}.
+     */
+    UndoHistory.UndoOperation<?> read(String typeName, ByteBuffer payload) {
+        OperationCodec<?> codec = findForName(typeName);
+        if (codec == null) {
+            throw new IllegalStateException("No codec registered for " + typeName);
+        }
+        return codec.read(new BinaryHistoryInput(payload, true));
+    }
+
+    /**
+     * Write the payload of <var>op</var> to <var>payload</var> and return the
+     * type name it is saved under.
+     */
+    @SuppressWarnings("unchecked")
+    String writePayload(UndoHistory.UndoOperation<?> op, BinaryHistoryOutput payload) {
+        OperationCodec<UndoHistory.UndoOperation<?>> codec
+                = (OperationCodec<UndoHistory.UndoOperation<?>>) findForClass(op.getClass());
+        if (codec == null) {
+            throw new IllegalStateException("No codec registered for " + op.getClass().getName());
+        }
+        codec.write(op, payload);
+        return op instanceof OpaqueOperation
+                ? ((OpaqueOperation) op).getTypeName() : op.getClass().getName();
+    }
+
+    private OperationCodec<?> findForClass(Class<?> clazz) {
+        OperationCodec<?> codec = mByClass.get(clazz);
+        if (codec == null) {
+            Provider fallback = mFallback;
+            if (fallback != null) {
+                codec = fallback.forClass(clazz);
+            }
+        }
+        return codec;
+    }
+
+    private OperationCodec<?> findForName(String typeName) {
+        OperationCodec<?> codec = mByName.get(typeName);
+        if (codec == null) {
+            Provider fallback = mFallback;
+            if (fallback != null) {
+                codec = fallback.forName(typeName);
+            }
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,33 @@
+package com.cardinalblue.android.piccollage;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Canonicalizes equal {@link UndoHistory.UndoOperation#isInternable() internable}
+ * operations so that the states of a history share one instance of each.  The
+ * table only holds weak references, so an operation is forgotten once no undo
+ * state refers to it any more.
+ */
+final class OperationInterner {
+    private final WeakHashMap<UndoHistory.UndoOperation<?>,
+            WeakReference<UndoHistory.UndoOperation<?>>> mTable = new WeakHashMap<>();
+
+    /**
+     * Return the canonical instance equal to <var>op</var>, registering
+     * <var>op</var> as canonical if there is none.  Operations that are not
+     * internable are returned unchanged.
+     */
+    synchronized UndoHistory.UndoOperation<?> intern(UndoHistory.UndoOperation<?> op) {
+        if (!op.isInternable()) {
+            return op;
+        }
+        WeakReference<UndoHistory.UndoOperation<?>> ref = mTable.get(op);
+        UndoHistory.UndoOperation<?> canonical = ref != null ? ref.get() : null;
+        if (canonical == null) {
+            mTable.put(op, new WeakReference<UndoHistory.UndoOperation<?>>(op));
+            canonical = op;
+        }
+        return canonical;
+    }
+}
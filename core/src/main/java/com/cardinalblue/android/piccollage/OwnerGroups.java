@@ -0,0 +1,124 @@
+package com.cardinalblue.android.piccollage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Undoes or redoes the operations of one undo state with independent owners in
+ * parallel.  Operations are split into groups by
+ * {@link UndoHistory.UndoOperation#getOwnerKey()}; each group runs as its own
+ * task in the same order it would have run in sequentially, and different
+ * groups run at the same time.  The calling thread runs one of the groups
+ * itself and waits for the executor to finish the others.  An operation
+ * without an owner key is a barrier: everything before it finishes before it
+ * runs, and everything after it starts after it finished.
+ *
+ * <p>Only a plain {@link Executor} is needed, so this works on every API level
+ * the library supports.</p>
+ */
+final class OwnerGroups {
+    private OwnerGroups() {
+    }
+
+    /**
+     * Run <var>action</var> on <var>ops</var>, which are given in the order they
+     * were performed; undo runs them back to front.
+     */
+    static void run(List<UndoHistory.UndoOperation<?>> ops, int action, HistoryTracer tracer,
+            Executor executor) {
+        final boolean reverse = action == UndoHistory.UndoState.ACTION_UNDO;
+        final int N = ops.size();
+        LinkedHashMap<Object, ArrayList<UndoHistory.UndoOperation<?>>> groups
+                = new LinkedHashMap<>();
+        for (int i=0; i<N; i++) {
+            UndoHistory.UndoOperation<?> op = ops.get(reverse ? N - 1 - i : i);
+            Object key = op.getOwnerKey();
+            if (key == null) {
+                runGroups(groups, action, tracer, executor);
+                UndoHistory.UndoState.perform(op, action, tracer);
+                continue;
+            }
+            ArrayList<UndoHistory.UndoOperation<?>> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(op);
+        }
+        runGroups(groups, action, tracer, executor);
+    }
+
+    private static void runGroups(
+            LinkedHashMap<Object, ArrayList<UndoHistory.UndoOperation<?>>> groups, int action,
+            HistoryTracer tracer, Executor executor) {
+        if (groups.isEmpty()) {
+            return;
+        }
+        if (groups.size() == 1) {
+            // Nothing to run in parallel with.
+            runGroup(groups.values().iterator().next(), action, tracer);
+        } else {
+            runInParallel(new ArrayList<>(groups.values()), action, tracer, executor);
+        }
+        groups.clear();
+    }
+
+    private static void runInParallel(List<ArrayList<UndoHistory.UndoOperation<?>>> groups,
+            final int action, final HistoryTracer tracer, Executor executor) {
+        final int N = groups.size();
+        final CountDownLatch done = new CountDownLatch(N - 1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i=1; i<N; i++) {
+            final ArrayList<UndoHistory.UndoOperation<?>> group = groups.get(i);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runGroup(group, action, tracer);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            runGroup(groups.get(0), action, tracer);
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                // The operations must finish before undo or redo returns.
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        final Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static void runGroup(List<UndoHistory.UndoOperation<?>> group, int action,
+            HistoryTracer tracer) {
+        for (int i=0; i<group.size(); i++) {
+            UndoHistory.UndoState.perform(group.get(i), action, tracer);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.cardinalblue.android.piccollage;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field of a {@link SavedOperation} that is saved with the operation.
+ * The field must not be private, and must be a primitive, a {@code String} or a
+ * {@code byte[]}.
+ *
+ * <p>Fields are saved superclass first, then in declaration order.  New fields
+ * may be added after the existing ones of the class that declares the
+ * operation; they read as 0 or null from data saved before they existed.</p>
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.FIELD)
+public @interface SavedField {
+}
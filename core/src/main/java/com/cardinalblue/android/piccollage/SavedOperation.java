@@ -0,0 +1,24 @@
+package com.cardinalblue.android.piccollage;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an {@link UndoHistory.UndoOperation} class whose {@link OperationCodec}
+ * is generated at compile time from its {@link SavedField} fields, including
+ * those inherited from its superclasses.
+ *
+ * <p>For an operation {@code Foo} the processor generates {@code Foo_Codec} next
+ * to it, and one {@code OperationCodecTable} per package whose
+ * {@code registerAll(OperationCodecs)} registers the codecs of every annotated
+ * operation in that package.  Operations are rebuilt through a non-private
+ * constructor whose parameters have the same names and types as the saved
+ * fields, in any order, or else through a no-argument constructor followed by
+ * assigning the (then non-final) fields.</p>
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface SavedOperation {
+}
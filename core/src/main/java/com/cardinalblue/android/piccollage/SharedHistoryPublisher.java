@@ -0,0 +1,206 @@
+package com.cardinalblue.android.piccollage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publishes the history of an {@link UndoHistory} into a memory-mapped file, so
+ * that other processes can read it with a {@link SharedHistoryReader} without
+ * a copy over binder.  There is a single writer per file, this publisher;
+ * readers never block it and it never waits for readers.
+ *
+ * <p>Every change only records the new {@link HistorySnapshot}; it is written as
+ * a {@link HistoryImage} on the background executor.  Changes that arrive while
+ * a publication is pending are coalesced, so readers may skip versions but
+ * always see a whole, committed history.</p>
+ *
+ * <p>The file is created anew, under a temporary name that is then renamed over
+ * an earlier publisher's file after marking that one
+ * {@link SharedHistoryReader#isClosed() closed}, so its readers keep reading
+ * the old file until they notice and reopen.</p>
+ *
+ * @hide
+ */
+public class SharedHistoryPublisher implements UndoHistory.OnHistoryChangedListener {
+    private static final int INITIAL_SLOT_SIZE = 64 * 1024;
+
+    private final UndoHistory mHistory;
+    private final Executor mExecutor;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    private final int[] mSlotOffsets = new int[2];
+    private final int[] mSlotCapacities = new int[2];
+    private long mSequence;
+    private long mPublishedVersion = -1;
+    private boolean mStopped;
+    private volatile HistorySnapshot mLatest;
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    private final Runnable mPublishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled.set(false);
+            publish(mLatest);
+        }
+    };
+
+    /**
+     * Start publishing <var>history</var> into <var>file</var>, replacing it if
+     * it exists.  Must be called on the thread that owns the history; the
+     * current history is published right away.
+     * @param executor Background executor on which the history is flattened and
+     * written.  Publications never run concurrently, so any executor will do.
+     */
+    public SharedHistoryPublisher(UndoHistory history, File file, Executor executor)
+            throws IOException {
+        mHistory = history;
+        mExecutor = executor;
+        File temp = new File(file.getPath() + ".tmp");
+        mFile = new RandomAccessFile(temp, "rw");
+        try {
+            mFile.setLength(0);
+            final int size = SharedHistoryRegion.HEADER_SIZE + 2 * INITIAL_SLOT_SIZE;
+            mFile.setLength(size);
+            mChannel = mFile.getChannel();
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            for (int slot=0; slot<2; slot++) {
+                mSlotOffsets[slot] = SharedHistoryRegion.HEADER_SIZE + slot * INITIAL_SLOT_SIZE;
+                mSlotCapacities[slot] = INITIAL_SLOT_SIZE;
+                mBuffer.putInt(SharedHistoryRegion.slotEntry(slot), mSlotOffsets[slot]);
+                mBuffer.putInt(SharedHistoryRegion.slotEntry(slot) + 4, -1);
+            }
+            mBuffer.putLong(SharedHistoryRegion.SEQUENCE, 0);
+            mBuffer.putInt(SharedHistoryRegion.FLAGS, 0);
+            mBuffer.putInt(4, SharedHistoryRegion.VERSION);
+            SharedHistoryRegion.fence();
+            // The magic goes last, so a reader never accepts a half written header.
+            mBuffer.putInt(0, SharedHistoryRegion.MAGIC);
+            closeExisting(file);
+            if (!temp.renameTo(file)) {
+                throw new IOException("Can't rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mHistory.addOnHistoryChangedListener(this);
+        onHistoryChanged(history, history.getHistorySnapshot());
+    }
+
+    /**
+     * Mark the file of an earlier publisher closed before it is replaced, so its
+     * readers move on to the new one.  A file that isn't a shared history is
+     * left alone.
+     */
+    private static void closeExisting(File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        RandomAccessFile old = new RandomAccessFile(file, "rw");
+        try {
+            if (old.length() < SharedHistoryRegion.HEADER_SIZE) {
+                return;
+            }
+            MappedByteBuffer buffer = old.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    SharedHistoryRegion.HEADER_SIZE);
+            if (buffer.getInt(0) != SharedHistoryRegion.MAGIC) {
+                return;
+            }
+            buffer.putInt(SharedHistoryRegion.FLAGS, buffer.getInt(SharedHistoryRegion.FLAGS)
+                    | SharedHistoryRegion.FLAG_CLOSED);
+            SharedHistoryRegion.fence();
+        } finally {
+            old.close();
+        }
+    }
+
+    @Override
+    public void onHistoryChanged(UndoHistory history, HistorySnapshot snapshot) {
+        mLatest = snapshot;
+        if (mScheduled.compareAndSet(false, true)) {
+            mExecutor.execute(mPublishRunnable);
+        }
+    }
+
+    /**
+     * Return the number of times the history has been published so far.
+     */
+    public synchronized long getPublishCount() {
+        return mSequence >>> 1;
+    }
+
+    /**
+     * Stop publishing and mark the file as closed, so readers know no further
+     * changes will arrive.  A publication that is being written is allowed to
+     * finish first.
+     */
+    public void stop() {
+        mHistory.removeOnHistoryChangedListener(this);
+        synchronized (this) {
+            if (mStopped) {
+                return;
+            }
+            mStopped = true;
+            mBuffer.putInt(SharedHistoryRegion.FLAGS, SharedHistoryRegion.FLAG_CLOSED);
+            SharedHistoryRegion.fence();
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                // Nothing more will be written either way.
+            }
+        }
+    }
+
+    private synchronized void publish(HistorySnapshot snapshot) {
+        if (mStopped || snapshot == null || snapshot.getVersion() <= mPublishedVersion) {
+            return;
+        }
+        byte[] image = snapshot.toImage();
+        final int slot = (int) ((mSequence >>> 1) + 1) & 1;
+        try {
+            if (image.length > mSlotCapacities[slot]) {
+                grow(slot, image.length);
+            }
+        } catch (IOException e) {
+            // Keep the previous publication; the next change will try again.
+            return;
+        }
+        final MappedByteBuffer buffer = mBuffer;
+        buffer.putLong(SharedHistoryRegion.SEQUENCE, mSequence + 1);
+        SharedHistoryRegion.fence();
+        buffer.position(mSlotOffsets[slot]);
+        buffer.put(image);
+        buffer.putInt(SharedHistoryRegion.slotEntry(slot), mSlotOffsets[slot]);
+        buffer.putInt(SharedHistoryRegion.slotEntry(slot) + 4, image.length);
+        buffer.putInt(SharedHistoryRegion.slotEntry(slot) + 8,
+                SharedHistoryRegion.checksum(ByteBuffer.wrap(image)));
+        SharedHistoryRegion.fence();
+        mSequence += 2;
+        buffer.putLong(SharedHistoryRegion.SEQUENCE, mSequence);
+        mPublishedVersion = snapshot.getVersion();
+    }
+
+    /**
+     * Move <var>slot</var> to the end of the file with room for at least
+     * <var>size</var> bytes.  Its old space is not reused, since readers of the
+     * previous publication in it may still be looking at it.
+     */
+    private void grow(int slot, int size) throws IOException {
+        final long end = mChannel.size();
+        final long capacity = Math.max((long) size * 2, (long) mSlotCapacities[slot] * 2);
+        if (end + capacity > Integer.MAX_VALUE) {
+            throw new IOException("Shared history too large");
+        }
+        mFile.setLength(end + capacity);
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, end + capacity);
+        mSlotOffsets[slot] = (int) end;
+        mSlotCapacities[slot] = (int) capacity;
+    }
+}
@@ -0,0 +1,207 @@
+package com.cardinalblue.android.piccollage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a history that another process publishes with a
+ * {@link SharedHistoryPublisher}.  Reads go straight to the shared memory and
+ * never block the publisher; a read that overlapped with the publisher
+ * overwriting the data it looked at is simply repeated.
+ *
+ * <p>A reader is not thread safe; use one per thread.</p>
+ *
+ * @hide
+ */
+public final class SharedHistoryReader implements Closeable {
+    /**
+     * Looks at a published history in place.
+     */
+    public interface Visitor<T> {
+        /**
+         * Read what is needed from <var>image</var>.  The image matched its
+         * checksum, but may still be torn if the publisher overwrote it in the
+         * meantime, in which case this may throw or return garbage and is
+         * called again on a newer image, so it must not have side effects.
+         * Nothing that reads from the image may be kept after returning;
+         * strings and decoded operations are copies and may be kept.
+         */
+        T visit(HistoryImage image);
+    }
+
+    /**
+     * Number of times in a row a slot may fail its checksum while the sequence
+     * says it is stable before the file is considered corrupt.
+     */
+    private static final int MAX_CHECKSUM_MISMATCHES = 100;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+
+    private SharedHistoryReader(RandomAccessFile file) throws IOException {
+        mFile = file;
+        mChannel = file.getChannel();
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mChannel.size());
+        if (mBuffer.limit() < SharedHistoryRegion.HEADER_SIZE
+                || mBuffer.getInt(0) != SharedHistoryRegion.MAGIC) {
+            throw new IOException("Not a shared history");
+        }
+        if (mBuffer.getInt(4) != SharedHistoryRegion.VERSION) {
+            throw new IOException("Unsupported shared history version " + mBuffer.getInt(4));
+        }
+    }
+
+    /**
+     * Open a file written by a {@link SharedHistoryPublisher}.
+     */
+    public static SharedHistoryReader open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new SharedHistoryReader(raf);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Return the number of times the history has been published so far.
+     * This changes whenever a new history is available.
+     */
+    public long getPublishCount() {
+        return mBuffer.getLong(SharedHistoryRegion.SEQUENCE) >>> 1;
+    }
+
+    /**
+     * Return true if the publisher stopped.  If it is started again it writes
+     * a new file, which must be opened again.
+     */
+    public boolean isClosed() {
+        return (mBuffer.getInt(SharedHistoryRegion.FLAGS) & SharedHistoryRegion.FLAG_CLOSED) != 0;
+    }
+
+    /**
+     * Run <var>visitor</var> on the latest published history, in place, until
+     * it has seen a consistent image, and return its result.  Returns null
+     * without calling it if nothing has been published yet.
+     */
+    public <T> T read(final Visitor<T> visitor) throws IOException {
+        return readSlot(new SlotReader<T>() {
+            @Override
+            public T read(ByteBuffer slot) {
+                return visitor.visit(HistoryImage.open(slot));
+            }
+        });
+    }
+
+    /**
+     * Return a private copy of the latest published history, or null if
+     * nothing has been published yet.  Only the bytes are copied; the image is
+     * decoded lazily as usual.
+     */
+    public HistoryImage copyImage() throws IOException {
+        byte[] data = readSlot(new SlotReader<byte[]>() {
+            @Override
+            public byte[] read(ByteBuffer slot) {
+                byte[] bytes = new byte[slot.remaining()];
+                slot.get(bytes);
+                return bytes;
+            }
+        });
+        return data != null ? HistoryImage.open(data) : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    private interface SlotReader<T> {
+        T read(ByteBuffer slot);
+    }
+
+    private <T> T readSlot(SlotReader<T> reader) throws IOException {
+        int mismatches = 0;
+        for (int attempt=0; ; attempt++) {
+            if (attempt > 0) {
+                // The publisher is ahead of us twice over; let it finish.
+                Thread.yield();
+            }
+            MappedByteBuffer buffer = mBuffer;
+            final long sequence = buffer.getLong(SharedHistoryRegion.SEQUENCE);
+            SharedHistoryRegion.fence();
+            final int entry = SharedHistoryRegion.slotEntry((int) (sequence >>> 1) & 1);
+            final int offset = buffer.getInt(entry);
+            final int length = buffer.getInt(entry + 4);
+            final int checksum = buffer.getInt(entry + 8);
+            T result = null;
+            RuntimeException error = null;
+            boolean intact = false;
+            if (length >= 0) {
+                if (offset < 0) {
+                    buffer = null;
+                } else if ((long) offset + length > buffer.limit()) {
+                    buffer = remap((long) offset + length);
+                }
+                if (buffer != null) {
+                    ByteBuffer slot = buffer.duplicate();
+                    slot.limit(offset + length);
+                    slot.position(offset);
+                    slot = slot.slice();
+                    // Only hand the image out once its bytes match the entry.
+                    intact = SharedHistoryRegion.checksum(slot) == checksum;
+                    if (intact) {
+                        try {
+                            result = reader.read(slot);
+                        } catch (RuntimeException e) {
+                            error = e;
+                        }
+                    }
+                }
+            }
+            SharedHistoryRegion.fence();
+            if (mBuffer.getLong(SharedHistoryRegion.SEQUENCE)
+                    < SharedHistoryRegion.overwrittenAt(sequence)) {
+                if (length < 0) {
+                    return null;
+                }
+                if (buffer == null) {
+                    throw new IOException("Corrupt shared history: slot " + offset + "+" + length);
+                }
+                if (!intact) {
+                    // The writes may not all be visible yet; a slot that keeps
+                    // failing the check while nothing is published is corrupt.
+                    if (++mismatches >= MAX_CHECKSUM_MISMATCHES) {
+                        throw new IOException("Corrupt shared history: checksum of slot "
+                                + offset + "+" + length);
+                    }
+                    continue;
+                }
+                if (error != null) {
+                    throw error;
+                }
+                return result;
+            }
+            mismatches = 0;
+        }
+    }
+
+    /**
+     * Map the file again if it has grown to at least <var>end</var> bytes, and
+     * return the new mapping, or null if it is not that large.
+     */
+    private MappedByteBuffer remap(long end) throws IOException {
+        final long size = mChannel.size();
+        if (end > size) {
+            return null;
+        }
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        return mBuffer;
+    }
+}
@@ -0,0 +1,96 @@
+package com.cardinalblue.android.piccollage;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Layout of the memory-mapped file that a {@link SharedHistoryPublisher} shares
+ * with {@link SharedHistoryReader}s in other processes.  All values are
+ * big-endian:
+ * <pre>
+ *  0  int   magic
+ *  4  int   version
+ *  8  long  sequence
+ * 16  int   flags
+ * 20  int   reserved
+ * 24  int   slot 0 offset,  28  int  slot 0 length,  32  int  slot 0 CRC32
+ * 36  int   slot 1 offset,  40  int  slot 1 length,  44  int  slot 1 CRC32
+ * </pre>
+ *
+ * <p>The file holds two slots, each a {@link HistoryImage}.  The sequence is a
+ * seqlock with double buffering: it is odd while publication number
+ * {@code (sequence >>> 1) + 1} is being written, and after publication
+ * <var>k</var> it is {@code 2k}.  Publication <var>k</var> lives in slot
+ * {@code k & 1} and is written into the slot that readers are not using, so a
+ * reader that saw sequence <var>s</var> reads slot {@code (s >>> 1) & 1} in
+ * place, and its read is consistent as long as the sequence is still below
+ * {@code (s | 1) + 2} afterwards, when the slot starts being overwritten.</p>
+ *
+ * <p>The sequence alone relies on the fences ordering plain accesses to the
+ * mapped memory, which Java 7 doesn't promise.  Each slot entry therefore also
+ * holds the CRC32 of the slot's image, and a reader only accepts an image
+ * whose bytes match it, in addition to the sequence check.</p>
+ *
+ * <p>A slot that outgrows its space is moved to the end of the file.  The file
+ * only ever grows, so a reader's mapping never points past its end.</p>
+ */
+final class SharedHistoryRegion {
+    static final int MAGIC = 0x554e4453; // "UNDS"
+    static final int VERSION = 1;
+
+    static final int SEQUENCE = 8;
+    static final int FLAGS = 16;
+    static final int SLOTS = 24;
+    static final int SLOT_ENTRY_SIZE = 12;
+    static final int HEADER_SIZE = SLOTS + 2 * SLOT_ENTRY_SIZE;
+
+    /** Set once the publisher has stopped; readers must reopen the file. */
+    static final int FLAG_CLOSED = 1;
+
+    private static volatile int sFence;
+
+    private SharedHistoryRegion() {
+    }
+
+    /**
+     * Order the memory accesses before this call against those after it,
+     * including accesses to mapped memory.  Java 7 has no explicit fence; a
+     * volatile read and write is compiled to a full barrier on the VMs we run
+     * on.
+     */
+    static void fence() {
+        sFence++;
+    }
+
+    /**
+     * Return the position of the offset of <var>slot</var>; its length and
+     * checksum follow.
+     */
+    static int slotEntry(int slot) {
+        return SLOTS + SLOT_ENTRY_SIZE * slot;
+    }
+
+    /**
+     * Return the CRC32 of the remaining bytes of <var>data</var>, as stored in a
+     * slot entry.  The buffer's position is left alone.
+     */
+    static int checksum(ByteBuffer data) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer in = data.duplicate();
+        final byte[] chunk = new byte[Math.min(in.remaining(), 8192)];
+        while (in.hasRemaining()) {
+            final int n = Math.min(in.remaining(), chunk.length);
+            in.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Return the sequence number after which the slot read at
+     * <var>sequence</var> starts being overwritten.
+     */
+    static long overwrittenAt(long sequence) {
+        return (sequence | 1) + 2;
+    }
+}
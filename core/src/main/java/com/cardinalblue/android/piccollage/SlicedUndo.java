@@ -0,0 +1,206 @@
+package com.cardinalblue.android.piccollage;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * An undo or redo of several states that runs in time slices instead of in one
+ * call, so a large batch does not block the thread that owns the history.  Each
+ * slice performs operations until its time budget is used up, then hands the
+ * rest to the executor; at least one operation is performed per slice.  Start
+ * one with {@link UndoHistory#undoSliced} or {@link UndoHistory#redoSliced}.
+ *
+ * <p>A state only moves to the other stack once all of its operations have run,
+ * so snapshots published in between always show whole states.  Until the run
+ * finishes the history reports {@link UndoHistory#isInUndo()} and refuses new
+ * updates, undo and redo.  Cancelling puts back the operations of a state that
+ * was only partly done, leaving the stacks as if the run had stopped after the
+ * last whole state.</p>
+ *
+ * <p>All methods and callbacks run on the thread that owns the history, so the
+ * executor must run its tasks on that thread, for example by posting to its
+ * Handler.</p>
+ *
+ * @hide
+ */
+public final class SlicedUndo {
+    /**
+     * Receives the progress of a sliced undo or redo.
+     */
+    public interface Callback {
+        /**
+         * Called after each state has been completely undone or redone.
+         * @param done Number of states done so far.
+         * @param total Number of states the run will do if it is not cancelled.
+         */
+        void onProgress(SlicedUndo run, int done, int total);
+
+        /**
+         * Called once when the run ends, either because all states are done or
+         * because it stopped early.
+         * @param cancelled True if the run was cancelled, or if an operation
+         * threw, in which case {@link SlicedUndo#getError()} returns what it
+         * threw and the exception is rethrown once this returns.
+         */
+        void onFinished(SlicedUndo run, int done, boolean cancelled);
+    }
+
+    private final UndoHistory mHistory;
+    private final boolean mRedo;
+    private final int mTotal;
+    private final long mBudgetMillis;
+    private final Executor mExecutor;
+    private final Callback mCallback;
+    private int mDone;
+    // Number of operations of the current state that have already run.
+    private int mStep;
+    private boolean mFinished;
+    private boolean mCancelled;
+    private RuntimeException mError;
+
+    private final Runnable mSliceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            runSlice();
+        }
+    };
+
+    SlicedUndo(UndoHistory history, boolean redo, int total, long budgetMillis,
+            Executor executor, Callback callback) {
+        mHistory = history;
+        mRedo = redo;
+        mTotal = total;
+        mBudgetMillis = budgetMillis;
+        mExecutor = executor;
+        mCallback = callback;
+    }
+
+    /**
+     * Return true if this run is a redo rather than an undo.
+     */
+    public boolean isRedo() {
+        return mRedo;
+    }
+
+    /**
+     * Return the number of states that have been completely undone or redone.
+     */
+    public int getDone() {
+        return mDone;
+    }
+
+    /**
+     * Return the number of states the run will do if it is not cancelled.
+     */
+    public int getTotal() {
+        return mTotal;
+    }
+
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Return the exception that ended the run, or null if no operation threw.
+     */
+    public RuntimeException getError() {
+        return mError;
+    }
+
+    /**
+     * Stop the run.  Operations of a state that was only partly undone or redone
+     * are put back right away, so the state stays where it was.  Does nothing if
+     * the run already finished.
+     */
+    public void cancel() {
+        if (mFinished) {
+            return;
+        }
+        if (mStep > 0) {
+            final int action = mRedo ? UndoHistory.UndoState.ACTION_UNDO
+                    : UndoHistory.UndoState.ACTION_REDO;
+            final HistoryTracer tracer = mHistory.getActiveTracer();
+            List<UndoHistory.UndoOperation<?>> ops = mHistory.topState(mRedo).getOperations();
+            final int N = ops.size();
+            // Reverse what was done so far, most recent operation first.
+            for (int i=mStep-1; i>=0; i--) {
+                UndoHistory.UndoState.perform(ops.get(mRedo ? i : N - 1 - i), action, tracer);
+            }
+            mStep = 0;
+        }
+        mCancelled = true;
+        finish();
+    }
+
+    void runSlice() {
+        if (mFinished) {
+            return;
+        }
+        final UndoHistory.Clock clock = mHistory.getClock();
+        final long deadline = clock.uptimeMillis() + mBudgetMillis;
+        final int action = mRedo ? UndoHistory.UndoState.ACTION_REDO
+                : UndoHistory.UndoState.ACTION_UNDO;
+        final HistoryTracer tracer = mHistory.getActiveTracer();
+        if (tracer != null) {
+            tracer.beginSection(mRedo ? UndoHistory.SECTION_REDO : UndoHistory.SECTION_UNDO);
+        }
+        try {
+            while (mDone < mTotal) {
+                UndoHistory.UndoState state = mHistory.topState(mRedo);
+                if (state == null) {
+                    // The stack was trimmed while the run was paused.
+                    break;
+                }
+                List<UndoHistory.UndoOperation<?>> ops = state.getOperations();
+                final int N = ops.size();
+                while (mStep < N) {
+                    UndoHistory.UndoState.perform(ops.get(mRedo ? mStep : N - 1 - mStep),
+                            action, tracer);
+                    mStep++;
+                    if (mStep < N && clock.uptimeMillis() >= deadline) {
+                        mExecutor.execute(mSliceRunnable);
+                        return;
+                    }
+                }
+                mStep = 0;
+                mDone++;
+                mHistory.moveTopState(mRedo);
+                if (mCallback != null) {
+                    mCallback.onProgress(this, mDone, mTotal);
+                    if (mFinished) {
+                        // Cancelled by the callback.
+                        return;
+                    }
+                }
+                if (mDone < mTotal && clock.uptimeMillis() >= deadline) {
+                    mExecutor.execute(mSliceRunnable);
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            // The failing state is left partly done, just like a plain undo.
+            if (!mFinished) {
+                mError = e;
+                finish();
+            }
+            throw e;
+        } finally {
+            if (tracer != null) {
+                tracer.endSection();
+            }
+        }
+        finish();
+    }
+
+    private void finish() {
+        mFinished = true;
+        mHistory.endSliced(this);
+        if (mCallback != null) {
+            mCallback.onFinished(this, mDone, mCancelled || mError != null);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.cardinalblue.android.piccollage;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Prepares the top undo state for undo and the top redo state for redo in the
+ * background, so the undo or redo that most likely comes next only has to apply
+ * the results.  See {@link UndoHistory#setPrepareExecutor}.
+ *
+ * <p>A speculation belongs to one generation of the history's stacks.  Every
+ * change to the stacks starts a new generation, which stops the speculation
+ * between two operations and makes the history ignore its results.</p>
+ */
+final class Speculation implements Runnable {
+    private final UndoHistory mHistory;
+    private final HistoryTracer mTracer;
+    final long mGeneration;
+    final UndoHistory.UndoState mUndo;
+    final UndoHistory.UndoState mRedo;
+    /** Prepared results by operation index; null where nothing was prepared yet. */
+    final AtomicReferenceArray<Object> mUndoResults;
+    final AtomicReferenceArray<Object> mRedoResults;
+
+    Speculation(UndoHistory history, long generation, UndoHistory.UndoState undo,
+            UndoHistory.UndoState redo, HistoryTracer tracer) {
+        mHistory = history;
+        mTracer = tracer;
+        mGeneration = generation;
+        mUndo = undo;
+        mRedo = redo;
+        mUndoResults = undo != null ? new AtomicReferenceArray<>(undo.countOperations()) : null;
+        mRedoResults = redo != null ? new AtomicReferenceArray<>(redo.countOperations()) : null;
+    }
+
+    @Override
+    public void run() {
+        if (mTracer != null) {
+            mTracer.beginSection(UndoHistory.SECTION_PREPARE);
+        }
+        try {
+            // After an undo the next action is about as likely to be another
+            // undo as a redo; undo comes first since it is more common overall.
+            if (mUndo == null || prepare(mUndo.getOperations(), true, mUndoResults)) {
+                if (mRedo != null) {
+                    prepare(mRedo.getOperations(), false, mRedoResults);
+                }
+            }
+        } finally {
+            if (mTracer != null) {
+                mTracer.endSection();
+            }
+        }
+    }
+
+    /**
+     * Prepare <var>ops</var> in the order they will be performed.  Returns false
+     * if the generation ended before all of them were prepared.
+     */
+    private boolean prepare(List<UndoHistory.UndoOperation<?>> ops, boolean undo,
+            AtomicReferenceArray<Object> results) {
+        final int N = ops.size();
+        for (int i=0; i<N; i++) {
+            if (mHistory.getPrepareGeneration() != mGeneration) {
+                return false;
+            }
+            final int index = undo ? N - 1 - i : i;
+            UndoHistory.UndoOperation<?> op = ops.get(index);
+            try {
+                results.set(index, undo ? op.prepareUndo() : op.prepareRedo());
+            } catch (RuntimeException e) {
+                // Left unprepared; the plain undo or redo will run instead and
+                // report the problem where it can be handled.
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the results for undoing <var>state</var>, or null if this did not
+     * prepare it.
+     */
+    AtomicReferenceArray<Object> undoResultsFor(UndoHistory.UndoState state) {
+        return state == mUndo ? mUndoResults : null;
+    }
+
+    /**
+     * Return the results for redoing <var>state</var>, or null if this did not
+     * prepare it.
+     */
+    AtomicReferenceArray<Object> redoResultsFor(UndoHistory.UndoState state) {
+        return state == mRedo ? mRedoResults : null;
+    }
+}
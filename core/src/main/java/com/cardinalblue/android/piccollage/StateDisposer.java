@@ -0,0 +1,110 @@
+package com.cardinalblue.android.piccollage;
+
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Destroys the undo states a history discarded.  Discarding hands over a whole
+ * segment of a stack in O(1); the states in it are only visited when they are
+ * destroyed, which happens on the executor set with
+ * {@link UndoHistory#setDisposeExecutor}, a batch of states per task, so neither
+ * the owning thread nor the executor is held up by a long segment.  Without an
+ * executor states are destroyed right away.
+ */
+final class StateDisposer implements Runnable {
+    /** Number of states destroyed per task on the executor. */
+    static final int BATCH_SIZE = 64;
+
+    private final MpscQueue<Segment> mSegments = new MpscQueue<>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private volatile Executor mExecutor;
+    // Segment being destroyed; only touched by the one task that is running.
+    private Iterator<UndoHistory.UndoState> mCurrent;
+    private int mRemaining;
+
+    void setExecutor(Executor executor) {
+        mExecutor = executor;
+        if (executor != null && !mSegments.isEmpty() && mScheduled.compareAndSet(false, true)) {
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * Destroy the <var>count</var> states that start <var>depth</var> positions
+     * below the top of <var>states</var>, which must no longer be in use.
+     */
+    void dispose(HistoryStack<UndoHistory.UndoState> states, int depth, int count) {
+        if (count <= 0) {
+            return;
+        }
+        final Executor executor = mExecutor;
+        if (executor == null) {
+            Iterator<UndoHistory.UndoState> it = states.iterator(depth);
+            while (count-- > 0) {
+                it.next().destroy();
+            }
+            return;
+        }
+        mSegments.offer(new Segment(states, depth, count));
+        if (mScheduled.compareAndSet(false, true)) {
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * Destroy a single state, such as an abandoned working state.
+     */
+    void dispose(UndoHistory.UndoState state) {
+        dispose(HistoryStack.<UndoHistory.UndoState>empty().push(state), 0, 1);
+    }
+
+    @Override
+    public void run() {
+        int budget = BATCH_SIZE;
+        while (budget > 0) {
+            if (mRemaining == 0) {
+                Segment segment = mSegments.poll();
+                if (segment == null) {
+                    break;
+                }
+                // Walking down to the segment happens here rather than on the
+                // thread that discarded it.
+                mCurrent = segment.mStates.iterator(segment.mDepth);
+                mRemaining = segment.mCount;
+            }
+            mCurrent.next().destroy();
+            mRemaining--;
+            budget--;
+        }
+        if (mRemaining == 0) {
+            mCurrent = null;
+        }
+        final Executor executor = mExecutor;
+        if (mRemaining > 0 || !mSegments.isEmpty()) {
+            if (executor != null) {
+                executor.execute(this);
+                return;
+            }
+        }
+        // Clear the flag first so that a segment offered concurrently schedules
+        // another task instead of being left in the queue.
+        mScheduled.set(false);
+        if (executor != null && (mRemaining > 0 || !mSegments.isEmpty())
+                && mScheduled.compareAndSet(false, true)) {
+            executor.execute(this);
+        }
+    }
+
+    private static final class Segment {
+        final HistoryStack<UndoHistory.UndoState> mStates;
+        final int mDepth;
+        final int mCount;
+
+        Segment(HistoryStack<UndoHistory.UndoState> states, int depth, int count) {
+            mStates = states;
+            mDepth = depth;
+            mCount = count;
+        }
+    }
+}
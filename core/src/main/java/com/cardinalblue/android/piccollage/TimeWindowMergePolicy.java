@@ -0,0 +1,52 @@
+package com.cardinalblue.android.piccollage;
+
+import java.util.List;
+
+/**
+ * {@link MergePolicy} that folds bursts of edits into a single undo state: an
+ * update is merged when it arrives within a time window of the previous one and
+ * both only contain operations of the same class.  Typing or dragging a slider
+ * then produces one undo state instead of hundreds.
+ *
+ * <p>The window slides: every merged update restarts it, so a burst lasts until
+ * the user pauses for longer than the window.</p>
+ */
+public class TimeWindowMergePolicy implements MergePolicy {
+    private final long mWindowMillis;
+
+    /**
+     * @param windowMillis Longest pause between two updates that still merges them.
+     */
+    public TimeWindowMergePolicy(long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    public long getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    @Override
+    public boolean shouldMerge(HistorySnapshot.Entry top, HistorySnapshot.Entry update) {
+        long elapsed = update.getUpdateTime() - top.getUpdateTime();
+        if (top.getUpdateTime() < 0 || elapsed < 0 || elapsed > mWindowMillis) {
+            return false;
+        }
+        Class<?> owner = ownerOf(top.getOperations());
+        return owner != null && owner == ownerOf(update.getOperations());
+    }
+
+    /**
+     * Return the class shared by all operations, or null if they differ.
+     */
+    private static Class<?> ownerOf(List<UndoHistory.UndoOperation<?>> ops) {
+        Class<?> owner = null;
+        for (UndoHistory.UndoOperation<?> op : ops) {
+            if (owner == null) {
+                owner = op.getClass();
+            } else if (op.getClass() != owner) {
+                return null;
+            }
+        }
+        return owner;
+    }
+}
@@ -0,0 +1,2566 @@
+package com.cardinalblue.android.piccollage;
+
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Platform-independent engine for managing and interacting with the global undo
+ * state for a document or application.  This class supports both undo and redo
+ * and has helpers for merging undoable operations together as they are performed.
+ * It has no dependency on Android and can be used on a plain JVM, for example to
+ * validate and replay histories on a server; the Android {@code UndoManager} adds
+ * the {@code Parcelable} binding on top of it.
+ *
+ * <p>A single undoable operation is represented by {@link UndoOperation} which
+ * apps implement to define their undo/redo behavior.  The UndoHistory keeps
+ * a stack of undo states; each state can have one or more undo operations
+ * inside of it.</p>
+ *
+ * <p>Updates to the stack must be done inside of a {@link #beginUpdate}/{@link #endUpdate()}
+ * pair.  During this time you can add new operations to the stack with
+ * {@link #addOperation}, retrieve and modify existing operations with
+ * {@link #getLastOperation}, control the label shown to the user for this operation
+ * with {@link #setUndoLabel} and {@link #suggestUndoLabel}, etc.</p>
+ *
+ * <p>For example, you may have a document with multiple embedded objects.  If the
+ * document itself and each embedded object use different owners, then you
+ * can provide undo semantics appropriate to the user's context: while within
+ * an embedded object, only edits to that object are seen and the user can
+ * undo/redo them without needing to impact edits in other objects; while
+ * within the larger document, all edits can be seen and the user must
+ * undo/redo them as a single stream.</p>
+ *
+ * <p>The UndoHistory itself is not thread safe and must only be used from the
+ * thread that owns it.  Other threads can hand operations to it with
+ * {@link #submitOperation} and {@link #submitState}; these are queued without
+ * locking and turned into undo states when the owning thread calls
+ * {@link #drainPending}, or automatically through the executor given to
+ * {@link #setPendingExecutor}.  The history itself can be read from any thread
+ * through {@link #getHistorySnapshot()}.</p>
+ *
+ * @hide
+ */
+public class UndoHistory {
+    private HistoryStack<UndoState> mUndos = HistoryStack.empty();
+    private HistoryStack<UndoState> mRedos = HistoryStack.empty();
+    private volatile HistorySnapshot mSnapshot;
+    private long mVersion;
+    private final CopyOnWriteArrayList<OnHistoryChangedListener> mListeners
+            = new CopyOnWriteArrayList<>();
+    private int mUpdateCount;
+    private int mHistorySize = 20;
+    private UndoState mWorking;
+    private int mCommitId = 1;
+    private boolean mInUndo;
+    private SlicedUndo mSliced;
+    private boolean mMerged;
+    // The state taken off the undo stack to be merged into, while the working
+    // state is a copy of it, and the commit id the working state had before.
+    private UndoState mReopenedTop;
+    private int mUnopenedCommitId;
+    private final ArrayList<Savepoint> mSavepoints = new ArrayList<>();
+    // Indices of the working state's operations returned by getLastOperation,
+    // which the caller may change in place.
+    private final ArrayList<Integer> mHandedOut = new ArrayList<>();
+    private MergePolicy mMergePolicy;
+    private Clock mClock = Clock.SYSTEM;
+    private HistoryTracer mTracer = HistoryTracer.NONE;
+    private HistoryTraceRecorder mRecorder;
+    private HistoryEventPublisher mEvents;
+    private Executor mParallelExecutor;
+    private int mParallelThreshold;
+    private Executor mPrepareExecutor;
+    private volatile long mPrepareGeneration;
+    private Speculation mSpeculation;
+    private final OperationCodecs mCodecs = new OperationCodecs();
+    private final OperationInterner mInterner = new OperationInterner();
+    private final StateDisposer mDisposer = new StateDisposer();
+    private final WarmTier mWarmTier = new WarmTier(mCodecs, mInterner);
+    private final MpscQueue<PendingUpdate> mPending = new MpscQueue<>();
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private volatile Executor mPendingExecutor;
+    // Set on the owning thread when a drain found the history busy.
+    private boolean mDrainWanted;
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mWorking != null || mInUndo) {
+                // The owner is in the middle of an update or undo/redo.  Rather
+                // than keep its thread busy retrying, drain again once it is done.
+                mDrainWanted = true;
+                return;
+            }
+            drainPending(-1);
+        }
+    };
+
+    /**
+     * Never merge with the last undo state.
+     */
+    public static final int MERGE_MODE_NONE = 0;
+    /**
+     * Allow merge with the last undo state only if it contains
+     * operations with the caller's owner.  The owner of an operation is its class:
+     * the last undo state must only contain operations of that class.
+     */
+    public static final int MERGE_MODE_UNIQUE = 1;
+    /**
+     * Always allow merge with the last undo state, if possible.
+     */
+    public static final int MERGE_MODE_ANY = 2;
+
+    /**
+     * {@link #trimHistory} level: discard the redo stack.
+     */
+    public static final int TRIM_REDOS = 1;
+    /**
+     * {@link #trimHistory} level: also discard the older half of the undo stack.
+     */
+    public static final int TRIM_HALF_UNDOS = 2;
+    /**
+     * {@link #trimHistory} level: also ask the operations of every state below the
+     * top to {@link UndoOperation#trimMemory() release} what they can.
+     */
+    public static final int TRIM_PAYLOADS = 3;
+    /**
+     * {@link #trimHistory} level: keep nothing but the top undo state.
+     */
+    public static final int TRIM_TOP_ONLY = 4;
+
+    /** Names of the sections reported to the {@link HistoryTracer}. */
+    public static final String SECTION_UNDO = "UndoHistory.undo";
+    public static final String SECTION_REDO = "UndoHistory.redo";
+    public static final String SECTION_END_UPDATE = "UndoHistory.endUpdate";
+    public static final String SECTION_SAVE = "UndoHistory.saveState";
+    public static final String SECTION_RESTORE = "UndoHistory.restoreState";
+    public static final String SECTION_PREPARE = "UndoHistory.prepare";
+    public static final String SECTION_ROLLBACK = "UndoHistory.rollback";
+    /**
+     * Set the policy that decides whether a finished update is automatically folded
+     * into the undo state on top of the stack, or null to only merge when callers
+     * ask for it through a merge mode.
+     */
+    public void setMergePolicy(MergePolicy policy) {
+        mMergePolicy = policy;
+    }
+    public MergePolicy getMergePolicy() {
+        return mMergePolicy;
+    }
+    /**
+     * Set the clock used to time-stamp undo states.  Tests can inject their own.
+     */
+    public void setClock(Clock clock) {
+        mClock = clock;
+    }
+    /**
+     * Set the tracer that receives sections around undo, redo, update and
+     * save/restore work, or null to stop tracing.
+     */
+    public void setTracer(HistoryTracer tracer) {
+        mTracer = tracer != null ? tracer : HistoryTracer.NONE;
+    }
+    public HistoryTracer getTracer() {
+        return mTracer;
+    }
+    /**
+     * Record every update, undo, redo, commit and save made from now on, with
+     * its timing, into <var>recorder</var>, or stop recording if null.  The
+     * recorder is not closed when it is detached.
+     */
+    public void setTraceRecorder(HistoryTraceRecorder recorder) {
+        if (recorder != null) {
+            recorder.start(this);
+        }
+        mRecorder = recorder;
+    }
+    public HistoryTraceRecorder getTraceRecorder() {
+        return mRecorder;
+    }
+    void setEventPublisher(HistoryEventPublisher publisher) {
+        if (publisher != null && mEvents != null) {
+            throw new IllegalStateException("History already has an event publisher");
+        }
+        mEvents = publisher;
+    }
+    /**
+     * Undo and redo the operations of large states in parallel on <var>executor</var>,
+     * grouped by their {@link UndoOperation#getOwnerKey() owner key}.  Operations
+     * with an owner key then run on the executor's threads as well as the thread
+     * calling {@link #undo} or {@link #redo}, which waits for them to finish, so
+     * the executor must not need the calling thread to make progress.
+     * @param executor The executor to run on, for example a fixed thread pool,
+     * or null to always run sequentially.
+     * @param minOperations States with fewer operations than this are always
+     * undone and redone sequentially, since splitting them up costs more than it
+     * saves.
+     */
+    public void setParallelUndo(Executor executor, int minOperations) {
+        mParallelExecutor = executor;
+        mParallelThreshold = minOperations;
+    }
+    /**
+     * Destroy discarded undo and redo states on <var>executor</var>, a batch at
+     * a time, instead of on the thread that discarded them.  Discarding, such as
+     * dropping the redo stack when a new edit follows a long undo, then takes
+     * constant time however many states go.  See {@link UndoOperation#destroy()}.
+     * @param executor A background executor, or null to destroy states right
+     * away.  States still queued when the executor is removed are destroyed once
+     * one is set again.
+     */
+    public void setDisposeExecutor(Executor executor) {
+        mDisposer.setExecutor(executor);
+    }
+    /**
+     * Keep the undo and redo states that are at least <var>depth</var> positions
+     * from the top of their stack compressed on the heap: their operations are
+     * saved with their codecs and deflated, and decoded again once they come
+     * back above that depth or are undone or redone.  Idle history then takes a
+     * fraction of the memory of live operations, without any file I/O.  States
+     * with an operation that has no codec are left as they are.
+     *
+     * <p>Compression and decoding happen on the owning thread, about one state
+     * each per change, so keep the depth large enough that undo and redo
+     * normally stay above it.  Operations are {@link UndoOperation#destroy()
+     * destroyed} when their state is compressed, and a state discarded while
+     * compressed is dropped without decoding it; copies decoded when it thaws
+     * are destroyed like any other operations.  Snapshots
+     * return freshly decoded copies of the operations of a compressed state.
+     * See {@link #getWarmTierStats()}.</p>
+     * @param depth Depth from which states are compressed, at least 1, or -1
+     * to decode every state and stop compressing.  The default is -1.
+     */
+    public void setWarmTierDepth(int depth) {
+        if (depth == 0 || depth < -1) {
+            throw new IllegalArgumentException("Bad warm tier depth " + depth);
+        }
+        if (mUpdateCount > 0 || mInUndo) {
+            throw new IllegalStateException("Can't be called during an update or undo/redo");
+        }
+        mWarmTier.setDepth(depth);
+        if (depth < 0) {
+            WarmTier.thawAll(mUndos);
+            WarmTier.thawAll(mRedos);
+        }
+        publishSnapshot();
+    }
+    public int getWarmTierDepth() {
+        return mWarmTier.getDepth();
+    }
+    /**
+     * Return how many states have been compressed and decoded so far, and how
+     * much they shrank.
+     */
+    public WarmTierStats getWarmTierStats() {
+        return mWarmTier.getStats();
+    }
+    /**
+     * Prepare the top undo state for undo and the top redo state for redo on
+     * <var>executor</var> whenever the stacks change, so that the next
+     * {@link #undo} or {@link #redo} only has to apply the results.  See
+     * {@link UndoOperation#prepareUndo()}.  Results are discarded as soon as the
+     * stacks change again.
+     * @param executor A background or idle-time executor, or null to stop
+     * preparing.
+     */
+    public void setPrepareExecutor(Executor executor) {
+        mPrepareExecutor = executor;
+        invalidatePrepared();
+        schedulePrepare();
+    }
+    /**
+     * Return the codecs used to save and restore the operations in this history.
+     * Register a codec for every operation class that can end up in the history.
+     */
+    public OperationCodecs getOperationCodecs() {
+        return mCodecs;
+    }
+    /**
+     * Flatten the current undo state into a byte array, which can later be restored
+     * with {@link #restoreState(byte[])}.
+     */
+    public byte[] saveState() {
+        if (mUpdateCount > 0) {
+            throw new IllegalStateException("Can't save state while updating");
+        }
+        final HistoryTraceRecorder recorder = mRecorder;
+        final long start = recorder != null ? System.nanoTime() : 0;
+        final HistoryTracer tracer = mTracer;
+        final boolean trace = tracer.isEnabled();
+        if (trace) {
+            tracer.beginSection(SECTION_SAVE);
+        }
+        try {
+            byte[] state = getHistorySnapshot().toByteArray();
+            if (recorder != null) {
+                recorder.recordSaveState(start, state.length);
+            }
+            return state;
+        } finally {
+            if (trace) {
+                tracer.endSection();
+            }
+        }
+    }
+    /**
+     * Restore an undo state previously created with {@link #saveState()}.  This will
+     * restore the history's state to almost exactly what it was at the point it had
+     * been previously saved; the only information not restored is the data object
+     * associated with each {@link UndoOperation}
+     */
+    public void restoreState(byte[] state) {
+        restoreState(new BinaryHistoryInput(state));
+    }
+    /**
+     * Restore an undo state previously written with {@link HistorySnapshot#writeTo}.
+     */
+    public void restoreState(HistoryInput in) {
+        if (mUpdateCount > 0) {
+            throw new IllegalStateException("Can't save state while updating");
+        }
+        if (mInUndo) {
+            throw new IllegalStateException("Can't be called during undo/redo");
+        }
+        final HistoryTracer tracer = mTracer;
+        final boolean trace = tracer.isEnabled();
+        if (trace) {
+            tracer.beginSection(SECTION_RESTORE);
+        }
+        try {
+            restoreStates(in);
+        } finally {
+            if (trace) {
+                tracer.endSection();
+            }
+        }
+    }
+    /**
+     * Restore an undo state from an image written by {@link HistorySnapshot#toImage()},
+     * decoding its operations with this history's codecs.  Operations shared
+     * between states in the image are shared again after the restore.
+     */
+    public void restoreState(HistoryImage image) {
+        if (mUpdateCount > 0) {
+            throw new IllegalStateException("Can't save state while updating");
+        }
+        if (mInUndo) {
+            throw new IllegalStateException("Can't be called during undo/redo");
+        }
+        final HistoryTracer tracer = mTracer;
+        final boolean trace = tracer.isEnabled();
+        if (trace) {
+            tracer.beginSection(SECTION_RESTORE);
+        }
+        try {
+            // Decode everything before dropping the current stacks, so a
+            // corrupt image leaves the history as it was.
+            HashMap<Integer, UndoOperation<?>> shared = new HashMap<>();
+            UndoState[] undos = new UndoState[image.countUndos()];
+            for (int i=0; i<undos.length; i++) {
+                undos[i] = readImageState(image.getUndoState(i), shared);
+            }
+            UndoState[] redos = new UndoState[image.countRedos()];
+            for (int i=0; i<redos.length; i++) {
+                redos[i] = readImageState(image.getRedoState(i), shared);
+            }
+            dropUndos(-1);
+            dropRedos(-1);
+            mHistorySize = image.getHistorySize();
+            for (int i=undos.length-1; i>=0; i--) {
+                mUndos = mUndos.push(undos[i]);
+            }
+            for (int i=redos.length-1; i>=0; i--) {
+                mRedos = mRedos.push(redos[i]);
+            }
+            if (mEvents != null) {
+                mEvents.historyReset();
+            }
+            publishSnapshot();
+        } finally {
+            if (trace) {
+                tracer.endSection();
+            }
+        }
+    }
+    private UndoState readImageState(HistoryImage.State state,
+            HashMap<Integer, UndoOperation<?>> shared) {
+        List<UndoOperation<?>> ops = state.readOperations(mCodecs, shared);
+        for (int i=ops.size()-1; i>=0; i--) {
+            ops.set(i, mInterner.intern(ops.get(i)));
+        }
+        return new UndoState(state, ops);
+    }
+    private void restoreStates(HistoryInput in) {
+        if (in.readInt() != HistorySnapshot.MAGIC) {
+            throw new IllegalArgumentException("Not a saved undo history");
+        }
+        int version = in.readInt();
+        if (version != HistorySnapshot.VERSION) {
+            throw new IllegalArgumentException("Unsupported saved history version " + version);
+        }
+        dropUndos(-1);
+        dropRedos(-1);
+        mHistorySize = in.readInt();
+        // States are written newest first; collect them so they can be pushed
+        // back oldest first.
+        ArrayList<UndoState> undos = new ArrayList<>();
+        ArrayList<UndoState> redos = new ArrayList<>();
+        ArrayList<UndoOperation<?>> shared = new ArrayList<>();
+        ArrayList<UndoLabel> labels = new ArrayList<>();
+        int stype;
+        while ((stype=in.readInt()) != 0) {
+            UndoState ustate = new UndoState(in, mCodecs, shared, labels, mInterner);
+            if (stype == 1) {
+                undos.add(ustate);
+            } else {
+                redos.add(ustate);
+            }
+        }
+        for (int i=undos.size()-1; i>=0; i--) {
+            mUndos = mUndos.push(undos.get(i));
+        }
+        for (int i=redos.size()-1; i>=0; i--) {
+            mRedos = mRedos.push(redos.get(i));
+        }
+        if (mEvents != null) {
+            mEvents.historyReset();
+        }
+        publishSnapshot();
+    }
+    /**
+     * Set the maximum number of undo states that will be retained.
+     */
+    public void setHistorySize(int size) {
+        mHistorySize = size;
+        if (mHistorySize >= 0 && countUndos() > mHistorySize) {
+            dropUndos(countUndos() - mHistorySize);
+        }
+        publishSnapshot();
+    }
+    /**
+     * Shed memory held by the history, for example when the system is low on
+     * memory.  Each level includes everything the lower levels do.  The history
+     * size is not changed, so the history grows again afterwards.  A sliced
+     * undo or redo in progress is cancelled first.
+     * @param level One of {@link #TRIM_REDOS}, {@link #TRIM_HALF_UNDOS},
+     * {@link #TRIM_PAYLOADS} or {@link #TRIM_TOP_ONLY}.
+     * @return Returns the number of states that were discarded.
+     */
+    public int trimHistory(int level) {
+        if (mUpdateCount > 0) {
+            throw new IllegalStateException("Can't trim while updating");
+        }
+        if (mSliced != null) {
+            mSliced.cancel();
+        }
+        if (mInUndo) {
+            throw new IllegalStateException("Can't be called during undo/redo");
+        }
+        int removed = 0;
+        if (level >= TRIM_REDOS) {
+            removed += dropRedos(-1);
+        }
+        if (level >= TRIM_TOP_ONLY) {
+            removed += dropUndos(Math.max(countUndos() - 1, 0));
+        } else if (level >= TRIM_HALF_UNDOS) {
+            removed += dropUndos(countUndos() / 2);
+        }
+        if (level >= TRIM_PAYLOADS) {
+            Iterator<UndoState> it = mUndos.iterator(1);
+            while (it.hasNext()) {
+                it.next().trimMemory();
+            }
+        }
+        publishSnapshot();
+        return removed;
+    }
+    /**
+     * Return the current maximum number of undo states.
+     */
+    public int getHistorySize() {
+        return mHistorySize;
+    }
+
+    /**
+     * Perform undo of last/top <var>count</var> undo states.  The states impacted
+     * by this can be limited through <var>owners</var>.
+     * @param count Number of undo states to pop.
+     * @return Returns the number of undo states that were actually popped.
+     */
+    public int undo(int count) {
+        if (mWorking != null) {
+            throw new IllegalStateException("Can't be called during an update");
+        }
+        if (mSliced != null) {
+            throw new IllegalStateException("Can't be called during a sliced undo/redo");
+        }
+        final HistoryTraceRecorder recorder = mRecorder;
+        final long start = recorder != null ? System.nanoTime() : 0;
+        final HistoryTracer tracer = mTracer;
+        final boolean trace = tracer.isEnabled();
+        if (trace) {
+            tracer.beginSection(SECTION_UNDO);
+        }
+        int num = 0;
+        mInUndo = true;
+        Speculation speculation = takeSpeculation();
+        // Results were prepared for the top state as it was published, before
+        // it is replaced by an executed copy below.
+        AtomicReferenceArray<Object> prepared = speculation != null
+                ? speculation.undoResultsFor(mUndos.peek()) : null;
+        try {
+            markTopUndoExecuted();
+            while (count > 0 && !mUndos.isEmpty()) {
+                UndoState state = mUndos.peek();
+                mUndos = mUndos.pop();
+                if (prepared != null) {
+                    // Only the first state can have been prepared.
+                    state.undo(trace ? tracer : null, parallelExecutorFor(state), prepared);
+                    prepared = null;
+                } else {
+                    state.undo(trace ? tracer : null, parallelExecutorFor(state), null);
+                }
+                mRedos = mRedos.push(state);
+                if (mEvents != null) {
+                    mEvents.stateMoved(state, false);
+                }
+                count--;
+                num++;
+            }
+        } finally {
+            mInUndo = false;
+            if (trace) {
+                tracer.endSection();
+            }
+        }
+        publishSnapshot();
+        if (recorder != null) {
+            recorder.recordUndo(start, count + num, num);
+        }
+        postWantedDrain();
+        return num;
+    }
+
+    /**
+     * Perform redo of last/top <var>count</var> undo states in the transient redo stack.
+     * The states impacted by this can be limited through <var>owners</var>.
+     * @param count Number of undo states to pop.
+     * @return Returns the number of undo states that were actually redone.
+     */
+    public int redo(int count) {
+        if (mWorking != null) {
+            throw new IllegalStateException("Can't be called during an update");
+        }
+        if (mSliced != null) {
+            throw new IllegalStateException("Can't be called during a sliced undo/redo");
+        }
+        final HistoryTraceRecorder recorder = mRecorder;
+        final long start = recorder != null ? System.nanoTime() : 0;
+        final HistoryTracer tracer = mTracer;
+        final boolean trace = tracer.isEnabled();
+        if (trace) {
+            tracer.beginSection(SECTION_REDO);
+        }
+        int num = 0;
+        mInUndo = true;
+        Speculation speculation = takeSpeculation();
+        try {
+            while (count > 0 && !mRedos.isEmpty()) {
+                UndoState state = mRedos.peek();
+                mRedos = mRedos.pop();
+                if (speculation != null) {
+                    // Only the first state can have been prepared.
+                    state.redo(trace ? tracer : null, parallelExecutorFor(state),
+                            speculation.redoResultsFor(state));
+                    speculation = null;
+                } else {
+                    state.redo(trace ? tracer : null, parallelExecutorFor(state), null);
+                }
+                mUndos = mUndos.push(state);
+                if (mEvents != null) {
+                    mEvents.stateMoved(state, true);
+                }
+                count--;
+                num++;
+            }
+        } finally {
+            mInUndo = false;
+            if (trace) {
+                tracer.endSection();
+            }
+        }
+        publishSnapshot();
+        if (recorder != null) {
+            recorder.recordRedo(start, count + num, num);
+        }
+        postWantedDrain();
+        return num;
+    }
+    /**
+     * Undo the top <var>count</var> undo states in time slices of about
+     * <var>budgetMillis</var>, continuing on <var>executor</var> between slices.
+     * The first slice runs before this returns.  See {@link SlicedUndo}.
+     * @param executor Runs the remaining slices on the thread that owns this history.
+     * @param callback Optional receiver of progress and completion.
+     * @return Returns the run, which can be used to cancel it.
+     */
+    public SlicedUndo undoSliced(int count, long budgetMillis, Executor executor,
+            SlicedUndo.Callback callback) {
+        return startSliced(false, count, budgetMillis, executor, callback);
+    }
+    /**
+     * Redo the top <var>count</var> redo states in time slices, like
+     * {@link #undoSliced}.
+     */
+    public SlicedUndo redoSliced(int count, long budgetMillis, Executor executor,
+            SlicedUndo.Callback callback) {
+        return startSliced(true, count, budgetMillis, executor, callback);
+    }
+    private SlicedUndo startSliced(boolean redo, int count, long budgetMillis,
+            Executor executor, SlicedUndo.Callback callback) {
+        if (mWorking != null) {
+            throw new IllegalStateException("Can't be called during an update");
+        }
+        if (mInUndo) {
+            throw new IllegalStateException("Can't be called during undo/redo");
+        }
+        if (!redo) {
+            markTopUndoExecuted();
+        }
+        int total = Math.max(0, Math.min(count, redo ? mRedos.size() : mUndos.size()));
+        SlicedUndo run = new SlicedUndo(this, redo, total, budgetMillis, executor, callback);
+        mSliced = run;
+        mInUndo = true;
+        run.runSlice();
+        return run;
+    }
+    UndoState topState(boolean redo) {
+        return redo ? mRedos.peek() : mUndos.peek();
+    }
+    /**
+     * Move the top state of the undo stack to the redo stack, or the other way
+     * around, once a sliced run has performed all of its operations.
+     */
+    void moveTopState(boolean redo) {
+        if (redo) {
+            UndoState state = mRedos.peek();
+            mRedos = mRedos.pop();
+            mUndos = mUndos.push(state);
+            if (mEvents != null) {
+                mEvents.stateMoved(state, true);
+            }
+        } else {
+            UndoState state = mUndos.peek();
+            mUndos = mUndos.pop();
+            mRedos = mRedos.push(state);
+            if (mEvents != null) {
+                mEvents.stateMoved(state, false);
+            }
+        }
+        publishSnapshot();
+    }
+    void endSliced(SlicedUndo run) {
+        if (mSliced == run) {
+            mSliced = null;
+            mInUndo = false;
+            schedulePrepare();
+            postWantedDrain();
+        }
+    }
+    long getPrepareGeneration() {
+        return mPrepareGeneration;
+    }
+    /**
+     * Stop the current speculation and forget its results.  Must be called
+     * before anything that changes the stacks or the document.
+     */
+    private void invalidatePrepared() {
+        mPrepareGeneration++;
+        mSpeculation = null;
+    }
+    private void schedulePrepare() {
+        final Executor executor = mPrepareExecutor;
+        if (executor == null || mUpdateCount > 0 || mSliced != null) {
+            return;
+        }
+        UndoState undo = mUndos.peek();
+        UndoState redo = mRedos.peek();
+        if (undo == null && redo == null) {
+            return;
+        }
+        Speculation speculation = new Speculation(this, mPrepareGeneration, undo, redo,
+                getActiveTracer());
+        mSpeculation = speculation;
+        executor.execute(speculation);
+    }
+    /**
+     * Return the current speculation and end its generation, so no more results
+     * are prepared while they are being applied.
+     */
+    private Speculation takeSpeculation() {
+        Speculation speculation = mSpeculation;
+        invalidatePrepared();
+        return speculation;
+    }
+    Clock getClock() {
+        return mClock;
+    }
+    HistoryTracer getActiveTracer() {
+        return mTracer.isEnabled() ? mTracer : null;
+    }
+    private Executor parallelExecutorFor(UndoState state) {
+        return state.countOperations() >= mParallelThreshold ? mParallelExecutor : null;
+    }
+    /**
+     * Returns true if we are currently inside of an undo/redo operation.  This is
+     * useful for editors to know whether they should be generating new undo state
+     * when they see edit operations happening.
+     */
+    public boolean isInUndo() {
+        return mInUndo;
+    }
+    /**
+     * Discard the <var>count</var> oldest undo states, or all of them if
+     * <var>count</var> is negative.
+     * @return Returns the number of undo states that were discarded.
+     */
+    public int forgetUndos(int count) {
+        int removed = dropUndos(count);
+        publishSnapshot();
+        return removed;
+    }
+    /**
+     * Discard the <var>count</var> redo states that are furthest from the top of the
+     * redo stack, or all of them if <var>count</var> is negative.
+     * @return Returns the number of redo states that were discarded.
+     */
+    public int forgetRedos(int count) {
+        int removed = dropRedos(count);
+        publishSnapshot();
+        return removed;
+    }
+    /**
+     * Compact the undo and redo states that are at least <var>keepDepth</var>
+     * positions from the top of their stack.  Those states can no longer be merged
+     * into, so within each of them operations without data are dropped and
+     * adjacent operations that {@link UndoOperation#cancels cancel} each other are
+     * removed; the removed operations are destroyed.  Runs of states are not
+     * collapsed into one: every state stays a separate undo step, so undoing or
+     * redoing that far behaves as before, and operations only cancel within a
+     * state.  States are only compacted once.  This is meant to be run when the
+     * owning thread is idle.
+     * @param keepDepth Number of states at the top of each stack to leave alone;
+     * the top state is always left alone.
+     * @return Returns the number of operations that were removed.
+     */
+    public int compactHistory(int keepDepth) {
+        if (mUpdateCount > 0 || mInUndo) {
+            throw new IllegalStateException("Can't compact while updating");
+        }
+        keepDepth = Math.max(keepDepth, 1);
+        final int before = countOperations(mUndos) + countOperations(mRedos);
+        final UndoState removed = new UndoState(-1);
+        HistoryStack<UndoState> undos = compactStates(mUndos, keepDepth, removed);
+        HistoryStack<UndoState> redos = compactStates(mRedos, keepDepth, removed);
+        if (undos == mUndos && redos == mRedos) {
+            return 0;
+        }
+        mUndos = undos;
+        mRedos = redos;
+        if (removed.hasOperation()) {
+            mDisposer.dispose(removed);
+        }
+        publishSnapshot();
+        return before - countOperations(mUndos) - countOperations(mRedos);
+    }
+    private static HistoryStack<UndoState> compactStates(HistoryStack<UndoState> states,
+            int keepDepth, UndoState removed) {
+        ArrayList<UndoState> compacted = null;
+        int depth = 0;
+        for (UndoState state : states) {
+            if (compacted == null && depth >= keepDepth && !state.isCompacted()
+                    && !state.isFrozen()) {
+                compacted = new ArrayList<>(states.size());
+                Iterator<UndoState> it = states.iterator();
+                for (int i=0; i<depth; i++) {
+                    compacted.add(it.next());
+                }
+            }
+            if (compacted != null) {
+                // Compressed states are left alone rather than decoded.
+                compacted.add(state.isCompacted() || state.isFrozen()
+                        ? state : state.compact(removed));
+            }
+            depth++;
+        }
+        // States are shared with snapshots, so the stack is rebuilt around new
+        // copies rather than modified in place.
+        return compacted != null ? HistoryStack.fromNewestFirst(compacted) : states;
+    }
+    private static int countOperations(HistoryStack<UndoState> states) {
+        int count = 0;
+        for (UndoState state : states) {
+            count += state.countOperations();
+        }
+        return count;
+    }
+    // Discarded states are copied out of the stack rather than left behind as
+    // a hidden tail, so nothing but a snapshot keeps them reachable once they
+    // are destroyed.  Only the states that are kept get copied, which the
+    // history size bounds, and discarding all of them is O(1).
+    private int dropUndos(int count) {
+        int removed = countForget(mUndos, count);
+        mDisposer.dispose(mUndos, mUndos.size() - removed, removed);
+        if (mEvents != null) {
+            mEvents.statesEvicted(mUndos, mUndos.size() - removed, removed, false);
+        }
+        mUndos = mUndos.releaseOldest(removed);
+        return removed;
+    }
+    private int dropRedos(int count) {
+        int removed = countForget(mRedos, count);
+        mDisposer.dispose(mRedos, mRedos.size() - removed, removed);
+        if (mEvents != null) {
+            mEvents.statesEvicted(mRedos, mRedos.size() - removed, removed, true);
+        }
+        mRedos = mRedos.releaseOldest(removed);
+        return removed;
+    }
+    private static int countForget(HistoryStack<UndoState> states, int count) {
+        return count < 0 ? states.size() : Math.min(count, states.size());
+    }
+    /**
+     * Return the number of undo states on the undo stack.
+     */
+    public int countUndos() {
+        return mUndos.size();
+    }
+    /**
+     * Return the number of redo states on the undo stack.
+     */
+    public int countRedos() {
+        return mRedos.size();
+    }
+    /**
+     * Return the user-visible label for the top undo state on the stack.
+     */
+    public CharSequence getUndoLabel() {
+        UndoState state = getTopUndo();
+        return state != null ? state.getLabel() : null;
+    }
+    /**
+     * Return the user-visible label for the top redo state on the stack.
+     */
+    public CharSequence getRedoLabel() {
+        UndoState state = getTopRedo();
+        return state != null ? state.getLabel() : null;
+    }
+    /**
+     * Start creating a new undo state.  Multiple calls to this function will nest until
+     * they are all matched by a later call to {@link #endUpdate}.
+     * @param label Optional user-visible label for this new undo state.  Pass an
+     * {@link UndoLabel} to have it formatted only when it is shown.
+     */
+    public void beginUpdate(CharSequence label) {
+        if (mInUndo) {
+            throw new IllegalStateException("Can't being update while performing undo/redo");
+        }
+        final HistoryTraceRecorder recorder = mRecorder;
+        final long start = recorder != null ? System.nanoTime() : 0;
+        if (mUpdateCount <= 0) {
+            // The document is about to change under any prepared results.
+            invalidatePrepared();
+            createWorkingState();
+            mMerged = false;
+            mUpdateCount = 0;
+        }
+        mWorking.updateLabel(label);
+        mUpdateCount++;
+        if (recorder != null) {
+            recorder.recordBeginUpdate(start, label);
+        }
+    }
+    private void createWorkingState() {
+        mWorking = new UndoState(mCommitId++);
+        mReopenedTop = null;
+        mSavepoints.clear();
+        mHandedOut.clear();
+        if (mCommitId < 0) {
+            mCommitId = 1;
+        }
+    }
+    /**
+     * Returns true if currently inside of a {@link #beginUpdate}.
+     */
+    public boolean isInUpdate() {
+        return mUpdateCount > 0;
+    }
+    /**
+     * Forcibly set a new for the new undo state being built within a {@link #beginUpdate}.
+     * Any existing label will be replaced with this one.
+     */
+    public void setUndoLabel(CharSequence label) {
+        if (mWorking == null) {
+            throw new IllegalStateException("Must be called during an update");
+        }
+        mWorking.setLabel(label);
+    }
+    /**
+     * Set a new for the new undo state being built within a {@link #beginUpdate}, but
+     * only if there is not a label currently set for it.
+     */
+    public void suggestUndoLabel(CharSequence label) {
+        if (mWorking == null) {
+            throw new IllegalStateException("Must be called during an update");
+        }
+        mWorking.updateLabel(label);
+    }
+    /**
+     * Return the number of times {@link #beginUpdate} has been called without a matching
+     * {@link #endUpdate} call.
+     */
+    public int getUpdateNestingLevel() {
+        return mUpdateCount;
+    }
+    /**
+     * Check whether there is an {@link UndoOperation} in the current {@link #beginUpdate}
+     * undo state.
+     * @return Returns true if there is a matching operation in the current undo state.
+     */
+    public boolean hasOperation() {
+        if (mWorking == null) {
+            throw new IllegalStateException("Must be called during an update");
+        }
+        return mWorking.hasOperation();
+    }
+    /**
+     * Return the most recent {@link UndoOperation} that was added to the update.
+     * @param mergeMode May be either {@link #MERGE_MODE_NONE} or {@link #MERGE_MODE_ANY}.
+     */
+    public UndoOperation<?> getLastOperation(int mergeMode) {
+        return getLastOperation(null, mergeMode);
+    }
+    /**
+     * Return the most recent {@link UndoOperation} that was added to the update and
+     * has the given owner.  The operation may be changed in place until the
+     * update ends.  If it comes from the undo state that was reopened to be
+     * merged into, it is first replaced by a copy made with
+     * {@link UndoOperation#copy()} or, failing that, its {@link OperationCodec},
+     * so snapshots that hold the state keep the operation as it was committed.
+     * @param clazz Optional class of the last operation to retrieve.  If null, the
+     * last operation regardless of class will be retrieved; if non-null, the last
+     * operation whose class is the same as the given class will be retrieved.
+     * @param mergeMode May be either {@link #MERGE_MODE_NONE}, {@link #MERGE_MODE_UNIQUE},
+     * or {@link #MERGE_MODE_ANY}.
+     */
+    public <T extends UndoOperation<?>> T getLastOperation(Class<T> clazz, int mergeMode) {
+        if (mWorking == null) {
+            throw new IllegalStateException("Must be called during an update");
+        }
+        if (mergeMode != MERGE_MODE_NONE && !mMerged && !mWorking.hasData()) {
+            UndoState state = getTopUndo();
+            UndoOperation<?> last;
+            if (state != null && isMergeAllowed(state, clazz, mergeMode)
+                    && state.canMerge() && (last=state.getLastOperation(clazz)) != null) {
+                if (last.allowMerge()) {
+                    reopenTopUndo();
+                }
+            }
+        }
+        T last = mWorking.getLastOperation(clazz);
+        if (last != null) {
+            final int index = mWorking.countOperations() - 1;
+            last = forkReopened(index, last);
+            handOut(index, last);
+        }
+        return last;
+    }
+    /**
+     * Replace the operation at <var>index</var> of the working state with a
+     * copy if it is still shared with the reopened state, and return what the
+     * working state holds there now.
+     * @throws IllegalStateException if the operation has to be copied and can't be.
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends UndoOperation<?>> T forkReopened(int index, T op) {
+        if (mReopenedTop == null || index >= mReopenedTop.countOperations()
+                || mReopenedTop.getOperation(index) != op) {
+            return op;
+        }
+        UndoOperation<?> copy = op.copy();
+        if (copy == null) {
+            byte[] data = saveOperation(op);
+            if (data != null) {
+                copy = mCodecs.read(new BinaryHistoryInput(data));
+            }
+        }
+        if (copy == null || copy.getClass() != op.getClass()) {
+            throw new IllegalStateException("Can't change " + op.getClass().getName()
+                    + " after it was committed without copy() or an OperationCodec");
+        }
+        mWorking.setOperation(index, copy);
+        return (T) copy;
+    }
+    /**
+     * Note that the operation at <var>index</var> of the working state was
+     * handed out to be changed in place, and save what it holds now for the
+     * savepoints it is older than, so rolling back can put it back.
+     */
+    private void handOut(int index, UndoOperation<?> op) {
+        if (!mHandedOut.contains(index)) {
+            mHandedOut.add(index);
+        }
+        byte[] data = null;
+        for (int i=mSavepoints.size()-1; i>=0; i--) {
+            data = mSavepoints.get(i).remember(index, op, data);
+        }
+    }
+    /**
+     * Return what <var>op</var> holds, saved with its codec, or null if it has
+     * none.
+     */
+    byte[] saveOperation(UndoOperation<?> op) {
+        if (!mCodecs.canWrite(op.getClass())) {
+            return null;
+        }
+        BinaryHistoryOutput out = new BinaryHistoryOutput(64);
+        try {
+            mCodecs.write(op, out);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+    public void addOperation(UndoOperation<?> op) {
+        addOperation(op, MERGE_MODE_NONE);
+    }
+    /**
+     * Add a new UndoOperation to the current update.
+     * @param op The new operation to add.
+     * @param mergeMode May be either {@link #MERGE_MODE_NONE}, {@link #MERGE_MODE_UNIQUE},
+     * or {@link #MERGE_MODE_ANY}.
+     */
+    public void addOperation(UndoOperation<?> op, int mergeMode) {
+        if (mWorking == null) {
+            throw new IllegalStateException("Must be called during an update");
+        }
+        final HistoryTraceRecorder recorder = mRecorder;
+        final long start = recorder != null ? System.nanoTime() : 0;
+        op = mInterner.intern(op);
+        if (mergeMode != MERGE_MODE_NONE && !mMerged && !mWorking.hasData()) {
+            UndoState state = getTopUndo();
+            if (state != null && isMergeAllowed(state, op.getClass(), mergeMode)
+                    && state.canMerge() && state.hasOperation()) {
+                reopenTopUndo();
+            }
+        }
+        mWorking.addOperation(op);
+        if (recorder != null) {
+            recorder.recordAddOperation(start, op, mergeMode, mCodecs);
+        }
+    }
+    private static boolean isMergeAllowed(UndoState state, Class<?> owner, int mergeMode) {
+        if (mergeMode == MERGE_MODE_ANY) {
+            return true;
+        }
+        return mergeMode == MERGE_MODE_UNIQUE && owner != null && state.containsOnly(owner);
+    }
+    /**
+     * Finish the creation of an undo state, matching a previous call to
+     * {@link #beginUpdate}.
+     */
+    public void endUpdate() {
+        if (mWorking == null) {
+            throw new IllegalStateException("Must be called during an update");
+        }
+        final HistoryTraceRecorder recorder = mRecorder;
+        final long start = recorder != null ? System.nanoTime() : 0;
+        mUpdateCount--;
+        if (mUpdateCount == 0) {
+            mSavepoints.clear();
+            final HistoryTracer tracer = mTracer;
+            final boolean trace = tracer.isEnabled();
+            if (trace) {
+                tracer.beginSection(SECTION_END_UPDATE);
+            }
+            try {
+                pushWorkingState();
+            } finally {
+                if (trace) {
+                    tracer.endSection();
+                }
+            }
+        }
+        if (recorder != null) {
+            recorder.recordEndUpdate(start);
+        }
+        if (mUpdateCount == 0) {
+            postWantedDrain();
+        }
+    }
+    /**
+     * Cancel the current update, unwinding every level of {@link #beginUpdate}.
+     * The operations added to it are undone, last one first, and discarded, and
+     * an undo state that was taken off the stack to be merged into is put back
+     * as it was.  Unlike ending the update and undoing it, this leaves the redo
+     * stack alone and never runs the undo of operations that were not part of
+     * the update.  Changes that {@link #commitState} already pushed during the
+     * update stay.
+     *
+     * <p>Operations of the reopened state that {@link #getLastOperation}
+     * returned and that were changed in place are put back too: the reopened
+     * state's operations from the first changed one up are undone, the changed
+     * ones are replaced by copies decoded from what they held when they were
+     * handed out, and those operations are redone.  This needs an
+     * {@link OperationCodec} for them; operations without one stay as they
+     * were changed.</p>
+     */
+    public void abortUpdate() {
+        if (mWorking == null) {
+            throw new IllegalStateException("Must be called during an update");
+        }
+        final HistoryTraceRecorder recorder = mRecorder;
+        final long start = recorder != null ? System.nanoTime() : 0;
+        final boolean reopened = mReopenedTop != null;
+        rollbackWorking(new Savepoint(0, null, false, false));
+        mDisposer.dispose(mWorking);
+        mWorking = null;
+        mUpdateCount = 0;
+        mSavepoints.clear();
+        if (reopened) {
+            publishSnapshot();
+        } else {
+            // Nothing was published during the update; just pick up where the
+            // speculation left off.
+            schedulePrepare();
+        }
+        if (recorder != null) {
+            recorder.recordAbortUpdate(start);
+        }
+        postWantedDrain();
+    }
+    /**
+     * Mark the current point of the update, so that what is added after it can
+     * be undone again with {@link #rollbackToSavepoint}.  Savepoints nest: each
+     * one is numbered one above the last, and they all last until they are
+     * released, rolled back past, or the update ends or is committed with
+     * {@link #commitState}.
+     * @return Returns the savepoint, for {@link #rollbackToSavepoint} and
+     * {@link #releaseSavepoint}.
+     */
+    public int createSavepoint() {
+        if (mWorking == null) {
+            throw new IllegalStateException("Must be called during an update");
+        }
+        final HistoryTraceRecorder recorder = mRecorder;
+        final long start = recorder != null ? System.nanoTime() : 0;
+        final int count = mWorking.countOperations();
+        Savepoint point = new Savepoint(count, mWorking.getLabel(), mMerged,
+                mReopenedTop != null);
+        // Operations handed out earlier may still be changed after this point.
+        for (int i=0; i<mHandedOut.size(); i++) {
+            final int index = mHandedOut.get(i);
+            if (index < count) {
+                point.remember(index, mWorking.getOperation(index), null);
+            }
+        }
+        mSavepoints.add(point);
+        final int savepoint = mSavepoints.size();
+        if (recorder != null) {
+            recorder.recordSavepoint(start, HistoryTraceReader.EVENT_CREATE_SAVEPOINT, savepoint);
+        }
+        return savepoint;
+    }
+    /**
+     * Undo and discard the operations added since <var>savepoint</var> was
+     * created, last one first, and restore the label the update had then.
+     * Older operations that {@link #getLastOperation} returned and that were
+     * changed in place since are put back, as {@link #abortUpdate} does.  If
+     * an undo state was taken off the stack to be merged into since, it is put
+     * back.  The stacks are otherwise left alone, and the update stays open.
+     * Savepoints created after this one are released; this one remains, so it
+     * can be rolled back to again.
+     */
+    public void rollbackToSavepoint(int savepoint) {
+        checkSavepoint(savepoint);
+        final HistoryTraceRecorder recorder = mRecorder;
+        final long start = recorder != null ? System.nanoTime() : 0;
+        final boolean reopened = mReopenedTop != null;
+        rollbackWorking(mSavepoints.get(savepoint - 1));
+        releaseSavepoints(savepoint);
+        if (reopened && mReopenedTop == null) {
+            publishSnapshot();
+        }
+        if (recorder != null) {
+            recorder.recordSavepoint(start, HistoryTraceReader.EVENT_ROLLBACK_TO_SAVEPOINT,
+                    savepoint);
+        }
+    }
+    /**
+     * Forget <var>savepoint</var> and the ones created after it, keeping what
+     * was added since.
+     */
+    public void releaseSavepoint(int savepoint) {
+        checkSavepoint(savepoint);
+        final HistoryTraceRecorder recorder = mRecorder;
+        final long start = recorder != null ? System.nanoTime() : 0;
+        releaseSavepoints(savepoint - 1);
+        if (recorder != null) {
+            recorder.recordSavepoint(start, HistoryTraceReader.EVENT_RELEASE_SAVEPOINT,
+                    savepoint);
+        }
+    }
+    /**
+     * Return the number of savepoints in the current update, which is also the
+     * most recently created one.
+     */
+    public int countSavepoints() {
+        return mSavepoints.size();
+    }
+    private void checkSavepoint(int savepoint) {
+        if (mWorking == null) {
+            throw new IllegalStateException("Must be called during an update");
+        }
+        if (savepoint < 1 || savepoint > mSavepoints.size()) {
+            throw new IllegalArgumentException("No savepoint " + savepoint + ", have "
+                    + mSavepoints.size());
+        }
+    }
+    private void releaseSavepoints(int keep) {
+        for (int i=mSavepoints.size()-1; i>=keep; i--) {
+            mSavepoints.remove(i);
+        }
+    }
+    /**
+     * Bring the working state back to <var>savepoint</var>.  Only the
+     * operations added since, and the older ones that were changed in place,
+     * are undone; if the top undo state was reopened after the savepoint, it
+     * goes back on the stack as it was and a fresh working state takes the
+     * copy's place.
+     */
+    private void rollbackWorking(Savepoint savepoint) {
+        final HistoryTracer tracer = mTracer;
+        final boolean trace = tracer.isEnabled();
+        if (trace) {
+            tracer.beginSection(SECTION_ROLLBACK);
+        }
+        try {
+            if (mReopenedTop != null && !savepoint.mReopened) {
+                // The operations the copy started out with belong to the
+                // reopened state, which never saw the ones added after them.
+                undoOperationsFrom(mReopenedTop.countOperations(), trace ? tracer : null);
+                restoreForked(trace ? tracer : null);
+                mUndos = mUndos.push(mReopenedTop);
+                mReopenedTop = null;
+                mHandedOut.clear();
+                // The state was only reopened while it had no data, and
+                // operations without data were dropped then.
+                mWorking = new UndoState(mUnopenedCommitId);
+            } else {
+                undoOperationsFrom(savepoint.mOperationCount, trace ? tracer : null);
+                restoreChanged(savepoint, trace ? tracer : null);
+            }
+            mWorking.setLabel(savepoint.mLabel);
+            mMerged = savepoint.mMerged;
+        } finally {
+            if (trace) {
+                tracer.endSection();
+            }
+        }
+    }
+    /**
+     * Undo the working state from its first operation that was copied by
+     * {@link #forkReopened} up, and redo the reopened state's own operations
+     * from there, so the document is back to what the reopened state left.
+     * The copies are destroyed.  The working state must hold exactly as many
+     * operations as the reopened state.
+     */
+    private void restoreForked(HistoryTracer tracer) {
+        final ArrayList<UndoOperation<?>> ops = mWorking.thaw();
+        final ArrayList<UndoOperation<?>> original = mReopenedTop.thaw();
+        int first = 0;
+        while (first < ops.size() && ops.get(first) == original.get(first)) {
+            first++;
+        }
+        if (first == ops.size()) {
+            return;
+        }
+        for (int i=ops.size()-1; i>=first; i--) {
+            UndoState.perform(ops.get(i), UndoState.ACTION_UNDO, tracer);
+        }
+        for (int i=first; i<original.size(); i++) {
+            UndoState.perform(original.get(i), UndoState.ACTION_REDO, tracer);
+        }
+        for (int i=first; i<ops.size(); i++) {
+            if (ops.get(i) != original.get(i)) {
+                ops.get(i).destroy();
+            }
+        }
+    }
+    /**
+     * Put back the operations of the working state that were changed in place
+     * since <var>savepoint</var> saved them.  Everything from the first changed
+     * operation up is undone, the changed ones are replaced by their saved
+     * copies, and it is all redone, so later operations apply on top of the
+     * restored ones again.  The working state must hold exactly the
+     * savepoint's operations.
+     * @return Returns true if any operation was replaced.
+     */
+    private boolean restoreChanged(Savepoint savepoint, HistoryTracer tracer) {
+        if (savepoint.mSaved == null) {
+            return false;
+        }
+        final ArrayList<UndoOperation<?>> ops = mWorking.thaw();
+        ArrayList<Integer> changed = null;
+        int first = ops.size();
+        for (Map.Entry<Integer, byte[]> entry : savepoint.mSaved.entrySet()) {
+            final int index = entry.getKey();
+            if (index < ops.size()
+                    && !Arrays.equals(entry.getValue(), saveOperation(ops.get(index)))) {
+                if (changed == null) {
+                    changed = new ArrayList<>();
+                }
+                changed.add(index);
+                first = Math.min(first, index);
+            }
+        }
+        if (changed == null) {
+            return false;
+        }
+        for (int i=ops.size()-1; i>=first; i--) {
+            UndoState.perform(ops.get(i), UndoState.ACTION_UNDO, tracer);
+        }
+        for (int i=0; i<changed.size(); i++) {
+            final int index = changed.get(i);
+            UndoOperation<?> saved = mCodecs.read(
+                    new BinaryHistoryInput(savepoint.mSaved.get(index)));
+            UndoOperation<?> replaced = ops.set(index, mInterner.intern(saved));
+            if (!replaced.isInternable()) {
+                // Handed out operations of a reopened state are copies, so
+                // this is never one the reopened state still holds.
+                replaced.destroy();
+            }
+        }
+        for (int i=first; i<ops.size(); i++) {
+            UndoState.perform(ops.get(i), UndoState.ACTION_REDO, tracer);
+        }
+        return true;
+    }
+    private void undoOperationsFrom(int count, HistoryTracer tracer) {
+        for (int i=mHandedOut.size()-1; i>=0; i--) {
+            if (mHandedOut.get(i) >= count) {
+                mHandedOut.remove(i);
+            }
+        }
+        List<UndoOperation<?>> removed = mWorking.removeOperationsFrom(count);
+        for (int i=removed.size()-1; i>=0; i--) {
+            UndoState.perform(removed.get(i), UndoState.ACTION_UNDO, tracer);
+        }
+        for (int i=removed.size()-1; i>=0; i--) {
+            UndoOperation<?> op = removed.get(i);
+            if (!op.isInternable()) {
+                op.destroy();
+            }
+        }
+    }
+    /**
+     * Queue a single operation, built on any thread, to be added to the undo stack by
+     * the owning thread.  When drained it behaves as if the owner had called
+     * {@link #beginUpdate}, added the operation with the given merge mode and
+     * called {@link #endUpdate}.  Submissions are drained in the order they were
+     * queued; {@link UndoOperation#commit} is called on the owning thread.
+     * @param label Optional user-visible label for the undo state.
+     * @param op The new operation to add.
+     * @param mergeMode May be either {@link #MERGE_MODE_NONE} or {@link #MERGE_MODE_ANY}.
+     */
+    public void submitOperation(CharSequence label, UndoOperation<?> op, int mergeMode) {
+        enqueuePending(new PendingUpdate(label, new UndoOperation<?>[] { op }, mergeMode));
+    }
+    /**
+     * Queue a whole undo state, built on any thread, to be pushed on the undo stack
+     * by the owning thread.  The state is never merged with the one before it.
+     * @param label Optional user-visible label for the undo state.
+     * @param ops The operations of the state, in the order they were performed.
+     */
+    public void submitState(CharSequence label, UndoOperation<?>... ops) {
+        enqueuePending(new PendingUpdate(label, ops.clone(), MERGE_MODE_NONE));
+    }
+    /**
+     * Set the executor on which queued submissions are drained.  It must run its
+     * tasks on the thread that owns this history, for example by posting to
+     * that thread's Handler.  If null, the owner has to call {@link #drainPending}
+     * itself.  Submissions that arrive during an update, an undo/redo or a
+     * sliced run are drained once it ends; nothing is posted in the meantime.
+     */
+    public void setPendingExecutor(Executor executor) {
+        mPendingExecutor = executor;
+        if (executor != null && !mPending.isEmpty()
+                && mDrainScheduled.compareAndSet(false, true)) {
+            executor.execute(mDrainRunnable);
+        }
+    }
+    /**
+     * Turn operations queued with {@link #submitOperation} and {@link #submitState}
+     * into undo states.  Must be called on the owning thread, outside of an update.
+     * @param maxStates Maximum number of submissions to drain, or -1 for all of them.
+     * @return Returns the number of submissions that were drained.
+     */
+    public int drainPending(int maxStates) {
+        if (mWorking != null || mInUndo) {
+            throw new IllegalStateException("Can't drain during an update or undo/redo");
+        }
+        // Clear the flag first so that a submission racing with this drain
+        // schedules another one instead of being left in the queue.
+        mDrainScheduled.set(false);
+        mDrainWanted = false;
+        int num = 0;
+        PendingUpdate pending;
+        while ((maxStates < 0 || num < maxStates) && (pending=mPending.poll()) != null) {
+            beginUpdate(pending.mLabel);
+            for (UndoOperation<?> op : pending.mOperations) {
+                addOperation(op, pending.mMergeMode);
+            }
+            endUpdate();
+            num++;
+        }
+        Executor executor = mPendingExecutor;
+        if (executor != null && !mPending.isEmpty()
+                && mDrainScheduled.compareAndSet(false, true)) {
+            executor.execute(mDrainRunnable);
+        }
+        return num;
+    }
+    /**
+     * Return true if there are submissions that have not been drained yet.  Must be
+     * called on the owning thread.
+     */
+    public boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+    /**
+     * Post the drain that was put off because the history was busy, now that it
+     * is free again.
+     */
+    private void postWantedDrain() {
+        if (!mDrainWanted) {
+            return;
+        }
+        mDrainWanted = false;
+        Executor executor = mPendingExecutor;
+        if (executor != null) {
+            executor.execute(mDrainRunnable);
+        } else {
+            // Let the next executor that is set schedule the drain.
+            mDrainScheduled.set(false);
+        }
+    }
+    private void enqueuePending(PendingUpdate pending) {
+        mPending.offer(pending);
+        Executor executor = mPendingExecutor;
+        if (executor != null && mDrainScheduled.compareAndSet(false, true)) {
+            executor.execute(mDrainRunnable);
+        }
+    }
+    /**
+     * Take the top undo state off the stack to continue building it as the working
+     * state.  The working state is a copy, so the published state stays unchanged
+     * for any snapshot that still holds it.
+     */
+    private void reopenTopUndo() {
+        UndoState state = mUndos.peek();
+        mUnopenedCommitId = mWorking.getCommitId();
+        mDisposer.dispose(mWorking);
+        mWorking = new UndoState(state);
+        mUndos = mUndos.pop();
+        mMerged = true;
+        mReopenedTop = state;
+        mHandedOut.clear();
+        publishSnapshot();
+    }
+    private void pushWorkingState() {
+        int N = mUndos.size() + 1;
+        if (mWorking.hasData()) {
+            UndoState prev = mUndos.peek();
+            mWorking.commit(mTracer.isEnabled() ? mTracer : null);
+            mWorking.setUpdateTime(mClock.uptimeMillis());
+            if (shouldAutoMerge(prev, mWorking)) {
+                UndoState merged = new UndoState(prev);
+                merged.append(mWorking);
+                mUndos = mUndos.pop().push(merged);
+                mWorking = null;
+                mReopenedTop = null;
+                if (mEvents != null) {
+                    mEvents.stateCommitted(merged, true);
+                }
+                publishSnapshot();
+                return;
+            }
+            if (prev != null && !prev.isExecuted()) {
+                // The state before this one can no longer be merged, ever.
+                // The only way to get back to it is for the user to perform
+                // an undo.  It may be in a snapshot, so a copy takes its place.
+                mUndos = mUndos.pop().push(prev.withExecuted());
+            }
+            mUndos = mUndos.push(mWorking);
+            if (mEvents != null) {
+                // A reopened state goes back in place of the one it copied.
+                mEvents.stateCommitted(mWorking, mReopenedTop != null);
+            }
+            dropRedos(-1);
+            disposeForked();
+        } else {
+            if (mReopenedTop != null && mEvents != null) {
+                // The state that was taken off the stack is gone.
+                mEvents.statesEvicted(HistoryStack.<UndoState>empty().push(mWorking), 0, 1,
+                        false);
+            }
+            disposeForked();
+            mDisposer.dispose(mWorking);
+        }
+        mWorking = null;
+        mReopenedTop = null;
+        if (mHistorySize >= 0 && N > mHistorySize) {
+            dropUndos(N - mHistorySize);
+        }
+        publishSnapshot();
+    }
+    /**
+     * Dispose of the reopened state's operations that the working state
+     * replaced with copies, now that the working state takes its place.
+     */
+    private void disposeForked() {
+        if (mReopenedTop == null) {
+            return;
+        }
+        final ArrayList<UndoOperation<?>> ops = mWorking.thaw();
+        final ArrayList<UndoOperation<?>> original = mReopenedTop.thaw();
+        UndoState replaced = null;
+        for (int i=Math.min(ops.size(), original.size())-1; i>=0; i--) {
+            if (ops.get(i) != original.get(i)) {
+                if (replaced == null) {
+                    replaced = new UndoState(mReopenedTop.getCommitId());
+                }
+                replaced.addOperation(original.get(i));
+            }
+        }
+        if (replaced != null) {
+            mDisposer.dispose(replaced);
+        }
+    }
+    private boolean shouldAutoMerge(UndoState top, UndoState update) {
+        if (mMergePolicy == null || mMerged || top == null || !top.canMerge()
+                || !update.canMerge()) {
+            return false;
+        }
+        UndoOperation<?> last = top.getLastOperation(null);
+        if (last == null || !last.allowMerge()) {
+            return false;
+        }
+        return mMergePolicy.shouldMerge(new HistorySnapshot.Entry(top),
+                new HistorySnapshot.Entry(update));
+    }
+    /**
+     * Commit the last finished undo state.  This undo state can no longer be
+     * modified with further {@link #MERGE_MODE_UNIQUE} or
+     * {@link #MERGE_MODE_ANY} merge modes.  If called while inside of an update,
+     * this will push any changes in the current update on to the undo stack
+     * and result with a fresh undo state, behaving as if {@link #endUpdate()}
+     * had been called enough to unwind the current update, then the last state
+     * committed, and {@link #beginUpdate} called to restore the update nesting.
+     * @return Returns an integer identifier for the committed undo state, which
+     * can later be used to try to uncommit the state to perform further edits on it.
+     */
+    public int commitState() {
+        final HistoryTraceRecorder recorder = mRecorder;
+        if (recorder == null) {
+            return commitWorkingOrTop();
+        }
+        final long start = System.nanoTime();
+        final int commitId = commitWorkingOrTop();
+        recorder.recordCommitState(start);
+        return commitId;
+    }
+    private int commitWorkingOrTop() {
+        if (mWorking != null && mWorking.hasData()) {
+            if (mWorking.hasOperation()) {
+                mWorking.setCanMerge(false);
+                int commitId = mWorking.getCommitId();
+                // Savepoints can't reach back into a state that was committed;
+                // creating the new working state forgets them.
+                pushWorkingState();
+                createWorkingState();
+                mMerged = true;
+                return commitId;
+            }
+        } else {
+            UndoState state = getTopUndo();
+            if (state != null) {
+                replaceTopUndo(state.withCanMerge(false));
+                return state.getCommitId();
+            }
+        }
+        return -1;
+    }
+    /**
+     * Attempt to undo a previous call to {@link #commitState}.  This will work
+     * if the undo state at the top of the stack has the given id, and has not been
+     * involved in an undo operation.  Otherwise false is returned.
+     * @param commitId The identifier for the state to be uncommitted, as returned
+     * by {@link #commitState}.
+     * @return Returns true if the uncommit is successful, else false.
+     */
+    public boolean uncommitState(int commitId) {
+        if (mWorking != null && mWorking.getCommitId() == commitId) {
+            if (mWorking.hasOperation()) {
+                return mWorking.setCanMerge(true);
+            }
+        } else {
+            UndoState state = getTopUndo();
+            if (state != null) {
+                if (state.getCommitId() == commitId) {
+                    if (state.isExecuted()) {
+                        // Don't allow re-enabling of merging once it was executed.
+                        return false;
+                    }
+                    replaceTopUndo(state.withCanMerge(true));
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    /**
+     * Put <var>state</var>, a copy of the top undo state with different flags,
+     * in place of it and publish the change.  Does nothing if it is the same.
+     */
+    private void replaceTopUndo(UndoState state) {
+        if (state == mUndos.peek()) {
+            return;
+        }
+        mUndos = mUndos.pop().push(state);
+        publishSnapshot();
+    }
+    /**
+     * Mark the top undo state as executed, which it is from its first undo on.
+     * It may be in a snapshot, so a copy takes its place.  The change is
+     * published along with the undo.
+     */
+    private void markTopUndoExecuted() {
+        UndoState state = mUndos.peek();
+        if (state != null && !state.isExecuted()) {
+            mUndos = mUndos.pop().push(state.withExecuted());
+        }
+    }
+    public boolean canUndo() {
+        return !mUndos.isEmpty();
+    }
+    public boolean canRedo() {
+        return !mRedos.isEmpty();
+    }
+    /**
+     * Return an immutable view of the current undo and redo stacks.  Taking the
+     * snapshot is O(1) and it may be iterated or serialized from any thread while
+     * the owning thread keeps editing; later changes are not reflected in it.
+     * Operations are shared with the live history, not copied; the history never
+     * changes a committed state or hands out its operations to be changed.
+     */
+    public HistorySnapshot getHistorySnapshot() {
+        HistorySnapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            snapshot = publishSnapshot();
+        }
+        return snapshot;
+    }
+    private HistorySnapshot publishSnapshot() {
+        mWarmTier.apply(mUndos);
+        mWarmTier.apply(mRedos);
+        HistorySnapshot snapshot = new HistorySnapshot(mUndos, mRedos, mHistorySize, ++mVersion,
+                mCodecs);
+        mSnapshot = snapshot;
+        invalidatePrepared();
+        schedulePrepare();
+        if (mUpdateCount == 0) {
+            for (OnHistoryChangedListener listener : mListeners) {
+                listener.onHistoryChanged(this, snapshot);
+            }
+        }
+        return snapshot;
+    }
+    /**
+     * Register a listener that is told about every change to the undo and redo
+     * stacks that is made outside of an update.
+     */
+    public void addOnHistoryChangedListener(OnHistoryChangedListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+    public void removeOnHistoryChangedListener(OnHistoryChangedListener listener) {
+        mListeners.remove(listener);
+    }
+    UndoState getTopUndo() {
+        return mUndos.peek();
+    }
+    UndoState getTopRedo() {
+        return mRedos.peek();
+    }
+
+    /**
+     * Source of the time used to stamp undo states.
+     */
+    public interface Clock {
+        /**
+         * Default clock, based on {@link System#nanoTime()} so that it is not affected
+         * by changes to the wall clock.
+         */
+        Clock SYSTEM = new Clock() {
+            @Override
+            public long uptimeMillis() {
+                return System.nanoTime() / 1000000;
+            }
+        };
+
+        /**
+         * Return monotonic time in milliseconds.
+         */
+        long uptimeMillis();
+    }
+
+    /**
+     * Interface definition for a callback to be invoked when the undo or redo
+     * stack changes.
+     */
+    public interface OnHistoryChangedListener {
+        /**
+         * Called on the owning thread after the history changed.
+         * @param snapshot The new history, which may be handed to other threads.
+         */
+        void onHistoryChanged(UndoHistory history, HistorySnapshot snapshot);
+    }
+
+    /**
+     * What the working state looked like when a savepoint was created.
+     */
+    private final class Savepoint {
+        final int mOperationCount;
+        final CharSequence mLabel;
+        final boolean mMerged;
+        final boolean mReopened;
+        // What the operations that were handed out held, by index; only those
+        // older than the savepoint are kept.
+        HashMap<Integer, byte[]> mSaved;
+
+        Savepoint(int operationCount, CharSequence label, boolean merged, boolean reopened) {
+            mOperationCount = operationCount;
+            mLabel = label;
+            mMerged = merged;
+            mReopened = reopened;
+        }
+
+        /**
+         * Save what the operation at <var>index</var> holds, unless it is newer
+         * than this savepoint or was saved already.  <var>data</var> is what it
+         * holds, if another savepoint saved it already.
+         * @return Returns what the operation holds, or null if it wasn't saved.
+         */
+        byte[] remember(int index, UndoOperation<?> op, byte[] data) {
+            if (index >= mOperationCount || (mSaved != null && mSaved.containsKey(index))) {
+                return data;
+            }
+            if (data == null) {
+                data = saveOperation(op);
+                if (data == null) {
+                    return null;
+                }
+            }
+            if (mSaved == null) {
+                mSaved = new HashMap<>();
+            }
+            mSaved.put(index, data);
+            return data;
+        }
+    }
+
+    static final class PendingUpdate {
+        final CharSequence mLabel;
+        final UndoOperation<?>[] mOperations;
+        final int mMergeMode;
+        PendingUpdate(CharSequence label, UndoOperation<?>[] ops, int mergeMode) {
+            mLabel = label;
+            mOperations = ops;
+            mMergeMode = mergeMode;
+        }
+    }
+
+    final static class UndoState {
+        // Markers written before each saved operation; non-negative values refer
+        // back to a shared operation that was already written.
+        static final int OP_INLINE = -1;
+        static final int OP_SHARED = -2;
+        // Markers written for the label; non-negative values refer back to an
+        // UndoLabel that was already written.
+        static final int LABEL_NONE = -1;
+        static final int LABEL_TEXT = -2;
+        static final int LABEL_NEW = -3;
+
+        static final int ACTION_COMMIT = 0;
+        static final int ACTION_UNDO = 1;
+        static final int ACTION_REDO = 2;
+        private final int mCommitId;
+        // Null while the state is compressed in the warm tier; mFrozen then
+        // holds the operations.  Set before mFrozen is cleared and cleared after
+        // it is set, so a reader on another thread always finds one of them.
+        private volatile ArrayList<UndoOperation<?>> mOperations
+                = new ArrayList<UndoOperation<?>>();
+        private volatile WarmTier.Frozen mFrozen;
+        private boolean mWarmSkipped;
+        private ArrayList<UndoOperation<?>> mRecent;
+        private CharSequence mLabel;
+        // Never changed once the state is published; a copy with other flags
+        // takes its place on the stack instead.
+        private boolean mCanMerge = true;
+        private boolean mExecuted;
+        private long mUpdateTime = -1;
+        private boolean mCompacted;
+        UndoState(int commitId) {
+            mCommitId = commitId;
+        }
+        /**
+         * Copy a committed state so it can be modified as the working state.
+         */
+        UndoState(UndoState other) {
+            mCommitId = other.mCommitId;
+            mOperations.addAll(other.thaw());
+            mLabel = other.mLabel;
+            mCanMerge = other.mCanMerge;
+            mExecuted = other.mExecuted;
+            mUpdateTime = other.mUpdateTime;
+        }
+        /**
+         * Fold a committed update into this state, which must be a working copy.
+         */
+        void append(UndoState update) {
+            mOperations.addAll(update.mOperations);
+            if (update.mLabel != null) {
+                mLabel = update.mLabel;
+            }
+            mUpdateTime = update.mUpdateTime;
+        }
+        /**
+         * Read a state written by {@link #writeTo}.  <var>shared</var> collects the
+         * internable operations in the order they were first written, so later
+         * references to them resolve to the same instance.  <var>labels</var>
+         * likewise collects the {@link UndoLabel}s.
+         */
+        UndoState(HistoryInput in, OperationCodecs codecs, List<UndoOperation<?>> shared,
+                List<UndoLabel> labels, OperationInterner interner) {
+            mCommitId = in.readInt();
+            mCanMerge = in.readInt() != 0;
+            mExecuted = in.readInt() != 0;
+            mLabel = readLabel(in, labels);
+            final int N = in.readInt();
+            for (int i=0; i<N; i++) {
+                final int ref = in.readInt();
+                UndoOperation<?> op;
+                if (ref >= 0) {
+                    op = shared.get(ref);
+                } else {
+                    op = codecs.read(in);
+                    if (ref == OP_SHARED && op instanceof OpaqueOperation) {
+                        // Keep unknown operations shared when they are saved again.
+                        ((OpaqueOperation) op).markShared();
+                    }
+                    op = interner.intern(op);
+                    if (ref == OP_SHARED) {
+                        shared.add(op);
+                    }
+                }
+                mOperations.add(op);
+            }
+        }
+        /**
+         * Read a state from an image; <var>operations</var> have already been
+         * decoded and interned.
+         */
+        UndoState(HistoryImage.State state, List<UndoOperation<?>> operations) {
+            mCommitId = state.getCommitId();
+            mCanMerge = state.canMerge();
+            mExecuted = state.isExecuted();
+            mLabel = state.getLabel();
+            mOperations.addAll(operations);
+        }
+        /**
+         * Write this state.  The first time an internable operation is seen in
+         * <var>shared</var> it is written in full and assigned the next index;
+         * after that only its index is written.  {@link UndoLabel}s are written
+         * the same way through <var>labels</var>.
+         */
+        void writeTo(HistoryOutput out, OperationCodecs codecs,
+                Map<UndoOperation<?>, Integer> shared, Map<UndoLabel, Integer> labels) {
+            if (mRecent != null) {
+                throw new IllegalStateException("Can't save state before committing");
+            }
+            out.writeInt(mCommitId);
+            out.writeInt(mCanMerge ? 1 : 0);
+            out.writeInt(mExecuted ? 1 : 0);
+            writeLabel(out, labels);
+            final List<UndoOperation<?>> ops = operations();
+            final int N = ops.size();
+            out.writeInt(N);
+            for (int i=0; i<N; i++) {
+                UndoOperation<?> op = ops.get(i);
+                if (!op.isInternable()) {
+                    out.writeInt(OP_INLINE);
+                    codecs.write(op, out);
+                    continue;
+                }
+                Integer ref = shared.get(op);
+                if (ref != null) {
+                    out.writeInt(ref);
+                } else {
+                    shared.put(op, shared.size());
+                    out.writeInt(OP_SHARED);
+                    codecs.write(op, out);
+                }
+            }
+        }
+        private void writeLabel(HistoryOutput out, Map<UndoLabel, Integer> labels) {
+            final CharSequence label = mLabel;
+            if (label == null) {
+                out.writeInt(LABEL_NONE);
+            } else if (label instanceof UndoLabel) {
+                // Saved as its id and arguments, and only once per history.
+                Integer ref = labels.get(label);
+                if (ref != null) {
+                    out.writeInt(ref);
+                } else {
+                    labels.put((UndoLabel) label, labels.size());
+                    out.writeInt(LABEL_NEW);
+                    ((UndoLabel) label).writeTo(out);
+                }
+            } else {
+                // Other labels are saved as plain text; spans are not preserved.
+                out.writeInt(LABEL_TEXT);
+                out.writeString(label.toString());
+            }
+        }
+        private static CharSequence readLabel(HistoryInput in, List<UndoLabel> labels) {
+            final int ref = in.readInt();
+            switch (ref) {
+                case LABEL_NONE:
+                    return null;
+                case LABEL_TEXT:
+                    return in.readString();
+                case LABEL_NEW:
+                    UndoLabel label = UndoLabel.read(in);
+                    labels.add(label);
+                    return label;
+                default:
+                    if (ref < 0 || ref >= labels.size()) {
+                        throw new IllegalArgumentException("Bad undo label reference " + ref);
+                    }
+                    return labels.get(ref);
+            }
+        }
+        int getCommitId() {
+            return mCommitId;
+        }
+        void setLabel(CharSequence label) {
+            mLabel = label;
+        }
+        void updateLabel(CharSequence label) {
+//            if (mLabel != null) {
+                mLabel = label;
+//            }
+        }
+        CharSequence getLabel() {
+            return mLabel;
+        }
+        /**
+         * Set whether this working state can be merged into.  Committed states
+         * are changed with {@link #withCanMerge} instead.
+         */
+        boolean setCanMerge(boolean state) {
+            // Don't allow re-enabling of merging if state has been executed.
+            if (state && mExecuted) {
+                return false;
+            }
+            mCanMerge = state;
+            return true;
+        }
+        /**
+         * Return this committed state if it already has the given merge flag,
+         * or else a copy of it that has.
+         */
+        UndoState withCanMerge(boolean canMerge) {
+            if (mCanMerge == canMerge) {
+                return this;
+            }
+            UndoState state = copyCommitted();
+            state.mCanMerge = canMerge;
+            return state;
+        }
+        /**
+         * Return this committed state if it is already marked executed, or
+         * else a copy of it that is.
+         */
+        UndoState withExecuted() {
+            if (mExecuted) {
+                return this;
+            }
+            UndoState state = copyCommitted();
+            state.mExecuted = true;
+            return state;
+        }
+        /**
+         * Copy this committed state, sharing its operations, compressed or not.
+         * Must be called on the owning thread.
+         */
+        private UndoState copyCommitted() {
+            UndoState state = new UndoState(mCommitId);
+            final ArrayList<UndoOperation<?>> ops = mOperations;
+            if (ops != null) {
+                state.mOperations.addAll(ops);
+            } else {
+                state.mFrozen = mFrozen;
+                state.mOperations = null;
+            }
+            state.mWarmSkipped = mWarmSkipped;
+            state.mLabel = mLabel;
+            state.mCanMerge = mCanMerge;
+            state.mExecuted = mExecuted;
+            state.mUpdateTime = mUpdateTime;
+            state.mCompacted = mCompacted;
+            return state;
+        }
+        boolean isExecuted() {
+            return mExecuted;
+        }
+        boolean isCommitted() {
+            return mRecent == null;
+        }
+        /**
+         * Return the state's flags as saved in a {@link HistoryImage}.
+         */
+        int getImageFlags() {
+            return (mCanMerge ? HistoryImage.STATE_CAN_MERGE : 0)
+                    | (mExecuted ? HistoryImage.STATE_EXECUTED : 0);
+        }
+        boolean canMerge() {
+            return mCanMerge && !mExecuted;
+        }
+        int countOperations() {
+            while (true) {
+                final ArrayList<UndoOperation<?>> ops = mOperations;
+                if (ops != null) {
+                    return ops.size();
+                }
+                final WarmTier.Frozen frozen = mFrozen;
+                if (frozen != null) {
+                    return frozen.mCount;
+                }
+            }
+        }
+        long getUpdateTime() {
+            return mUpdateTime;
+        }
+        void setUpdateTime(long time) {
+            mUpdateTime = time;
+        }
+        /**
+         * Return a copy of this committed state without operations that have no
+         * data or that cancel out, with its operations stored at their exact size.
+         * The operations left out are added to <var>removed</var>.
+         */
+        UndoState compact(UndoState removed) {
+            UndoState state = new UndoState(mCommitId);
+            state.mLabel = mLabel;
+            state.mCanMerge = mCanMerge;
+            state.mExecuted = mExecuted;
+            state.mUpdateTime = mUpdateTime;
+            final ArrayList<UndoOperation<?>> ops = state.mOperations;
+            final int N = mOperations.size();
+            ops.ensureCapacity(N);
+            for (int i=0; i<N; i++) {
+                UndoOperation<?> op = mOperations.get(i);
+                if (!op.hasData()) {
+                    removed.mOperations.add(op);
+                    continue;
+                }
+                final int last = ops.size() - 1;
+                if (last >= 0 && op.cancels(ops.get(last))) {
+                    removed.mOperations.add(ops.remove(last));
+                    removed.mOperations.add(op);
+                } else {
+                    ops.add(op);
+                }
+            }
+            ops.trimToSize();
+            state.mCompacted = true;
+            return state;
+        }
+        void trimMemory() {
+            final ArrayList<UndoOperation<?>> ops = mOperations;
+            if (ops == null) {
+                // Compressed; nothing left to release.
+                return;
+            }
+            for (int i=ops.size()-1; i>=0; i--) {
+                ops.get(i).trimMemory();
+            }
+        }
+        boolean isCompacted() {
+            return mCompacted;
+        }
+        boolean containsOnly(Class<?> clazz) {
+            final ArrayList<UndoOperation<?>> ops = thaw();
+            for (int i=ops.size()-1; i>=0; i--) {
+                if (ops.get(i).getClass() != clazz) {
+                    return false;
+                }
+            }
+            return !ops.isEmpty();
+        }
+        List<UndoOperation<?>> getOperations() {
+            return Collections.unmodifiableList(operations());
+        }
+        /**
+         * Return the operations from any thread.  For a compressed state they
+         * are a private copy, decoded on each call.
+         */
+        private List<UndoOperation<?>> operations() {
+            while (true) {
+                final ArrayList<UndoOperation<?>> ops = mOperations;
+                if (ops != null) {
+                    return ops;
+                }
+                final WarmTier.Frozen frozen = mFrozen;
+                if (frozen != null) {
+                    return frozen.mTier.inflate(frozen, false);
+                }
+            }
+        }
+        /**
+         * Return true if the operations are compressed in the warm tier.
+         */
+        boolean isFrozen() {
+            return mOperations == null;
+        }
+        /**
+         * Return the compressed operations, or null if the state is not
+         * compressed.
+         */
+        WarmTier.Frozen getFrozen() {
+            return mOperations == null ? mFrozen : null;
+        }
+        /**
+         * Compress the operations of this committed state into <var>tier</var>
+         * and destroy the live ones; thawing decodes fresh copies.  Must be
+         * called on the owning thread.  Returns false if the state was already
+         * compressed, so there is no need to look further down the stack.
+         */
+        boolean freeze(WarmTier tier) {
+            final ArrayList<UndoOperation<?>> ops = mOperations;
+            if (ops == null) {
+                return false;
+            }
+            if (mWarmSkipped) {
+                return true;
+            }
+            final WarmTier.Frozen frozen = tier.compress(ops);
+            if (frozen == null) {
+                // Some operation has no codec; keep the state as it is.
+                mWarmSkipped = true;
+                return true;
+            }
+            mFrozen = frozen;
+            mOperations = null;
+            destroyOperations(ops);
+            return true;
+        }
+        /**
+         * Decode the operations if the state is compressed, and return them.
+         * Must be called on the owning thread.
+         */
+        ArrayList<UndoOperation<?>> thaw() {
+            ArrayList<UndoOperation<?>> ops = mOperations;
+            if (ops == null) {
+                final WarmTier.Frozen frozen = mFrozen;
+                ops = frozen.mTier.inflate(frozen, true);
+                mOperations = ops;
+                mFrozen = null;
+            }
+            return ops;
+        }
+        boolean hasOperation() {
+            return countOperations() != 0;
+        }
+        void addOperation(UndoOperation<?> op) {
+            // Interned operations are expected to appear more than once.
+            if (!op.isInternable()) {
+                for (int i=mOperations.size()-1; i>=0; i--) {
+                    if (mOperations.get(i) == op) {
+                        throw new IllegalStateException("Already holds " + op);
+                    }
+                }
+            }
+            mOperations.add(op);
+            if (mRecent == null) {
+                mRecent = new ArrayList<>();
+                mRecent.add(op);
+            }
+        }
+        UndoOperation<?> getOperation(int index) {
+            return thaw().get(index);
+        }
+        /**
+         * Replace one operation of this working state.
+         */
+        void setOperation(int index, UndoOperation<?> op) {
+            thaw().set(index, op);
+        }
+        /**
+         * Replace the operations of this copy, which must not be published yet.
+         */
+        void replaceOperations(List<UndoOperation<?>> ops) {
+            final ArrayList<UndoOperation<?>> current = thaw();
+            current.clear();
+            current.addAll(ops);
+        }
+        /**
+         * Remove the operations after the first <var>count</var> from this
+         * working state and return them in the order they were added.
+         */
+        List<UndoOperation<?>> removeOperationsFrom(int count) {
+            final ArrayList<UndoOperation<?>> ops = mOperations;
+            if (count >= ops.size()) {
+                return Collections.emptyList();
+            }
+            List<UndoOperation<?>> tail = ops.subList(count, ops.size());
+            ArrayList<UndoOperation<?>> removed = new ArrayList<>(tail);
+            tail.clear();
+            if (mRecent != null) {
+                for (int i=removed.size()-1; i>=0; i--) {
+                    if (removed.get(i) == mRecent.get(0)) {
+                        mRecent = null;
+                        break;
+                    }
+                }
+            }
+            return removed;
+        }
+        @SuppressWarnings("unchecked")
+        <T extends UndoOperation<?>> T getLastOperation(Class<T> clazz) {
+            final ArrayList<UndoOperation<?>> ops = thaw();
+            final int N = ops.size();
+            if (clazz == null) {
+                return N > 0 ? (T)ops.get(N-1) : null;
+            }
+            // First look for the top-most operation with the same owner.
+            for (int i=N-1; i>=0; i--) {
+                UndoOperation<?> op = ops.get(i);
+                // Return this operation if it has the same class that the caller wants.
+                // Note that we don't search deeper for the class, because we don't want
+                // to end up with a different order of operations for the same owner.
+                if (clazz != null && op.getClass() != clazz) {
+                    return null;
+                }
+                return (T)op;
+            }
+            return null;
+        }
+        boolean hasData() {
+            final ArrayList<UndoOperation<?>> ops = thaw();
+            for (int i=ops.size()-1; i>=0; i--) {
+                if (ops.get(i).hasData()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        /**
+         * Commit the recently added operations.  If <var>tracer</var> is non-null,
+         * each operation is traced in a section named after its class; the same
+         * applies to {@link #undo} and {@link #redo}.
+         */
+        void commit(HistoryTracer tracer) {
+            final int N = mRecent != null ? mRecent.size() : 0;
+            for (int i=0; i<N; i++) {
+                perform(mRecent.get(i), ACTION_COMMIT, tracer);
+            }
+            mRecent = null;
+        }
+        /**
+         * Undo the operations of this state, last one first.  If <var>executor</var>
+         * is non-null, operations with different owners are undone in parallel
+         * on it.  <var>prepared</var> holds results of
+         * {@link UndoOperation#prepareUndo()} by operation index, or is null; a
+         * prepared state is applied sequentially, since applying is cheap.
+         */
+        void undo(HistoryTracer tracer, Executor executor,
+                AtomicReferenceArray<Object> prepared) {
+            final ArrayList<UndoOperation<?>> ops = thaw();
+            if (executor != null && prepared == null) {
+                OwnerGroups.run(ops, ACTION_UNDO, tracer, executor);
+                return;
+            }
+            for (int i=ops.size()-1; i>=0; i--) {
+                perform(ops.get(i), ACTION_UNDO, tracer,
+                        prepared != null ? prepared.get(i) : null);
+            }
+        }
+        void redo(HistoryTracer tracer, Executor executor,
+                AtomicReferenceArray<Object> prepared) {
+            final ArrayList<UndoOperation<?>> ops = thaw();
+            if (executor != null && prepared == null) {
+                OwnerGroups.run(ops, ACTION_REDO, tracer, executor);
+                return;
+            }
+            final int N = ops.size();
+            for (int i=0; i<N; i++) {
+                perform(ops.get(i), ACTION_REDO, tracer,
+                        prepared != null ? prepared.get(i) : null);
+            }
+        }
+        static void perform(UndoOperation<?> op, int action, HistoryTracer tracer) {
+            perform(op, action, tracer, null);
+        }
+        static void perform(UndoOperation<?> op, int action, HistoryTracer tracer,
+                Object prepared) {
+            if (tracer != null) {
+                tracer.beginSection(op.getClass().getName());
+            }
+            try {
+                switch (action) {
+                    case ACTION_COMMIT:
+                        op.commit();
+                        break;
+                    case ACTION_UNDO:
+                        if (prepared != null) {
+                            op.applyUndo(prepared);
+                        } else {
+                            op.undo();
+                        }
+                        break;
+                    default:
+                        if (prepared != null) {
+                            op.applyRedo(prepared);
+                        } else {
+                            op.redo();
+                        }
+                        break;
+                }
+            } finally {
+                if (tracer != null) {
+                    tracer.endSection();
+                }
+            }
+        }
+        /**
+         * Called once this state has been discarded.  Internable operations
+         * may be shared with other states, so only the others are destroyed.
+         */
+        void destroy() {
+            final ArrayList<UndoOperation<?>> ops = mOperations;
+            if (ops == null) {
+                // Compressed; its operations were destroyed when it was frozen.
+                return;
+            }
+            destroyOperations(ops);
+        }
+        private static void destroyOperations(List<UndoOperation<?>> ops) {
+            for (int i=ops.size()-1; i>=0; i--) {
+                UndoOperation<?> op = ops.get(i);
+                if (!op.isInternable()) {
+                    op.destroy();
+                }
+            }
+        }
+    }
+
+    /**
+     * A single undoable operation.  You must subclass this to implement the state
+     * and behavior for your operation.  Instances of this class are placed and
+     * managed in an {@link UndoHistory}.  To be saved with the history, an
+     * operation class needs an {@link OperationCodec} registered in
+     * {@link #getOperationCodecs()}.
+     *
+     * @hide
+     */
+    public static abstract class UndoOperation<DATA> {
+        protected UndoOperation() {
+        }
+        /**
+         * Return true if this operation actually contains modification data.  The
+         * default implementation always returns true.  If you return false, the
+         * operation will be dropped when the final undo state is being built.
+         */
+        public boolean hasData() {
+            return true;
+        }
+        /**
+         * Return true if this operation can be merged with a later operation.
+         * The default implementation always returns true.
+         */
+        public boolean allowMerge() {
+            return true;
+        }
+        /**
+         * Return true if this operation is an immutable value that may be shared
+         * between undo states.  Equal internable operations added to a history are
+         * replaced by a single canonical instance, and each is saved only once.
+         * The default implementation returns false.  If you return true you must
+         * also implement {@link #equals} and {@link #hashCode} over the operation's
+         * payload, and {@link #commit}, {@link #undo} and {@link #redo} must not
+         * modify the operation, since they may run on the same instance many times.
+         */
+        public boolean isInternable() {
+            return false;
+        }
+        /**
+         * Return true if this operation exactly reverses <var>previous</var>, the
+         * operation added just before it in the same undo state, so that undoing
+         * or redoing the pair has no effect and both can be dropped when old
+         * states are compacted.  The default implementation returns false.
+         */
+        public boolean cancels(UndoOperation<?> previous) {
+            return false;
+        }
+        /**
+         * Return a new operation with the same payload as this one, which
+         * can be changed without affecting it, or null to have the copy made
+         * through the operation's {@link OperationCodec}.  It is used when
+         * {@link UndoHistory#getLastOperation} hands out an operation of a
+         * committed undo state to be changed in place, since snapshots may
+         * still hold the original.  An operation that is merged into that way
+         * needs either this or a codec.  The default implementation returns
+         * null.
+         */
+        public UndoOperation<DATA> copy() {
+            return null;
+        }
+        /**
+         * Return the number of bytes of heap this operation holds on to, for
+         * {@link HistoryHeapReport}, or -1 to have it estimated from the
+         * operation's fields.  Override this if the operation refers to large
+         * platform objects, such as bitmaps, whose size can't be seen that way.
+         * The default implementation returns -1.
+         */
+        public long estimateRetainedSize() {
+            return -1;
+        }
+        /**
+         * Called when the history is trimmed at {@link UndoHistory#TRIM_PAYLOADS}
+         * or above while this operation is below the top undo state.  Release
+         * memory that can be recreated when the operation is undone or redone,
+         * for example by dropping caches or spilling large data to disk.  The
+         * operation must still be able to undo and redo afterwards.  The default
+         * implementation does nothing.
+         */
+        public void trimMemory() {
+        }
+        /**
+         * Return the object this operation modifies, such as the sticker it moves,
+         * or null.  When the history has an executor set with
+         * {@link UndoHistory#setParallelUndo}, operations of one undo state with
+         * different owner keys may be undone and redone at the same time on
+         * different threads, while operations with the same key always run in
+         * order.  Only return a key if {@link #undo} and {@link #redo} are safe to
+         * call off the owning thread and touch nothing that operations with other
+         * keys touch.  Operations without a key run alone, after everything
+         * before them has finished.  The default implementation returns null.
+         */
+        public Object getOwnerKey() {
+            return null;
+        }
+        /**
+         * Compute ahead of time what {@link #undo} will need, while this
+         * operation is in the top undo state and the history has an executor set
+         * with {@link UndoHistory#setPrepareExecutor}.  If the next action is an
+         * undo, the result is passed to {@link #applyUndo} instead of calling
+         * {@link #undo}; it is thrown away if the stacks change first.
+         *
+         * <p>This runs on the prepare executor while the owning thread carries
+         * on, so it must not modify the operation or the document, and it must
+         * only depend on data that other operations of its undo state do not
+         * change.  Return null if there is nothing to prepare; an exception
+         * leaves the operation to be undone the normal way.  The default
+         * implementation returns null.</p>
+         */
+        public Object prepareUndo() {
+            return null;
+        }
+        /**
+         * Like {@link #prepareUndo()}, for {@link #redo} while this operation is
+         * in the top redo state.  The default implementation returns null.
+         */
+        public Object prepareRedo() {
+            return null;
+        }
+        /**
+         * Undo using the non-null result of {@link #prepareUndo()}.  The default
+         * implementation ignores it and calls {@link #undo}.
+         */
+        public void applyUndo(Object prepared) {
+            undo();
+        }
+        /**
+         * Redo using the non-null result of {@link #prepareRedo()}.  The default
+         * implementation ignores it and calls {@link #redo}.
+         */
+        public void applyRedo(Object prepared) {
+            redo();
+        }
+        /**
+         * Called once the undo state holding this operation has been discarded
+         * from the history, after which it is never undone or redone again.
+         * Release what only undo and redo need, such as cached bitmaps.  This
+         * may run on the executor set with {@link UndoHistory#setDisposeExecutor},
+         * and a snapshot taken earlier may still save the operation afterwards,
+         * so keep whatever its codec writes.  It is not called for internable
+         * operations, which may still be shared.  The default implementation
+         * does nothing.
+         */
+        public void destroy() {
+        }
+        /**
+         * Called when this undo state is being committed to the undo stack.
+         * The implementation should perform the initial edits and save any state that
+         * may be needed to undo them.
+         */
+        public abstract void commit();
+        /**
+         * Called when this undo state is being popped off the undo stack (in to
+         * the temporary redo stack).  The implementation should remove the original
+         * edits and thus restore the target object to its prior value.
+         */
+        public abstract void undo();
+        /**
+         * Called when this undo state is being pushed back from the transient
+         * redo stack to the main undo stack.  The implementation should re-apply
+         * the edits that were previously removed by {@link #undo}.
+         */
+        public abstract void redo();
+    }
+}
\ No newline at end of file
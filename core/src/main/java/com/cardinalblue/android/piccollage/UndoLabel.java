@@ -0,0 +1,209 @@
+package com.cardinalblue.android.piccollage;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Label of an undo state given as a format id and up to two integer arguments,
+ * for example a string resource and the number it shows, instead of as text.
+ * Pass it wherever the history takes a label.  The text is only produced when
+ * the label is read as a {@link CharSequence}, typically once the label returned
+ * by {@link UndoHistory#getUndoLabel()} is shown, by the {@link Formatter} set
+ * with {@link #setFormatter}.  Saved histories keep just the id and arguments.
+ *
+ * <p>Labels are interned: {@link #of} returns the same instance for the same id
+ * and arguments most of the time, so labelling an edit allocates nothing and
+ * each distinct label is formatted once.  Compare labels with
+ * {@link #equals}, not by identity.</p>
+ *
+ * <p>Ids are saved as they are, so they must mean the same for as long as saved
+ * histories are kept.  Android resource ids only do within one build of an app,
+ * which is enough for saved instance state; histories kept across updates need
+ * ids of their own that the formatter maps to resources.</p>
+ */
+public final class UndoLabel implements CharSequence {
+    /**
+     * Produces the text of labels.
+     */
+    public interface Formatter {
+        /**
+         * Return the text of <var>label</var>.  May be called on any thread.
+         */
+        CharSequence format(UndoLabel label);
+    }
+
+    private static final int CACHE_SIZE = 256;
+    private static final AtomicReferenceArray<UndoLabel> sCache
+            = new AtomicReferenceArray<>(CACHE_SIZE);
+    private static volatile Formatter sFormatter;
+
+    private final int mId;
+    private final int mArgCount;
+    private final long mArg0;
+    private final long mArg1;
+    private volatile Resolved mResolved;
+
+    private UndoLabel(int id, int argCount, long arg0, long arg1) {
+        mId = id;
+        mArgCount = argCount;
+        mArg0 = arg0;
+        mArg1 = arg1;
+    }
+
+    /**
+     * Set the formatter that produces the text of all labels, or null to show
+     * them as their id and arguments.  Labels that were already formatted are
+     * formatted again by the new formatter, so set a new one when the locale
+     * changes.
+     */
+    public static void setFormatter(Formatter formatter) {
+        sFormatter = formatter;
+    }
+
+    public static Formatter getFormatter() {
+        return sFormatter;
+    }
+
+    public static UndoLabel of(int id) {
+        return intern(id, 0, 0, 0);
+    }
+
+    public static UndoLabel of(int id, long arg) {
+        return intern(id, 1, arg, 0);
+    }
+
+    public static UndoLabel of(int id, long arg0, long arg1) {
+        return intern(id, 2, arg0, arg1);
+    }
+
+    static UndoLabel intern(int id, int argCount, long arg0, long arg1) {
+        final int slot = hash(id, argCount, arg0, arg1) & (CACHE_SIZE - 1);
+        UndoLabel label = sCache.get(slot);
+        if (label != null && label.matches(id, argCount, arg0, arg1)) {
+            return label;
+        }
+        // A different label in the slot is simply replaced; interning only
+        // needs to catch the labels that are used over and over.
+        label = new UndoLabel(id, argCount, arg0, arg1);
+        sCache.set(slot, label);
+        return label;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * Return the number of arguments, from 0 to 2.
+     */
+    public int getArgCount() {
+        return mArgCount;
+    }
+
+    public long getArg(int index) {
+        if (index < 0 || index >= mArgCount) {
+            throw new IndexOutOfBoundsException("index " + index + ", count " + mArgCount);
+        }
+        return index == 0 ? mArg0 : mArg1;
+    }
+
+    /**
+     * Write the id and arguments; {@link #read} reads them back.
+     */
+    void writeTo(HistoryOutput out) {
+        out.writeInt(mId);
+        out.writeInt(mArgCount);
+        for (int i=0; i<mArgCount; i++) {
+            out.writeLong(getArg(i));
+        }
+    }
+
+    static UndoLabel read(HistoryInput in) {
+        final int id = in.readInt();
+        final int argCount = in.readInt();
+        if (argCount < 0 || argCount > 2) {
+            throw new IllegalArgumentException("Bad undo label argument count " + argCount);
+        }
+        final long arg0 = argCount > 0 ? in.readLong() : 0;
+        final long arg1 = argCount > 1 ? in.readLong() : 0;
+        return intern(id, argCount, arg0, arg1);
+    }
+
+    @Override
+    public int length() {
+        return toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    /**
+     * Return the text of the label, formatting it if it hasn't been yet.
+     */
+    @Override
+    public String toString() {
+        final Formatter formatter = sFormatter;
+        Resolved resolved = mResolved;
+        if (resolved == null || resolved.mFormatter != formatter) {
+            String text;
+            if (formatter != null) {
+                CharSequence formatted = formatter.format(this);
+                text = formatted != null ? formatted.toString() : "";
+            } else {
+                StringBuilder sb = new StringBuilder("#").append(Integer.toHexString(mId));
+                for (int i=0; i<mArgCount; i++) {
+                    sb.append(i == 0 ? '(' : ',').append(getArg(i));
+                }
+                text = mArgCount > 0 ? sb.append(')').toString() : sb.toString();
+            }
+            resolved = new Resolved(formatter, text);
+            mResolved = resolved;
+        }
+        return resolved.mText;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof UndoLabel)) {
+            return false;
+        }
+        UndoLabel other = (UndoLabel) o;
+        return other.matches(mId, mArgCount, mArg0, mArg1);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash(mId, mArgCount, mArg0, mArg1);
+    }
+
+    private boolean matches(int id, int argCount, long arg0, long arg1) {
+        return mId == id && mArgCount == argCount && mArg0 == arg0 && mArg1 == arg1;
+    }
+
+    private static int hash(int id, int argCount, long arg0, long arg1) {
+        long h = id * 31L + argCount;
+        h = h * 31 + arg0;
+        h = h * 31 + arg1;
+        h ^= h >>> 32;
+        return (int) (h ^ (h >>> 16));
+    }
+
+    /**
+     * Text of a label and the formatter that produced it.
+     */
+    private static final class Resolved {
+        final Formatter mFormatter;
+        final String mText;
+
+        Resolved(Formatter formatter, String text) {
+            mFormatter = formatter;
+            mText = text;
+        }
+    }
+}
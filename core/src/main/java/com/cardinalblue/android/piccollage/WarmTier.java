@@ -0,0 +1,182 @@
+package com.cardinalblue.android.piccollage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps the undo states that are deep in a history's stacks compressed on the
+ * heap instead of as live operations.  See {@link UndoHistory#setWarmTierDepth}.
+ *
+ * <p>A state is compressed in place: its operations are saved with their codecs,
+ * deflated and dropped, and decoded again when the state is undone or redone or
+ * comes back within the depth.  Snapshots that are read on other threads decode
+ * a private copy of the operations instead, leaving the state compressed.</p>
+ */
+final class WarmTier {
+    private final OperationCodecs mCodecs;
+    private final OperationInterner mInterner;
+    // Only used on the owning thread.
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private final BinaryHistoryOutput mScratch = new BinaryHistoryOutput(1024);
+    private byte[] mBuffer = new byte[1024];
+    private int mDepth = -1;
+
+    private final AtomicLong mCompressions = new AtomicLong();
+    private final AtomicLong mInflations = new AtomicLong();
+    private final AtomicLong mThaws = new AtomicLong();
+    private final AtomicLong mRawBytes = new AtomicLong();
+    private final AtomicLong mCompressedBytes = new AtomicLong();
+
+    /**
+     * The operations of a compressed state.
+     */
+    static final class Frozen {
+        final WarmTier mTier;
+        final byte[] mData;
+        final int mRawSize;
+        final int mCount;
+
+        Frozen(WarmTier tier, byte[] data, int rawSize, int count) {
+            mTier = tier;
+            mData = data;
+            mRawSize = rawSize;
+            mCount = count;
+        }
+    }
+
+    WarmTier(OperationCodecs codecs, OperationInterner interner) {
+        mCodecs = codecs;
+        mInterner = interner;
+    }
+
+    void setDepth(int depth) {
+        mDepth = depth;
+    }
+
+    int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * Bring <var>states</var> in line with the depth: states above it are
+     * decoded and the ones at or below it compressed.  Everything below the
+     * depth already is compressed, except for the states that just moved there
+     * and the ones that can't be compressed, so only those are visited.
+     */
+    void apply(HistoryStack<UndoHistory.UndoState> states) {
+        final int depth = mDepth;
+        if (depth < 0) {
+            return;
+        }
+        Iterator<UndoHistory.UndoState> it = states.iterator();
+        for (int i=0; i<depth && it.hasNext(); i++) {
+            it.next().thaw();
+        }
+        while (it.hasNext()) {
+            if (!it.next().freeze(this)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Decode every compressed state in <var>states</var>.
+     */
+    static void thawAll(HistoryStack<UndoHistory.UndoState> states) {
+        for (UndoHistory.UndoState state : states) {
+            state.thaw();
+        }
+    }
+
+    /**
+     * Compress <var>ops</var>, or return null if one of them can't be saved.
+     */
+    Frozen compress(List<UndoHistory.UndoOperation<?>> ops) {
+        final int N = ops.size();
+        for (int i=0; i<N; i++) {
+            if (!mCodecs.canWrite(ops.get(i).getClass())) {
+                return null;
+            }
+        }
+        final BinaryHistoryOutput out = mScratch;
+        out.reset();
+        out.writeInt(N);
+        try {
+            for (int i=0; i<N; i++) {
+                mCodecs.write(ops.get(i), out);
+            }
+        } catch (RuntimeException e) {
+            // Left as it is; saving the history will report the problem.
+            return null;
+        }
+        final int rawSize = out.size();
+        final Deflater deflater = mDeflater;
+        deflater.reset();
+        deflater.setInput(out.buffer(), 0, rawSize);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+            }
+            size += deflater.deflate(mBuffer, size, mBuffer.length - size);
+        }
+        mCompressions.incrementAndGet();
+        mRawBytes.addAndGet(rawSize);
+        mCompressedBytes.addAndGet(size);
+        // Don't hold on to a buffer sized for one unusually large state.
+        if (mBuffer.length > 256 * 1024) {
+            mBuffer = new byte[1024];
+        }
+        return new Frozen(this, Arrays.copyOf(mBuffer, size), rawSize, N);
+    }
+
+    /**
+     * Decode the operations of <var>frozen</var>.  With <var>intern</var>, which
+     * is only allowed on the owning thread, internable operations are shared
+     * with the rest of the history again; that is for a state that is being
+     * decoded for good rather than for a look at its operations.
+     */
+    ArrayList<UndoHistory.UndoOperation<?>> inflate(Frozen frozen, boolean intern) {
+        byte[] raw = new byte[frozen.mRawSize];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(frozen.mData);
+            int size = 0;
+            while (size < raw.length) {
+                final int n = inflater.inflate(raw, size, raw.length - size);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("Compressed undo state is truncated");
+                }
+                size += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed undo state is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        BinaryHistoryInput in = new BinaryHistoryInput(raw);
+        final int N = in.readInt();
+        ArrayList<UndoHistory.UndoOperation<?>> ops = new ArrayList<>(N);
+        for (int i=0; i<N; i++) {
+            UndoHistory.UndoOperation<?> op = mCodecs.read(in);
+            ops.add(intern ? mInterner.intern(op) : op);
+        }
+        if (intern) {
+            mThaws.incrementAndGet();
+        }
+        mInflations.incrementAndGet();
+        return ops;
+    }
+
+    WarmTierStats getStats() {
+        return new WarmTierStats(mCompressions.get(), mInflations.get(), mThaws.get(),
+                mRawBytes.get(), mCompressedBytes.get());
+    }
+}
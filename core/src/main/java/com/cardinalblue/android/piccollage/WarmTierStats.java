@@ -0,0 +1,68 @@
+package com.cardinalblue.android.piccollage;
+
+/**
+ * Counters of the compressed tier of an {@link UndoHistory}, as returned by
+ * {@link UndoHistory#getWarmTierStats()}.  All counts are totals since the
+ * history was created.
+ */
+public final class WarmTierStats {
+    private final long mCompressions;
+    private final long mInflations;
+    private final long mThaws;
+    private final long mRawBytes;
+    private final long mCompressedBytes;
+
+    WarmTierStats(long compressions, long inflations, long thaws, long rawBytes,
+            long compressedBytes) {
+        mCompressions = compressions;
+        mInflations = inflations;
+        mThaws = thaws;
+        mRawBytes = rawBytes;
+        mCompressedBytes = compressedBytes;
+    }
+
+    /**
+     * Return the number of times a state was compressed.
+     */
+    public long getCompressions() {
+        return mCompressions;
+    }
+
+    /**
+     * Return the number of times the operations of a compressed state were
+     * decoded, whether for good or to read them through a snapshot.
+     */
+    public long getInflations() {
+        return mInflations;
+    }
+
+    /**
+     * Return the number of times a compressed state was decoded for good,
+     * because it was undone or redone or came back above the depth.
+     */
+    public long getThaws() {
+        return mThaws;
+    }
+
+    /**
+     * Return the number of bytes the compressed states took as saved
+     * operations, before compression.
+     */
+    public long getRawBytes() {
+        return mRawBytes;
+    }
+
+    /**
+     * Return the number of bytes the compressed states took after compression.
+     */
+    public long getCompressedBytes() {
+        return mCompressedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "WarmTierStats{compressions=" + mCompressions + ", inflations=" + mInflations
+                + ", thaws=" + mThaws + ", raw=" + mRawBytes + ", compressed="
+                + mCompressedBytes + "}";
+    }
+}
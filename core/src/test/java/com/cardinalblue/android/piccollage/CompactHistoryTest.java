@@ -0,0 +1,130 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompactHistoryTest {
+    private UndoHistory mHistory;
+    private int mValue;
+    private final List<Add> mDestroyed = new ArrayList<>();
+
+    class Add extends UndoHistory.UndoOperation<Void> {
+        final int mAmount;
+
+        Add(int amount) {
+            mAmount = amount;
+        }
+
+        @Override
+        public boolean hasData() {
+            return mAmount != 0;
+        }
+
+        @Override
+        public boolean cancels(UndoHistory.UndoOperation<?> previous) {
+            return previous instanceof Add && ((Add) previous).mAmount == -mAmount;
+        }
+
+        @Override
+        public void destroy() {
+            mDestroyed.add(this);
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+            mValue -= mAmount;
+        }
+
+        @Override
+        public void redo() {
+            mValue += mAmount;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.setHistorySize(-1);
+    }
+
+    private void add(int... amounts) {
+        mHistory.beginUpdate("add");
+        for (int amount : amounts) {
+            mValue += amount;
+            mHistory.addOperation(new Add(amount));
+        }
+        mHistory.endUpdate();
+    }
+
+    private int operationsAt(HistorySnapshot snapshot, int depth) {
+        return snapshot.getUndoEntries(depth, 1).get(0).countOperations();
+    }
+
+    @Test
+    public void compactHistory_dropsNoOpsAndCancellingPairs() {
+        add(1, 5, -5, 2);
+        add(0, 3, 0);
+        add(4);
+        assertEquals(4, mHistory.compactHistory(1));
+        HistorySnapshot snapshot = mHistory.getHistorySnapshot();
+        assertEquals(1, operationsAt(snapshot, 0));
+        assertEquals(1, operationsAt(snapshot, 1));
+        assertEquals(2, operationsAt(snapshot, 2));
+        assertEquals(4, mDestroyed.size());
+    }
+
+    @Test
+    public void compactHistory_keepsEveryUndoStep() {
+        add(1, 2, -2);
+        add(10, 0);
+        add(100, -100, 100);
+        add(1000);
+        assertEquals(1111, mValue);
+        mHistory.compactHistory(1);
+        assertEquals(4, mHistory.countUndos());
+        int[] expected = { 111, 11, 1, 0 };
+        for (int value : expected) {
+            mHistory.undo(1);
+            assertEquals(value, mValue);
+        }
+        mHistory.redo(4);
+        assertEquals(1111, mValue);
+    }
+
+    @Test
+    public void compactHistory_leavesTheTopStatesAndEarlierSnapshotsAlone() {
+        add(1, -1, 1);
+        add(2, -2, 2);
+        add(3, -3, 3);
+        HistorySnapshot before = mHistory.getHistorySnapshot();
+        assertEquals(2, mHistory.compactHistory(2));
+        HistorySnapshot after = mHistory.getHistorySnapshot();
+        assertEquals(3, operationsAt(after, 0));
+        assertEquals(3, operationsAt(after, 1));
+        assertEquals(1, operationsAt(after, 2));
+        assertEquals(3, operationsAt(before, 2));
+        // States are only compacted once.
+        assertEquals(0, mHistory.compactHistory(2));
+    }
+
+    @Test
+    public void compactHistory_compactsRedosToo() {
+        add(1, -1, 1);
+        add(2, -2, 2);
+        add(3);
+        mHistory.undo(3);
+        assertEquals(0, mValue);
+        assertEquals(2, mHistory.compactHistory(1));
+        mHistory.redo(3);
+        assertEquals(6, mValue);
+    }
+}
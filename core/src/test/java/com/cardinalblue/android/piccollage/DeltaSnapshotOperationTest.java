@@ -0,0 +1,199 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DeltaSnapshotOperationTest {
+    private byte[] mDocument;
+    private UndoHistory mHistory;
+
+    class Edit extends DeltaSnapshotOperation {
+        Edit(Chain chain, byte[] after) {
+            super(chain, after);
+        }
+
+        Edit(HistoryInput in) {
+            super(in);
+        }
+
+        @Override
+        protected byte[] readSnapshot() {
+            return mDocument.clone();
+        }
+
+        @Override
+        protected void applySnapshot(byte[] snapshot) {
+            mDocument = snapshot.clone();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.setHistorySize(-1);
+        mHistory.getOperationCodecs().register(Edit.class, new OperationCodec<Edit>() {
+            @Override
+            public void write(Edit op, HistoryOutput out) {
+                op.writeDelta(out);
+            }
+
+            @Override
+            public Edit read(HistoryInput in) {
+                return new Edit(in);
+            }
+        });
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    private static void assertRoundTrip(byte[] before, byte[] after) {
+        byte[] delta = DeltaSnapshotOperation.encodeDelta(before, after);
+        assertArrayEquals(after, DeltaSnapshotOperation.applyDelta(before, delta, after.length));
+        assertArrayEquals(before, DeltaSnapshotOperation.applyDelta(after, delta, before.length));
+    }
+
+    private void edit(DeltaSnapshotOperation.Chain chain, byte[] after) {
+        mHistory.beginUpdate("edit");
+        mHistory.addOperation(new Edit(chain, after));
+        mDocument = after.clone();
+        mHistory.endUpdate();
+    }
+
+    @Test
+    public void encodeDelta_roundTripsEqualLengths() {
+        assertRoundTrip(bytes(1, 2, 3, 4, 5, 6), bytes(1, 9, 3, 4, 0, 6));
+        // A lone unchanged byte stays inside one literal.
+        byte[] delta = DeltaSnapshotOperation.encodeDelta(bytes(0, 0, 0, 0), bytes(0, 1, 0, 1));
+        assertArrayEquals(bytes(1, 3, 1, 0, 1), delta);
+    }
+
+    @Test
+    public void encodeDelta_roundTripsGrowingAndShrinking() {
+        byte[] small = bytes(1, 2, 3);
+        byte[] large = new byte[300];
+        Arrays.fill(large, (byte) 7);
+        large[0] = 1;
+        assertRoundTrip(small, large);
+        assertRoundTrip(large, small);
+        assertRoundTrip(new byte[0], large);
+        assertRoundTrip(large, new byte[0]);
+    }
+
+    @Test
+    public void encodeDelta_isEmptyForIdenticalSnapshots() {
+        byte[] data = bytes(4, 5, 6);
+        assertEquals(0, DeltaSnapshotOperation.encodeDelta(data, data.clone()).length);
+        // Trailing zeros are not encoded either.
+        assertEquals(0, DeltaSnapshotOperation.encodeDelta(data, bytes(4, 5, 6, 0, 0)).length);
+    }
+
+    @Test
+    public void hasData_isFalseOnlyWhenNothingChanged() {
+        DeltaSnapshotOperation.Chain chain = new DeltaSnapshotOperation.Chain(bytes(4, 5, 6), 10);
+        assertFalse(new Edit(chain, bytes(4, 5, 6)).hasData());
+        // Only the length differs, which undo still has to restore.
+        assertTrue(new Edit(chain, bytes(4, 5, 6, 0)).hasData());
+        assertTrue(new Edit(chain, bytes(4, 5, 7, 0)).hasData());
+    }
+
+    @Test
+    public void chain_rebasesEveryInterval() {
+        mDocument = bytes(0);
+        DeltaSnapshotOperation.Chain chain = new DeltaSnapshotOperation.Chain(mDocument, 3);
+        boolean[] bases = new boolean[7];
+        for (int i = 0; i < bases.length; i++) {
+            bases[i] = new Edit(chain, bytes(i + 1)).isBase();
+        }
+        assertTrue(Arrays.equals(new boolean[] {
+                false, false, true, false, false, true, false }, bases));
+        chain.reset(bytes(9));
+        assertFalse(new Edit(chain, bytes(10)).isBase());
+    }
+
+    @Test
+    public void undoAndRedo_reconstructEverySnapshot() {
+        byte[][] versions = {
+                bytes(1, 2, 3),
+                bytes(1, 2, 3, 4, 5),
+                bytes(1, 0, 3, 4, 5),
+                bytes(8),
+                bytes(8, 8, 8, 8, 8, 8),
+                bytes(),
+                bytes(2, 2),
+        };
+        mDocument = versions[0].clone();
+        DeltaSnapshotOperation.Chain chain = new DeltaSnapshotOperation.Chain(mDocument, 2);
+        for (int i = 1; i < versions.length; i++) {
+            edit(chain, versions[i]);
+        }
+        for (int i = versions.length - 2; i >= 0; i--) {
+            mHistory.undo(1);
+            assertArrayEquals(versions[i], mDocument);
+        }
+        for (int i = 1; i < versions.length; i++) {
+            mHistory.redo(1);
+            assertArrayEquals(versions[i], mDocument);
+        }
+        // The chain followed along, so new edits encode against the right state.
+        mHistory.undo(2);
+        edit(chain, bytes(3, 3, 3));
+        mHistory.undo(1);
+        assertArrayEquals(versions[4], mDocument);
+        mHistory.redo(1);
+        assertArrayEquals(bytes(3, 3, 3), mDocument);
+    }
+
+    @Test
+    public void restoredOperations_workWithoutTheirChain() {
+        byte[][] versions = {
+                bytes(1),
+                bytes(1, 2),
+                bytes(1, 2, 3),
+                bytes(5, 2, 3),
+                bytes(5),
+        };
+        mDocument = versions[0].clone();
+        DeltaSnapshotOperation.Chain chain = new DeltaSnapshotOperation.Chain(mDocument, 3);
+        for (int i = 1; i < versions.length; i++) {
+            edit(chain, versions[i]);
+        }
+        mHistory.undo(1);
+        byte[] saved = mHistory.saveState();
+
+        UndoHistory restored = new UndoHistory();
+        restored.setHistorySize(-1);
+        restored.getOperationCodecs().register(Edit.class, new OperationCodec<Edit>() {
+            @Override
+            public void write(Edit op, HistoryOutput out) {
+                op.writeDelta(out);
+            }
+
+            @Override
+            public Edit read(HistoryInput in) {
+                return new Edit(in);
+            }
+        });
+        restored.restoreState(saved);
+        assertEquals(3, restored.countUndos());
+        // The base snapshot survived the round trip.
+        assertTrue(((Edit) restored.getHistorySnapshot().getUndoEntries(0, 1).get(0)
+                .getOperations().get(0)).isBase());
+
+        for (int i = versions.length - 3; i >= 0; i--) {
+            restored.undo(1);
+            assertArrayEquals(versions[i], mDocument);
+        }
+        restored.redo(versions.length - 1);
+        assertArrayEquals(versions[versions.length - 1], mDocument);
+    }
+}
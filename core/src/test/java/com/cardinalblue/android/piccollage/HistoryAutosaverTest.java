@@ -0,0 +1,165 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class HistoryAutosaverTest {
+    private static final long MAX_DELAY = 1000;
+
+    private final CountDownLatch mEncoding = new CountDownLatch(1);
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    // Set to have the next encode wait for mRelease.
+    private final AtomicBoolean mBlockNext = new AtomicBoolean();
+    private final List<byte[]> mWrites = new ArrayList<>();
+    private volatile long mNow;
+    private ScheduledExecutorService mExecutor;
+    private UndoHistory mHistory;
+    private HistoryAutosaver mAutosaver;
+
+    static class Value extends UndoHistory.UndoOperation<Void> {
+        final int mValue;
+
+        Value(int value) {
+            mValue = value;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mHistory = new UndoHistory();
+        mHistory.setClock(new UndoHistory.Clock() {
+            @Override
+            public long uptimeMillis() {
+                return mNow;
+            }
+        });
+        mHistory.getOperationCodecs().register(Value.class, new OperationCodec<Value>() {
+            @Override
+            public void write(Value op, HistoryOutput out) {
+                if (mBlockNext.compareAndSet(true, false)) {
+                    mEncoding.countDown();
+                    try {
+                        mRelease.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                out.writeInt(op.mValue);
+            }
+
+            @Override
+            public Value read(HistoryInput in) {
+                return new Value(in.readInt());
+            }
+        });
+        mAutosaver = new HistoryAutosaver(mHistory, mExecutor, 0, MAX_DELAY,
+                new HistoryAutosaver.Sink() {
+                    @Override
+                    public void write(byte[] data) {
+                        synchronized (mWrites) {
+                            mWrites.add(data);
+                        }
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mAutosaver.stop();
+        mExecutor.shutdownNow();
+        mExecutor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private void add(int value) {
+        mHistory.beginUpdate("v" + value);
+        mHistory.addOperation(new Value(value));
+        mHistory.endUpdate();
+    }
+
+    /**
+     * Wait until every save that was scheduled so far has run.
+     */
+    private void idle() throws Exception {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(10, TimeUnit.SECONDS);
+    }
+
+    private List<byte[]> writes() {
+        synchronized (mWrites) {
+            return new ArrayList<>(mWrites);
+        }
+    }
+
+    @Test
+    public void save_writesTheLatestHistory() throws Exception {
+        add(1);
+        idle();
+        add(2);
+        idle();
+        List<byte[]> writes = writes();
+        assertEquals(2, writes.size());
+        assertArrayEquals(mHistory.saveState(), writes.get(1));
+        // Nothing changed, so a flush has nothing to write.
+        mAutosaver.flush();
+        idle();
+        assertEquals(2, writes().size());
+    }
+
+    @Test
+    public void save_skipsASnapshotSupersededWhileEncoding() throws Exception {
+        mBlockNext.set(true);
+        add(1);
+        assertTrue(mEncoding.await(10, TimeUnit.SECONDS));
+        add(2);
+        mRelease.countDown();
+        idle();
+        idle();
+        List<byte[]> writes = writes();
+        assertEquals(1, writes.size());
+        assertArrayEquals(mHistory.saveState(), writes.get(0));
+    }
+
+    @Test
+    public void save_writesASupersededSnapshotOnceChangesWaitedTooLong() throws Exception {
+        mBlockNext.set(true);
+        add(1);
+        HistorySnapshot first = mHistory.getHistorySnapshot();
+        assertTrue(mEncoding.await(10, TimeUnit.SECONDS));
+        add(2);
+        mNow += MAX_DELAY;
+        mRelease.countDown();
+        idle();
+        idle();
+        List<byte[]> writes = writes();
+        assertEquals(2, writes.size());
+        assertArrayEquals(first.toByteArray(), writes.get(0));
+        assertArrayEquals(mHistory.saveState(), writes.get(1));
+    }
+}
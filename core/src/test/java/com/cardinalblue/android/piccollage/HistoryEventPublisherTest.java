@@ -0,0 +1,291 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class HistoryEventPublisherTest {
+    private static final int MAX_BUFFERED = 4;
+
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+    };
+    private int mWrites;
+    private UndoHistory mHistory;
+    private HistoryEventPublisher mPublisher;
+
+    static class Text extends UndoHistory.UndoOperation<Void> {
+        String mText;
+
+        Text(String text) {
+            mText = text;
+        }
+
+        @Override
+        public Text copy() {
+            return new Text(mText);
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    static class Recorder implements HistoryEventPublisher.Subscriber {
+        final long mInitialRequest;
+        final List<HistoryEventPublisher.Batch> mBatches = new ArrayList<>();
+        HistoryEventPublisher.Subscription mSubscription;
+        boolean mCompleted;
+        Throwable mError;
+
+        Recorder(long initialRequest) {
+            mInitialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(HistoryEventPublisher.Subscription subscription) {
+            mSubscription = subscription;
+            if (mInitialRequest > 0) {
+                subscription.request(mInitialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(HistoryEventPublisher.Batch batch) {
+            mBatches.add(batch);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            mError = error;
+        }
+
+        @Override
+        public void onComplete() {
+            mCompleted = true;
+        }
+
+        /**
+         * Return the batches as "R<sequence>" for a resync and one letter per
+         * event type otherwise, separated by '|'.
+         */
+        String summary() {
+            StringBuilder sb = new StringBuilder();
+            for (HistoryEventPublisher.Batch batch : mBatches) {
+                if (batch.isResync()) {
+                    sb.append('R').append(batch.getSequence());
+                } else {
+                    for (HistoryEventPublisher.Event event : batch.getEvents()) {
+                        sb.append("CAURE".charAt(event.getType() - 1));
+                    }
+                }
+                sb.append('|');
+            }
+            return sb.toString();
+        }
+
+        HistoryEventPublisher.Batch last() {
+            return mBatches.get(mBatches.size() - 1);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.setHistorySize(-1);
+        mHistory.getOperationCodecs().register(Text.class, new OperationCodec<Text>() {
+            @Override
+            public void write(Text op, HistoryOutput out) {
+                mWrites++;
+                out.writeString(op.mText);
+            }
+
+            @Override
+            public Text read(HistoryInput in) {
+                return new Text(in.readString());
+            }
+        });
+        mPublisher = new HistoryEventPublisher(mHistory, mExecutor, MAX_BUFFERED);
+    }
+
+    private void deliver() {
+        Runnable task;
+        while ((task = mQueue.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void commit(String text) {
+        mHistory.beginUpdate(text);
+        mHistory.addOperation(new Text(text));
+        mHistory.endUpdate();
+    }
+
+    private Recorder subscribe(long initialRequest) {
+        Recorder recorder = new Recorder(initialRequest);
+        mPublisher.subscribe(recorder);
+        deliver();
+        return recorder;
+    }
+
+    @Test
+    public void subscribe_startsWithAResync() {
+        commit("a");
+        Recorder recorder = subscribe(Long.MAX_VALUE);
+        assertEquals("R1|", recorder.summary());
+        assertEquals(1, recorder.last().getSnapshot().countUndos());
+        commit("b");
+        mHistory.undo(1);
+        deliver();
+        assertEquals("R1|CU|", recorder.summary());
+        long sequence = 1;
+        for (HistoryEventPublisher.Event event : recorder.last().getEvents()) {
+            assertEquals(++sequence, event.getSequence());
+        }
+    }
+
+    @Test
+    public void slowSubscriber_isResyncedInsteadOfBuffered() {
+        Recorder fast = subscribe(Long.MAX_VALUE);
+        Recorder slow = subscribe(1);
+        for (int i = 0; i <= MAX_BUFFERED; i++) {
+            commit("s" + i);
+            deliver();
+        }
+        assertEquals("R0|C|C|C|C|C|", fast.summary());
+        assertEquals("R0|", slow.summary());
+
+        slow.mSubscription.request(1);
+        deliver();
+        // Everything it missed comes as one snapshot of the whole history.
+        assertEquals("R0|R5|", slow.summary());
+        assertEquals(MAX_BUFFERED + 1, slow.last().getSnapshot().countUndos());
+
+        slow.mSubscription.request(Long.MAX_VALUE);
+        mHistory.undo(1);
+        deliver();
+        assertEquals("R0|R5|U|", slow.summary());
+        assertEquals(6, slow.last().getSequence());
+        assertEquals("R0|C|C|C|C|C|U|", fast.summary());
+    }
+
+    @Test
+    public void slowSubscriber_withinTheBufferGetsEveryEvent() {
+        Recorder slow = subscribe(1);
+        for (int i = 0; i < MAX_BUFFERED; i++) {
+            commit("s" + i);
+        }
+        deliver();
+        slow.mSubscription.request(1);
+        deliver();
+        assertEquals("R0|CCCC|", slow.summary());
+    }
+
+    @Test
+    public void restoreState_resyncsEverySubscriber() {
+        commit("a");
+        commit("b");
+        byte[] saved = mHistory.saveState();
+        Recorder recorder = subscribe(Long.MAX_VALUE);
+        mHistory.restoreState(saved);
+        deliver();
+        assertEquals("R2|R2|", recorder.summary());
+        assertEquals(2, recorder.last().getSnapshot().countUndos());
+    }
+
+    @Test
+    public void payload_holdsTheOperationsAsCommitted() {
+        Recorder recorder = subscribe(Long.MAX_VALUE);
+        commit("first");
+        mHistory.beginUpdate("drag");
+        Text text = mHistory.getLastOperation(Text.class, UndoHistory.MERGE_MODE_ANY);
+        text.mText = "changed";
+        mHistory.endUpdate();
+        deliver();
+        assertEquals("R0|CA|", recorder.summary());
+        List<HistoryEventPublisher.Event> events = recorder.last().getEvents();
+        assertEquals("first", readText(events.get(0)));
+        assertEquals("changed", readText(events.get(1)));
+        assertEquals(events.get(0).getCommitId(), events.get(1).getCommitId());
+    }
+
+    @Test
+    public void payload_isOnlyEncodedWhenAsked() {
+        Recorder recorder = subscribe(Long.MAX_VALUE);
+        commit("first");
+        mHistory.beginUpdate("drag");
+        mHistory.getLastOperation(Text.class, UndoHistory.MERGE_MODE_ANY).mText = "changed";
+        mHistory.endUpdate();
+        deliver();
+        // Reopening the state to merge into it encoded nothing on the owning
+        // thread; the copy that was changed came from copy().
+        assertEquals(0, mWrites);
+        HistoryEventPublisher.Event event = recorder.last().getEvents().get(0);
+        assertEquals("first", readText(event));
+        assertEquals(1, mWrites);
+        event.getPayload();
+        assertEquals(1, mWrites);
+    }
+
+    private String readText(HistoryEventPublisher.Event event) {
+        return ((Text) HistoryEventPublisher.readOperations(event.getPayload(),
+                mHistory.getOperationCodecs()).get(0)).mText;
+    }
+
+    @Test
+    public void evictions_reportTheDiscardedCommits() {
+        Recorder recorder = subscribe(Long.MAX_VALUE);
+        commit("a");
+        commit("b");
+        commit("c");
+        mHistory.setHistorySize(2);
+        deliver();
+        assertEquals("R0|CCCE|", recorder.summary());
+        HistoryEventPublisher.Event eviction = recorder.last().getEvents().get(3);
+        assertEquals(1, eviction.getEvictedCount());
+        assertFalse(eviction.isRedoStack());
+        assertEquals(recorder.last().getEvents().get(0).getCommitId(),
+                eviction.getEvictedCommitIds()[0]);
+        assertNull(eviction.getPayload());
+    }
+
+    @Test
+    public void stop_completesAfterDeliveringWhatWasQueued() {
+        Recorder recorder = subscribe(Long.MAX_VALUE);
+        commit("a");
+        mPublisher.stop();
+        deliver();
+        assertEquals("R0|C|", recorder.summary());
+        assertTrue(recorder.mCompleted);
+        assertNull(recorder.mError);
+    }
+
+    @Test
+    public void request_ofZeroIsAnError() {
+        Recorder recorder = subscribe(0);
+        recorder.mSubscription.request(0);
+        deliver();
+        assertTrue(recorder.mError instanceof IllegalArgumentException);
+        commit("a");
+        deliver();
+        assertEquals("", recorder.summary());
+    }
+}
@@ -0,0 +1,132 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HistoryHeapReportTest {
+    private UndoHistory mHistory;
+
+    static class Stroke extends UndoHistory.UndoOperation<Void> {
+        final byte[] mPixels;
+
+        Stroke(byte[] pixels) {
+            mPixels = pixels;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    /** Holds a platform object whose size can't be seen through its fields. */
+    static class Bitmap extends Stroke {
+        Bitmap() {
+            super(null);
+        }
+
+        @Override
+        public long estimateRetainedSize() {
+            return 1 << 20;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.setHistorySize(-1);
+    }
+
+    private void add(String label, UndoHistory.UndoOperation<?>... ops) {
+        mHistory.beginUpdate(label);
+        for (UndoHistory.UndoOperation<?> op : ops) {
+            mHistory.addOperation(op);
+        }
+        mHistory.endUpdate();
+        mHistory.commitState();
+    }
+
+    @Test
+    public void measure_countsPayloadsPerStateAndClass() {
+        add("small", new Stroke(new byte[100]));
+        add("large", new Stroke(new byte[10000]), new Stroke(new byte[10000]));
+        HistoryHeapReport report = HistoryHeapReport.measure(mHistory.getHistorySnapshot());
+        assertEquals(2, report.getStateCount());
+        assertEquals(3, report.getOperationCount());
+        List<HistoryHeapReport.StateInfo> states = report.getStates();
+        assertEquals("large", states.get(0).getLabel());
+        assertEquals(0, states.get(0).getDepth());
+        assertTrue(states.get(0).getBytes() > 20000);
+        assertTrue(states.get(1).getBytes() > 100);
+        assertTrue(states.get(1).getBytes() < 1000);
+        assertEquals(1, report.getClasses().size());
+        HistoryHeapReport.ClassInfo stroke = report.getClasses().get(0);
+        assertEquals(Stroke.class.getName(), stroke.getClassName());
+        assertEquals(3, stroke.getCount());
+        assertEquals(report.getTotalBytes(), report.getUndoBytes());
+    }
+
+    @Test
+    public void measure_countsSharedDataOnceForTheNewestState() {
+        byte[] shared = new byte[10000];
+        add("first", new Stroke(shared));
+        add("second", new Stroke(shared));
+        List<HistoryHeapReport.StateInfo> states
+                = HistoryHeapReport.measure(mHistory.getHistorySnapshot()).getStates();
+        assertTrue(states.get(0).getBytes() > 10000);
+        assertTrue(states.get(1).getBytes() < 1000);
+    }
+
+    @Test
+    public void measure_usesTheSizeOperationsReport() {
+        add("bitmap", new Bitmap());
+        add("stroke", new Stroke(new byte[10]));
+        HistoryHeapReport report = HistoryHeapReport.measure(mHistory.getHistorySnapshot());
+        assertTrue(report.getStates().get(1).getBytes() > 1 << 20);
+        // Heaviest first.
+        assertEquals(Bitmap.class.getName(), report.getClasses().get(0).getClassName());
+        assertEquals("bitmap", report.getHeaviestStates(1).get(0).getLabel());
+    }
+
+    @Test
+    public void measure_separatesRedos() {
+        add("a", new Stroke(new byte[1000]));
+        add("b", new Stroke(new byte[5000]));
+        mHistory.undo(1);
+        HistoryHeapReport report = HistoryHeapReport.measure(mHistory.getHistorySnapshot());
+        assertTrue(report.getRedoBytes() > 5000);
+        assertTrue(report.getUndoBytes() < 5000);
+        HistoryHeapReport.StateInfo redo = report.getStates().get(1);
+        assertTrue(redo.isRedo());
+        assertEquals("b", redo.getLabel());
+    }
+
+    @Test
+    public void writeJson_escapesLabels() throws Exception {
+        add("say \"hi\"\n", new Stroke(new byte[1]));
+        HistoryHeapReport report = HistoryHeapReport.measure(mHistory.getHistorySnapshot());
+        StringWriter json = new StringWriter();
+        report.writeJson(json, 5);
+        String text = json.toString();
+        assertTrue(text.startsWith("{\"version\":" + report.getVersion() + ","));
+        assertTrue(text.contains("\"label\":\"say \\\"hi\\\"\\u000a\""));
+        assertTrue(text.contains("\"operations\":1"));
+
+        StringWriter summary = new StringWriter();
+        report.writeText(summary, 5);
+        assertTrue(summary.toString().contains(Stroke.class.getName()));
+        assertTrue(summary.toString().contains("say \"hi\" "));
+    }
+}
@@ -0,0 +1,132 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HistoryIndexTest {
+    private UndoHistory mHistory;
+
+    static class Move extends UndoHistory.UndoOperation<Void> {
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    static class Recolor extends Move {
+    }
+
+    static class Crop extends Move {
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.setHistorySize(-1);
+    }
+
+    private void add(String label, UndoHistory.UndoOperation<?>... ops) {
+        mHistory.beginUpdate(label);
+        for (UndoHistory.UndoOperation<?> op : ops) {
+            mHistory.addOperation(op);
+        }
+        mHistory.endUpdate();
+        mHistory.commitState();
+    }
+
+    private static List<String> labels(List<HistorySnapshot.Entry> entries) {
+        ArrayList<String> labels = new ArrayList<>();
+        for (HistorySnapshot.Entry entry : entries) {
+            labels.add(entry.getLabel().toString());
+        }
+        return labels;
+    }
+
+    private static List<String> list(String... labels) {
+        ArrayList<String> list = new ArrayList<>();
+        for (String label : labels) {
+            list.add(label);
+        }
+        return list;
+    }
+
+    @Test
+    public void getEntries_pagesNewestFirst() {
+        for (int i = 0; i < 10; i++) {
+            add("s" + i, new Move());
+        }
+        mHistory.undo(3);
+        HistorySnapshot snapshot = mHistory.getHistorySnapshot();
+        assertEquals(list("s6", "s5", "s4"), labels(snapshot.getUndoEntries(0, 3)));
+        assertEquals(list("s1", "s0"), labels(snapshot.getUndoEntries(5, 10)));
+        assertTrue(snapshot.getUndoEntries(7, 1).isEmpty());
+        assertEquals(list("s7", "s8", "s9"), labels(snapshot.getRedoEntries(0, 5)));
+        assertEquals(1, snapshot.getUndoEntries(0, 1).get(0).countOperations());
+        try {
+            snapshot.getUndoEntries(-1, 1);
+            fail("accepted a negative offset");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void index_findsStatesByLabelPrefix() {
+        add("move", new Move());
+        add("rotate", new Move());
+        add("move photo", new Move());
+        add("mover", new Move());
+        add("scale", new Move());
+        HistoryIndex index = mHistory.getHistorySnapshot().getUndoIndex();
+        assertEquals(5, index.size());
+        assertEquals(3, index.countWithLabelPrefix("move"));
+        assertEquals(list("mover", "move photo", "move"),
+                labels(index.findByLabelPrefix("move", 0, 10)));
+        assertEquals(list("move photo"), labels(index.findByLabelPrefix("move", 1, 1)));
+        assertEquals(5, index.countWithLabelPrefix(""));
+        assertEquals(0, index.countWithLabelPrefix("zoom"));
+        assertTrue(index.findByLabelPrefix("zoom", 0, 10).isEmpty());
+        assertEquals("scale", index.get(0).getLabel().toString());
+        assertEquals("move", index.get(4).getLabel().toString());
+    }
+
+    @Test
+    public void index_findsStatesByExactOperationClass() {
+        add("a", new Move(), new Move());
+        add("b", new Recolor());
+        add("c", new Move(), new Recolor(), new Move());
+        HistoryIndex index = mHistory.getHistorySnapshot().getUndoIndex();
+        // Each state is listed once, however many matching operations it has.
+        assertEquals(2, index.countWithOperation(Move.class));
+        assertEquals(list("c", "a"), labels(index.findByOperationClass(Move.class, 0, 10)));
+        assertEquals(list("c", "b"), labels(index.findByOperationClass(Recolor.class, 0, 10)));
+        assertEquals(0, index.countWithOperation(Crop.class));
+    }
+
+    @Test
+    public void index_belongsToItsSnapshot() {
+        add("a", new Move());
+        add("b", new Move());
+        HistorySnapshot snapshot = mHistory.getHistorySnapshot();
+        HistoryIndex index = snapshot.getUndoIndex();
+        assertSame(index, snapshot.getUndoIndex());
+        mHistory.undo(1);
+        add("c", new Move());
+        assertEquals(list("b", "a"), labels(index.findByLabelPrefix("", 0, 10)));
+        assertEquals(0, snapshot.getRedoIndex().size());
+        HistoryIndex latest = mHistory.getHistorySnapshot().getUndoIndex();
+        assertEquals(list("c", "a"), labels(latest.findByLabelPrefix("", 0, 10)));
+    }
+}
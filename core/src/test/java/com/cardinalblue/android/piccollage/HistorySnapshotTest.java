@@ -0,0 +1,213 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Snapshots keep showing the history as it was when they were taken.
+ */
+public class HistorySnapshotTest {
+    private UndoHistory mHistory;
+
+    static class Resize extends UndoHistory.UndoOperation<Void> {
+        int mWidth;
+
+        Resize(int width) {
+            mWidth = width;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    /** Has no codec, but can copy itself. */
+    static class Rename extends UndoHistory.UndoOperation<Void> {
+        String mName;
+
+        Rename(String name) {
+            mName = name;
+        }
+
+        @Override
+        public UndoHistory.UndoOperation<Void> copy() {
+            return new Rename(mName);
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    /** Has neither a codec nor copy(). */
+    static class Opaque extends UndoHistory.UndoOperation<Void> {
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.setHistorySize(-1);
+        mHistory.getOperationCodecs().register(Resize.class, new OperationCodec<Resize>() {
+            @Override
+            public void write(Resize op, HistoryOutput out) {
+                out.writeInt(op.mWidth);
+            }
+
+            @Override
+            public Resize read(HistoryInput in) {
+                return new Resize(in.readInt());
+            }
+        });
+    }
+
+    private void resize(int width) {
+        mHistory.beginUpdate("resize");
+        mHistory.addOperation(new Resize(width));
+        mHistory.endUpdate();
+    }
+
+    private static UndoHistory.UndoOperation<?> topOperation(HistorySnapshot snapshot) {
+        return snapshot.getUndoEntries(0, 1).get(0).getOperations().get(0);
+    }
+
+    @Test
+    public void mergingIntoAState_leavesEarlierSnapshotsAlone() {
+        resize(10);
+        HistorySnapshot before = mHistory.getHistorySnapshot();
+        byte[] saved = before.toByteArray();
+        byte[] image = before.toImage();
+        Resize committed = (Resize) topOperation(before);
+
+        mHistory.beginUpdate("drag");
+        Resize dragged = mHistory.getLastOperation(Resize.class, UndoHistory.MERGE_MODE_ANY);
+        assertNotSame(committed, dragged);
+        dragged.mWidth = 20;
+        // Handing it out again in the same update returns the same copy.
+        assertSame(dragged, mHistory.getLastOperation(Resize.class, UndoHistory.MERGE_MODE_ANY));
+        dragged.mWidth = 30;
+        mHistory.endUpdate();
+
+        assertEquals(10, committed.mWidth);
+        assertArrayEquals(saved, before.toByteArray());
+        assertArrayEquals(image, before.toImage());
+        assertSame(dragged, topOperation(mHistory.getHistorySnapshot()));
+        assertFalse(Arrays.equals(saved, mHistory.saveState()));
+    }
+
+    @Test
+    public void operationsAddedInTheUpdate_areHandedOutThemselves() {
+        mHistory.beginUpdate("add");
+        Resize added = new Resize(1);
+        mHistory.addOperation(added);
+        assertSame(added, mHistory.getLastOperation(Resize.class, UndoHistory.MERGE_MODE_ANY));
+        mHistory.endUpdate();
+    }
+
+    @Test
+    public void copy_isUsedWithoutACodec() {
+        mHistory.beginUpdate("name");
+        mHistory.addOperation(new Rename("a"));
+        mHistory.endUpdate();
+        Rename committed = (Rename) topOperation(mHistory.getHistorySnapshot());
+
+        mHistory.beginUpdate("rename");
+        Rename renamed = mHistory.getLastOperation(Rename.class, UndoHistory.MERGE_MODE_ANY);
+        renamed.mName = "b";
+        mHistory.endUpdate();
+        assertNotSame(committed, renamed);
+        assertEquals("a", committed.mName);
+    }
+
+    @Test
+    public void operationsThatCantBeCopied_areNotHandedOut() {
+        mHistory.beginUpdate("opaque");
+        mHistory.addOperation(new Opaque());
+        mHistory.endUpdate();
+        mHistory.beginUpdate("again");
+        try {
+            mHistory.getLastOperation(Opaque.class, UndoHistory.MERGE_MODE_ANY);
+            fail("handed out an operation of a committed state");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        mHistory.abortUpdate();
+        assertEquals(1, mHistory.countUndos());
+    }
+
+    @Test
+    public void flagChanges_leaveEarlierSnapshotsAlone() {
+        resize(1);
+        HistorySnapshot first = mHistory.getHistorySnapshot();
+        byte[] firstSaved = first.toByteArray();
+        resize(2);
+        // Pushing a state marks the one below executed.
+        assertArrayEquals(firstSaved, first.toByteArray());
+
+        HistorySnapshot second = mHistory.getHistorySnapshot();
+        byte[] secondSaved = second.toByteArray();
+        mHistory.commitState();
+        assertArrayEquals(secondSaved, second.toByteArray());
+        HistorySnapshot committed = mHistory.getHistorySnapshot();
+        assertNotSame(second, committed);
+        byte[] committedSaved = committed.toByteArray();
+        assertFalse(Arrays.equals(secondSaved, committedSaved));
+
+        mHistory.undo(1);
+        assertArrayEquals(committedSaved, committed.toByteArray());
+        assertArrayEquals(firstSaved, first.toByteArray());
+    }
+
+    @Test
+    public void uncommitState_reopensTheTopStateForMerging() {
+        resize(1);
+        int commitId = mHistory.commitState();
+        mHistory.beginUpdate("drag");
+        assertNull(mHistory.getLastOperation(Resize.class, UndoHistory.MERGE_MODE_ANY));
+        mHistory.endUpdate();
+
+        HistorySnapshot committed = mHistory.getHistorySnapshot();
+        assertTrue(mHistory.uncommitState(commitId));
+        mHistory.beginUpdate("drag");
+        mHistory.getLastOperation(Resize.class, UndoHistory.MERGE_MODE_ANY).mWidth = 5;
+        mHistory.endUpdate();
+        assertEquals(1, mHistory.countUndos());
+        assertEquals(5, ((Resize) topOperation(mHistory.getHistorySnapshot())).mWidth);
+        assertEquals(1, ((Resize) topOperation(committed)).mWidth);
+
+        mHistory.undo(1);
+        mHistory.redo(1);
+        // An executed state can't be merged into again.
+        assertFalse(mHistory.uncommitState(commitId));
+    }
+}
@@ -0,0 +1,121 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.*;
+
+public class HistoryStackTest {
+    private static HistoryStack<Integer> stackOf(int count) {
+        HistoryStack<Integer> stack = HistoryStack.empty();
+        for (int i = 0; i < count; i++) {
+            stack = stack.push(i);
+        }
+        return stack;
+    }
+
+    private static List<Integer> contents(HistoryStack<Integer> stack) {
+        List<Integer> values = new ArrayList<>();
+        for (Integer value : stack) {
+            values.add(value);
+        }
+        return values;
+    }
+
+    @Test
+    public void push_iteratesNewestFirst() {
+        HistoryStack<Integer> stack = stackOf(4);
+        assertEquals(4, stack.size());
+        assertEquals(Integer.valueOf(3), stack.peek());
+        assertEquals(Integer.valueOf(1), stack.get(2));
+        assertEquals(Arrays.asList(3, 2, 1, 0), contents(stack));
+        assertEquals(contents(stack), contents(HistoryStack.fromNewestFirst(contents(stack))));
+    }
+
+    @Test
+    public void pop_leavesOlderStacksUnchanged() {
+        HistoryStack<Integer> stack = stackOf(3);
+        HistoryStack<Integer> popped = stack.pop();
+        assertEquals(Arrays.asList(1, 0), contents(popped));
+        assertEquals(Arrays.asList(2, 1, 0), contents(stack));
+        HistoryStack<Integer> empty = popped.pop().pop();
+        assertTrue(empty.isEmpty());
+        assertNull(empty.peek());
+        assertSame(HistoryStack.empty(), empty);
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void pop_throwsWhenEmpty() {
+        HistoryStack.<Integer>empty().pop();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void get_throwsPastTheOldestEntry() {
+        stackOf(5).dropOldest(2).get(3);
+    }
+
+    @Test
+    public void dropOldest_keepsNewestEntries() {
+        HistoryStack<Integer> stack = stackOf(10);
+        HistoryStack<Integer> dropped = stack.dropOldest(3);
+        assertEquals(7, dropped.size());
+        assertEquals(Arrays.asList(9, 8, 7, 6, 5, 4, 3), contents(dropped));
+        assertEquals(10, stack.size());
+        assertSame(stack, stack.dropOldest(0));
+        assertTrue(stack.dropOldest(10).isEmpty());
+        assertTrue(stack.dropOldest(11).isEmpty());
+    }
+
+    @Test
+    public void dropOldest_hiddenTailStaysHiddenAfterPushAndPop() {
+        HistoryStack<Integer> stack = stackOf(6).dropOldest(2);
+        // Popping down to the hidden entries must not bring them back.
+        HistoryStack<Integer> popped = stack.pop().pop().pop();
+        assertEquals(Arrays.asList(2), contents(popped));
+        assertTrue(popped.pop().isEmpty());
+        HistoryStack<Integer> pushed = popped.push(42);
+        assertEquals(Arrays.asList(42, 2), contents(pushed));
+        assertEquals(2, pushed.size());
+        List<Integer> fromDepth = new ArrayList<>();
+        for (Iterator<Integer> it = pushed.iterator(1); it.hasNext(); ) {
+            fromDepth.add(it.next());
+        }
+        assertEquals(Arrays.asList(2), fromDepth);
+    }
+
+    @Test
+    public void dropOldest_repeatedTrimsMatchAPlainList() {
+        HistoryStack<Integer> stack = HistoryStack.empty();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            stack = stack.push(i);
+            expected.add(0, i);
+            if (stack.size() > 20) {
+                int drop = stack.size() - 10;
+                stack = stack.dropOldest(drop);
+                expected = new ArrayList<>(expected.subList(0, expected.size() - drop));
+            }
+            if (i % 7 == 0) {
+                stack = stack.pop();
+                expected.remove(0);
+            }
+            assertEquals(expected.size(), stack.size());
+        }
+        assertEquals(expected, contents(stack));
+    }
+
+    @Test
+    public void releaseOldest_keepsTheSameEntriesAsDropOldest() {
+        HistoryStack<Integer> stack = stackOf(12);
+        for (int count = 0; count <= 12; count++) {
+            assertEquals(contents(stack.dropOldest(count)), contents(stack.releaseOldest(count)));
+        }
+        HistoryStack<Integer> released = stack.dropOldest(2).releaseOldest(3);
+        assertEquals(Arrays.asList(11, 10, 9, 8, 7, 6, 5), contents(released));
+    }
+}
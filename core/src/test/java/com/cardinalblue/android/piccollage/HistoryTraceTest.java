@@ -0,0 +1,172 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class HistoryTraceTest {
+    private UndoHistory mHistory;
+
+    static class Unsaved extends UndoHistory.UndoOperation<Void> {
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.setHistorySize(50);
+        mHistory.getOperationCodecs().register(OperationCodecsTest.Move.class,
+                OperationCodecsTest.MOVE_CODEC);
+    }
+
+    private void add(String label, UndoHistory.UndoOperation<?> op) {
+        mHistory.beginUpdate(label);
+        mHistory.addOperation(op);
+        mHistory.endUpdate();
+        mHistory.commitState();
+    }
+
+    private byte[] record() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HistoryTraceRecorder recorder = new HistoryTraceRecorder(out);
+        mHistory.setTraceRecorder(recorder);
+        add("move", new OperationCodecsTest.Move(1, 2, "a"));
+        add("move", new OperationCodecsTest.Move(2, 3, "b"));
+        mHistory.saveState();
+        add("other", new Unsaved());
+        mHistory.undo(5);
+        mHistory.redo(1);
+        mHistory.setTraceRecorder(null);
+        assertEquals(15, recorder.getEventCount());
+        recorder.close();
+        assertNull(recorder.getError());
+        return out.toByteArray();
+    }
+
+    private static HistoryTraceReader open(byte[] trace) throws IOException {
+        return new HistoryTraceReader(new ByteArrayInputStream(trace));
+    }
+
+    private static void next(HistoryTraceReader reader, int type) throws IOException {
+        assertTrue(reader.next());
+        assertEquals(type, reader.getType());
+        assertTrue(reader.getDurationNanos() >= 0);
+    }
+
+    @Test
+    public void read_returnsTheRecordedCalls() throws IOException {
+        HistoryTraceReader reader = open(record());
+        assertEquals(50, reader.getHistorySize());
+        assertEquals(0, reader.getInitialUndos());
+        assertEquals(0, reader.getInitialRedos());
+        int sized = 0;
+        long time = 0;
+        for (String label : Arrays.asList("move", "move", "other")) {
+            next(reader, HistoryTraceReader.EVENT_BEGIN_UPDATE);
+            assertEquals(label, reader.getLabel());
+            assertTrue(reader.getTimeNanos() >= time);
+            time = reader.getTimeNanos();
+            next(reader, HistoryTraceReader.EVENT_ADD_OPERATION);
+            if (label.equals("move")) {
+                assertEquals(OperationCodecsTest.Move.class.getName(), reader.getOperationType());
+                assertTrue(reader.getOperationSize() > 0);
+                sized++;
+            } else {
+                assertEquals(Unsaved.class.getName(), reader.getOperationType());
+                assertEquals(-1, reader.getOperationSize());
+            }
+            next(reader, HistoryTraceReader.EVENT_END_UPDATE);
+            next(reader, HistoryTraceReader.EVENT_COMMIT_STATE);
+            if (sized == 2 && label.equals("move")) {
+                next(reader, HistoryTraceReader.EVENT_SAVE_STATE);
+                assertTrue(reader.getResult() > 0);
+            }
+        }
+        assertEquals(2, sized);
+        next(reader, HistoryTraceReader.EVENT_UNDO);
+        assertEquals(5, reader.getCount());
+        assertEquals(3, reader.getResult());
+        next(reader, HistoryTraceReader.EVENT_REDO);
+        assertEquals(1, reader.getCount());
+        assertEquals(1, reader.getResult());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void read_endsAtTheLastCompleteEvent() throws IOException {
+        byte[] trace = record();
+        HistoryTraceReader reader = open(Arrays.copyOf(trace, trace.length - 1));
+        int events = 0;
+        while (reader.next()) {
+            events++;
+        }
+        assertEquals(14, events);
+    }
+
+    @Test
+    public void read_returnsAbortsAndSavepoints() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HistoryTraceRecorder recorder = new HistoryTraceRecorder(out);
+        mHistory.setTraceRecorder(recorder);
+        mHistory.beginUpdate("move");
+        mHistory.addOperation(new OperationCodecsTest.Move(1, 2, "a"));
+        final int savepoint = mHistory.createSavepoint();
+        mHistory.rollbackToSavepoint(savepoint);
+        mHistory.releaseSavepoint(savepoint);
+        mHistory.abortUpdate();
+        mHistory.setTraceRecorder(null);
+        recorder.close();
+
+        HistoryTraceReader reader = open(out.toByteArray());
+        next(reader, HistoryTraceReader.EVENT_BEGIN_UPDATE);
+        next(reader, HistoryTraceReader.EVENT_ADD_OPERATION);
+        next(reader, HistoryTraceReader.EVENT_CREATE_SAVEPOINT);
+        assertEquals(savepoint, reader.getResult());
+        next(reader, HistoryTraceReader.EVENT_ROLLBACK_TO_SAVEPOINT);
+        assertEquals(savepoint, reader.getCount());
+        next(reader, HistoryTraceReader.EVENT_RELEASE_SAVEPOINT);
+        assertEquals(savepoint, reader.getCount());
+        next(reader, HistoryTraceReader.EVENT_ABORT_UPDATE);
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void open_rejectsOtherVersions() throws IOException {
+        byte[] trace = record();
+        // The version follows the magic.
+        trace[7] = (byte) (HistoryTraceRecorder.VERSION + 1);
+        try {
+            open(trace);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void open_rejectsOtherData() {
+        byte[] trace = new byte[16];
+        try {
+            open(trace);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
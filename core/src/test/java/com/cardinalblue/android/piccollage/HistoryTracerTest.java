@@ -0,0 +1,127 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HistoryTracerTest {
+    private static final String OP = Step.class.getName();
+
+    private UndoHistory mHistory;
+    private RecordingTracer mTracer;
+
+    static class Step extends UndoHistory.UndoOperation<Void> {
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    /** Records sections as "+name" and "-" entries. */
+    static class RecordingTracer implements HistoryTracer {
+        final List<String> mEvents = new ArrayList<>();
+        boolean mEnabled = true;
+        int mChecks;
+
+        @Override
+        public boolean isEnabled() {
+            mChecks++;
+            return mEnabled;
+        }
+
+        @Override
+        public void beginSection(String name) {
+            mEvents.add("+" + name);
+        }
+
+        @Override
+        public void endSection() {
+            mEvents.add("-");
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.getOperationCodecs().register(Step.class, new OperationCodec<Step>() {
+            @Override
+            public void write(Step op, HistoryOutput out) {
+            }
+
+            @Override
+            public Step read(HistoryInput in) {
+                return new Step();
+            }
+        });
+        mTracer = new RecordingTracer();
+        mHistory.setTracer(mTracer);
+    }
+
+    private void update() {
+        mHistory.beginUpdate("step");
+        mHistory.addOperation(new Step());
+        mHistory.endUpdate();
+    }
+
+    @Test
+    public void endUpdate_tracesTheCommitOfEachOperation() {
+        update();
+        assertEquals(Arrays.asList("+" + UndoHistory.SECTION_END_UPDATE, "+" + OP, "-", "-"),
+                mTracer.mEvents);
+    }
+
+    @Test
+    public void undoAndRedo_nestOperationSections() {
+        update();
+        update();
+        mTracer.mEvents.clear();
+        mHistory.undo(2);
+        assertEquals(Arrays.asList("+" + UndoHistory.SECTION_UNDO,
+                "+" + OP, "-", "+" + OP, "-", "-"), mTracer.mEvents);
+        mTracer.mEvents.clear();
+        mHistory.redo(1);
+        assertEquals(Arrays.asList("+" + UndoHistory.SECTION_REDO, "+" + OP, "-", "-"),
+                mTracer.mEvents);
+    }
+
+    @Test
+    public void saveAndRestore_areTraced() {
+        update();
+        mTracer.mEvents.clear();
+        byte[] saved = mHistory.saveState();
+        mHistory.restoreState(saved);
+        assertEquals(Arrays.asList("+" + UndoHistory.SECTION_SAVE, "-",
+                "+" + UndoHistory.SECTION_RESTORE, "-"), mTracer.mEvents);
+    }
+
+    @Test
+    public void disabledTracer_isAskedOncePerCall() {
+        mTracer.mEnabled = false;
+        update();
+        update();
+        mTracer.mChecks = 0;
+        mHistory.undo(2);
+        assertEquals(1, mTracer.mChecks);
+        assertTrue(mTracer.mEvents.isEmpty());
+    }
+
+    @Test
+    public void setTracer_null_restoresTheDefault() {
+        mHistory.setTracer(null);
+        assertSame(HistoryTracer.NONE, mHistory.getTracer());
+        update();
+        assertTrue(mTracer.mEvents.isEmpty());
+    }
+}
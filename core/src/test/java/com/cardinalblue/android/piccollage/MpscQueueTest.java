@@ -0,0 +1,74 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MpscQueueTest {
+    private static final int PRODUCERS = 4;
+    private static final int PER_PRODUCER = 20000;
+
+    @Test
+    public void poll_returnsValuesInOrder() {
+        MpscQueue<String> queue = new MpscQueue<>();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        queue.offer("a");
+        queue.offer("b");
+        assertFalse(queue.isEmpty());
+        assertEquals("a", queue.poll());
+        queue.offer("c");
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void offer_fromManyThreadsLosesNothing() throws Exception {
+        final MpscQueue<int[]> queue = new MpscQueue<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            producers[p] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < PER_PRODUCER; i++) {
+                        queue.offer(new int[] { producer, i });
+                    }
+                }
+            };
+            producers[p].start();
+        }
+        start.countDown();
+        int[] next = new int[PRODUCERS];
+        int received = 0;
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        while (received < PRODUCERS * PER_PRODUCER) {
+            int[] value = queue.poll();
+            if (value == null) {
+                assertTrue("only " + received + " values arrived", System.nanoTime() < deadline);
+                Thread.yield();
+                continue;
+            }
+            // Each producer's values arrive in the order it offered them.
+            assertEquals(next[value[0]], value[1]);
+            next[value[0]]++;
+            received++;
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+}
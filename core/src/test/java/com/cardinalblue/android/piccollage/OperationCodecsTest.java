@@ -0,0 +1,343 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of operations through their codecs: saved histories, history
+ * images and codecs that appended fields since the data was written, and
+ * sharing of interned operations.
+ */
+public class OperationCodecsTest {
+    static class Move extends UndoHistory.UndoOperation<Void> {
+        final int mFrom;
+        final int mTo;
+        final String mName;
+
+        Move(int from, int to, String name) {
+            mFrom = from;
+            mTo = to;
+            mName = name;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    /** Internable, so equal instances are saved once and shared. */
+    static class Color extends UndoHistory.UndoOperation<Void> {
+        final int mArgb;
+
+        Color(int argb) {
+            mArgb = argb;
+        }
+
+        @Override
+        public boolean isInternable() {
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Color && ((Color) o).mArgb == mArgb;
+        }
+
+        @Override
+        public int hashCode() {
+            return mArgb;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    static final OperationCodec<Move> MOVE_CODEC = new OperationCodec<Move>() {
+        @Override
+        public void write(Move op, HistoryOutput out) {
+            out.writeInt(op.mFrom);
+            out.writeInt(op.mTo);
+            out.writeString(op.mName);
+        }
+
+        @Override
+        public Move read(HistoryInput in) {
+            return new Move(in.readInt(), in.readInt(), in.readString());
+        }
+    };
+
+    static final OperationCodec<Color> COLOR_CODEC = new OperationCodec<Color>() {
+        @Override
+        public void write(Color op, HistoryOutput out) {
+            out.writeInt(op.mArgb);
+        }
+
+        @Override
+        public Color read(HistoryInput in) {
+            return new Color(in.readInt());
+        }
+    };
+
+    private UndoHistory mHistory;
+
+    private static UndoHistory newHistory() {
+        UndoHistory history = new UndoHistory();
+        history.setHistorySize(-1);
+        history.getOperationCodecs().register(Move.class, MOVE_CODEC);
+        history.getOperationCodecs().register(Color.class, COLOR_CODEC);
+        return history;
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = newHistory();
+        for (int i = 0; i < 6; i++) {
+            mHistory.beginUpdate("edit " + i);
+            mHistory.addOperation(new Move(i, i + 1, i % 2 == 0 ? "even" : null));
+            mHistory.addOperation(new Color(i % 2));
+            mHistory.endUpdate();
+        }
+        mHistory.undo(2);
+    }
+
+    private static void assertSameHistory(HistorySnapshot expected, HistorySnapshot actual) {
+        assertEquals(expected.countUndos(), actual.countUndos());
+        assertEquals(expected.countRedos(), actual.countRedos());
+        assertSameEntries(expected.getUndoEntries(0, expected.countUndos()),
+                actual.getUndoEntries(0, actual.countUndos()));
+        assertSameEntries(expected.getRedoEntries(0, expected.countRedos()),
+                actual.getRedoEntries(0, actual.countRedos()));
+    }
+
+    private static void assertSameEntries(List<HistorySnapshot.Entry> expected,
+            List<HistorySnapshot.Entry> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            HistorySnapshot.Entry e = expected.get(i);
+            HistorySnapshot.Entry a = actual.get(i);
+            assertEquals(e.getCommitId(), a.getCommitId());
+            assertEquals(String.valueOf(e.getLabel()), String.valueOf(a.getLabel()));
+            assertEquals(e.countOperations(), a.countOperations());
+            for (int j = 0; j < e.countOperations(); j++) {
+                assertSameOperation(e.getOperations().get(j), a.getOperations().get(j));
+            }
+        }
+    }
+
+    private static void assertSameOperation(UndoHistory.UndoOperation<?> expected,
+            UndoHistory.UndoOperation<?> actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        if (expected instanceof Move) {
+            Move e = (Move) expected;
+            Move a = (Move) actual;
+            assertEquals(e.mFrom, a.mFrom);
+            assertEquals(e.mTo, a.mTo);
+            assertEquals(e.mName, a.mName);
+        } else {
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void saveState_restoresTheSameHistory() {
+        byte[] saved = mHistory.saveState();
+        UndoHistory restored = newHistory();
+        restored.restoreState(saved);
+        assertSameHistory(mHistory.getHistorySnapshot(), restored.getHistorySnapshot());
+        assertArrayEquals(saved, restored.saveState());
+        assertEquals(4, restored.countUndos());
+        assertEquals("edit 3", restored.getUndoLabel());
+    }
+
+    @Test
+    public void saveState_failsForOperationsWithoutACodec() {
+        mHistory.beginUpdate("unknown");
+        mHistory.addOperation(new UndoHistory.UndoOperation<Void>() {
+            @Override
+            public void commit() {
+            }
+
+            @Override
+            public void undo() {
+            }
+
+            @Override
+            public void redo() {
+            }
+        });
+        mHistory.endUpdate();
+        try {
+            mHistory.saveState();
+            fail("saved an operation without a codec");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void restoreState_failsForUnknownTypes() {
+        byte[] saved = mHistory.saveState();
+        UndoHistory restored = new UndoHistory();
+        try {
+            restored.restoreState(saved);
+            fail("restored operations without a codec");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void saveState_sharesInternedOperations() {
+        UndoHistory restored = newHistory();
+        restored.restoreState(mHistory.saveState());
+        List<HistorySnapshot.Entry> undos = restored.getHistorySnapshot().getUndoEntries(0, 4);
+        // Edits 3 and 1 both set color 1, which is restored as one instance.
+        assertSame(undos.get(0).getOperations().get(1), undos.get(2).getOperations().get(1));
+    }
+
+    @Test
+    public void addOperation_internsEqualOperations() {
+        List<HistorySnapshot.Entry> undos = mHistory.getHistorySnapshot().getUndoEntries(0, 4);
+        assertSame(undos.get(1).getOperations().get(1), undos.get(3).getOperations().get(1));
+        assertNotSame(undos.get(0).getOperations().get(0), undos.get(2).getOperations().get(0));
+    }
+
+    @Test
+    public void saveState_writesAnInternedOperationOnce() {
+        UndoHistory same = newHistory();
+        UndoHistory different = newHistory();
+        for (int i = 0; i < 10; i++) {
+            same.beginUpdate("color");
+            same.addOperation(new Color(5));
+            same.endUpdate();
+            different.beginUpdate("color");
+            different.addOperation(new Color(i));
+            different.endUpdate();
+        }
+        // Every repeat is a reference to the first one, which is shorter than
+        // the type name and payload.
+        assertTrue(same.saveState().length < different.saveState().length);
+    }
+
+    @Test
+    public void image_readsOperationsInPlace() {
+        byte[] image = mHistory.getHistorySnapshot().toImage();
+        HistoryImage opened = HistoryImage.open(ByteBuffer.wrap(image));
+        assertTrue(HistoryImage.isImage(ByteBuffer.wrap(image)));
+        assertEquals(4, opened.countUndos());
+        assertEquals(2, opened.countRedos());
+        assertEquals(2, opened.countSharedOperations());
+        HistoryImage.State top = opened.getUndoState(0);
+        assertEquals("edit 3", top.getLabel());
+        assertEquals(2, top.countOperations());
+        assertEquals(Move.class.getName(), top.getOperationType(0));
+        Move move = (Move) top.readOperation(0, mHistory.getOperationCodecs());
+        assertEquals(3, move.mFrom);
+        assertEquals(4, move.mTo);
+        assertNull(move.mName);
+        assertEquals("edit 4", opened.getRedoState(0).getLabel());
+
+        UndoHistory restored = newHistory();
+        restored.restoreState(opened);
+        assertSameHistory(mHistory.getHistorySnapshot(), restored.getHistorySnapshot());
+        assertArrayEquals(image, restored.getHistorySnapshot().toImage());
+        assertArrayEquals(mHistory.saveState(), restored.saveState());
+    }
+
+    @Test
+    public void image_opensInsideALargerBuffer() {
+        byte[] image = mHistory.getHistorySnapshot().toImage();
+        ByteBuffer buffer = ByteBuffer.allocate(image.length + 16);
+        buffer.position(16);
+        buffer.put(image);
+        buffer.position(16);
+        HistoryImage opened = HistoryImage.open(buffer);
+        assertEquals(16, buffer.position());
+        assertEquals(4, opened.countUndos());
+        assertEquals("edit 3", opened.getUndoState(0).getLabel());
+    }
+
+    @Test
+    public void image_rejectsOtherData() {
+        byte[] saved = mHistory.saveState();
+        assertFalse(HistoryImage.isImage(ByteBuffer.wrap(saved)));
+        try {
+            HistoryImage.open(saved);
+            fail("opened a saved history as an image");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void image_rejectsTruncatedData() {
+        byte[] image = mHistory.getHistorySnapshot().toImage();
+        UndoHistory restored = newHistory();
+        try {
+            restored.restoreState(HistoryImage.open(Arrays.copyOf(image, image.length / 2)));
+            fail("restored a truncated image");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        assertEquals(0, restored.countUndos());
+    }
+
+    @Test
+    public void appendedFields_readAsDefaultsFromOlderData() {
+        UndoHistory old = new UndoHistory();
+        old.getOperationCodecs().register(Move.class, new OperationCodec<Move>() {
+            @Override
+            public void write(Move op, HistoryOutput out) {
+                out.writeInt(op.mFrom);
+            }
+
+            @Override
+            public Move read(HistoryInput in) {
+                return new Move(in.readInt(), 0, null);
+            }
+        });
+        old.beginUpdate("old");
+        old.addOperation(new Move(7, 8, "lost"));
+        old.endUpdate();
+
+        // The current codec appended mTo and mName after mFrom.
+        UndoHistory current = newHistory();
+        current.restoreState(old.saveState());
+        Move move = (Move) current.getHistorySnapshot().getUndoEntries(0, 1).get(0)
+                .getOperations().get(0);
+        assertEquals(7, move.mFrom);
+        assertEquals(0, move.mTo);
+        assertNull(move.mName);
+
+        current = newHistory();
+        current.restoreState(HistoryImage.open(old.getHistorySnapshot().toImage()));
+        move = (Move) current.getHistorySnapshot().getUndoEntries(0, 1).get(0)
+                .getOperations().get(0);
+        assertEquals(7, move.mFrom);
+        assertEquals(0, move.mTo);
+        assertNull(move.mName);
+    }
+}
@@ -0,0 +1,179 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ParallelUndoTest {
+    private ExecutorService mExecutor;
+    private UndoHistory mHistory;
+    private final List<String> mLog = Collections.synchronizedList(new ArrayList<String>());
+
+    class Move extends UndoHistory.UndoOperation<Void> {
+        final String mOwner;
+        final int mIndex;
+        CyclicBarrier mBarrier;
+        Thread mThread;
+
+        Move(String owner, int index) {
+            mOwner = owner;
+            mIndex = index;
+        }
+
+        @Override
+        public Object getOwnerKey() {
+            return mOwner;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+            run("undo");
+        }
+
+        @Override
+        public void redo() {
+            run("redo");
+        }
+
+        private void run(String action) {
+            mThread = Thread.currentThread();
+            if (mBarrier != null) {
+                try {
+                    mBarrier.await(10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IllegalStateException("groups did not run in parallel", e);
+                }
+            }
+            mLog.add(action + " " + mOwner + mIndex);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(3);
+        mHistory = new UndoHistory();
+        mHistory.setParallelUndo(mExecutor, 2);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mExecutor.shutdownNow();
+        mExecutor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private void add(UndoHistory.UndoOperation<?>... ops) {
+        mHistory.beginUpdate("edit");
+        for (UndoHistory.UndoOperation<?> op : ops) {
+            mHistory.addOperation(op);
+        }
+        mHistory.endUpdate();
+    }
+
+    private List<String> logOf(String owner) {
+        ArrayList<String> entries = new ArrayList<>();
+        synchronized (mLog) {
+            for (String entry : mLog) {
+                if (entry.contains(" " + owner)) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    @Test
+    public void undo_runsDifferentOwnersAtTheSameTime() {
+        CyclicBarrier barrier = new CyclicBarrier(3);
+        Move a = new Move("a", 0);
+        Move b = new Move("b", 0);
+        Move c = new Move("c", 0);
+        a.mBarrier = barrier;
+        b.mBarrier = barrier;
+        c.mBarrier = barrier;
+        add(a, b, c);
+        assertEquals(1, mHistory.undo(1));
+        assertEquals(3, mLog.size());
+        // The calling thread runs the group it reaches first itself.
+        assertSame(Thread.currentThread(), c.mThread);
+        assertNotSame(a.mThread, b.mThread);
+        assertNotSame(b.mThread, c.mThread);
+        assertNotSame(a.mThread, c.mThread);
+    }
+
+    @Test
+    public void undoAndRedo_keepTheOrderWithinAnOwner() {
+        add(new Move("a", 0), new Move("b", 0), new Move("a", 1), new Move("b", 1),
+                new Move("a", 2));
+        mHistory.undo(1);
+        assertEquals(list("undo a2", "undo a1", "undo a0"), logOf("a"));
+        assertEquals(list("undo b1", "undo b0"), logOf("b"));
+        mLog.clear();
+        mHistory.redo(1);
+        assertEquals(list("redo a0", "redo a1", "redo a2"), logOf("a"));
+        assertEquals(list("redo b0", "redo b1"), logOf("b"));
+    }
+
+    @Test
+    public void operationsWithoutAKey_areBarriers() {
+        Move barrier = new Move(null, 0) {
+            @Override
+            public void undo() {
+                // Everything after it, which is undone first, has finished.
+                assertEquals(2, mLog.size());
+                super.undo();
+            }
+        };
+        add(new Move("a", 0), new Move("b", 0), barrier, new Move("a", 1), new Move("b", 1));
+        mHistory.undo(1);
+        assertEquals(5, mLog.size());
+        assertEquals("undo null0", mLog.get(2));
+        assertSame(Thread.currentThread(), barrier.mThread);
+    }
+
+    @Test
+    public void smallStates_runSequentially() {
+        Move a = new Move("a", 0);
+        add(a);
+        mHistory.undo(1);
+        assertSame(Thread.currentThread(), a.mThread);
+    }
+
+    @Test
+    public void failures_reachTheCaller() {
+        Move broken = new Move("b", 0) {
+            @Override
+            public void undo() {
+                throw new UnsupportedOperationException("broken");
+            }
+        };
+        add(new Move("a", 0), broken, new Move("c", 0));
+        try {
+            mHistory.undo(1);
+            fail("swallowed a failing operation");
+        } catch (UnsupportedOperationException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        // The other groups still ran to the end.
+        assertEquals(2, mLog.size());
+    }
+
+    private static List<String> list(String... entries) {
+        ArrayList<String> list = new ArrayList<>();
+        Collections.addAll(list, entries);
+        return list;
+    }
+}
@@ -0,0 +1,223 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link UndoHistory#abortUpdate()} and savepoints within an update.
+ */
+public class SavepointTest {
+    private final StringBuilder mLog = new StringBuilder();
+    private int mDocument;
+    private UndoHistory mHistory;
+
+    /** Moves the document to a position; changed in place while dragging. */
+    class Move extends UndoHistory.UndoOperation<Void> {
+        int mFrom;
+        int mTo;
+        boolean mDestroyed;
+
+        Move(int from, int to) {
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+            mDocument = mFrom;
+            mLog.append('u').append(mTo).append(' ');
+        }
+
+        @Override
+        public void redo() {
+            mDocument = mTo;
+            mLog.append('r').append(mTo).append(' ');
+        }
+
+        @Override
+        public void destroy() {
+            mDestroyed = true;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.setHistorySize(-1);
+        mHistory.getOperationCodecs().register(Move.class, new OperationCodec<Move>() {
+            @Override
+            public void write(Move op, HistoryOutput out) {
+                out.writeInt(op.mFrom);
+                out.writeInt(op.mTo);
+            }
+
+            @Override
+            public Move read(HistoryInput in) {
+                return new Move(in.readInt(), in.readInt());
+            }
+        });
+    }
+
+    private void move(CharSequence label, int to, int mergeMode) {
+        mHistory.beginUpdate(label);
+        mHistory.addOperation(new Move(mDocument, to), mergeMode);
+        mDocument = to;
+        mHistory.endUpdate();
+    }
+
+    private Move topOperation() {
+        return (Move) mHistory.getHistorySnapshot().getUndoEntries(0, 1).get(0)
+                .getOperations().get(0);
+    }
+
+    @Test
+    public void abortUpdate_undoesTheUpdateAndKeepsRedos() {
+        move("a", 1, UndoHistory.MERGE_MODE_NONE);
+        move("b", 2, UndoHistory.MERGE_MODE_NONE);
+        mHistory.undo(1);
+        HistorySnapshot before = mHistory.getHistorySnapshot();
+        mLog.setLength(0);
+
+        mHistory.beginUpdate("c");
+        Move first = new Move(1, 5);
+        mHistory.addOperation(first);
+        mHistory.beginUpdate(null);
+        Move second = new Move(5, 6);
+        mHistory.addOperation(second);
+        mHistory.abortUpdate();
+
+        assertEquals("u6 u5 ", mLog.toString());
+        assertTrue(first.mDestroyed && second.mDestroyed);
+        assertFalse(mHistory.isInUpdate());
+        assertEquals(1, mHistory.countUndos());
+        assertEquals(1, mHistory.countRedos());
+        assertSame(before, mHistory.getHistorySnapshot());
+    }
+
+    @Test
+    public void abortUpdate_putsBackAMergedState() {
+        move("a", 1, UndoHistory.MERGE_MODE_NONE);
+        mLog.setLength(0);
+        mHistory.beginUpdate("b");
+        mHistory.addOperation(new Move(1, 2), UndoHistory.MERGE_MODE_ANY);
+        assertEquals(0, mHistory.countUndos());
+        mHistory.abortUpdate();
+        assertEquals("u2 ", mLog.toString());
+        assertEquals(1, mHistory.countUndos());
+        assertEquals("a", mHistory.getUndoLabel());
+        assertEquals(1, mHistory.getHistorySnapshot().getUndoEntries(0, 1).get(0)
+                .countOperations());
+    }
+
+    @Test
+    public void rollbackToSavepoint_undoesOnlyWhatCameAfterIt() {
+        mHistory.beginUpdate("x");
+        mHistory.addOperation(new Move(0, 1));
+        int outer = mHistory.createSavepoint();
+        mHistory.setUndoLabel("y");
+        mHistory.addOperation(new Move(1, 2));
+        int inner = mHistory.createSavepoint();
+        mHistory.addOperation(new Move(2, 3));
+        mHistory.addOperation(new Move(3, 4));
+        assertEquals(1, outer);
+        assertEquals(2, inner);
+
+        mHistory.rollbackToSavepoint(inner);
+        assertEquals("u4 u3 ", mLog.toString());
+        assertEquals(2, mHistory.countSavepoints());
+        mHistory.addOperation(new Move(2, 5));
+        mHistory.rollbackToSavepoint(outer);
+        assertEquals("u4 u3 u5 u2 ", mLog.toString());
+        assertEquals(1, mHistory.countSavepoints());
+        try {
+            mHistory.rollbackToSavepoint(inner);
+            fail("rolled back to a released savepoint");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        mHistory.endUpdate();
+
+        assertEquals(1, mHistory.countUndos());
+        assertEquals("x", mHistory.getUndoLabel());
+        assertEquals(1, mHistory.getHistorySnapshot().getUndoEntries(0, 1).get(0)
+                .countOperations());
+    }
+
+    @Test
+    public void releaseSavepoint_keepsWhatWasAdded() {
+        mHistory.beginUpdate("x");
+        int savepoint = mHistory.createSavepoint();
+        mHistory.addOperation(new Move(0, 1));
+        mHistory.createSavepoint();
+        mHistory.releaseSavepoint(savepoint);
+        assertEquals(0, mHistory.countSavepoints());
+        mHistory.endUpdate();
+        assertEquals("", mLog.toString());
+        assertEquals(1, mHistory.getHistorySnapshot().getUndoEntries(0, 1).get(0)
+                .countOperations());
+    }
+
+    @Test
+    public void rollbackToSavepoint_putsBackAStateMergedIntoAfterIt() {
+        move("a", 1, UndoHistory.MERGE_MODE_NONE);
+        mLog.setLength(0);
+        mHistory.beginUpdate("b");
+        int savepoint = mHistory.createSavepoint();
+        mHistory.addOperation(new Move(1, 2), UndoHistory.MERGE_MODE_ANY);
+        assertEquals(0, mHistory.countUndos());
+        mHistory.rollbackToSavepoint(savepoint);
+        assertEquals("u2 ", mLog.toString());
+        assertEquals(1, mHistory.countUndos());
+        assertTrue(mHistory.isInUpdate());
+        mHistory.endUpdate();
+        assertEquals(1, mHistory.countUndos());
+        assertEquals(1, topOperation().mTo);
+    }
+
+    @Test
+    public void abortUpdate_restoresAnOperationChangedInPlace() {
+        move("a", 5, UndoHistory.MERGE_MODE_NONE);
+        Move committed = topOperation();
+        mHistory.beginUpdate("drag");
+        Move dragged = mHistory.getLastOperation(Move.class, UndoHistory.MERGE_MODE_ANY);
+        assertNotSame(committed, dragged);
+        dragged.mTo = 9;
+        mDocument = 9;
+        mHistory.abortUpdate();
+
+        assertEquals(5, mDocument);
+        assertTrue(dragged.mDestroyed);
+        // The committed operation goes back as it was.
+        assertSame(committed, topOperation());
+        assertEquals(5, committed.mTo);
+        assertFalse(committed.mDestroyed);
+    }
+
+    @Test
+    public void rollbackToSavepoint_restoresAnOperationChangedInPlace() {
+        move("a", 5, UndoHistory.MERGE_MODE_NONE);
+        mHistory.beginUpdate("drag");
+        Move dragged = mHistory.getLastOperation(Move.class, UndoHistory.MERGE_MODE_ANY);
+        int savepoint = mHistory.createSavepoint();
+        dragged.mTo = 7;
+        mDocument = 7;
+        mLog.setLength(0);
+        mHistory.rollbackToSavepoint(savepoint);
+        assertEquals("u7 r5 ", mLog.toString());
+        assertEquals(5, mDocument);
+
+        Move restored = mHistory.getLastOperation(Move.class, UndoHistory.MERGE_MODE_ANY);
+        assertEquals(5, restored.mTo);
+        restored.mTo = 8;
+        mDocument = 8;
+        mHistory.endUpdate();
+        assertEquals(1, mHistory.countUndos());
+        assertEquals(8, topOperation().mTo);
+    }
+}
@@ -0,0 +1,112 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class SharedHistoryTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final SharedHistoryReader.Visitor<Integer> COUNT_UNDOS
+            = new SharedHistoryReader.Visitor<Integer>() {
+                @Override
+                public Integer visit(HistoryImage image) {
+                    return image.countUndos();
+                }
+            };
+
+    private File mFile;
+    private UndoHistory mHistory;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("history", ".shared");
+        mHistory = new UndoHistory();
+        mHistory.getOperationCodecs().register(OperationCodecsTest.Move.class,
+                OperationCodecsTest.MOVE_CODEC);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    private void add(int to) {
+        mHistory.beginUpdate("move");
+        mHistory.addOperation(new OperationCodecsTest.Move(0, to, "a"));
+        mHistory.endUpdate();
+        mHistory.commitState();
+    }
+
+    /**
+     * Flip a byte inside every slot that holds a publication.
+     */
+    private void corruptSlots() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            for (int slot=0; slot<2; slot++) {
+                file.seek(SharedHistoryRegion.slotEntry(slot));
+                final int offset = file.readInt();
+                final int length = file.readInt();
+                if (length > 0) {
+                    file.seek(offset + length - 1);
+                    final int value = file.read();
+                    file.seek(offset + length - 1);
+                    file.write(value ^ 0xff);
+                }
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void read_seesTheLatestPublication() throws IOException {
+        SharedHistoryPublisher publisher = new SharedHistoryPublisher(mHistory, mFile, DIRECT);
+        SharedHistoryReader reader = SharedHistoryReader.open(mFile);
+        try {
+            assertEquals(Integer.valueOf(0), reader.read(COUNT_UNDOS));
+            add(1);
+            add(2);
+            assertEquals(publisher.getPublishCount(), reader.getPublishCount());
+            assertEquals(Integer.valueOf(2), reader.read(COUNT_UNDOS));
+            assertEquals(2, reader.copyImage().countUndos());
+        } finally {
+            publisher.stop();
+            reader.close();
+        }
+        assertTrue(reader.isClosed());
+    }
+
+    @Test
+    public void read_rejectsASlotThatFailsItsChecksum() throws IOException {
+        SharedHistoryPublisher publisher = new SharedHistoryPublisher(mHistory, mFile, DIRECT);
+        SharedHistoryReader reader = SharedHistoryReader.open(mFile);
+        try {
+            add(1);
+            corruptSlots();
+            try {
+                reader.read(COUNT_UNDOS);
+                fail();
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+            }
+        } finally {
+            publisher.stop();
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class SlicedUndoTest {
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+    };
+    private final List<String> mEvents = new ArrayList<>();
+    private final SlicedUndo.Callback mCallback = new SlicedUndo.Callback() {
+        @Override
+        public void onProgress(SlicedUndo run, int done, int total) {
+            mEvents.add("progress " + done + "/" + total);
+        }
+
+        @Override
+        public void onFinished(SlicedUndo run, int done, boolean cancelled) {
+            mEvents.add("finished " + done + (cancelled ? " cancelled" : ""));
+        }
+    };
+    // Every operation takes a millisecond of the fake clock.
+    private long mNow;
+    private int mValue;
+    private UndoHistory mHistory;
+
+    class Add extends UndoHistory.UndoOperation<Void> {
+        final int mDelta;
+
+        Add(int delta) {
+            mDelta = delta;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+            mValue -= mDelta;
+            mNow++;
+        }
+
+        @Override
+        public void redo() {
+            mValue += mDelta;
+            mNow++;
+        }
+    }
+
+    class Failing extends UndoHistory.UndoOperation<Void> {
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+            throw new IllegalStateException("undo failed");
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.setHistorySize(-1);
+        mHistory.setClock(new UndoHistory.Clock() {
+            @Override
+            public long uptimeMillis() {
+                return mNow;
+            }
+        });
+        // Ten states of ten operations each.
+        for (int s = 0; s < 10; s++) {
+            mHistory.beginUpdate("s" + s);
+            for (int i = 0; i < 10; i++) {
+                mHistory.addOperation(new Add(1));
+            }
+            mHistory.endUpdate();
+        }
+        mValue = 100;
+    }
+
+    private int runSlices() {
+        int slices = 0;
+        Runnable slice;
+        while ((slice = mQueue.poll()) != null) {
+            slices++;
+            slice.run();
+        }
+        return slices;
+    }
+
+    @Test
+    public void undoSliced_runsInSlicesAndMovesWholeStates() {
+        SlicedUndo run = mHistory.undoSliced(3, 7, mExecutor, mCallback);
+        // The first slice runs right away and stops inside the first state.
+        assertEquals(93, mValue);
+        assertEquals(10, mHistory.countUndos());
+        assertTrue(mHistory.isInUndo());
+        try {
+            mHistory.undo(1);
+            fail("undo during a sliced run");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        assertTrue(runSlices() > 1);
+        assertEquals(70, mValue);
+        assertEquals(7, mHistory.countUndos());
+        assertEquals(3, mHistory.countRedos());
+        assertFalse(mHistory.isInUndo());
+        assertTrue(run.isFinished());
+        assertFalse(run.isCancelled());
+        assertEquals(Arrays.asList("progress 1/3", "progress 2/3", "progress 3/3",
+                "finished 3"), mEvents);
+    }
+
+    @Test
+    public void cancel_putsBackAPartlyDoneState() {
+        SlicedUndo run = mHistory.undoSliced(5, 15, mExecutor, mCallback);
+        // One whole state and half of the next.
+        assertEquals(85, mValue);
+        assertEquals(9, mHistory.countUndos());
+        run.cancel();
+        assertEquals(90, mValue);
+        assertEquals(9, mHistory.countUndos());
+        assertEquals(1, mHistory.countRedos());
+        assertFalse(mHistory.isInUndo());
+        assertTrue(run.isCancelled());
+        assertEquals(1, run.getDone());
+        assertEquals(Arrays.asList("progress 1/5", "finished 1 cancelled"), mEvents);
+        // The pending slice does nothing, and plain undo works again.
+        runSlices();
+        assertEquals(90, mValue);
+        mHistory.undo(9);
+        assertEquals(0, mValue);
+    }
+
+    @Test
+    public void cancel_fromTheCallbackStopsTheRun() {
+        mHistory.undo(4);
+        assertEquals(60, mValue);
+        SlicedUndo run = mHistory.redoSliced(4, 100, mExecutor, new SlicedUndo.Callback() {
+            @Override
+            public void onProgress(SlicedUndo run, int done, int total) {
+                mEvents.add("progress " + done + "/" + total);
+                if (done == 2) {
+                    run.cancel();
+                }
+            }
+
+            @Override
+            public void onFinished(SlicedUndo run, int done, boolean cancelled) {
+                mEvents.add("finished " + done + (cancelled ? " cancelled" : ""));
+            }
+        });
+        runSlices();
+        assertEquals(80, mValue);
+        assertEquals(8, mHistory.countUndos());
+        assertTrue(run.isCancelled());
+        assertEquals(Arrays.asList("progress 1/4", "progress 2/4", "finished 2 cancelled"),
+                mEvents);
+    }
+
+    @Test
+    public void failingOperation_endsTheRunAndReportsIt() {
+        mHistory.beginUpdate("fails");
+        mHistory.addOperation(new Failing());
+        mHistory.endUpdate();
+        IllegalStateException thrown = null;
+        SlicedUndo run = null;
+        try {
+            run = mHistory.undoSliced(2, 100, mExecutor, mCallback);
+        } catch (IllegalStateException e) {
+            thrown = e;
+        }
+        assertNotNull(thrown);
+        assertNull(run);
+        assertFalse(mHistory.isInUndo());
+        assertEquals(Arrays.asList("finished 0 cancelled"), mEvents);
+        // The history accepts updates again.
+        mHistory.beginUpdate("next");
+        mHistory.addOperation(new Add(1));
+        mHistory.endUpdate();
+    }
+}
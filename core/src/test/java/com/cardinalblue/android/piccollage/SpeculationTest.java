@@ -0,0 +1,165 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class SpeculationTest {
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+    };
+    private final List<String> mEvents = new ArrayList<>();
+    private UndoHistory mHistory;
+
+    class Step extends UndoHistory.UndoOperation<Void> {
+        final String mName;
+        boolean mFailPrepare;
+
+        Step(String name) {
+            mName = name;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public Object prepareUndo() {
+            mEvents.add("prepareUndo " + mName);
+            if (mFailPrepare) {
+                throw new IllegalStateException("prepare failed");
+            }
+            return "undo " + mName;
+        }
+
+        @Override
+        public Object prepareRedo() {
+            mEvents.add("prepareRedo " + mName);
+            return "redo " + mName;
+        }
+
+        @Override
+        public void applyUndo(Object prepared) {
+            mEvents.add("applyUndo " + prepared);
+        }
+
+        @Override
+        public void applyRedo(Object prepared) {
+            mEvents.add("applyRedo " + prepared);
+        }
+
+        @Override
+        public void undo() {
+            mEvents.add("undo " + mName);
+        }
+
+        @Override
+        public void redo() {
+            mEvents.add("redo " + mName);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.setHistorySize(-1);
+    }
+
+    private void add(UndoHistory.UndoOperation<?>... ops) {
+        mHistory.beginUpdate("state");
+        for (UndoHistory.UndoOperation<?> op : ops) {
+            mHistory.addOperation(op);
+        }
+        mHistory.endUpdate();
+        mHistory.commitState();
+    }
+
+    private void runQueue() {
+        Runnable command;
+        while ((command = mQueue.poll()) != null) {
+            command.run();
+        }
+    }
+
+    private List<String> takeEvents() {
+        List<String> events = new ArrayList<>(mEvents);
+        mEvents.clear();
+        return events;
+    }
+
+    @Test
+    public void undo_appliesPreparedResultsInUndoOrder() {
+        add(new Step("a"), new Step("b"));
+        mHistory.setPrepareExecutor(mExecutor);
+        runQueue();
+        assertEquals(Arrays.asList("prepareUndo b", "prepareUndo a"), takeEvents());
+        mHistory.undo(1);
+        assertEquals(Arrays.asList("applyUndo undo b", "applyUndo undo a"), takeEvents());
+    }
+
+    @Test
+    public void redo_appliesPreparedResults() {
+        add(new Step("a"));
+        add(new Step("b"));
+        mHistory.undo(1);
+        takeEvents();
+        mHistory.setPrepareExecutor(mExecutor);
+        runQueue();
+        assertEquals(Arrays.asList("prepareUndo a", "prepareRedo b"), takeEvents());
+        mHistory.redo(1);
+        assertEquals(Arrays.asList("applyRedo redo b"), takeEvents());
+    }
+
+    @Test
+    public void stackChange_discardsPreparedResults() {
+        add(new Step("a"));
+        mHistory.setPrepareExecutor(mExecutor);
+        Runnable stale = mQueue.poll();
+        add(new Step("b"));
+        // A speculation from before the change stops before preparing anything.
+        stale.run();
+        assertEquals(Arrays.asList(), takeEvents());
+        runQueue();
+        assertEquals(Arrays.asList("prepareUndo b"), takeEvents());
+        // Another change throws the results for b away.
+        mHistory.undo(1);
+        mHistory.redo(1);
+        takeEvents();
+        mHistory.undo(1);
+        assertEquals(Arrays.asList("undo b"), takeEvents());
+    }
+
+    @Test
+    public void undo_onlyUsesResultsForTheFirstState() {
+        add(new Step("a"));
+        add(new Step("b"));
+        mHistory.setPrepareExecutor(mExecutor);
+        runQueue();
+        takeEvents();
+        mHistory.undo(2);
+        assertEquals(Arrays.asList("applyUndo undo b", "undo a"), takeEvents());
+    }
+
+    @Test
+    public void prepareFailure_fallsBackToPlainUndo() {
+        Step a = new Step("a");
+        a.mFailPrepare = true;
+        add(a, new Step("b"));
+        mHistory.setPrepareExecutor(mExecutor);
+        runQueue();
+        takeEvents();
+        mHistory.undo(1);
+        assertEquals(Arrays.asList("applyUndo undo b", "undo a"), takeEvents());
+    }
+}
@@ -0,0 +1,120 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class StateDisposerTest {
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+    };
+    private final List<Integer> mDestroyed = new ArrayList<>();
+    private UndoHistory mHistory;
+
+    class Step extends UndoHistory.UndoOperation<Void> {
+        final int mIndex;
+
+        Step(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+
+        @Override
+        public void destroy() {
+            mDestroyed.add(mIndex);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.setHistorySize(-1);
+    }
+
+    private void add(int index) {
+        mHistory.beginUpdate("s" + index);
+        mHistory.addOperation(new Step(index));
+        mHistory.endUpdate();
+        mHistory.commitState();
+    }
+
+    @Test
+    public void newEdit_destroysDiscardedRedosInBatches() {
+        final int count = StateDisposer.BATCH_SIZE * 2 + 10;
+        for (int i = 0; i < count; i++) {
+            add(i);
+        }
+        mHistory.undo(count);
+        mHistory.setDisposeExecutor(mExecutor);
+        add(count);
+        assertEquals(0, mHistory.countRedos());
+        assertTrue(mDestroyed.isEmpty());
+        int tasks = 0;
+        Runnable task;
+        while ((task = mQueue.poll()) != null) {
+            task.run();
+            tasks++;
+            assertTrue(mDestroyed.size() <= tasks * StateDisposer.BATCH_SIZE);
+        }
+        assertEquals(3, tasks);
+        assertEquals(count, mDestroyed.size());
+    }
+
+    @Test
+    public void historySize_destroysTheOldestStates() {
+        for (int i = 0; i < 10; i++) {
+            add(i);
+        }
+        mHistory.setHistorySize(4);
+        assertEquals(4, mHistory.countUndos());
+        assertEquals(6, mDestroyed.size());
+        for (int i = 0; i < 6; i++) {
+            assertTrue(mDestroyed.contains(i));
+        }
+        add(10);
+        assertEquals(4, mHistory.countUndos());
+        assertEquals(7, mDestroyed.size());
+        assertTrue(mDestroyed.contains(6));
+        // The states that are left still undo.
+        mHistory.undo(4);
+        assertEquals(0, mHistory.countUndos());
+        assertEquals(7, mDestroyed.size());
+    }
+
+    @Test
+    public void forgetRedos_destroysOnlyTheFurthestRedos() {
+        for (int i = 0; i < 5; i++) {
+            add(i);
+        }
+        mHistory.undo(5);
+        assertEquals(3, mHistory.forgetRedos(3));
+        assertEquals(2, mHistory.countRedos());
+        assertEquals(3, mDestroyed.size());
+        assertTrue(mDestroyed.contains(2));
+        assertTrue(mDestroyed.contains(3));
+        assertTrue(mDestroyed.contains(4));
+        mHistory.redo(2);
+        assertEquals(2, mHistory.countUndos());
+    }
+}
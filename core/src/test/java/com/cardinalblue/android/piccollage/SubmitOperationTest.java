@@ -0,0 +1,131 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Operations submitted from other threads and drained by the owner.
+ */
+public class SubmitOperationTest {
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+    };
+    private final List<String> mCommitted = new ArrayList<>();
+    private UndoHistory mHistory;
+
+    class Named extends UndoHistory.UndoOperation<Void> {
+        final String mName;
+
+        Named(String name) {
+            mName = name;
+        }
+
+        @Override
+        public void commit() {
+            mCommitted.add(mName);
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.setHistorySize(-1);
+    }
+
+    private int runQueue() {
+        int count = 0;
+        Runnable task;
+        while ((task = mQueue.poll()) != null) {
+            count++;
+            task.run();
+        }
+        return count;
+    }
+
+    @Test
+    public void drainPending_addsSubmissionsInOrder() {
+        mHistory.submitOperation("a", new Named("a"), UndoHistory.MERGE_MODE_NONE);
+        mHistory.submitState("bc", new Named("b"), new Named("c"));
+        mHistory.submitOperation("d", new Named("d"), UndoHistory.MERGE_MODE_NONE);
+        assertTrue(mHistory.hasPending());
+        assertEquals(0, mHistory.countUndos());
+
+        assertEquals(2, mHistory.drainPending(2));
+        assertEquals(2, mHistory.countUndos());
+        assertEquals("bc", mHistory.getUndoLabel());
+        assertEquals(2, mHistory.getHistorySnapshot().getUndoEntries(0, 1).get(0)
+                .countOperations());
+        assertEquals(1, mHistory.drainPending(-1));
+        assertFalse(mHistory.hasPending());
+        assertEquals(3, mHistory.countUndos());
+        assertEquals("a", mCommitted.get(0));
+        assertEquals("d", mCommitted.get(mCommitted.size() - 1));
+    }
+
+    @Test
+    public void executor_drainsWithOneTaskPerBurst() {
+        mHistory.setPendingExecutor(mExecutor);
+        for (int i = 0; i < 5; i++) {
+            mHistory.submitOperation(null, new Named("n" + i), UndoHistory.MERGE_MODE_NONE);
+        }
+        assertEquals(1, mQueue.size());
+        assertEquals(1, runQueue());
+        assertEquals(5, mHistory.countUndos());
+        mHistory.submitOperation(null, new Named("next"), UndoHistory.MERGE_MODE_NONE);
+        assertEquals(1, runQueue());
+        assertEquals(6, mHistory.countUndos());
+    }
+
+    @Test
+    public void executor_waitsForAnUpdateToEnd() {
+        mHistory.setPendingExecutor(mExecutor);
+        mHistory.beginUpdate("owner");
+        mHistory.addOperation(new Named("owner"));
+        mHistory.submitOperation(null, new Named("other"), UndoHistory.MERGE_MODE_NONE);
+        // The drain finds the history busy and does not post itself again.
+        assertEquals(1, runQueue());
+        assertTrue(mQueue.isEmpty());
+        assertTrue(mHistory.hasPending());
+        mHistory.submitOperation(null, new Named("more"), UndoHistory.MERGE_MODE_NONE);
+        assertTrue(mQueue.isEmpty());
+
+        mHistory.endUpdate();
+        assertEquals(1, runQueue());
+        assertEquals(Arrays.asList("owner", "other", "more"), mCommitted);
+        assertEquals(3, mHistory.countUndos());
+    }
+
+    @Test
+    public void setPendingExecutor_drainsWhatWasAlreadySubmitted() {
+        mHistory.submitOperation(null, new Named("early"), UndoHistory.MERGE_MODE_NONE);
+        mHistory.setPendingExecutor(mExecutor);
+        runQueue();
+        assertEquals(Arrays.asList("early"), mCommitted);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void drainPending_failsDuringAnUpdate() {
+        mHistory.beginUpdate("owner");
+        mHistory.drainPending(-1);
+    }
+}
@@ -0,0 +1,148 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TimeWindowMergePolicyTest {
+    private static final long WINDOW = 500;
+
+    private UndoHistory mHistory;
+    private long mNow = 1000;
+
+    static class Type extends UndoHistory.UndoOperation<Void> {
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    static class Slide extends Type {
+    }
+
+    static class Pinned extends Type {
+        @Override
+        public boolean allowMerge() {
+            return false;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.setHistorySize(-1);
+        mHistory.setClock(new UndoHistory.Clock() {
+            @Override
+            public long uptimeMillis() {
+                return mNow;
+            }
+        });
+        mHistory.setMergePolicy(new TimeWindowMergePolicy(WINDOW));
+    }
+
+    private void update(String label, long delay, UndoHistory.UndoOperation<?>... ops) {
+        mNow += delay;
+        mHistory.beginUpdate(label);
+        for (UndoHistory.UndoOperation<?> op : ops) {
+            mHistory.addOperation(op);
+        }
+        mHistory.endUpdate();
+    }
+
+    private int topOperationCount() {
+        return mHistory.getHistorySnapshot().getUndoEntries(0, 1).get(0).countOperations();
+    }
+
+    @Test
+    public void updatesWithinTheWindow_mergeIntoOneState() {
+        for (int i = 0; i < 20; i++) {
+            update("type " + i, WINDOW, new Type());
+        }
+        assertEquals(1, mHistory.countUndos());
+        assertEquals(20, topOperationCount());
+        // The label of the latest update wins.
+        assertEquals("type 19", mHistory.getUndoLabel());
+    }
+
+    @Test
+    public void aPauseLongerThanTheWindow_startsANewState() {
+        update("a", 0, new Type());
+        update("b", WINDOW + 1, new Type());
+        update("c", 10, new Type());
+        assertEquals(2, mHistory.countUndos());
+        assertEquals(2, topOperationCount());
+    }
+
+    @Test
+    public void onlyUpdatesOfTheSameClass_merge() {
+        update("type", 0, new Type());
+        update("slide", 10, new Slide());
+        update("slide", 10, new Slide());
+        update("mixed", 10, new Slide(), new Type());
+        update("mixed", 10, new Slide(), new Type());
+        assertEquals(4, mHistory.countUndos());
+        assertEquals(2, topOperationCount());
+        assertEquals(1, mHistory.getHistorySnapshot().getUndoEntries(3, 1).get(0)
+                .countOperations());
+    }
+
+    @Test
+    public void committedOrNonMergeableStates_areNotMergedInto() {
+        update("type", 0, new Type());
+        mHistory.commitState();
+        update("type", 10, new Type());
+        assertEquals(2, mHistory.countUndos());
+
+        update("pinned", 10, new Pinned());
+        update("pinned", 10, new Pinned());
+        assertEquals(4, mHistory.countUndos());
+
+        update("type", 10, new Type());
+        mHistory.undo(1);
+        mHistory.redo(1);
+        update("type", 10, new Type());
+        assertEquals(6, mHistory.countUndos());
+    }
+
+    @Test
+    public void mergedStates_undoAsOne() {
+        update("a", 0, new Type());
+        update("b", 10, new Type());
+        assertEquals(1, mHistory.undo(1));
+        assertEquals(0, mHistory.countUndos());
+        assertEquals(1, mHistory.countRedos());
+    }
+
+    @Test
+    public void mergeModeUnique_onlyMergesIntoStatesOfTheSameOwner() {
+        mHistory.setMergePolicy(null);
+        mHistory.beginUpdate("slide");
+        mHistory.addOperation(new Slide());
+        mHistory.endUpdate();
+
+        mHistory.beginUpdate("type");
+        mHistory.addOperation(new Type(), UndoHistory.MERGE_MODE_UNIQUE);
+        mHistory.endUpdate();
+        assertEquals(2, mHistory.countUndos());
+
+        mHistory.beginUpdate("type");
+        mHistory.addOperation(new Type(), UndoHistory.MERGE_MODE_UNIQUE);
+        mHistory.endUpdate();
+        assertEquals(2, mHistory.countUndos());
+        assertEquals(2, topOperationCount());
+
+        mHistory.beginUpdate("slide");
+        assertNull(mHistory.getLastOperation(Slide.class, UndoHistory.MERGE_MODE_UNIQUE));
+        mHistory.addOperation(new Slide());
+        mHistory.endUpdate();
+        assertEquals(3, mHistory.countUndos());
+    }
+}
@@ -0,0 +1,135 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TrimHistoryTest {
+    private UndoHistory mHistory;
+    private final List<Edit> mEdits = new ArrayList<>();
+
+    static class Edit extends UndoHistory.UndoOperation<Void> {
+        final int mIndex;
+        boolean mTrimmed;
+        boolean mDestroyed;
+
+        Edit(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void trimMemory() {
+            mTrimmed = true;
+        }
+
+        @Override
+        public void destroy() {
+            mDestroyed = true;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.setHistorySize(20);
+        // 8 undos and 2 redos; edit 7 is on top of the undo stack.
+        for (int i = 0; i < 10; i++) {
+            Edit edit = new Edit(i);
+            mEdits.add(edit);
+            mHistory.beginUpdate("edit " + i);
+            mHistory.addOperation(edit);
+            mHistory.endUpdate();
+        }
+        mHistory.undo(2);
+    }
+
+    private int destroyed() {
+        int count = 0;
+        for (Edit edit : mEdits) {
+            if (edit.mDestroyed) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void trimRedos_onlyDiscardsTheRedoStack() {
+        assertEquals(2, mHistory.trimHistory(UndoHistory.TRIM_REDOS));
+        assertEquals(8, mHistory.countUndos());
+        assertEquals(0, mHistory.countRedos());
+        assertTrue(mEdits.get(8).mDestroyed);
+        assertTrue(mEdits.get(9).mDestroyed);
+        assertEquals(2, destroyed());
+    }
+
+    @Test
+    public void trimHalfUndos_discardsTheOlderHalf() {
+        assertEquals(6, mHistory.trimHistory(UndoHistory.TRIM_HALF_UNDOS));
+        assertEquals(4, mHistory.countUndos());
+        assertEquals("edit 7", mHistory.getUndoLabel());
+        assertTrue(mEdits.get(0).mDestroyed);
+        assertTrue(mEdits.get(3).mDestroyed);
+        assertFalse(mEdits.get(4).mDestroyed);
+        assertFalse(mEdits.get(4).mTrimmed);
+        assertEquals(6, destroyed());
+        // The history size is unchanged, so it grows again.
+        assertEquals(20, mHistory.getHistorySize());
+    }
+
+    @Test
+    public void trimPayloads_trimsEveryStateButTheTop() {
+        assertEquals(6, mHistory.trimHistory(UndoHistory.TRIM_PAYLOADS));
+        assertFalse(mEdits.get(7).mTrimmed);
+        for (int i = 4; i < 7; i++) {
+            assertTrue(mEdits.get(i).mTrimmed);
+        }
+    }
+
+    @Test
+    public void trimTopOnly_keepsTheTopUndoState() {
+        assertEquals(9, mHistory.trimHistory(UndoHistory.TRIM_TOP_ONLY));
+        assertEquals(1, mHistory.countUndos());
+        assertEquals("edit 7", mHistory.getUndoLabel());
+        assertFalse(mEdits.get(7).mDestroyed);
+        assertEquals(9, destroyed());
+        assertEquals(0, mHistory.trimHistory(UndoHistory.TRIM_TOP_ONLY));
+    }
+
+    @Test
+    public void trimHistory_leavesEarlierSnapshotsAlone() {
+        HistorySnapshot before = mHistory.getHistorySnapshot();
+        mHistory.trimHistory(UndoHistory.TRIM_HALF_UNDOS);
+        assertEquals(8, before.countUndos());
+        assertEquals(2, before.countRedos());
+        assertEquals(4, mHistory.getHistorySnapshot().countUndos());
+    }
+
+    @Test
+    public void trimHistory_failsDuringAnUpdate() {
+        mHistory.beginUpdate("edit");
+        try {
+            mHistory.trimHistory(UndoHistory.TRIM_REDOS);
+            fail("trimmed during an update");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        mHistory.endUpdate();
+    }
+}
@@ -0,0 +1,153 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class UndoLabelTest {
+    private static final int MOVE = 0x7f0a0001;
+    private static final int RESIZE = 0x7f0a0002;
+
+    private final AtomicInteger mFormats = new AtomicInteger();
+    private final UndoLabel.Formatter mFormatter = new UndoLabel.Formatter() {
+        @Override
+        public CharSequence format(UndoLabel label) {
+            mFormats.incrementAndGet();
+            String name = label.getId() == MOVE ? "Move" : "Resize";
+            return label.getArgCount() > 0 ? name + " " + label.getArg(0) : name;
+        }
+    };
+    private UndoHistory mHistory;
+
+    static class Step extends UndoHistory.UndoOperation<Void> {
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = newHistory();
+    }
+
+    private static UndoHistory newHistory() {
+        UndoHistory history = new UndoHistory();
+        history.setHistorySize(-1);
+        history.getOperationCodecs().register(Step.class, new OperationCodec<Step>() {
+            @Override
+            public void write(Step op, HistoryOutput out) {
+            }
+
+            @Override
+            public Step read(HistoryInput in) {
+                return new Step();
+            }
+        });
+        return history;
+    }
+
+    @After
+    public void tearDown() {
+        UndoLabel.setFormatter(null);
+    }
+
+    private void add(CharSequence label) {
+        mHistory.beginUpdate(label);
+        mHistory.addOperation(new Step());
+        mHistory.endUpdate();
+        mHistory.commitState();
+    }
+
+    @Test
+    public void of_internsEqualLabels() {
+        UndoLabel label = UndoLabel.of(MOVE, 3);
+        assertSame(label, UndoLabel.of(MOVE, 3));
+        assertEquals(label, UndoLabel.of(MOVE, 3));
+        assertFalse(label.equals(UndoLabel.of(MOVE, 4)));
+        assertFalse(label.equals(UndoLabel.of(MOVE)));
+        assertEquals(1, label.getArgCount());
+        assertEquals(3, label.getArg(0));
+        try {
+            label.getArg(1);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void toString_formatsOnceUntilTheFormatterChanges() {
+        UndoLabel label = UndoLabel.of(RESIZE, 5, 6);
+        assertEquals("#7f0a0002(5,6)", label.toString());
+        UndoLabel.setFormatter(mFormatter);
+        assertEquals("Resize 5", label.toString());
+        assertEquals(8, label.length());
+        assertEquals('R', label.charAt(0));
+        assertEquals(1, mFormats.get());
+        UndoLabel.setFormatter(new UndoLabel.Formatter() {
+            @Override
+            public CharSequence format(UndoLabel label) {
+                return "Changed";
+            }
+        });
+        assertEquals("Changed", label.toString());
+    }
+
+    @Test
+    public void history_formatsLabelsOnlyWhenRead() {
+        UndoLabel.setFormatter(mFormatter);
+        add(UndoLabel.of(MOVE, 1));
+        add(UndoLabel.of(MOVE, 2));
+        assertEquals(0, mFormats.get());
+        CharSequence label = mHistory.getUndoLabel();
+        assertEquals(UndoLabel.of(MOVE, 2), label);
+        assertEquals("Move 2", label.toString());
+    }
+
+    @Test
+    public void saveState_keepsIdsAndArguments() {
+        add("text");
+        add(UndoLabel.of(MOVE, 7));
+        add(UndoLabel.of(MOVE, 7));
+        add(UndoLabel.of(RESIZE));
+        mHistory.undo(1);
+        byte[] saved = mHistory.saveState();
+
+        UndoHistory restored = newHistory();
+        restored.restoreState(saved);
+        assertArrayEquals(saved, restored.saveState());
+        assertEquals(UndoLabel.of(MOVE, 7), restored.getUndoLabel());
+        HistorySnapshot snapshot = restored.getHistorySnapshot();
+        assertEquals(UndoLabel.of(RESIZE), snapshot.getRedoEntries(0, 1).get(0).getLabel());
+        assertEquals("text", snapshot.getUndoEntries(2, 1).get(0).getLabel().toString());
+        // Labels are saved by id, so the formatter decides their text later.
+        UndoLabel.setFormatter(mFormatter);
+        assertEquals("Move 7", restored.getUndoLabel().toString());
+    }
+
+    @Test
+    public void restoreState_rejectsOtherVersions() {
+        add(UndoLabel.of(MOVE));
+        byte[] saved = mHistory.saveState();
+        // The version follows the magic.
+        saved[7] = (byte) (HistorySnapshot.VERSION + 1);
+        try {
+            newHistory().restoreState(saved);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
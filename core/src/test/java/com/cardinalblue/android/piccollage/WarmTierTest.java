@@ -0,0 +1,147 @@
+package com.cardinalblue.android.piccollage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WarmTierTest {
+    private int mValue;
+    private int mDestroyed;
+    private UndoHistory mHistory;
+
+    class Add extends UndoHistory.UndoOperation<Void> {
+        final int mDelta;
+
+        Add(int delta) {
+            mDelta = delta;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+            mValue -= mDelta;
+        }
+
+        @Override
+        public void redo() {
+            mValue += mDelta;
+        }
+
+        @Override
+        public void destroy() {
+            mDestroyed++;
+        }
+    }
+
+    class Unsaved extends Add {
+        Unsaved(int delta) {
+            super(delta);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mHistory = new UndoHistory();
+        mHistory.setHistorySize(-1);
+        mHistory.getOperationCodecs().register(Add.class, new OperationCodec<Add>() {
+            @Override
+            public void write(Add op, HistoryOutput out) {
+                out.writeInt(op.mDelta);
+            }
+
+            @Override
+            public Add read(HistoryInput in) {
+                return new Add(in.readInt());
+            }
+        });
+    }
+
+    private void add(UndoHistory.UndoOperation<?> op) {
+        mHistory.beginUpdate("add");
+        mHistory.addOperation(op);
+        mHistory.endUpdate();
+        mHistory.commitState();
+    }
+
+    /** Add states that each add 1, 2, 4 and so on, so every undo is visible. */
+    private void addStates(int count) {
+        for (int i = 0; i < count; i++) {
+            add(new Add(1 << i));
+            mValue += 1 << i;
+        }
+    }
+
+    @Test
+    public void deepStates_areCompressedAndThawedWhenUndone() {
+        mHistory.setWarmTierDepth(2);
+        addStates(6);
+        WarmTierStats stats = mHistory.getWarmTierStats();
+        assertEquals(4, stats.getCompressions());
+        assertEquals(0, stats.getThaws());
+        assertTrue(stats.getRawBytes() > 0);
+        assertTrue(stats.getCompressedBytes() > 0);
+        // The live operations go once their state is compressed.
+        assertEquals(4, mDestroyed);
+        assertEquals(63, mValue);
+        for (int i = 5; i >= 0; i--) {
+            assertEquals(1, mHistory.undo(1));
+            assertEquals((1 << i) - 1, mValue);
+        }
+        assertEquals(4, mHistory.getWarmTierStats().getThaws());
+        // Deep redo states are compressed just the same.
+        assertTrue(mHistory.getWarmTierStats().getCompressions() > 4);
+        assertEquals(6, mHistory.redo(6));
+        assertEquals(63, mValue);
+    }
+
+    @Test
+    public void snapshot_decodesCopiesWithoutThawing() {
+        mHistory.setWarmTierDepth(1);
+        addStates(3);
+        HistorySnapshot snapshot = mHistory.getHistorySnapshot();
+        HistorySnapshot.Entry deepest = snapshot.getUndoEntries(2, 1).get(0);
+        List<UndoHistory.UndoOperation<?>> ops = deepest.getOperations();
+        assertEquals(1, ops.size());
+        assertEquals(1, ((Add) ops.get(0)).mDelta);
+        WarmTierStats stats = mHistory.getWarmTierStats();
+        assertEquals(1, stats.getInflations());
+        assertEquals(0, stats.getThaws());
+        assertEquals(2, stats.getCompressions());
+    }
+
+    @Test
+    public void savedHistory_isTheSameWhenCompressed() {
+        addStates(5);
+        byte[] live = mHistory.saveState();
+        mHistory.setWarmTierDepth(1);
+        assertArrayEquals(live, mHistory.saveState());
+    }
+
+    @Test
+    public void stateWithoutCodec_staysLive() {
+        mHistory.setWarmTierDepth(1);
+        add(new Unsaved(1));
+        addStates(2);
+        assertEquals(1, mHistory.getWarmTierStats().getCompressions());
+        assertEquals(1, mDestroyed);
+    }
+
+    @Test
+    public void noDepth_thawsEveryState() {
+        mHistory.setWarmTierDepth(1);
+        addStates(4);
+        assertEquals(3, mHistory.getWarmTierStats().getCompressions());
+        mHistory.setWarmTierDepth(-1);
+        assertEquals(3, mHistory.getWarmTierStats().getThaws());
+        addStates(1);
+        assertEquals(3, mHistory.getWarmTierStats().getCompressions());
+        assertEquals(5, mHistory.undo(5));
+        assertEquals(0, mValue);
+    }
+}
@@ -0,0 +1,34 @@
+package com.cardinalblue.android.piccollage;
+
+import android.os.Handler;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Executor that posts its tasks to a {@link Handler}, so they run on the
+ * handler's thread.  Use one created on the thread that owns an
+ * {@link UndoManager} for {@link UndoHistory#setPendingExecutor} and for the
+ * slices of {@link UndoHistory#undoSliced} and {@link UndoHistory#redoSliced}.
+ */
+public class HandlerExecutor implements Executor {
+    private final Handler mHandler;
+
+    /**
+     * Create an executor that posts to a new Handler on the calling thread.
+     */
+    public HandlerExecutor() {
+        this(new Handler());
+    }
+
+    public HandlerExecutor(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (!mHandler.post(command)) {
+            throw new RejectedExecutionException("Handler is shutting down");
+        }
+    }
+}
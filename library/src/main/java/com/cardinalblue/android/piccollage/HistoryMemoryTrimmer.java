@@ -0,0 +1,90 @@
+package com.cardinalblue.android.piccollage;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+/**
+ * Trims an {@link UndoHistory} when the system reports memory pressure, so a
+ * backgrounded app sheds its history instead of being killed.  Register it with
+ * {@link #register}; it maps {@link #onTrimMemory} levels onto
+ * {@link UndoHistory#trimHistory} levels:
+ *
+ * <ul>
+ * <li>{@code TRIM_MEMORY_RUNNING_LOW}: drop the redo stack.</li>
+ * <li>{@code TRIM_MEMORY_RUNNING_CRITICAL} and {@code TRIM_MEMORY_BACKGROUND}:
+ * also drop the older half of the undo stack.</li>
+ * <li>{@code TRIM_MEMORY_MODERATE}: also trim operation payloads.</li>
+ * <li>{@code TRIM_MEMORY_COMPLETE} and {@link #onLowMemory}: keep only the top
+ * undo state.</li>
+ * </ul>
+ *
+ * <p>Memory callbacks are delivered on the main thread, which must be the
+ * thread that owns the history.  Requires API 14.</p>
+ */
+public class HistoryMemoryTrimmer implements ComponentCallbacks2 {
+    private final UndoHistory mHistory;
+
+    public HistoryMemoryTrimmer(UndoHistory history) {
+        mHistory = history;
+    }
+
+    /**
+     * Start receiving memory callbacks through the application context.
+     */
+    public void register(Context context) {
+        context.getApplicationContext().registerComponentCallbacks(this);
+    }
+
+    public void unregister(Context context) {
+        context.getApplicationContext().unregisterComponentCallbacks(this);
+    }
+
+    /**
+     * Return the {@link UndoHistory#trimHistory} level for a
+     * {@link ComponentCallbacks2} trim level, or 0 if nothing should be trimmed.
+     */
+    public static int historyTrimLevel(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            return UndoHistory.TRIM_TOP_ONLY;
+        }
+        if (level >= TRIM_MEMORY_MODERATE) {
+            return UndoHistory.TRIM_PAYLOADS;
+        }
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            return UndoHistory.TRIM_HALF_UNDOS;
+        }
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // Not a sign of memory pressure by itself.
+            return 0;
+        }
+        if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return UndoHistory.TRIM_HALF_UNDOS;
+        }
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            return UndoHistory.TRIM_REDOS;
+        }
+        return 0;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        trim(historyTrimLevel(level));
+    }
+
+    @Override
+    public void onLowMemory() {
+        trim(UndoHistory.TRIM_TOP_ONLY);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    private void trim(int level) {
+        if (level == 0 || mHistory.isInUpdate()) {
+            return;
+        }
+        mHistory.trimHistory(level);
+    }
+}
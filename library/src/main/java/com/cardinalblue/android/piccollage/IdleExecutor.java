@@ -0,0 +1,47 @@
+package com.cardinalblue.android.piccollage;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Executor that runs its tasks on the thread that created it, one at a time,
+ * whenever that thread's looper goes idle.  Use it for
+ * {@link UndoHistory#setPrepareExecutor} to prepare undo and redo in the gaps
+ * between user input instead of on a background thread, for operations that
+ * can't be prepared off the owning thread.
+ *
+ * <p>Must be created and used on a thread that has a {@link Looper}.</p>
+ */
+public class IdleExecutor implements Executor, MessageQueue.IdleHandler {
+    private final MessageQueue mQueue;
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private boolean mRegistered;
+
+    public IdleExecutor() {
+        mQueue = Looper.myQueue();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        mTasks.add(command);
+        if (!mRegistered) {
+            mRegistered = true;
+            mQueue.addIdleHandler(this);
+        }
+    }
+
+    @Override
+    public boolean queueIdle() {
+        Runnable task = mTasks.poll();
+        if (task != null) {
+            task.run();
+        }
+        // Stay registered while there is more to do; the looper calls us again
+        // the next time it goes idle.
+        mRegistered = !mTasks.isEmpty();
+        return mRegistered;
+    }
+}
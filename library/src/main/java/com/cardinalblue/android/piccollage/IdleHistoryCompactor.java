@@ -0,0 +1,68 @@
+package com.cardinalblue.android.piccollage;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+
+/**
+ * Runs {@link UndoHistory#compactHistory} whenever the looper of the thread that
+ * owns the history goes idle after the history changed, so old undo states are
+ * compacted without competing with user input.
+ *
+ * <p>Must be created and stopped on the thread that owns the history, which must
+ * have a {@link Looper}.</p>
+ */
+public class IdleHistoryCompactor implements UndoHistory.OnHistoryChangedListener,
+        MessageQueue.IdleHandler {
+    private final UndoHistory mHistory;
+    private final MessageQueue mQueue;
+    private final int mKeepDepth;
+    private boolean mQueued;
+    private boolean mCompacting;
+
+    /**
+     * @param keepDepth Number of states at the top of each stack that are never
+     * compacted.
+     */
+    public IdleHistoryCompactor(UndoHistory history, int keepDepth) {
+        mHistory = history;
+        mQueue = Looper.myQueue();
+        mKeepDepth = keepDepth;
+        history.addOnHistoryChangedListener(this);
+    }
+
+    /**
+     * Stop compacting the history.
+     */
+    public void stop() {
+        mHistory.removeOnHistoryChangedListener(this);
+        if (mQueued) {
+            mQueue.removeIdleHandler(this);
+            mQueued = false;
+        }
+    }
+
+    @Override
+    public void onHistoryChanged(UndoHistory history, HistorySnapshot snapshot) {
+        if (!mQueued && !mCompacting) {
+            mQueued = true;
+            mQueue.addIdleHandler(this);
+        }
+    }
+
+    @Override
+    public boolean queueIdle() {
+        mQueued = false;
+        if (mHistory.isInUpdate() || mHistory.isInUndo()) {
+            // Try again the next time the looper goes idle.
+            mQueued = true;
+            return true;
+        }
+        mCompacting = true;
+        try {
+            mHistory.compactHistory(mKeepDepth);
+        } finally {
+            mCompacting = false;
+        }
+        return false;
+    }
+}
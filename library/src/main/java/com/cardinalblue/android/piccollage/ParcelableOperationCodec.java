@@ -0,0 +1,94 @@
+package com.cardinalblue.android.piccollage;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link OperationCodec} for operations that implement {@link Parcelable}.  The
+ * operation is flattened into a Parcel and saved as its marshalled bytes; it is
+ * recreated through the class's {@code CREATOR}.
+ */
+final class ParcelableOperationCodec implements OperationCodec<UndoHistory.UndoOperation<?>> {
+    private final Parcelable.Creator<?> mCreator;
+    private final ClassLoader mLoader;
+
+    ParcelableOperationCodec(Parcelable.Creator<?> creator, ClassLoader loader) {
+        mCreator = creator;
+        mLoader = loader;
+    }
+
+    @Override
+    public void write(UndoHistory.UndoOperation<?> op, HistoryOutput out) {
+        Parcel p = Parcel.obtain();
+        try {
+            ((Parcelable) op).writeToParcel(p, 0);
+            out.writeByteArray(p.marshall());
+        } finally {
+            p.recycle();
+        }
+    }
+
+    @Override
+    public UndoHistory.UndoOperation<?> read(HistoryInput in) {
+        byte[] data = in.readByteArray();
+        Parcel p = Parcel.obtain();
+        try {
+            p.unmarshall(data, 0, data.length);
+            p.setDataPosition(0);
+            Object op;
+            if (mCreator instanceof Parcelable.ClassLoaderCreator) {
+                op = ((Parcelable.ClassLoaderCreator<?>) mCreator).createFromParcel(p, mLoader);
+            } else {
+                op = mCreator.createFromParcel(p);
+            }
+            return (UndoHistory.UndoOperation<?>) op;
+        } finally {
+            p.recycle();
+        }
+    }
+
+    /**
+     * Provides a {@link ParcelableOperationCodec} for every Parcelable operation class.
+     */
+    static final class Provider implements OperationCodecs.Provider {
+        private final ClassLoader mLoader;
+        private final ConcurrentHashMap<String, ParcelableOperationCodec> mCodecs
+                = new ConcurrentHashMap<>();
+
+        Provider(ClassLoader loader) {
+            mLoader = loader;
+        }
+
+        @Override
+        public OperationCodec<?> forClass(Class<?> clazz) {
+            if (!Parcelable.class.isAssignableFrom(clazz)) {
+                return null;
+            }
+            return forName(clazz.getName());
+        }
+
+        @Override
+        public OperationCodec<?> forName(String typeName) {
+            ParcelableOperationCodec codec = mCodecs.get(typeName);
+            if (codec == null) {
+                codec = new ParcelableOperationCodec(findCreator(typeName), mLoader);
+                mCodecs.put(typeName, codec);
+            }
+            return codec;
+        }
+
+        private Parcelable.Creator<?> findCreator(String typeName) {
+            try {
+                Class<?> clazz = Class.forName(typeName, false, mLoader);
+                Field f = clazz.getField("CREATOR");
+                return (Parcelable.Creator<?>) f.get(null);
+            } catch (ClassNotFoundException | NoSuchFieldException | IllegalAccessException e) {
+                throw new IllegalStateException("Parcelable protocol requires a CREATOR on "
+                        + typeName, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.cardinalblue.android.piccollage;
+
+import android.content.res.Resources;
+
+/**
+ * {@link UndoLabel.Formatter} that treats label ids as string resources and
+ * formats the arguments into them, as {@link Resources#getString(int, Object...)}
+ * does.  Install it once for the whole app:
+ *
+ * <pre>
+ * UndoLabel.setFormatter(new ResourceLabelFormatter(context.getApplicationContext()
+ *         .getResources()));
+ * </pre>
+ *
+ * <p>Install a new one when the configuration changes, so labels are formatted
+ * again for the new locale.</p>
+ */
+public class ResourceLabelFormatter implements UndoLabel.Formatter {
+    private final Resources mResources;
+
+    public ResourceLabelFormatter(Resources resources) {
+        mResources = resources;
+    }
+
+    @Override
+    public CharSequence format(UndoLabel label) {
+        final int N = label.getArgCount();
+        if (N == 0) {
+            return mResources.getString(label.getId());
+        }
+        Object[] args = new Object[N];
+        for (int i=0; i<N; i++) {
+            args[i] = label.getArg(i);
+        }
+        return mResources.getString(label.getId(), args);
+    }
+}
@@ -0,0 +1,78 @@
+package com.cardinalblue.android.piccollage;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.lang.reflect.Method;
+
+/**
+ * {@link HistoryTracer} that reports sections to systrace through
+ * {@link android.os.Trace}, so undo stalls show up in platform profiling
+ * captures.  Tracing is disabled on devices older than API 18, which have no
+ * public trace API.
+ *
+ * <p>{@link #isEnabled()} asks the platform whether an app trace is being
+ * captured, through {@code Trace.isEnabled()} on API 29 and later and the
+ * hidden {@code Trace.isTagEnabled()} before that, so the history skips its
+ * tracing work while nobody is capturing.  Both are looked up reflectively,
+ * once; if that fails, tracing is assumed to be enabled.</p>
+ */
+public class SystraceHistoryTracer implements HistoryTracer {
+    // Section names longer than this are rejected by the platform.
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+    // Build.VERSION_CODES.Q, which added Trace.isEnabled().
+    private static final int API_IS_ENABLED = 29;
+
+    private static final boolean SUPPORTED
+            = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    private static Method sIsEnabled;
+    private static Object[] sIsEnabledArgs;
+
+    static {
+        if (SUPPORTED) {
+            try {
+                if (Build.VERSION.SDK_INT >= API_IS_ENABLED) {
+                    sIsEnabled = Trace.class.getMethod("isEnabled");
+                    sIsEnabledArgs = new Object[0];
+                } else {
+                    sIsEnabled = Trace.class.getMethod("isTagEnabled", long.class);
+                    sIsEnabledArgs = new Object[] {
+                            Trace.class.getField("TRACE_TAG_APP").getLong(null) };
+                }
+            } catch (Exception e) {
+                sIsEnabled = null;
+            }
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        if (!SUPPORTED) {
+            return false;
+        }
+        final Method isEnabled = sIsEnabled;
+        if (isEnabled == null) {
+            return true;
+        }
+        try {
+            return (Boolean) isEnabled.invoke(null, sIsEnabledArgs);
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    @Override
+    public void beginSection(String name) {
+        if (name.length() > MAX_SECTION_NAME_LENGTH) {
+            // Keep the end of class names, which is the part that tells them apart.
+            name = name.substring(name.length() - MAX_SECTION_NAME_LENGTH);
+        }
+        Trace.beginSection(name);
+    }
+
+    @Override
+    public void endSection() {
+        Trace.endSection();
+    }
+}
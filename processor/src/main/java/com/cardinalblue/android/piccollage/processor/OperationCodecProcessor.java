@@ -0,0 +1,411 @@
+package com.cardinalblue.android.piccollage.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates an {@code OperationCodec} for every class annotated with
+ * {@code @SavedOperation}, and an {@code OperationCodecTable} per package that
+ * registers them all, so operations are saved and restored without reflection
+ * and without hand-written serialization code.
+ */
+public class OperationCodecProcessor extends AbstractProcessor {
+    static final String PACKAGE = "com.cardinalblue.android.piccollage";
+    static final String SAVED_OPERATION = PACKAGE + ".SavedOperation";
+    static final String SAVED_FIELD = PACKAGE + ".SavedField";
+    static final String UNDO_OPERATION = PACKAGE + ".UndoHistory.UndoOperation";
+    static final String CODEC_SUFFIX = "_Codec";
+    static final String TABLE_NAME = "OperationCodecTable";
+
+    private Elements mElements;
+    private Types mTypes;
+    private Filer mFiler;
+    private Messager mMessager;
+    // Codecs generated in the current round, by package, for the tables written
+    // at the end of the round.
+    private final Map<String, Map<String, String>> mCodecsByPackage = new TreeMap<>();
+    private final Set<String> mTablePackages = new HashSet<>();
+
+    @Override
+    public synchronized void init(ProcessingEnvironment env) {
+        super.init(env);
+        mElements = env.getElementUtils();
+        mTypes = env.getTypeUtils();
+        mFiler = env.getFiler();
+        mMessager = env.getMessager();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        // @SavedField is only read through the classes that carry
+        // @SavedOperation, but is claimed too so no other processor is asked
+        // about it and javac doesn't warn that nothing processed it.
+        return new HashSet<>(Arrays.asList(SAVED_OPERATION, SAVED_FIELD));
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        TypeElement annotation = mElements.getTypeElement(SAVED_OPERATION);
+        if (annotation != null) {
+            for (Element element : round.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS) {
+                    error(element, "@SavedOperation only applies to classes");
+                    continue;
+                }
+                generateCodec((TypeElement) element);
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> entry : mCodecsByPackage.entrySet()) {
+            if (!mTablePackages.add(entry.getKey())) {
+                mMessager.printMessage(Diagnostic.Kind.ERROR, "@SavedOperation classes of "
+                        + entry.getKey() + " were found in more than one processing round");
+                continue;
+            }
+            generateTable(entry.getKey(), entry.getValue());
+        }
+        mCodecsByPackage.clear();
+        return true;
+    }
+
+    private void generateCodec(TypeElement type) {
+        if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+            error(type, "@SavedOperation classes must not be abstract");
+            return;
+        }
+        if (type.getModifiers().contains(Modifier.PRIVATE)) {
+            error(type, "@SavedOperation classes must not be private");
+            return;
+        }
+        if (type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC)) {
+            error(type, "@SavedOperation classes must not be inner classes");
+            return;
+        }
+        TypeElement undoOperation = mElements.getTypeElement(UNDO_OPERATION);
+        if (undoOperation == null || !mTypes.isSubtype(mTypes.erasure(type.asType()),
+                mTypes.erasure(undoOperation.asType()))) {
+            error(type, "@SavedOperation classes must extend UndoHistory.UndoOperation");
+            return;
+        }
+        List<VariableElement> fields = savedFields(type);
+        if (fields == null) {
+            return;
+        }
+        String constructor = constructorCall(type, fields);
+        if (constructor == null) {
+            return;
+        }
+
+        String pkg = mElements.getPackageOf(type).getQualifiedName().toString();
+        String typeName = sourceName(type, pkg);
+        String codecName = typeName.replace('.', '_') + CODEC_SUFFIX;
+        StringBuilder sb = new StringBuilder();
+        sb.append("// Generated by OperationCodecProcessor.  Do not edit.\n");
+        if (!pkg.isEmpty()) {
+            sb.append("package ").append(pkg).append(";\n\n");
+        }
+        sb.append("import ").append(PACKAGE).append(".HistoryInput;\n");
+        sb.append("import ").append(PACKAGE).append(".HistoryOutput;\n");
+        sb.append("import ").append(PACKAGE).append(".OperationCodec;\n\n");
+        sb.append("public final class ").append(codecName)
+                .append(" implements OperationCodec<").append(typeName).append("> {\n");
+        sb.append("    @Override\n");
+        sb.append("    public void write(").append(typeName).append(" op, HistoryOutput out) {\n");
+        for (VariableElement field : fields) {
+            sb.append("        ").append(writeStatement(field)).append('\n');
+        }
+        sb.append("    }\n\n");
+        sb.append("    @Override\n");
+        sb.append("    public ").append(typeName).append(" read(HistoryInput in) {\n");
+        for (VariableElement field : fields) {
+            sb.append("        ").append(field.asType()).append(' ')
+                    .append(local(field)).append(" = ").append(readExpression(field))
+                    .append(";\n");
+        }
+        sb.append(constructor);
+        sb.append("    }\n");
+        sb.append("}\n");
+        write(pkg.isEmpty() ? codecName : pkg + "." + codecName, sb.toString(), type);
+
+        Map<String, String> codecs = mCodecsByPackage.get(pkg);
+        if (codecs == null) {
+            codecs = new TreeMap<>();
+            mCodecsByPackage.put(pkg, codecs);
+        }
+        codecs.put(typeName, codecName);
+    }
+
+    /**
+     * Return the saved fields of <var>type</var>, superclass fields first, or null
+     * after reporting an error.
+     */
+    private List<VariableElement> savedFields(TypeElement type) {
+        ArrayList<TypeElement> hierarchy = new ArrayList<>();
+        for (TypeElement t = type; t != null; t = superclassOf(t)) {
+            hierarchy.add(0, t);
+        }
+        TypeElement savedField = mElements.getTypeElement(SAVED_FIELD);
+        String pkg = mElements.getPackageOf(type).getQualifiedName().toString();
+        List<VariableElement> fields = new ArrayList<>();
+        HashMap<String, VariableElement> byName = new HashMap<>();
+        boolean ok = true;
+        for (TypeElement t : hierarchy) {
+            for (VariableElement field : ElementFilter.fieldsIn(t.getEnclosedElements())) {
+                if (!hasAnnotation(field, savedField)) {
+                    continue;
+                }
+                Set<Modifier> modifiers = field.getModifiers();
+                if (modifiers.contains(Modifier.STATIC)) {
+                    ok = error(field, "@SavedField fields must not be static");
+                } else if (modifiers.contains(Modifier.PRIVATE)) {
+                    ok = error(field, "@SavedField fields must not be private");
+                } else if (!modifiers.contains(Modifier.PUBLIC)
+                        && !mElements.getPackageOf(t).getQualifiedName().contentEquals(pkg)) {
+                    // The codec lives in the operation's package and isn't a
+                    // subclass, so even protected fields are out of its reach.
+                    ok = error(field, "@SavedField fields in another package must be public");
+                } else if (writeStatement(field) == null) {
+                    ok = error(field, "@SavedField type " + field.asType()
+                            + " is not supported");
+                } else if (byName.put(field.getSimpleName().toString(), field) != null) {
+                    ok = error(field, "@SavedField " + field.getSimpleName()
+                            + " hides another saved field");
+                } else {
+                    fields.add(field);
+                }
+            }
+        }
+        return ok ? fields : null;
+    }
+
+    /**
+     * Return the statements that build and return the operation from the locals
+     * of its saved fields, or null after reporting an error.
+     */
+    private String constructorCall(TypeElement type, List<VariableElement> fields) {
+        String typeName = sourceName(type,
+                mElements.getPackageOf(type).getQualifiedName().toString());
+        Map<String, TypeMirror> saved = new LinkedHashMap<>();
+        for (VariableElement field : fields) {
+            saved.put(field.getSimpleName().toString(), field.asType());
+        }
+        ExecutableElement noArgs = null;
+        for (ExecutableElement ctor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (ctor.getModifiers().contains(Modifier.PRIVATE)) {
+                continue;
+            }
+            List<? extends VariableElement> params = ctor.getParameters();
+            if (params.isEmpty()) {
+                noArgs = ctor;
+            }
+            if (params.size() != saved.size()) {
+                continue;
+            }
+            StringBuilder args = new StringBuilder();
+            boolean matches = true;
+            for (VariableElement param : params) {
+                TypeMirror fieldType = saved.get(param.getSimpleName().toString());
+                if (fieldType == null || !mTypes.isSameType(fieldType, param.asType())) {
+                    matches = false;
+                    break;
+                }
+                if (args.length() > 0) {
+                    args.append(", ");
+                }
+                args.append('$').append(param.getSimpleName());
+            }
+            if (matches) {
+                return "        return new " + typeName + "(" + args + ");\n";
+            }
+        }
+        if (noArgs != null) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("        ").append(typeName).append(" op = new ").append(typeName)
+                    .append("();\n");
+            for (VariableElement field : fields) {
+                if (field.getModifiers().contains(Modifier.FINAL)) {
+                    error(field, "@SavedField " + field.getSimpleName() + " is final, but "
+                            + type.getSimpleName() + " has no constructor taking all saved fields");
+                    return null;
+                }
+                sb.append("        op.").append(field.getSimpleName()).append(" = ")
+                        .append(local(field)).append(";\n");
+            }
+            sb.append("        return op;\n");
+            return sb.toString();
+        }
+        error(type, type.getSimpleName() + " needs a constructor whose parameters are named "
+                + "after its saved fields " + saved.keySet() + ", or a no-argument constructor");
+        return null;
+    }
+
+    private void generateTable(String pkg, Map<String, String> codecs) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("// Generated by OperationCodecProcessor.  Do not edit.\n");
+        if (!pkg.isEmpty()) {
+            sb.append("package ").append(pkg).append(";\n\n");
+        }
+        sb.append("import ").append(PACKAGE).append(".OperationCodecs;\n\n");
+        sb.append("/**\n");
+        sb.append(" * Codecs of the {@code @SavedOperation} classes in this package.\n");
+        sb.append(" */\n");
+        sb.append("public final class ").append(TABLE_NAME).append(" {\n");
+        sb.append("    private ").append(TABLE_NAME).append("() {\n");
+        sb.append("    }\n\n");
+        sb.append("    public static void registerAll(OperationCodecs codecs) {\n");
+        for (Map.Entry<String, String> entry : codecs.entrySet()) {
+            sb.append("        codecs.register(").append(entry.getKey()).append(".class, new ")
+                    .append(entry.getValue()).append("());\n");
+        }
+        sb.append("    }\n");
+        sb.append("}\n");
+        write(pkg.isEmpty() ? TABLE_NAME : pkg + "." + TABLE_NAME, sb.toString());
+    }
+
+    /**
+     * Return the name of the local that holds <var>field</var> in the generated
+     * {@code read}.  Field locals all start with '$', so they can't clash with
+     * {@code in} or {@code op} whatever the fields are called.
+     */
+    private static String local(VariableElement field) {
+        return "$" + field.getSimpleName();
+    }
+
+    private static String writeStatement(VariableElement field) {
+        String value = "op." + field.getSimpleName();
+        TypeMirror type = field.asType();
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "out.writeInt(" + value + " ? 1 : 0);";
+            case BYTE:
+            case SHORT:
+            case CHAR:
+            case INT:
+                return "out.writeInt(" + value + ");";
+            case LONG:
+                return "out.writeLong(" + value + ");";
+            case FLOAT:
+            case DOUBLE:
+                return "out.writeDouble(" + value + ");";
+            case ARRAY:
+                return type.toString().equals("byte[]") ? "out.writeByteArray(" + value + ");"
+                        : null;
+            case DECLARED:
+                return isString(type) ? "out.writeString(" + value + ");" : null;
+            default:
+                return null;
+        }
+    }
+
+    private static String readExpression(VariableElement field) {
+        TypeMirror type = field.asType();
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "in.readInt() != 0";
+            case BYTE:
+                return "(byte) in.readInt()";
+            case SHORT:
+                return "(short) in.readInt()";
+            case CHAR:
+                return "(char) in.readInt()";
+            case INT:
+                return "in.readInt()";
+            case LONG:
+                return "in.readLong()";
+            case FLOAT:
+                return "(float) in.readDouble()";
+            case DOUBLE:
+                return "in.readDouble()";
+            case ARRAY:
+                return "in.readByteArray()";
+            default:
+                return "in.readString()";
+        }
+    }
+
+    private static boolean isString(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && ((TypeElement) ((DeclaredType) type)
+                .asElement()).getQualifiedName().contentEquals("java.lang.String");
+    }
+
+    private TypeElement superclassOf(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        return (TypeElement) mTypes.asElement(superclass);
+    }
+
+    private static boolean hasAnnotation(Element element, TypeElement annotation) {
+        if (annotation == null) {
+            return false;
+        }
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (mirror.getAnnotationType().asElement().equals(annotation)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the name of <var>type</var> as written in its own package, including
+     * the names of enclosing classes.
+     */
+    private static String sourceName(TypeElement type, String pkg) {
+        String name = type.getQualifiedName().toString();
+        return pkg.isEmpty() ? name : name.substring(pkg.length() + 1);
+    }
+
+    private void write(String name, String source, Element... originating) {
+        try {
+            Writer writer = mFiler.createSourceFile(name, originating).openWriter();
+            try {
+                writer.write(source);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "Can't write " + name + ": " + e);
+        }
+    }
+
+    private boolean error(Element element, String message) {
+        mMessager.printMessage(Diagnostic.Kind.ERROR, message, element);
+        return false;
+    }
+}
@@ -0,0 +1,255 @@
+package com.cardinalblue.android.piccollage.processor;
+
+import com.cardinalblue.android.piccollage.OperationCodecs;
+import com.cardinalblue.android.piccollage.UndoHistory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs javac with the processor over small operation classes, and checks the
+ * codecs it generates and the errors it reports.
+ */
+public class OperationCodecProcessorTest {
+    private static final String HEADER = "package test;\n"
+            + "import com.cardinalblue.android.piccollage.SavedField;\n"
+            + "import com.cardinalblue.android.piccollage.SavedOperation;\n"
+            + "import com.cardinalblue.android.piccollage.UndoHistory;\n";
+    private static final String BODY = "    public void commit() {}\n"
+            + "    public void undo() {}\n"
+            + "    public void redo() {}\n";
+
+    private File mOut;
+    private final DiagnosticCollector<JavaFileObject> mDiagnostics = new DiagnosticCollector<>();
+
+    private static JavaFileObject source(final String name, final String code) {
+        return new SimpleJavaFileObject(URI.create("string:///test/" + name + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return HEADER + code;
+            }
+        };
+    }
+
+    @Before
+    public void setUp() {
+        mOut = new File(System.getProperty("java.io.tmpdir"),
+                "codec-processor-" + System.nanoTime());
+        assertTrue(mOut.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        delete(mOut);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private boolean compile(JavaFileObject... sources) throws Exception {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager files = javac.getStandardFileManager(mDiagnostics, null, null);
+        try {
+            // -Xlint:processing reports annotations that no processor claimed.
+            List<String> options = Arrays.asList("-classpath",
+                    System.getProperty("java.class.path"), "-d", mOut.getPath(),
+                    "-s", mOut.getPath(), "-Xlint:processing");
+            JavaCompiler.CompilationTask task = javac.getTask(null, files, mDiagnostics,
+                    options, null, Arrays.asList(sources));
+            task.setProcessors(Collections.singletonList(new OperationCodecProcessor()));
+            return task.call();
+        } finally {
+            files.close();
+        }
+    }
+
+    private List<String> errors() {
+        ArrayList<String> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> d : mDiagnostics.getDiagnostics()) {
+            if (d.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(d.getMessage(Locale.ROOT));
+            }
+        }
+        return errors;
+    }
+
+    private List<String> warnings() {
+        ArrayList<String> warnings = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> d : mDiagnostics.getDiagnostics()) {
+            if (d.getKind() == Diagnostic.Kind.WARNING
+                    || d.getKind() == Diagnostic.Kind.MANDATORY_WARNING) {
+                warnings.add(d.getMessage(Locale.ROOT));
+            }
+        }
+        return warnings;
+    }
+
+    private void assertError(String expected, JavaFileObject source) throws Exception {
+        assertFalse(compile(source));
+        for (String error : errors()) {
+            if (error.contains(expected)) {
+                return;
+            }
+        }
+        fail("no error containing \"" + expected + "\" in " + errors());
+    }
+
+    /**
+     * Save <var>op</var> with the generated codecs and return the operation
+     * they restore.
+     */
+    private UndoHistory.UndoOperation<?> roundTrip(ClassLoader loader,
+            UndoHistory.UndoOperation<?> op) throws Exception {
+        UndoHistory history = new UndoHistory();
+        register(loader, history.getOperationCodecs());
+        history.beginUpdate("op");
+        history.addOperation(op);
+        history.endUpdate();
+        UndoHistory restored = new UndoHistory();
+        register(loader, restored.getOperationCodecs());
+        restored.restoreState(history.saveState());
+        return restored.getHistorySnapshot().getUndoEntries(0, 1).get(0).getOperations().get(0);
+    }
+
+    private static void register(ClassLoader loader, OperationCodecs codecs) throws Exception {
+        loader.loadClass("test.OperationCodecTable")
+                .getMethod("registerAll", OperationCodecs.class).invoke(null, codecs);
+    }
+
+    private static Object field(Object obj, String name) throws Exception {
+        return obj.getClass().getField(name).get(obj);
+    }
+
+    @Test
+    public void constructorTakingAllFields_isUsedToRestore() throws Exception {
+        assertTrue(errors().toString(), compile(source("Move",
+                "@SavedOperation\n"
+                + "public class Move extends UndoHistory.UndoOperation<Void> {\n"
+                + "    @SavedField public final int mTo;\n"
+                + "    @SavedField public final String mName;\n"
+                + "    @SavedField public final byte[] mData;\n"
+                + "    public Move(String mName, byte[] mData, int mTo) {\n"
+                + "        this.mTo = mTo; this.mName = mName; this.mData = mData;\n"
+                + "    }\n"
+                + BODY
+                + "}\n")));
+        assertTrue(warnings().toString(), warnings().isEmpty());
+        ClassLoader loader = new URLClassLoader(new URL[] { mOut.toURI().toURL() },
+                getClass().getClassLoader());
+        Class<?> move = loader.loadClass("test.Move");
+        Object op = move.getConstructor(String.class, byte[].class, int.class)
+                .newInstance("sticker", new byte[] { 1, 2 }, 7);
+        Object restored = roundTrip(loader, (UndoHistory.UndoOperation<?>) op);
+        assertNotSame(op, restored);
+        assertEquals(7, field(restored, "mTo"));
+        assertEquals("sticker", field(restored, "mName"));
+        assertArrayEquals(new byte[] { 1, 2 }, (byte[]) field(restored, "mData"));
+    }
+
+    @Test
+    public void noArgumentConstructor_assignsTheFields() throws Exception {
+        assertTrue(errors().toString(), compile(source("Base",
+                "public abstract class Base extends UndoHistory.UndoOperation<Void> {\n"
+                + "    @SavedField public long mTime;\n"
+                + "}\n"), source("Scale",
+                "@SavedOperation\n"
+                + "public class Scale extends Base {\n"
+                + "    @SavedField public float mFactor;\n"
+                + "    @SavedField public boolean mUniform;\n"
+                + "    public Scale() {}\n"
+                + BODY
+                + "}\n")));
+        ClassLoader loader = new URLClassLoader(new URL[] { mOut.toURI().toURL() },
+                getClass().getClassLoader());
+        Object op = loader.loadClass("test.Scale").newInstance();
+        op.getClass().getField("mTime").setLong(op, 123L);
+        op.getClass().getField("mFactor").setFloat(op, 1.5f);
+        op.getClass().getField("mUniform").setBoolean(op, true);
+        Object restored = roundTrip(loader, (UndoHistory.UndoOperation<?>) op);
+        assertEquals(123L, field(restored, "mTime"));
+        assertEquals(1.5f, field(restored, "mFactor"));
+        assertEquals(true, field(restored, "mUniform"));
+    }
+
+    @Test
+    public void finalFieldsWithoutAMatchingConstructor_areAnError() throws Exception {
+        assertError("is final, but Pinned has no constructor taking all saved fields",
+                source("Pinned",
+                "@SavedOperation\n"
+                + "public class Pinned extends UndoHistory.UndoOperation<Void> {\n"
+                + "    @SavedField final int mX = 1;\n"
+                + "    public Pinned() {}\n"
+                + BODY
+                + "}\n"));
+    }
+
+    @Test
+    public void missingConstructor_isAnError() throws Exception {
+        assertError("needs a constructor whose parameters are named after its saved fields",
+                source("Resize",
+                "@SavedOperation\n"
+                + "public class Resize extends UndoHistory.UndoOperation<Void> {\n"
+                + "    @SavedField final int mWidth;\n"
+                + "    public Resize(int width) { mWidth = width; }\n"
+                + BODY
+                + "}\n"));
+    }
+
+    @Test
+    public void unsupportedFields_areErrors() throws Exception {
+        assertError("@SavedField fields must not be private", source("Hidden",
+                "@SavedOperation\n"
+                + "public class Hidden extends UndoHistory.UndoOperation<Void> {\n"
+                + "    @SavedField private int mX;\n"
+                + BODY
+                + "}\n"));
+        assertError("@SavedField type java.lang.Object is not supported", source("Loose",
+                "@SavedOperation\n"
+                + "public class Loose extends UndoHistory.UndoOperation<Void> {\n"
+                + "    @SavedField Object mX;\n"
+                + BODY
+                + "}\n"));
+    }
+
+    @Test
+    public void classesThatAreNotOperations_areErrors() throws Exception {
+        assertError("@SavedOperation classes must extend UndoHistory.UndoOperation",
+                source("Plain",
+                "@SavedOperation\n"
+                + "public class Plain {\n"
+                + "}\n"));
+        assertError("@SavedOperation classes must not be abstract", source("Partial",
+                "@SavedOperation\n"
+                + "public abstract class Partial extends UndoHistory.UndoOperation<Void> {\n"
+                + "}\n"));
+    }
+}
@@ -0,0 +1,82 @@
+package com.cardinalblue.android.piccollage.tools;
+
+import com.cardinalblue.android.piccollage.HistoryTracer;
+import com.cardinalblue.android.piccollage.OpaqueOperation;
+import com.cardinalblue.android.piccollage.UndoHistory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Command line tool that checks a set of saved histories for corruption.  Every
+ * file given (directories are searched recursively) is decoded, re-encoded and
+ * run through {@link BatchReplayer#VERIFY}.  Operations are read as
+ * {@link OpaqueOperation}s, so no app classes are needed.  With {@code --trace}
+ * the histories report to a {@link JfrHistoryTracer}, so a flight recording of
+ * the run shows where replay time goes.
+ *
+ * <pre>
+ * BatchReplayTool [--threads N] [--trace] FILE_OR_DIR...
+ * </pre>
+ */
+public final class BatchReplayTool {
+    private BatchReplayTool() {
+    }
+
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean trace = false;
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("--trace".equals(args[i])) {
+                trace = true;
+            } else {
+                collect(new File(args[i]), files);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("usage: BatchReplayTool [--threads N] [--trace] FILE_OR_DIR...");
+            System.exit(2);
+        }
+        final HistoryTracer tracer = trace ? new JfrHistoryTracer() : HistoryTracer.NONE;
+        BatchReplayer replayer = new BatchReplayer(new ForkJoinPool(threads),
+                new BatchReplayer.HistoryFactory() {
+                    @Override
+                    public UndoHistory newHistory() {
+                        UndoHistory history = new UndoHistory();
+                        history.getOperationCodecs().setFallback(OpaqueOperation.PROVIDER);
+                        history.setTracer(tracer);
+                        return history;
+                    }
+                });
+        replayer.setVerifyEncoding(true);
+        long start = System.nanoTime();
+        List<BatchReplayer.Result<Void>> results = replayer.replayFiles(files,
+                BatchReplayer.VERIFY);
+        long millis = (System.nanoTime() - start) / 1000000;
+        int failed = 0;
+        for (BatchReplayer.Result<Void> result : results) {
+            if (!result.isSuccess()) {
+                failed++;
+                System.out.println(files.get(result.getIndex()) + ": " + result.getError());
+            }
+        }
+        System.out.println(files.size() + " histories, " + failed + " failed, " + millis + " ms");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void collect(File file, List<File> out) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            out.add(file);
+            return;
+        }
+        for (File child : children) {
+            collect(child, out);
+        }
+    }
+}
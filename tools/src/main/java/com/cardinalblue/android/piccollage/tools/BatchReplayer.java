@@ -0,0 +1,277 @@
+package com.cardinalblue.android.piccollage.tools;
+
+import com.cardinalblue.android.piccollage.HistorySnapshot;
+import com.cardinalblue.android.piccollage.UndoHistory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes and replays large batches of saved histories, as produced by
+ * {@link UndoHistory#saveState()}, across all cores with fork/join.  Every
+ * history is decoded into its own {@link UndoHistory} and processed by a
+ * {@link Task} on a single thread; only different histories run in parallel.
+ */
+public final class BatchReplayer {
+    /**
+     * Creates the history that a saved history is restored into.  It must register
+     * the codecs for all operations that may appear in the saved data, typically
+     * bound to a fresh document for every history.
+     */
+    public interface HistoryFactory {
+        UndoHistory newHistory();
+    }
+
+    /**
+     * Work performed on one restored history.
+     */
+    public interface Task<R> {
+        R replay(UndoHistory history) throws Exception;
+    }
+
+    /**
+     * Outcome of the task for one history: either a value or the error that made
+     * decoding or replaying it fail.
+     */
+    public static final class Result<R> {
+        private final int mIndex;
+        private final R mValue;
+        private final Throwable mError;
+
+        Result(int index, R value, Throwable error) {
+            mIndex = index;
+            mValue = value;
+            mError = error;
+        }
+
+        /**
+         * Return the position of the history in the input list.
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        public R getValue() {
+            return mValue;
+        }
+
+        public Throwable getError() {
+            return mError;
+        }
+
+        public boolean isSuccess() {
+            return mError == null;
+        }
+    }
+
+    /**
+     * Replays every state of the undo stack from the oldest one, by calling
+     * {@link UndoHistory.UndoOperation#redo()} on each of its operations in order.
+     * Starting from an empty document this rebuilds the final document.  Returns the
+     * number of operations applied.
+     */
+    public static final Task<Integer> REPLAY_TO_END = new Task<Integer>() {
+        @Override
+        public Integer replay(UndoHistory history) {
+            ArrayList<HistorySnapshot.Entry> entries = new ArrayList<>();
+            for (HistorySnapshot.Entry entry : history.getHistorySnapshot().undoEntries()) {
+                entries.add(entry);
+            }
+            Collections.reverse(entries);
+            int count = 0;
+            for (HistorySnapshot.Entry entry : entries) {
+                for (UndoHistory.UndoOperation<?> op : entry.getOperations()) {
+                    op.redo();
+                    count++;
+                }
+            }
+            return count;
+        }
+    };
+
+    /**
+     * Checks that the history survives a full redo, undo and redo cycle: every call
+     * must move the expected number of states, and the states must come back in
+     * the same order with the same labels and operation counts.
+     */
+    public static final Task<Void> VERIFY = new Task<Void>() {
+        @Override
+        public Void replay(UndoHistory history) {
+            String before = describe(history.getHistorySnapshot());
+            final int undos = history.countUndos();
+            final int redos = history.countRedos();
+            final int total = undos + redos;
+            expect(history.redo(redos), redos, "redo");
+            expect(history.undo(total), total, "undo");
+            expect(history.redo(total), total, "redo");
+            expect(history.undo(redos), redos, "undo");
+            String after = describe(history.getHistorySnapshot());
+            if (!before.equals(after)) {
+                throw new IllegalStateException("History changed by undo/redo cycle: "
+                        + before + " -> " + after);
+            }
+            return null;
+        }
+
+        private void expect(int actual, int expected, String what) {
+            if (actual != expected) {
+                throw new IllegalStateException(what + " moved " + actual + " states, expected "
+                        + expected);
+            }
+        }
+
+        private String describe(HistorySnapshot snapshot) {
+            StringBuilder sb = new StringBuilder();
+            for (HistorySnapshot.Entry entry : snapshot.undoEntries()) {
+                sb.append('u').append(entry.getCommitId()).append(':').append(entry.getLabel())
+                        .append('/').append(entry.countOperations()).append(' ');
+            }
+            for (HistorySnapshot.Entry entry : snapshot.redoEntries()) {
+                sb.append('r').append(entry.getCommitId()).append(':').append(entry.getLabel())
+                        .append('/').append(entry.countOperations()).append(' ');
+            }
+            return sb.toString();
+        }
+    };
+
+    private final ForkJoinPool mPool;
+    private final HistoryFactory mFactory;
+    private boolean mVerifyEncoding;
+
+    /**
+     * @param pool Pool to run on; use {@code new ForkJoinPool()} to use all cores.
+     * @param factory Creates the history each saved history is restored into.
+     */
+    public BatchReplayer(ForkJoinPool pool, HistoryFactory factory) {
+        mPool = pool;
+        mFactory = factory;
+    }
+
+    /**
+     * If set, every history is saved again right after it has been restored, and
+     * the result must be identical to the input.  This detects data that decodes
+     * without error but not to what was saved.
+     */
+    public void setVerifyEncoding(boolean verify) {
+        mVerifyEncoding = verify;
+    }
+
+    /**
+     * Run <var>task</var> on every history.
+     * @return Returns one result per history, in input order.
+     */
+    public <R> List<Result<R>> replay(final List<byte[]> histories, Task<R> task) {
+        return run(new Source() {
+            @Override
+            public int size() {
+                return histories.size();
+            }
+
+            @Override
+            public byte[] load(int index) {
+                return histories.get(index);
+            }
+        }, task);
+    }
+
+    /**
+     * Run <var>task</var> on every history saved in <var>files</var>.  Files are read
+     * on the worker threads, so reading is parallelized as well.
+     * @return Returns one result per file, in input order.
+     */
+    public <R> List<Result<R>> replayFiles(final List<File> files, Task<R> task) {
+        return run(new Source() {
+            @Override
+            public int size() {
+                return files.size();
+            }
+
+            @Override
+            public byte[] load(int index) throws IOException {
+                RandomAccessFile f = new RandomAccessFile(files.get(index), "r");
+                try {
+                    byte[] data = new byte[(int) f.length()];
+                    f.readFully(data);
+                    return data;
+                } finally {
+                    f.close();
+                }
+            }
+        }, task);
+    }
+
+    private <R> List<Result<R>> run(Source source, Task<R> task) {
+        @SuppressWarnings("unchecked")
+        Result<R>[] results = (Result<R>[]) new Result<?>[source.size()];
+        mPool.invoke(new ReplayRange<>(source, task, results, 0, results.length));
+        return Arrays.asList(results);
+    }
+
+    private <R> Result<R> replayOne(Source source, Task<R> task, int index) {
+        try {
+            byte[] data = source.load(index);
+            UndoHistory history = mFactory.newHistory();
+            history.restoreState(data);
+            if (mVerifyEncoding) {
+                verifyEncoding(data, history);
+            }
+            return new Result<>(index, task.replay(history), null);
+        } catch (Exception | StackOverflowError e) {
+            return new Result<>(index, null, e);
+        }
+    }
+
+    private void verifyEncoding(byte[] data, UndoHistory history) {
+        byte[] saved = history.saveState();
+        if (!Arrays.equals(data, saved)) {
+            throw new IllegalStateException("History does not encode back to the saved data");
+        }
+    }
+
+    private interface Source {
+        int size();
+
+        byte[] load(int index) throws IOException;
+    }
+
+    /**
+     * Splits the input in halves down to single histories.
+     */
+    private final class ReplayRange<R> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Source mSource;
+        private final Task<R> mTask;
+        private final Result<R>[] mResults;
+        private final int mStart;
+        private final int mEnd;
+
+        ReplayRange(Source source, Task<R> task, Result<R>[] results, int start, int end) {
+            mSource = source;
+            mTask = task;
+            mResults = results;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart <= 1) {
+                if (mEnd > mStart) {
+                    mResults[mStart] = replayOne(mSource, mTask, mStart);
+                }
+                return;
+            }
+            int mid = (mStart + mEnd) >>> 1;
+            invokeAll(new ReplayRange<>(mSource, mTask, mResults, mStart, mid),
+                    new ReplayRange<>(mSource, mTask, mResults, mid, mEnd));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.cardinalblue.android.piccollage.tools;
+
+import com.cardinalblue.android.piccollage.HistoryTracer;
+
+import java.util.ArrayDeque;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * {@link HistoryTracer} that records every section as a Java Flight Recorder
+ * event, so undo stalls can be found in JFR recordings of the tools or of a
+ * server replaying histories.  Tracing is enabled whenever a recording has the
+ * {@value #EVENT_NAME} event enabled, which is the case for the default
+ * settings.
+ */
+public class JfrHistoryTracer implements HistoryTracer {
+    public static final String EVENT_NAME = "com.cardinalblue.undo.HistorySection";
+
+    @Name(EVENT_NAME)
+    @Label("Undo History Section")
+    @Category("Undo History")
+    @Description("Work done by an undo history, or by one operation within it")
+    @StackTrace(false)
+    public static final class SectionEvent extends Event {
+        @Label("Name")
+        String name;
+
+        @Label("Depth")
+        @Description("Number of sections this one is nested in")
+        int depth;
+    }
+
+    private static final EventType TYPE = EventType.getEventType(SectionEvent.class);
+
+    private final ThreadLocal<ArrayDeque<SectionEvent>> mOpen
+            = new ThreadLocal<ArrayDeque<SectionEvent>>() {
+                @Override
+                protected ArrayDeque<SectionEvent> initialValue() {
+                    return new ArrayDeque<>();
+                }
+            };
+
+    @Override
+    public boolean isEnabled() {
+        return TYPE.isEnabled();
+    }
+
+    @Override
+    public void beginSection(String name) {
+        ArrayDeque<SectionEvent> open = mOpen.get();
+        SectionEvent event = new SectionEvent();
+        event.name = name;
+        event.depth = open.size();
+        event.begin();
+        open.push(event);
+    }
+
+    @Override
+    public void endSection() {
+        SectionEvent event = mOpen.get().pop();
+        event.end();
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.cardinalblue.android.piccollage.tools;
+
+import com.cardinalblue.android.piccollage.HistoryImage;
+import com.cardinalblue.android.piccollage.HistoryInput;
+import com.cardinalblue.android.piccollage.HistoryOutput;
+import com.cardinalblue.android.piccollage.OpaqueOperation;
+import com.cardinalblue.android.piccollage.OperationCodec;
+import com.cardinalblue.android.piccollage.OperationCodecs;
+import com.cardinalblue.android.piccollage.SharedHistoryPublisher;
+import com.cardinalblue.android.piccollage.SharedHistoryReader;
+import com.cardinalblue.android.piccollage.UndoHistory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line tool that reads a history shared by a
+ * {@link SharedHistoryPublisher} in another process.
+ *
+ * <pre>
+ * SharedHistoryTool dump FILE [--states N]
+ * SharedHistoryTool watch FILE [--interval MS]
+ * SharedHistoryTool publish FILE [--count N] [--interval MS]
+ * </pre>
+ *
+ * <p>{@code dump} prints the latest history once.  {@code watch} prints a line
+ * for every new publication until the publisher stops; each publication is
+ * walked completely, decoding every operation, so a read that was torn by the
+ * publisher and not retried shows up as an error.  {@code publish} is the other
+ * half of that check: it makes edits, undoes and redoes in a history of its own
+ * and publishes it, so running it and {@code watch} in two JVMs exercises the
+ * protocol.</p>
+ */
+public final class SharedHistoryTool {
+    private SharedHistoryTool() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            usage();
+        }
+        File file = new File(args[1]);
+        int states = 10;
+        int count = 1000;
+        long interval = -1;
+        for (int i = 2; i < args.length; i++) {
+            if ("--states".equals(args[i]) && i + 1 < args.length) {
+                states = Integer.parseInt(args[++i]);
+            } else if ("--count".equals(args[i]) && i + 1 < args.length) {
+                count = Integer.parseInt(args[++i]);
+            } else if ("--interval".equals(args[i]) && i + 1 < args.length) {
+                interval = Long.parseLong(args[++i]);
+            } else {
+                usage();
+            }
+        }
+        if ("dump".equals(args[0])) {
+            dump(file, states);
+        } else if ("watch".equals(args[0])) {
+            System.exit(watch(file, interval >= 0 ? interval : 10) ? 0 : 1);
+        } else if ("publish".equals(args[0])) {
+            publish(file, count, interval >= 0 ? interval : 1);
+        } else {
+            usage();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: SharedHistoryTool dump FILE [--states N]");
+        System.err.println("       SharedHistoryTool watch FILE [--interval MS]");
+        System.err.println("       SharedHistoryTool publish FILE [--count N] [--interval MS]");
+        System.exit(2);
+    }
+
+    private static void dump(File file, final int states) throws IOException {
+        SharedHistoryReader reader = SharedHistoryReader.open(file);
+        try {
+            String text = reader.read(new SharedHistoryReader.Visitor<String>() {
+                @Override
+                public String visit(HistoryImage image) {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append(image.countUndos()).append(" undos, ")
+                            .append(image.countRedos()).append(" redos, ")
+                            .append(image.size()).append(" bytes\n");
+                    for (int i = 0; i < Math.min(states, image.countRedos()); i++) {
+                        appendState(sb, "redo", i, image.getRedoState(i));
+                    }
+                    for (int i = 0; i < Math.min(states, image.countUndos()); i++) {
+                        appendState(sb, "undo", i, image.getUndoState(i));
+                    }
+                    return sb.toString();
+                }
+            });
+            System.out.print(text != null ? text : "nothing published\n");
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void appendState(StringBuilder sb, String stack, int depth,
+            HistoryImage.State state) {
+        sb.append("  ").append(stack).append(' ').append(depth)
+                .append("\t#").append(state.getCommitId())
+                .append('\t').append(state.countOperations()).append(" ops\t")
+                .append(state.getLabel()).append('\n');
+    }
+
+    private static boolean watch(File file, long interval) throws IOException,
+            InterruptedException {
+        final OperationCodecs codecs = new OperationCodecs();
+        codecs.setFallback(OpaqueOperation.PROVIDER);
+        SharedHistoryReader.Visitor<String> walk = new SharedHistoryReader.Visitor<String>() {
+            @Override
+            public String visit(HistoryImage image) {
+                int operations = 0;
+                for (int i = 0; i < image.countUndos(); i++) {
+                    operations += image.getUndoState(i).readOperations(codecs).size();
+                }
+                for (int i = 0; i < image.countRedos(); i++) {
+                    operations += image.getRedoState(i).readOperations(codecs).size();
+                }
+                String top = image.countUndos() > 0 ? image.getUndoState(0).getLabel() : null;
+                return image.countUndos() + " undos, " + image.countRedos() + " redos, "
+                        + operations + " operations, top " + top;
+            }
+        };
+        SharedHistoryReader reader = SharedHistoryReader.open(file);
+        try {
+            long seen = -1;
+            int publications = 0;
+            while (true) {
+                final boolean closed = reader.isClosed();
+                final long count = reader.getPublishCount();
+                if (count != seen) {
+                    String summary;
+                    try {
+                        summary = reader.read(walk);
+                    } catch (RuntimeException e) {
+                        System.out.println("publication " + count + ": " + e);
+                        return false;
+                    }
+                    System.out.println("publication " + count + ": " + summary);
+                    seen = count;
+                    publications++;
+                }
+                if (closed) {
+                    System.out.println("publisher stopped; " + publications + " publications read");
+                    return true;
+                }
+                Thread.sleep(interval);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void publish(File file, int count, long interval) throws Exception {
+        UndoHistory history = new UndoHistory();
+        history.setHistorySize(-1);
+        history.getOperationCodecs().register(DemoOperation.class, new DemoOperation.Codec());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        SharedHistoryPublisher publisher = new SharedHistoryPublisher(history, file, executor);
+        for (int i = 0; i < count; i++) {
+            if (i % 10 == 9) {
+                history.undo(3);
+            } else if (i % 10 == 0 && history.countRedos() > 0) {
+                history.redo(1);
+            } else {
+                history.beginUpdate("edit " + i);
+                for (int j = 0; j <= i % 4; j++) {
+                    history.addOperation(new DemoOperation(i, j), UndoHistory.MERGE_MODE_NONE);
+                }
+                history.endUpdate();
+            }
+            if (interval > 0) {
+                Thread.sleep(interval);
+            }
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        System.out.println(publisher.getPublishCount() + " publications");
+        publisher.stop();
+    }
+
+    /**
+     * Operation with a payload whose size varies, so the published history
+     * grows and moves around the file.
+     */
+    private static final class DemoOperation extends UndoHistory.UndoOperation<Void> {
+        final int mEdit;
+        final byte[] mData;
+
+        DemoOperation(int edit, int index) {
+            this(edit, new byte[(edit * 31 + index) % 200]);
+        }
+
+        DemoOperation(int edit, byte[] data) {
+            mEdit = edit;
+            mData = data;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+
+        static final class Codec implements OperationCodec<DemoOperation> {
+            @Override
+            public void write(DemoOperation op, HistoryOutput out) {
+                out.writeInt(op.mEdit);
+                out.writeByteArray(op.mData);
+            }
+
+            @Override
+            public DemoOperation read(HistoryInput in) {
+                return new DemoOperation(in.readInt(), in.readByteArray());
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.cardinalblue.android.piccollage.tools;
+
+import com.cardinalblue.android.piccollage.HistoryTraceReader;
+import com.cardinalblue.android.piccollage.HistoryTracer;
+import com.cardinalblue.android.piccollage.UndoHistory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line tool that replays traces recorded with a
+ * {@link com.cardinalblue.android.piccollage.HistoryTraceRecorder} through
+ * {@link TraceReplayer} and prints latency percentiles per call, as recorded on
+ * the device and as replayed here.
+ *
+ * <pre>
+ * TraceReplayTool [--paced] [--warmup N] [--repeat N] [--trace] TRACE...
+ * </pre>
+ *
+ * <p>Traces are replayed at full speed unless {@code --paced} is given.  Every
+ * trace is first replayed {@code --warmup} times without measuring, to let the
+ * JIT settle, and then {@code --repeat} times into the report.  With
+ * {@code --trace} the histories report to a {@link JfrHistoryTracer}.</p>
+ */
+public final class TraceReplayTool {
+    private static final double[] PERCENTILES = { 0.5, 0.9, 0.99 };
+
+    private TraceReplayTool() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean paced = false;
+        boolean trace = false;
+        int warmup = 0;
+        int repeat = 1;
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--paced".equals(args[i])) {
+                paced = true;
+            } else if ("--trace".equals(args[i])) {
+                trace = true;
+            } else if ("--warmup".equals(args[i]) && i + 1 < args.length) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if ("--repeat".equals(args[i]) && i + 1 < args.length) {
+                repeat = Integer.parseInt(args[++i]);
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("usage: TraceReplayTool [--paced] [--warmup N] [--repeat N]"
+                    + " [--trace] TRACE...");
+            System.exit(2);
+        }
+        final HistoryTracer tracer = trace ? new JfrHistoryTracer() : HistoryTracer.NONE;
+        TraceReplayer replayer = new TraceReplayer(new BatchReplayer.HistoryFactory() {
+            @Override
+            public UndoHistory newHistory() {
+                UndoHistory history = new UndoHistory();
+                history.setTracer(tracer);
+                return history;
+            }
+        }, paced);
+        TraceReplayer.Report report = null;
+        for (File file : files) {
+            byte[] data = readFile(file);
+            for (int i = 0; i < warmup; i++) {
+                replayer.replay(new HistoryTraceReader(new ByteArrayInputStream(data)), null);
+            }
+            for (int i = 0; i < repeat; i++) {
+                report = replayer.replay(
+                        new HistoryTraceReader(new ByteArrayInputStream(data)), report);
+            }
+        }
+        print(report);
+    }
+
+    private static void print(TraceReplayer.Report report) {
+        System.out.println(String.format("%-14s %8s  %-30s  %-30s", "call", "count",
+                "recorded p50/p90/p99/max us", "replayed p50/p90/p99/max us"));
+        for (int type = 1; type < TraceReplayer.CALL_NAMES.length; type++) {
+            TraceReplayer.Latencies replayed = report.getReplayed(type);
+            if (replayed.count() == 0) {
+                continue;
+            }
+            System.out.println(String.format("%-14s %8d  %-30s  %-30s",
+                    TraceReplayer.CALL_NAMES[type], replayed.count(),
+                    describe(report.getRecorded(type)), describe(replayed)));
+        }
+        if (report.getDivergedCount() > 0 || report.getSkippedCount() > 0) {
+            System.out.println(report.getDivergedCount() + " undos/redos diverged from the"
+                    + " recording, " + report.getSkippedCount() + " events skipped");
+        }
+    }
+
+    private static String describe(TraceReplayer.Latencies latencies) {
+        StringBuilder sb = new StringBuilder();
+        for (double p : PERCENTILES) {
+            sb.append(micros(latencies.percentile(p))).append('/');
+        }
+        return sb.append(micros(latencies.max())).toString();
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f", nanos / 1000.0);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) f.length()];
+            f.readFully(data);
+            return data;
+        } finally {
+            f.close();
+        }
+    }
+}
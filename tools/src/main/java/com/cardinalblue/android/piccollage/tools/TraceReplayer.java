@@ -0,0 +1,309 @@
+package com.cardinalblue.android.piccollage.tools;
+
+import com.cardinalblue.android.piccollage.HistoryInput;
+import com.cardinalblue.android.piccollage.HistoryOutput;
+import com.cardinalblue.android.piccollage.HistoryTraceReader;
+import com.cardinalblue.android.piccollage.OperationCodec;
+import com.cardinalblue.android.piccollage.UndoHistory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives an {@link UndoHistory} from a trace recorded by a
+ * {@link com.cardinalblue.android.piccollage.HistoryTraceRecorder} and measures
+ * how long every call takes.  Operations are replaced by synthetic ones of the
+ * recorded saved size whose undo and redo do nothing, so a replay measures the
+ * history itself, not the app's document: compare the two to tell time spent
+ * in the history from time spent in operations.
+ *
+ * <p>The history's clock follows the recorded timestamps, so time-based merge
+ * policies merge the same updates as in the recording even when the trace is
+ * replayed at full speed.  Merge modes are replayed as recorded, but all
+ * synthetic operations share one class, so {@link UndoHistory#MERGE_MODE_UNIQUE}
+ * may merge updates that the recording kept apart.  Each replay reports how
+ * many undos and redos moved a different number of states than recorded.</p>
+ */
+public final class TraceReplayer {
+    /** Names of the calls, indexed by event type. */
+    static final String[] CALL_NAMES = {
+            null, "beginUpdate", "addOperation", "endUpdate", "undo", "redo", "commitState",
+            "saveState", "abortUpdate", "createSavepoint", "rollbackTo", "releaseSavepoint"
+    };
+
+    /**
+     * Latencies of one kind of call, in nanoseconds.
+     */
+    public static final class Latencies {
+        private long[] mValues = new long[64];
+        private int mCount;
+        private boolean mSorted = true;
+
+        void add(long nanos) {
+            if (mCount == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mCount * 2);
+            }
+            mValues[mCount++] = nanos;
+            mSorted = false;
+        }
+
+        public int count() {
+            return mCount;
+        }
+
+        /**
+         * Return the latency below which <var>fraction</var> of the calls
+         * completed, using the nearest rank, or 0 if there were none.
+         */
+        public long percentile(double fraction) {
+            if (mCount == 0) {
+                return 0;
+            }
+            if (!mSorted) {
+                Arrays.sort(mValues, 0, mCount);
+                mSorted = true;
+            }
+            final int rank = (int) Math.ceil(fraction * mCount);
+            return mValues[Math.min(mCount - 1, Math.max(0, rank - 1))];
+        }
+
+        public long max() {
+            return percentile(1);
+        }
+    }
+
+    /**
+     * Latencies of every kind of call, as recorded and as replayed.
+     */
+    public static final class Report {
+        final Latencies[] mRecorded = new Latencies[CALL_NAMES.length];
+        final Latencies[] mReplayed = new Latencies[CALL_NAMES.length];
+        int mDiverged;
+        int mSkipped;
+
+        Report() {
+            for (int i = 1; i < CALL_NAMES.length; i++) {
+                mRecorded[i] = new Latencies();
+                mReplayed[i] = new Latencies();
+            }
+        }
+
+        /**
+         * Return the latencies the trace recorded for one kind of call, given
+         * as a {@link HistoryTraceReader} event type.
+         */
+        public Latencies getRecorded(int type) {
+            return mRecorded[type];
+        }
+
+        /**
+         * Return the latencies measured in the replay for one kind of call.
+         */
+        public Latencies getReplayed(int type) {
+            return mReplayed[type];
+        }
+
+        /**
+         * Return the number of undos and redos that moved a different number
+         * of states than they did when recorded.
+         */
+        public int getDivergedCount() {
+            return mDiverged;
+        }
+
+        /**
+         * Return the number of events that could not be replayed, such as
+         * operations added to an update that began before recording started.
+         */
+        public int getSkippedCount() {
+            return mSkipped;
+        }
+    }
+
+    private final BatchReplayer.HistoryFactory mFactory;
+    private final boolean mPaced;
+
+    /**
+     * @param factory Creates the history each replay runs on, configured like
+     * the recorded one apart from its size limit, which comes from the trace.
+     * @param paced If true, calls are made at the recorded times; otherwise
+     * one right after the other.
+     */
+    public TraceReplayer(BatchReplayer.HistoryFactory factory, boolean paced) {
+        mFactory = factory;
+        mPaced = paced;
+    }
+
+    /**
+     * Replay <var>trace</var> on a new history, adding its latencies to
+     * <var>report</var>, or to a new report if it is null.
+     * @return Returns the report.
+     */
+    public Report replay(HistoryTraceReader trace, Report report) throws IOException {
+        if (report == null) {
+            report = new Report();
+        }
+        final ReplayClock clock = new ReplayClock();
+        UndoHistory history = mFactory.newHistory();
+        history.getOperationCodecs().register(SyntheticOperation.class,
+                new SyntheticOperation.Codec());
+        history.setHistorySize(trace.getHistorySize());
+        history.setClock(clock);
+        prefill(history, trace.getInitialUndos(), trace.getInitialRedos());
+
+        final long startNanos = System.nanoTime();
+        while (trace.next()) {
+            final int type = trace.getType();
+            clock.mMillis = trace.getTimeNanos() / 1000000;
+            if (mPaced) {
+                waitUntil(startNanos + trace.getTimeNanos());
+            }
+            // Allocate the operation first so that it isn't part of the timing.
+            SyntheticOperation op = type == HistoryTraceReader.EVENT_ADD_OPERATION
+                    ? new SyntheticOperation(trace.getOperationType(),
+                            new byte[Math.max(0, trace.getOperationSize())])
+                    : null;
+            if (!canReplay(history, trace)) {
+                report.mSkipped++;
+                continue;
+            }
+            final long callStart = System.nanoTime();
+            int moved = -1;
+            switch (type) {
+                case HistoryTraceReader.EVENT_BEGIN_UPDATE:
+                    history.beginUpdate(trace.getLabel());
+                    break;
+                case HistoryTraceReader.EVENT_ADD_OPERATION:
+                    history.addOperation(op, trace.getMergeMode());
+                    break;
+                case HistoryTraceReader.EVENT_END_UPDATE:
+                    history.endUpdate();
+                    break;
+                case HistoryTraceReader.EVENT_UNDO:
+                    moved = history.undo(trace.getCount());
+                    break;
+                case HistoryTraceReader.EVENT_REDO:
+                    moved = history.redo(trace.getCount());
+                    break;
+                case HistoryTraceReader.EVENT_COMMIT_STATE:
+                    history.commitState();
+                    break;
+                case HistoryTraceReader.EVENT_SAVE_STATE:
+                    history.saveState();
+                    break;
+                case HistoryTraceReader.EVENT_ABORT_UPDATE:
+                    history.abortUpdate();
+                    break;
+                case HistoryTraceReader.EVENT_CREATE_SAVEPOINT:
+                    history.createSavepoint();
+                    break;
+                case HistoryTraceReader.EVENT_ROLLBACK_TO_SAVEPOINT:
+                    history.rollbackToSavepoint(trace.getCount());
+                    break;
+                case HistoryTraceReader.EVENT_RELEASE_SAVEPOINT:
+                    history.releaseSavepoint(trace.getCount());
+                    break;
+            }
+            report.mReplayed[type].add(System.nanoTime() - callStart);
+            report.mRecorded[type].add(trace.getDurationNanos());
+            if (moved >= 0 && moved != trace.getResult()) {
+                report.mDiverged++;
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Return false for calls that would fail because the trace started or
+     * diverged in the middle of an update, or lost a savepoint.
+     */
+    private static boolean canReplay(UndoHistory history, HistoryTraceReader trace) {
+        switch (trace.getType()) {
+            case HistoryTraceReader.EVENT_ADD_OPERATION:
+            case HistoryTraceReader.EVENT_END_UPDATE:
+            case HistoryTraceReader.EVENT_ABORT_UPDATE:
+            case HistoryTraceReader.EVENT_CREATE_SAVEPOINT:
+                return history.isInUpdate();
+            case HistoryTraceReader.EVENT_ROLLBACK_TO_SAVEPOINT:
+            case HistoryTraceReader.EVENT_RELEASE_SAVEPOINT:
+                return history.isInUpdate() && trace.getCount() <= history.countSavepoints();
+            case HistoryTraceReader.EVENT_UNDO:
+            case HistoryTraceReader.EVENT_REDO:
+            case HistoryTraceReader.EVENT_SAVE_STATE:
+                return !history.isInUpdate();
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Give the history as many undo and redo states as the recorded one had
+     * when recording started.
+     */
+    private static void prefill(UndoHistory history, int undos, int redos) {
+        for (int i = 0; i < undos + redos; i++) {
+            history.beginUpdate("prefill");
+            history.addOperation(new SyntheticOperation("prefill", new byte[16]),
+                    UndoHistory.MERGE_MODE_NONE);
+            history.endUpdate();
+            history.commitState();
+        }
+        history.undo(redos);
+    }
+
+    private static void waitUntil(long nanos) {
+        long remaining;
+        while ((remaining = nanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static final class ReplayClock implements UndoHistory.Clock {
+        long mMillis;
+
+        @Override
+        public long uptimeMillis() {
+            return mMillis;
+        }
+    }
+
+    /**
+     * Stands in for a recorded operation: it has the recorded saved size and
+     * does nothing when undone or redone.
+     */
+    static final class SyntheticOperation extends UndoHistory.UndoOperation<Void> {
+        final String mTypeName;
+        final byte[] mPayload;
+
+        SyntheticOperation(String typeName, byte[] payload) {
+            mTypeName = typeName;
+            mPayload = payload;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+        }
+
+        @Override
+        public void redo() {
+        }
+
+        static final class Codec implements OperationCodec<SyntheticOperation> {
+            @Override
+            public void write(SyntheticOperation op, HistoryOutput out) {
+                out.writeString(op.mTypeName);
+                out.writeByteArray(op.mPayload);
+            }
+
+            @Override
+            public SyntheticOperation read(HistoryInput in) {
+                return new SyntheticOperation(in.readString(), in.readByteArray());
+            }
+        }
+    }
+}
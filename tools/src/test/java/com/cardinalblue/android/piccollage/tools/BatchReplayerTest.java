@@ -0,0 +1,239 @@
+package com.cardinalblue.android.piccollage.tools;
+
+import com.cardinalblue.android.piccollage.HistoryInput;
+import com.cardinalblue.android.piccollage.HistoryOutput;
+import com.cardinalblue.android.piccollage.HistorySnapshot;
+import com.cardinalblue.android.piccollage.OperationCodec;
+import com.cardinalblue.android.piccollage.UndoHistory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BatchReplayerTest {
+    private ForkJoinPool mPool;
+
+    /** Appends a character to the document it is bound to. */
+    static class Append extends UndoHistory.UndoOperation<Void> {
+        final StringBuilder mDocument;
+        final char mChar;
+        Thread mThread;
+
+        Append(StringBuilder document, char c) {
+            mDocument = document;
+            mChar = c;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void undo() {
+            mThread = Thread.currentThread();
+            mDocument.setLength(mDocument.length() - 1);
+        }
+
+        @Override
+        public void redo() {
+            mThread = Thread.currentThread();
+            mDocument.append(mChar);
+        }
+    }
+
+    /** Restores every history bound to a fresh, empty document. */
+    static final BatchReplayer.HistoryFactory FACTORY = new BatchReplayer.HistoryFactory() {
+        @Override
+        public UndoHistory newHistory() {
+            return newDocumentHistory(new StringBuilder(), false);
+        }
+    };
+
+    /** Returns the document the history rebuilds. */
+    static final BatchReplayer.Task<String> DOCUMENT = new BatchReplayer.Task<String>() {
+        @Override
+        public String replay(UndoHistory history) throws Exception {
+            BatchReplayer.REPLAY_TO_END.replay(history);
+            if (history.countUndos() == 0) {
+                return "";
+            }
+            return ((Append) history.getHistorySnapshot().getUndoEntries(0, 1).get(0)
+                    .getOperations().get(0)).mDocument.toString();
+        }
+    };
+
+    /**
+     * Rebuilds the document first, since {@link BatchReplayer#VERIFY} undoes and
+     * redoes from the current state.
+     */
+    static final BatchReplayer.Task<Void> VERIFY = new BatchReplayer.Task<Void>() {
+        @Override
+        public Void replay(UndoHistory history) throws Exception {
+            BatchReplayer.REPLAY_TO_END.replay(history);
+            return BatchReplayer.VERIFY.replay(history);
+        }
+    };
+
+    static UndoHistory newDocumentHistory(final StringBuilder document, final boolean lossy) {
+        UndoHistory history = new UndoHistory();
+        history.setHistorySize(-1);
+        history.getOperationCodecs().register(Append.class, new OperationCodec<Append>() {
+            @Override
+            public void write(Append op, HistoryOutput out) {
+                out.writeInt(op.mChar);
+            }
+
+            @Override
+            public Append read(HistoryInput in) {
+                int c = in.readInt();
+                return new Append(document, lossy ? 'x' : (char) c);
+            }
+        });
+        return history;
+    }
+
+    static byte[] save(String text, int undos) {
+        StringBuilder document = new StringBuilder();
+        UndoHistory history = newDocumentHistory(document, false);
+        for (int i = 0; i < text.length(); i++) {
+            history.beginUpdate("type " + i);
+            Append op = new Append(document, text.charAt(i));
+            op.redo();
+            history.addOperation(op);
+            history.endUpdate();
+        }
+        history.undo(undos);
+        return history.saveState();
+    }
+
+    @Before
+    public void setUp() {
+        mPool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mPool.shutdown();
+        mPool.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void replay_returnsResultsInInputOrder() {
+        ArrayList<byte[]> histories = new ArrayList<>();
+        ArrayList<String> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String text = "history " + i;
+            histories.add(save(text, i % 3));
+            expected.add(text.substring(0, text.length() - i % 3));
+        }
+        List<BatchReplayer.Result<String>> results
+                = new BatchReplayer(mPool, FACTORY).replay(histories, DOCUMENT);
+        assertEquals(histories.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            BatchReplayer.Result<String> result = results.get(i);
+            assertTrue(result.isSuccess());
+            assertEquals(i, result.getIndex());
+            assertEquals(expected.get(i), result.getValue());
+        }
+    }
+
+    @Test
+    public void replay_runsEachHistoryOnOneThread() {
+        BatchReplayer.Task<Boolean> oneThread = new BatchReplayer.Task<Boolean>() {
+            @Override
+            public Boolean replay(UndoHistory history) throws Exception {
+                VERIFY.replay(history);
+                Thread thread = null;
+                for (HistorySnapshot.Entry entry : history.getHistorySnapshot().undoEntries()) {
+                    Thread used = ((Append) entry.getOperations().get(0)).mThread;
+                    if (thread != null && used != thread) {
+                        return false;
+                    }
+                    thread = used;
+                }
+                return thread == Thread.currentThread();
+            }
+        };
+        ArrayList<byte[]> histories = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            histories.add(save("abcdefgh", 2));
+        }
+        for (BatchReplayer.Result<Boolean> result
+                : new BatchReplayer(mPool, FACTORY).replay(histories, oneThread)) {
+            assertTrue(result.getValue());
+        }
+    }
+
+    @Test
+    public void replay_reportsCorruptHistoriesWithoutStopping() {
+        byte[] good = save("abc", 1);
+        byte[] truncated = Arrays.copyOf(good, good.length - 3);
+        byte[] garbage = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+        List<BatchReplayer.Result<Void>> results = new BatchReplayer(mPool, FACTORY)
+                .replay(Arrays.asList(good, truncated, garbage, good), VERIFY);
+        assertTrue(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertNotNull(results.get(1).getError());
+        assertTrue(results.get(2).getError() instanceof IllegalArgumentException);
+        assertTrue(results.get(3).isSuccess());
+    }
+
+    @Test
+    public void verifyEncoding_detectsDataThatDoesNotRoundTrip() {
+        BatchReplayer.HistoryFactory lossy = new BatchReplayer.HistoryFactory() {
+            @Override
+            public UndoHistory newHistory() {
+                return newDocumentHistory(new StringBuilder(), true);
+            }
+        };
+        List<byte[]> histories = Arrays.asList(save("abc", 0), save("xxx", 0));
+        BatchReplayer replayer = new BatchReplayer(mPool, lossy);
+        List<BatchReplayer.Result<Integer>> results
+                = replayer.replay(histories, BatchReplayer.REPLAY_TO_END);
+        assertTrue(results.get(0).isSuccess());
+
+        replayer.setVerifyEncoding(true);
+        results = replayer.replay(histories, BatchReplayer.REPLAY_TO_END);
+        assertTrue(results.get(0).getError() instanceof IllegalStateException);
+        assertTrue(results.get(1).isSuccess());
+        assertEquals(3, (int) results.get(1).getValue());
+    }
+
+    @Test
+    public void replayFiles_readsEachFile() throws IOException {
+        ArrayList<File> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                File file = File.createTempFile("history", ".bin");
+                files.add(file);
+                FileOutputStream out = new FileOutputStream(file);
+                try {
+                    out.write(save("file" + i, 0));
+                } finally {
+                    out.close();
+                }
+            }
+            files.add(new File(files.get(0).getParentFile(), "missing-history.bin"));
+            List<BatchReplayer.Result<String>> results
+                    = new BatchReplayer(mPool, FACTORY).replayFiles(files, DOCUMENT);
+            assertEquals("file0", results.get(0).getValue());
+            assertEquals("file2", results.get(2).getValue());
+            assertTrue(results.get(3).getError() instanceof IOException);
+        } finally {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
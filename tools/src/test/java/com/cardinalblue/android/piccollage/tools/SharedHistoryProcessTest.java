@@ -0,0 +1,181 @@
+package com.cardinalblue.android.piccollage.tools;
+
+import com.cardinalblue.android.piccollage.HistoryImage;
+import com.cardinalblue.android.piccollage.OpaqueOperation;
+import com.cardinalblue.android.piccollage.OperationCodecs;
+import com.cardinalblue.android.piccollage.SharedHistoryPublisher;
+import com.cardinalblue.android.piccollage.SharedHistoryReader;
+import com.cardinalblue.android.piccollage.UndoHistory;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads a history that {@link SharedHistoryTool} publishes from a second JVM,
+ * and checks that every read sees a whole publication.
+ */
+public class SharedHistoryProcessTest {
+    private static final int EDITS = 1500;
+
+    /**
+     * Checks one publication of {@code SharedHistoryTool publish}: edit
+     * <var>i</var> holds {@code i % 4 + 1} operations whose payloads grow with
+     * their data, and the undo stack holds edits in decreasing order.  Returns
+     * the number of undos.
+     */
+    private static final SharedHistoryReader.Visitor<Integer> CHECK
+            = new SharedHistoryReader.Visitor<Integer>() {
+        @Override
+        public Integer visit(HistoryImage image) {
+            final OperationCodecs codecs = new OperationCodecs();
+            codecs.setFallback(OpaqueOperation.PROVIDER);
+            int previous = Integer.MAX_VALUE;
+            for (int depth = 0; depth < image.countUndos(); depth++) {
+                HistoryImage.State state = image.getUndoState(depth);
+                int edit = checkState(state, codecs);
+                if (edit >= previous) {
+                    throw new IllegalStateException("edit " + edit + " below " + previous);
+                }
+                previous = edit;
+            }
+            for (int depth = 0; depth < image.countRedos(); depth++) {
+                checkState(image.getRedoState(depth), codecs);
+            }
+            return image.countUndos();
+        }
+    };
+
+    private static int checkState(HistoryImage.State state, OperationCodecs codecs) {
+        String label = state.getLabel();
+        if (label == null || !label.startsWith("edit ")) {
+            throw new IllegalStateException("label " + label);
+        }
+        int edit = Integer.parseInt(label.substring(5));
+        if (state.countOperations() != edit % 4 + 1) {
+            throw new IllegalStateException(label + " has " + state.countOperations() + " ops");
+        }
+        int overhead = -1;
+        for (int j = 0; j < state.countOperations(); j++) {
+            int size = state.getPayloadSize(j) - (edit * 31 + j) % 200;
+            if (overhead >= 0 && size != overhead) {
+                throw new IllegalStateException(label + " op " + j + " payload " + size);
+            }
+            overhead = size;
+        }
+        if (state.readOperations(codecs).size() != state.countOperations()) {
+            throw new IllegalStateException(label + " decodes differently");
+        }
+        return edit;
+    }
+
+    @Test
+    public void readsAreConsistentAcrossProcesses() throws Exception {
+        File dir = createTempDir();
+        File file = new File(dir, "history");
+        Process publisher = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                SharedHistoryTool.class.getName(), "publish", file.getPath(),
+                "--count", String.valueOf(EDITS), "--interval", "1")
+                .redirectErrorStream(true)
+                .redirectOutput(new File(dir, "publisher.log"))
+                .start();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+            while (!file.exists()) {
+                assertTrue("publisher never created " + file, System.nanoTime() < deadline);
+                Thread.sleep(1);
+            }
+            SharedHistoryReader reader = SharedHistoryReader.open(file);
+            try {
+                long seen = -1;
+                int reads = 0;
+                int publications = 0;
+                while (true) {
+                    final boolean closed = reader.isClosed();
+                    final long count = reader.getPublishCount();
+                    // A torn read that was not retried throws or fails a check.
+                    Integer undos = reader.read(CHECK);
+                    assertTrue(undos != null || count == 0);
+                    reads++;
+                    if (count != seen) {
+                        seen = count;
+                        publications++;
+                    }
+                    if (closed) {
+                        break;
+                    }
+                    assertTrue("publisher stalled", System.nanoTime() < deadline);
+                }
+                assertTrue("read " + publications + " of " + seen + " publications",
+                        publications > 1);
+                assertTrue(reads >= publications);
+            } finally {
+                reader.close();
+            }
+            assertEquals(0, publisher.waitFor());
+        } finally {
+            publisher.destroy();
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void newPublisherClosesTheOldFile() throws Exception {
+        File dir = createTempDir();
+        File file = new File(dir, "history");
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        try {
+            SharedHistoryPublisher first = new SharedHistoryPublisher(new UndoHistory(), file,
+                    direct);
+            SharedHistoryReader reader = SharedHistoryReader.open(file);
+            try {
+                assertFalse(reader.isClosed());
+                SharedHistoryPublisher second = new SharedHistoryPublisher(new UndoHistory(),
+                        file, direct);
+                assertTrue(reader.isClosed());
+                SharedHistoryReader reopened = SharedHistoryReader.open(file);
+                try {
+                    assertFalse(reopened.isClosed());
+                } finally {
+                    reopened.close();
+                }
+                second.stop();
+            } finally {
+                reader.close();
+            }
+            first.stop();
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("shared-history", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Can't create " + dir);
+        }
+        return dir;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}